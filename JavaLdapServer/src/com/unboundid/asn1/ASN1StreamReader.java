@@ -156,6 +156,90 @@ public final class ASN1StreamReader
 
 
 
+  /**
+   * Indicates whether the next element has been received in its entirety, so
+   * that it may be read without blocking.  This will only consider data that
+   * has already been received, and it will not consume any of that data.  An
+   * element whose length is invalid will be considered available, so that the
+   * problem may be reported when it is read.  Note that an element that is
+   * larger than the amount of data that can be buffered (by this reader and
+   * by the underlying input stream) will not be considered available until
+   * it has started to be read.
+   *
+   * @return  {@code true} if the next element has been received in its
+   *          entirety, or {@code false} if not.
+   *
+   * @throws  IOException  If a problem occurs while interacting with the
+   *                       underlying input stream.
+   */
+  public boolean isCompleteElementAvailable()
+         throws IOException
+  {
+    final InputStream is;
+    if (saslClient == null)
+    {
+      is = inputStream;
+    }
+    else
+    {
+      // Any part of the element that is still wrapped cannot be examined
+      // without reading it, so only the data that has already been unwrapped
+      // is considered.
+      is = saslInputStream;
+      if (is == null)
+      {
+        return false;
+      }
+    }
+
+    final int available = is.available();
+    if (available < 2)
+    {
+      return false;
+    }
+
+    is.mark(6);
+    try
+    {
+      is.read();
+      long length = is.read();
+      int headerLength = 2;
+      if (length > 127)
+      {
+        final int numLengthBytes = (int) (length & 0x7F);
+        if ((numLengthBytes < 1) || (numLengthBytes > 4))
+        {
+          return true;
+        }
+
+        if (available < (2 + numLengthBytes))
+        {
+          return false;
+        }
+
+        length = 0L;
+        for (int i=0; i < numLengthBytes; i++)
+        {
+          length = (length << 8) | (is.read() & 0xFF);
+        }
+        headerLength += numLengthBytes;
+      }
+
+      if ((maxElementSize > 0) && (length > maxElementSize))
+      {
+        return true;
+      }
+
+      return ((available - headerLength) >= length);
+    }
+    finally
+    {
+      is.reset();
+    }
+  }
+
+
+
   /**
    * Retrieves the total number of bytes read so far from the underlying input
    * stream.
@@ -605,6 +605,14 @@ public final class AccessLogRequestHandler
       final LDAPMessage responseMessage = requestHandler.processSearchRequest(
            messageID, request, controls);
       final long eTimeNanos = System.nanoTime() - startTimeNanos;
+
+      // There will not be a response for a search that was abandoned or that
+      // remains active as a persistent search.
+      if (responseMessage == null)
+      {
+        return null;
+      }
+
       final SearchResultDoneProtocolOp protocolOp =
            responseMessage.getSearchResultDoneProtocolOp();
 
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.ExtendedRequest;
+import com.unboundid.ldap.sdk.ExtendedResult;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.extensions.CancelExtendedRequest;
+import com.unboundid.util.Debug;
+import com.unboundid.util.NotMutable;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+import static com.unboundid.ldap.listener.ListenerMessages.*;
+
+
+
+/**
+ * This class provides an implementation of an extended operation handler for
+ * the in-memory directory server that can be used to process the cancel
+ * extended operation as defined in
+ * <A HREF="http://www.ietf.org/rfc/rfc3909.txt">RFC 3909</A>.
+ * <BR><BR>
+ * The in-memory directory server processes the requests for each connection
+ * one at a time, so only a search operation can be canceled, and only if the
+ * cancel request arrives while the search is still being processed or if the
+ * search is an active persistent search.  In that case, the search will be
+ * completed with a result code of {@link ResultCode#CANCELED}, and the cancel
+ * operation will then return a result code of {@link ResultCode#SUCCESS}.  A
+ * cancel request targeting any other operation will return a result code of
+ * {@link ResultCode#NO_SUCH_OPERATION}.
+ */
+@NotMutable()
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public final class CancelExtendedOperationHandler
+       extends InMemoryExtendedOperationHandler
+{
+  /**
+   * The name of the connection state variable that will be used to hold the
+   * message ID of the most recent search canceled on the associated
+   * connection.
+   */
+  static final String STATE_VARIABLE_CANCELED_MSG_ID = "CANCELED-MSG-ID";
+
+
+
+  /**
+   * Creates a new instance of this extended operation handler.
+   */
+  public CancelExtendedOperationHandler()
+  {
+    // No initialization is required.
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public String getExtendedOperationHandlerName()
+  {
+    return "Cancel";
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public List<String> getSupportedExtendedRequestOIDs()
+  {
+    return Arrays.asList(CancelExtendedRequest.CANCEL_REQUEST_OID);
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public ExtendedResult processExtendedOperation(
+                             final InMemoryRequestHandler handler,
+                             final int messageID, final ExtendedRequest request)
+  {
+    // This extended operation handler does not support any controls.  If the
+    // request has any critical controls, then reject it.
+    for (final Control c : request.getControls())
+    {
+      if (c.isCritical())
+      {
+        return new ExtendedResult(messageID,
+             ResultCode.UNAVAILABLE_CRITICAL_EXTENSION,
+             ERR_CANCEL_EXTOP_UNSUPPORTED_CONTROL.get(c.getOID()), null, null,
+             null, null, null);
+      }
+    }
+
+    // Decode the request to get the message ID of the operation to cancel.
+    final int targetMessageID;
+    try
+    {
+      targetMessageID =
+           new CancelExtendedRequest(request).getTargetMessageID();
+    }
+    catch (final LDAPException le)
+    {
+      Debug.debugException(le);
+      return new ExtendedResult(messageID, ResultCode.PROTOCOL_ERROR,
+           le.getMessage(), null, null, null, null, null);
+    }
+
+    // If the targeted search was interrupted as a result of this request, then
+    // it will have left its message ID in the connection state.
+    final Integer canceledMessageID = (Integer)
+         handler.getConnectionState().remove(STATE_VARIABLE_CANCELED_MSG_ID);
+    if ((canceledMessageID != null) &&
+        (canceledMessageID.intValue() == targetMessageID))
+    {
+      return new ExtendedResult(messageID, ResultCode.SUCCESS, null, null,
+           null, null, null, null);
+    }
+
+    // See if the target is a persistent search active on the connection.
+    if (handler.cancelPersistentSearch(targetMessageID))
+    {
+      return new ExtendedResult(messageID, ResultCode.SUCCESS, null, null,
+           null, null, null, null);
+    }
+
+    return new ExtendedResult(messageID, ResultCode.NO_SUCH_OPERATION,
+         ERR_CANCEL_EXTOP_NO_SUCH_OPERATION.get(targetMessageID), null, null,
+         null, null, null);
+  }
+}
@@ -0,0 +1,1243 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import com.unboundid.util.NotMutable;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides an immutable set of entry IDs that is held as a
+ * compressed bitmap.  The IDs are partitioned into blocks by their upper 16
+ * bits, and the lower 16 bits of the IDs in each block are held either in a
+ * sorted array (if there are only a few of them) or in a bitmap (if there are
+ * many of them).  This keeps the memory required for each ID small, and makes
+ * it possible to compute the intersection or union of two sets by combining
+ * the blocks that they have in common, using word-level operations where
+ * possible.
+ * <BR><BR>
+ * Methods that alter the set do not change the set on which they are invoked,
+ * but instead return a new set that shares all unchanged blocks with the
+ * original.  It is therefore safe for any number of threads to read a set
+ * without any synchronization.
+ */
+@NotMutable()
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+final class EntryIDSet
+{
+  /**
+   * The maximum number of IDs that may be held in an array block.  Blocks with
+   * more IDs than this will be held as bitmaps, which require the same amount
+   * of memory as an array block of this size.
+   */
+  private static final int MAX_ARRAY_SIZE = 4096;
+
+
+
+  /**
+   * The number of words in a bitmap block.
+   */
+  private static final int BITMAP_WORDS = 1024;
+
+
+
+  /**
+   * The maximum number of sets to examine when estimating the size of the
+   * union of a range of sets.
+   */
+  private static final int ESTIMATE_SAMPLE_SIZE = 8;
+
+
+
+  /**
+   * An empty entry ID set.
+   */
+  static final EntryIDSet EMPTY = new EntryIDSet(new char[0], new Block[0], 0);
+
+
+
+  // The blocks that hold the lower 16 bits of the IDs in this set.
+  private final Block[] blocks;
+
+  // The upper 16 bits of the IDs held in each block, in ascending order.
+  private final char[] keys;
+
+  // The number of IDs in this set.
+  private final int size;
+
+
+
+  /**
+   * Creates a new entry ID set with the provided information.
+   *
+   * @param  keys    The upper 16 bits of the IDs held in each block, in
+   *                 ascending order.
+   * @param  blocks  The blocks that hold the lower 16 bits of the IDs.
+   * @param  size    The number of IDs in the set.
+   */
+  private EntryIDSet(final char[] keys, final Block[] blocks, final int size)
+  {
+    this.keys   = keys;
+    this.blocks = blocks;
+    this.size   = size;
+  }
+
+
+
+  /**
+   * Creates a new entry ID set from the first {@code numBlocks} elements of the
+   * provided arrays.
+   *
+   * @param  keys       The upper 16 bits of the IDs held in each block, in
+   *                    ascending order.
+   * @param  blocks     The blocks that hold the lower 16 bits of the IDs.
+   * @param  numBlocks  The number of elements of the arrays to use.
+   * @param  size       The number of IDs in the set.
+   *
+   * @return  The entry ID set that was created.
+   */
+  private static EntryIDSet create(final char[] keys, final Block[] blocks,
+                                   final int numBlocks, final int size)
+  {
+    if (numBlocks == 0)
+    {
+      return EMPTY;
+    }
+    else if (numBlocks == keys.length)
+    {
+      return new EntryIDSet(keys, blocks, size);
+    }
+
+    final char[] newKeys = new char[numBlocks];
+    final Block[] newBlocks = new Block[numBlocks];
+    System.arraycopy(keys, 0, newKeys, 0, numBlocks);
+    System.arraycopy(blocks, 0, newBlocks, 0, numBlocks);
+    return new EntryIDSet(newKeys, newBlocks, size);
+  }
+
+
+
+  /**
+   * Retrieves the number of IDs in this set.
+   *
+   * @return  The number of IDs in this set.
+   */
+  int size()
+  {
+    return size;
+  }
+
+
+
+  /**
+   * Indicates whether this set is empty.
+   *
+   * @return  {@code true} if this set is empty, or {@code false} if not.
+   */
+  boolean isEmpty()
+  {
+    return (size == 0);
+  }
+
+
+
+  /**
+   * Indicates whether this set contains the specified ID.
+   *
+   * @param  id  The ID for which to make the determination.
+   *
+   * @return  {@code true} if this set contains the specified ID, or
+   *          {@code false} if not.
+   */
+  boolean contains(final int id)
+  {
+    final int pos = Arrays.binarySearch(keys, (char) (id >>> 16));
+    return ((pos >= 0) && blocks[pos].contains((char) id));
+  }
+
+
+
+  /**
+   * Retrieves the smallest ID in this set.
+   *
+   * @return  The smallest ID in this set, or -1 if the set is empty.
+   */
+  int first()
+  {
+    if (size == 0)
+    {
+      return -1;
+    }
+    else
+    {
+      return ((keys[0] << 16) | blocks[0].first());
+    }
+  }
+
+
+
+  /**
+   * Retrieves a set containing all of the IDs in this set along with the
+   * specified ID.
+   *
+   * @param  id  The ID to add.  It must not be negative.
+   *
+   * @return  A set containing all of the IDs in this set along with the
+   *          specified ID, or this set if it already contains the ID.
+   */
+  EntryIDSet add(final int id)
+  {
+    final char key = (char) (id >>> 16);
+    final int pos = Arrays.binarySearch(keys, key);
+    if (pos >= 0)
+    {
+      final Block b = blocks[pos].add((char) id);
+      if (b == blocks[pos])
+      {
+        return this;
+      }
+
+      final Block[] newBlocks = blocks.clone();
+      newBlocks[pos] = b;
+      return new EntryIDSet(keys, newBlocks, (size + 1));
+    }
+
+    final int insertPos = -(pos + 1);
+    final char[] newKeys = new char[keys.length + 1];
+    final Block[] newBlocks = new Block[blocks.length + 1];
+    System.arraycopy(keys, 0, newKeys, 0, insertPos);
+    System.arraycopy(blocks, 0, newBlocks, 0, insertPos);
+    newKeys[insertPos] = key;
+    newBlocks[insertPos] = new ArrayBlock(new char[] { (char) id });
+    System.arraycopy(keys, insertPos, newKeys, (insertPos + 1),
+         (keys.length - insertPos));
+    System.arraycopy(blocks, insertPos, newBlocks, (insertPos + 1),
+         (blocks.length - insertPos));
+    return new EntryIDSet(newKeys, newBlocks, (size + 1));
+  }
+
+
+
+  /**
+   * Retrieves a set containing all of the IDs in this set except the specified
+   * ID.
+   *
+   * @param  id  The ID to remove.
+   *
+   * @return  A set containing all of the IDs in this set except the specified
+   *          ID, or this set if it does not contain the ID.
+   */
+  EntryIDSet remove(final int id)
+  {
+    final int pos = Arrays.binarySearch(keys, (char) (id >>> 16));
+    if (pos < 0)
+    {
+      return this;
+    }
+
+    final Block b = blocks[pos].remove((char) id);
+    if (b == blocks[pos])
+    {
+      return this;
+    }
+    else if (b != null)
+    {
+      final Block[] newBlocks = blocks.clone();
+      newBlocks[pos] = b;
+      return new EntryIDSet(keys, newBlocks, (size - 1));
+    }
+    else if (keys.length == 1)
+    {
+      return EMPTY;
+    }
+
+    final char[] newKeys = new char[keys.length - 1];
+    final Block[] newBlocks = new Block[blocks.length - 1];
+    System.arraycopy(keys, 0, newKeys, 0, pos);
+    System.arraycopy(blocks, 0, newBlocks, 0, pos);
+    System.arraycopy(keys, (pos + 1), newKeys, pos, (newKeys.length - pos));
+    System.arraycopy(blocks, (pos + 1), newBlocks, pos,
+         (newBlocks.length - pos));
+    return new EntryIDSet(newKeys, newBlocks, (size - 1));
+  }
+
+
+
+  /**
+   * Retrieves a set containing the IDs that are in both this set and the
+   * provided set.
+   *
+   * @param  s  The set with which to intersect this set.
+   *
+   * @return  A set containing the IDs that are in both this set and the
+   *          provided set.
+   */
+  EntryIDSet and(final EntryIDSet s)
+  {
+    final int maxBlocks = Math.min(keys.length, s.keys.length);
+    final char[] newKeys = new char[maxBlocks];
+    final Block[] newBlocks = new Block[maxBlocks];
+    int numBlocks = 0;
+    int newSize = 0;
+
+    int i = 0;
+    int j = 0;
+    while ((i < keys.length) && (j < s.keys.length))
+    {
+      if (keys[i] < s.keys[j])
+      {
+        i++;
+      }
+      else if (keys[i] > s.keys[j])
+      {
+        j++;
+      }
+      else
+      {
+        final Block b = and(blocks[i], s.blocks[j]);
+        if (b != null)
+        {
+          newKeys[numBlocks] = keys[i];
+          newBlocks[numBlocks++] = b;
+          newSize += b.cardinality();
+        }
+        i++;
+        j++;
+      }
+    }
+
+    return create(newKeys, newBlocks, numBlocks, newSize);
+  }
+
+
+
+  /**
+   * Retrieves a set containing the IDs that are in either this set or the
+   * provided set.
+   *
+   * @param  s  The set with which to combine this set.
+   *
+   * @return  A set containing the IDs that are in either this set or the
+   *          provided set.
+   */
+  EntryIDSet or(final EntryIDSet s)
+  {
+    if (s.size == 0)
+    {
+      return this;
+    }
+    else if (size == 0)
+    {
+      return s;
+    }
+
+    final int maxBlocks = keys.length + s.keys.length;
+    final char[] newKeys = new char[maxBlocks];
+    final Block[] newBlocks = new Block[maxBlocks];
+    int numBlocks = 0;
+    int newSize = 0;
+
+    int i = 0;
+    int j = 0;
+    while ((i < keys.length) || (j < s.keys.length))
+    {
+      final Block b;
+      if ((j >= s.keys.length) ||
+          ((i < keys.length) && (keys[i] < s.keys[j])))
+      {
+        newKeys[numBlocks] = keys[i];
+        b = blocks[i++];
+      }
+      else if ((i >= keys.length) || (keys[i] > s.keys[j]))
+      {
+        newKeys[numBlocks] = s.keys[j];
+        b = s.blocks[j++];
+      }
+      else
+      {
+        newKeys[numBlocks] = keys[i];
+        b = or(blocks[i++], s.blocks[j++]);
+      }
+
+      newBlocks[numBlocks++] = b;
+      newSize += b.cardinality();
+    }
+
+    return create(newKeys, newBlocks, numBlocks, newSize);
+  }
+
+
+
+  /**
+   * Retrieves a set containing the IDs that are in any of the provided sets.
+   * This is more efficient than combining the sets one at a time, since each
+   * block of the resulting set will only be created once.
+   *
+   * @param  sets  The sets to combine.
+   *
+   * @return  A set containing the IDs that are in any of the provided sets.
+   */
+  static EntryIDSet union(final Collection<EntryIDSet> sets)
+  {
+    if (sets.isEmpty())
+    {
+      return EMPTY;
+    }
+    else if (sets.size() == 1)
+    {
+      return sets.iterator().next();
+    }
+
+    final TreeMap<Character,List<Block>> blocksByKey =
+         new TreeMap<Character,List<Block>>();
+    for (final EntryIDSet s : sets)
+    {
+      for (int i=0; i < s.keys.length; i++)
+      {
+        List<Block> l = blocksByKey.get(s.keys[i]);
+        if (l == null)
+        {
+          l = new ArrayList<Block>(sets.size());
+          blocksByKey.put(s.keys[i], l);
+        }
+        l.add(s.blocks[i]);
+      }
+    }
+
+    final char[] newKeys = new char[blocksByKey.size()];
+    final Block[] newBlocks = new Block[blocksByKey.size()];
+    int numBlocks = 0;
+    int newSize = 0;
+    for (final Map.Entry<Character,List<Block>> e : blocksByKey.entrySet())
+    {
+      final List<Block> l = e.getValue();
+      final Block b;
+      if (l.size() == 1)
+      {
+        b = l.get(0);
+      }
+      else
+      {
+        final long[] words = new long[BITMAP_WORDS];
+        for (final Block lb : l)
+        {
+          lb.orInto(words);
+        }
+        b = createBlock(words);
+      }
+
+      newKeys[numBlocks] = e.getKey();
+      newBlocks[numBlocks++] = b;
+      newSize += b.cardinality();
+    }
+
+    return create(newKeys, newBlocks, numBlocks, newSize);
+  }
+
+
+
+  /**
+   * Estimates the number of IDs in the union of the sets held in a range of
+   * positions in the provided map, without actually computing the union.  The
+   * estimate is based on the number of sets in the range and the sizes of a
+   * sample of them.
+   *
+   * @param  map        The map holding the sets.
+   * @param  fromIndex  The position of the first set in the range.
+   * @param  toIndex    The position after the last set in the range.
+   *
+   * @return  The estimated number of IDs in the union of the sets in the
+   *          range.
+   */
+  static long estimateUnionSize(final PersistentSortedMap<?,EntryIDSet> map,
+                                final int fromIndex, final int toIndex)
+  {
+    final int numSets = toIndex - fromIndex;
+    if (numSets <= 0)
+    {
+      return 0L;
+    }
+
+    final int numSamples = Math.min(numSets, ESTIMATE_SAMPLE_SIZE);
+    long sampleSize = 0L;
+    for (int i=0; i < numSamples; i++)
+    {
+      final int index = fromIndex + (int) (((long) i * numSets) / numSamples);
+      sampleSize += map.entryAt(index).getValue().size();
+    }
+
+    return ((sampleSize * numSets) / numSamples);
+  }
+
+
+
+  /**
+   * Retrieves an iterator that may be used to access the IDs in this set in
+   * ascending order.
+   *
+   * @return  An iterator that may be used to access the IDs in this set.
+   */
+  Iterator<Integer> iterator()
+  {
+    return new IDIterator(this);
+  }
+
+
+
+  /**
+   * Retrieves a block containing the values that are in both of the provided
+   * blocks.
+   *
+   * @param  b1  The first block.
+   * @param  b2  The second block.
+   *
+   * @return  A block containing the values that are in both of the provided
+   *          blocks, or {@code null} if there are no such values.
+   */
+  private static Block and(final Block b1, final Block b2)
+  {
+    if ((b1 instanceof BitmapBlock) && (b2 instanceof BitmapBlock))
+    {
+      final long[] words1 = ((BitmapBlock) b1).words;
+      final long[] words2 = ((BitmapBlock) b2).words;
+      final long[] words = new long[BITMAP_WORDS];
+      for (int i=0; i < BITMAP_WORDS; i++)
+      {
+        words[i] = words1[i] & words2[i];
+      }
+      return createBlock(words);
+    }
+
+    // At least one of the blocks is an array, so check each of its values
+    // against the other block.
+    final char[] values;
+    final Block other;
+    if (b1 instanceof ArrayBlock)
+    {
+      values = ((ArrayBlock) b1).values;
+      other = b2;
+    }
+    else
+    {
+      values = ((ArrayBlock) b2).values;
+      other = b1;
+    }
+
+    final char[] buffer = new char[values.length];
+    int count = 0;
+    for (final char v : values)
+    {
+      if (other.contains(v))
+      {
+        buffer[count++] = v;
+      }
+    }
+
+    if (count == 0)
+    {
+      return null;
+    }
+
+    final char[] newValues = new char[count];
+    System.arraycopy(buffer, 0, newValues, 0, count);
+    return new ArrayBlock(newValues);
+  }
+
+
+
+  /**
+   * Retrieves a block containing the values that are in either of the provided
+   * blocks.
+   *
+   * @param  b1  The first block.
+   * @param  b2  The second block.
+   *
+   * @return  A block containing the values that are in either of the provided
+   *          blocks.
+   */
+  private static Block or(final Block b1, final Block b2)
+  {
+    if ((b1 instanceof ArrayBlock) && (b2 instanceof ArrayBlock))
+    {
+      final char[] values1 = ((ArrayBlock) b1).values;
+      final char[] values2 = ((ArrayBlock) b2).values;
+      if ((values1.length + values2.length) <= MAX_ARRAY_SIZE)
+      {
+        final char[] buffer = new char[values1.length + values2.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while ((i < values1.length) || (j < values2.length))
+        {
+          if ((j >= values2.length) ||
+              ((i < values1.length) && (values1[i] < values2[j])))
+          {
+            buffer[count++] = values1[i++];
+          }
+          else if ((i >= values1.length) || (values1[i] > values2[j]))
+          {
+            buffer[count++] = values2[j++];
+          }
+          else
+          {
+            buffer[count++] = values1[i++];
+            j++;
+          }
+        }
+
+        final char[] newValues = new char[count];
+        System.arraycopy(buffer, 0, newValues, 0, count);
+        return new ArrayBlock(newValues);
+      }
+    }
+
+    final long[] words = new long[BITMAP_WORDS];
+    b1.orInto(words);
+    b2.orInto(words);
+    return createBlock(words);
+  }
+
+
+
+  /**
+   * Creates a block containing the values whose bits are set in the provided
+   * bitmap.  It will be an array block if there are few enough values, or a
+   * bitmap block that uses the provided array otherwise.
+   *
+   * @param  words  The bitmap to use.
+   *
+   * @return  The block that was created, or {@code null} if no bits are set in
+   *          the provided bitmap.
+   */
+  private static Block createBlock(final long[] words)
+  {
+    int cardinality = 0;
+    for (final long w : words)
+    {
+      cardinality += Long.bitCount(w);
+    }
+
+    if (cardinality == 0)
+    {
+      return null;
+    }
+    else if (cardinality > MAX_ARRAY_SIZE)
+    {
+      return new BitmapBlock(words, cardinality);
+    }
+
+    final char[] values = new char[cardinality];
+    int count = 0;
+    for (int i=0; i < BITMAP_WORDS; i++)
+    {
+      long w = words[i];
+      while (w != 0L)
+      {
+        values[count++] = (char) ((i << 6) + Long.numberOfTrailingZeros(w));
+        w &= (w - 1L);
+      }
+    }
+    return new ArrayBlock(values);
+  }
+
+
+
+  /**
+   * This class defines a block of values held in an entry ID set.  Each value
+   * contains the lower 16 bits of an ID.  Blocks are never altered after they
+   * have been created.
+   */
+  private abstract static class Block
+  {
+    /**
+     * Retrieves the number of values in this block.
+     *
+     * @return  The number of values in this block.
+     */
+    abstract int cardinality();
+
+
+
+    /**
+     * Indicates whether this block contains the specified value.
+     *
+     * @param  value  The value for which to make the determination.
+     *
+     * @return  {@code true} if this block contains the specified value, or
+     *          {@code false} if not.
+     */
+    abstract boolean contains(char value);
+
+
+
+    /**
+     * Retrieves the smallest value in this block that is greater than or equal
+     * to the provided value.
+     *
+     * @param  value  The value at which to start looking.
+     *
+     * @return  The smallest value in this block that is greater than or equal
+     *          to the provided value, or -1 if there is no such value.
+     */
+    abstract int next(int value);
+
+
+
+    /**
+     * Retrieves the smallest value in this block.
+     *
+     * @return  The smallest value in this block.
+     */
+    final int first()
+    {
+      return next(0);
+    }
+
+
+
+    /**
+     * Retrieves a block containing all of the values in this block along with
+     * the specified value.
+     *
+     * @param  value  The value to add.
+     *
+     * @return  A block containing all of the values in this block along with
+     *          the specified value, or this block if it already contains the
+     *          value.
+     */
+    abstract Block add(char value);
+
+
+
+    /**
+     * Retrieves a block containing all of the values in this block except the
+     * specified value.
+     *
+     * @param  value  The value to remove.
+     *
+     * @return  A block containing all of the values in this block except the
+     *          specified value, this block if it does not contain the value,
+     *          or {@code null} if the resulting block would be empty.
+     */
+    abstract Block remove(char value);
+
+
+
+    /**
+     * Sets the bits for all of the values in this block in the provided
+     * bitmap.
+     *
+     * @param  words  The bitmap to update.
+     */
+    abstract void orInto(long[] words);
+  }
+
+
+
+  /**
+   * This class provides a block that holds its values in a sorted array.
+   */
+  private static final class ArrayBlock
+          extends Block
+  {
+    // The values in this block, in ascending order.
+    private final char[] values;
+
+
+
+    /**
+     * Creates a new array block with the provided values.
+     *
+     * @param  values  The values for the block, in ascending order.
+     */
+    private ArrayBlock(final char[] values)
+    {
+      this.values = values;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    int cardinality()
+    {
+      return values.length;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    boolean contains(final char value)
+    {
+      return (Arrays.binarySearch(values, value) >= 0);
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    int next(final int value)
+    {
+      if (value > Character.MAX_VALUE)
+      {
+        return -1;
+      }
+
+      final int pos = Arrays.binarySearch(values, (char) value);
+      if (pos >= 0)
+      {
+        return values[pos];
+      }
+
+      final int insertPos = -(pos + 1);
+      if (insertPos < values.length)
+      {
+        return values[insertPos];
+      }
+      else
+      {
+        return -1;
+      }
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    Block add(final char value)
+    {
+      final int pos = Arrays.binarySearch(values, value);
+      if (pos >= 0)
+      {
+        return this;
+      }
+
+      if (values.length >= MAX_ARRAY_SIZE)
+      {
+        final long[] words = new long[BITMAP_WORDS];
+        orInto(words);
+        words[value >>> 6] |= (1L << value);
+        return new BitmapBlock(words, (values.length + 1));
+      }
+
+      final int insertPos = -(pos + 1);
+      final char[] newValues = new char[values.length + 1];
+      System.arraycopy(values, 0, newValues, 0, insertPos);
+      newValues[insertPos] = value;
+      System.arraycopy(values, insertPos, newValues, (insertPos + 1),
+           (values.length - insertPos));
+      return new ArrayBlock(newValues);
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    Block remove(final char value)
+    {
+      final int pos = Arrays.binarySearch(values, value);
+      if (pos < 0)
+      {
+        return this;
+      }
+      else if (values.length == 1)
+      {
+        return null;
+      }
+
+      final char[] newValues = new char[values.length - 1];
+      System.arraycopy(values, 0, newValues, 0, pos);
+      System.arraycopy(values, (pos + 1), newValues, pos,
+           (newValues.length - pos));
+      return new ArrayBlock(newValues);
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    void orInto(final long[] words)
+    {
+      for (final char v : values)
+      {
+        words[v >>> 6] |= (1L << v);
+      }
+    }
+  }
+
+
+
+  /**
+   * This class provides a block that holds its values in a bitmap.
+   */
+  private static final class BitmapBlock
+          extends Block
+  {
+    // The number of values in this block.
+    private final int cardinality;
+
+    // The bitmap for this block.
+    private final long[] words;
+
+
+
+    /**
+     * Creates a new bitmap block with the provided information.
+     *
+     * @param  words        The bitmap for the block.
+     * @param  cardinality  The number of bits set in the bitmap.
+     */
+    private BitmapBlock(final long[] words, final int cardinality)
+    {
+      this.words       = words;
+      this.cardinality = cardinality;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    int cardinality()
+    {
+      return cardinality;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    boolean contains(final char value)
+    {
+      return ((words[value >>> 6] & (1L << value)) != 0L);
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    int next(final int value)
+    {
+      if (value > Character.MAX_VALUE)
+      {
+        return -1;
+      }
+
+      int i = value >>> 6;
+      long w = words[i] & (-1L << value);
+      while (true)
+      {
+        if (w != 0L)
+        {
+          return ((i << 6) + Long.numberOfTrailingZeros(w));
+        }
+
+        i++;
+        if (i >= BITMAP_WORDS)
+        {
+          return -1;
+        }
+        w = words[i];
+      }
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    Block add(final char value)
+    {
+      if (contains(value))
+      {
+        return this;
+      }
+
+      final long[] newWords = words.clone();
+      newWords[value >>> 6] |= (1L << value);
+      return new BitmapBlock(newWords, (cardinality + 1));
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    Block remove(final char value)
+    {
+      if (! contains(value))
+      {
+        return this;
+      }
+
+      final long[] newWords = words.clone();
+      newWords[value >>> 6] &= ~(1L << value);
+      return createBlock(newWords);
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    void orInto(final long[] words)
+    {
+      for (int i=0; i < BITMAP_WORDS; i++)
+      {
+        words[i] |= this.words[i];
+      }
+    }
+  }
+
+
+
+  /**
+   * This class provides a mutable builder that may be used to create an entry
+   * ID set from a large number of IDs more efficiently than by adding them to
+   * an existing set one at a time, since each block of the resulting set will
+   * only be created once.  The IDs must be provided in ascending order.
+   */
+  static final class Builder
+  {
+    // The IDs that have been added.
+    private int[] ids;
+
+    // The number of IDs that have been added.
+    private int size;
+
+
+
+    /**
+     * Creates a new empty builder.
+     */
+    Builder()
+    {
+      ids = new int[4];
+      size = 0;
+    }
+
+
+
+    /**
+     * Adds the specified ID to the set being built.  It must not be less than
+     * any ID that has already been added, but it may be the same as the most
+     * recently added ID, in which case it will be ignored.
+     *
+     * @param  id  The ID to add.  It must not be negative.
+     */
+    void add(final int id)
+    {
+      if ((size > 0) && (ids[size - 1] == id))
+      {
+        return;
+      }
+
+      if (size == ids.length)
+      {
+        final int[] newIDs = new int[ids.length * 2];
+        System.arraycopy(ids, 0, newIDs, 0, size);
+        ids = newIDs;
+      }
+      ids[size++] = id;
+    }
+
+
+
+    /**
+     * Creates an entry ID set containing all of the IDs that have been added.
+     *
+     * @return  An entry ID set containing all of the IDs that have been added.
+     */
+    EntryIDSet build()
+    {
+      final ArrayList<Character> keyList = new ArrayList<Character>();
+      final ArrayList<Block> blockList = new ArrayList<Block>();
+
+      int start = 0;
+      while (start < size)
+      {
+        final char key = (char) (ids[start] >>> 16);
+        int end = start + 1;
+        while ((end < size) && ((char) (ids[end] >>> 16) == key))
+        {
+          end++;
+        }
+
+        final int count = end - start;
+        if (count > MAX_ARRAY_SIZE)
+        {
+          final long[] words = new long[BITMAP_WORDS];
+          for (int i=start; i < end; i++)
+          {
+            final char value = (char) ids[i];
+            words[value >>> 6] |= (1L << (value & 0x3F));
+          }
+          blockList.add(new BitmapBlock(words, count));
+        }
+        else
+        {
+          final char[] values = new char[count];
+          for (int i=start; i < end; i++)
+          {
+            values[i - start] = (char) ids[i];
+          }
+          blockList.add(new ArrayBlock(values));
+        }
+
+        keyList.add(key);
+        start = end;
+      }
+
+      final char[] keys = new char[keyList.size()];
+      for (int i=0; i < keys.length; i++)
+      {
+        keys[i] = keyList.get(i);
+      }
+
+      final Block[] blocks = new Block[blockList.size()];
+      blockList.toArray(blocks);
+      return create(keys, blocks, blocks.length, size);
+    }
+  }
+
+
+
+  /**
+   * This class provides an iterator over the IDs in an entry ID set.
+   */
+  private static final class IDIterator
+          implements Iterator<Integer>
+  {
+    // The set over which to iterate.
+    private final EntryIDSet set;
+
+    // The position of the block containing the next ID to return.
+    private int blockPos;
+
+    // The lower 16 bits of the next ID to return, or -1 if there are no more
+    // IDs.
+    private int nextValue;
+
+
+
+    /**
+     * Creates a new iterator over the provided set.
+     *
+     * @param  set  The set over which to iterate.
+     */
+    private IDIterator(final EntryIDSet set)
+    {
+      this.set = set;
+
+      blockPos = 0;
+      if (set.blocks.length == 0)
+      {
+        nextValue = -1;
+      }
+      else
+      {
+        nextValue = set.blocks[0].first();
+      }
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean hasNext()
+    {
+      return (nextValue >= 0);
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Integer next()
+    {
+      if (nextValue < 0)
+      {
+        throw new NoSuchElementException();
+      }
+
+      final int id = (set.keys[blockPos] << 16) | nextValue;
+
+      nextValue = set.blocks[blockPos].next(nextValue + 1);
+      if (nextValue < 0)
+      {
+        blockPos++;
+        if (blockPos < set.blocks.length)
+        {
+          nextValue = set.blocks[blockPos].first();
+        }
+      }
+
+      return id;
+    }
+
+
+
+    /**
+     * {@inheritDoc}  This method will always throw an
+     * {@code UnsupportedOperationException}.
+     */
+    public void remove()
+    {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
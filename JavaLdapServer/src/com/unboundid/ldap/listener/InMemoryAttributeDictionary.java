@@ -0,0 +1,314 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.InternalSDKHelper;
+import com.unboundid.ldap.sdk.ReadOnlyEntry;
+import com.unboundid.util.Mutable;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+import com.unboundid.util.WeakHashSet;
+
+import static com.unboundid.util.StaticUtils.*;
+
+
+
+/**
+ * This class provides a dictionary that may be used by the in-memory directory
+ * server to allow a large number of entries held in memory to share a single
+ * instance of each attribute name and each frequently-occurring attribute
+ * value, rather than each entry holding its own copy.  The {@link #intern}
+ * method creates a copy of an entry that uses the canonical instances held in
+ * the dictionary for its attribute names, the keys used to look up its
+ * attributes, and its raw and normalized attribute values.
+ * <BR><BR>
+ * The dictionary only holds weak references to the canonical instances, so an
+ * instance will be discarded once no entry refers to it.  It is also bounded in
+ * two ways.  Only values no longer than a given length are considered, and a
+ * value is only added to the dictionary the second time it is encountered, so
+ * that values that are unique to a single entry (e.g., user IDs) do not fill
+ * it.  Once the dictionary reaches its maximum size, new values will no longer
+ * be added, but values already in the dictionary will continue to be shared.
+ */
+@Mutable()
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+final class InMemoryAttributeDictionary
+{
+  /**
+   * The default maximum number of names and values that the dictionary may
+   * hold.
+   */
+  static final int DEFAULT_MAX_SIZE = 100000;
+
+
+
+  /**
+   * The default maximum length in bytes of the values that the dictionary may
+   * hold.
+   */
+  static final int DEFAULT_MAX_VALUE_LENGTH = 64;
+
+
+
+  /**
+   * The number of slots used to recognize values that have been encountered
+   * before.  It must be a power of two.
+   */
+  private static final int SEEN_SLOTS = 65536;
+
+
+
+  // The hash codes of values that have recently been encountered but not added
+  // to the dictionary, by slot.  The lowest bit of each recorded hash code is
+  // always set, so that an empty slot cannot match the hash code of a value.
+  private final int[] seenHashCodes;
+
+  // The maximum number of names and values that the dictionary may hold.
+  private final int maxSize;
+
+  // The maximum length in bytes of the values that the dictionary may hold.
+  private final int maxValueLength;
+
+  // The canonical attribute names and lowercase attribute name keys.
+  private final WeakHashSet<String> names;
+
+  // The canonical raw and normalized attribute values.
+  private final WeakHashSet<ASN1OctetString> values;
+
+
+
+  /**
+   * Creates a new attribute dictionary with the default maximum size and
+   * value length.
+   */
+  InMemoryAttributeDictionary()
+  {
+    this(DEFAULT_MAX_SIZE, DEFAULT_MAX_VALUE_LENGTH);
+  }
+
+
+
+  /**
+   * Creates a new attribute dictionary with the provided settings.
+   *
+   * @param  maxSize         The maximum number of names and values that the
+   *                         dictionary may hold.
+   * @param  maxValueLength  The maximum length in bytes of the values that the
+   *                         dictionary may hold.
+   */
+  InMemoryAttributeDictionary(final int maxSize, final int maxValueLength)
+  {
+    this.maxSize        = maxSize;
+    this.maxValueLength = maxValueLength;
+
+    seenHashCodes = new int[SEEN_SLOTS];
+    names         = new WeakHashSet<String>(100);
+    values        = new WeakHashSet<ASN1OctetString>(1000);
+  }
+
+
+
+  /**
+   * Retrieves the number of names and values currently held in this
+   * dictionary.
+   *
+   * @return  The number of names and values currently held in this dictionary.
+   */
+  synchronized int size()
+  {
+    return names.size() + values.size();
+  }
+
+
+
+  /**
+   * Creates a copy of the provided entry that uses the canonical instances held
+   * in this dictionary for its attribute names and values, adding them to the
+   * dictionary if appropriate.  The normalized values of each attribute in the
+   * returned entry (as returned by {@link Attribute#getNormalizedValues()})
+   * will already have been computed.
+   *
+   * @param  entry  The entry to intern.  It must not be {@code null}.
+   *
+   * @return  A copy of the provided entry that uses the canonical instances of
+   *          its attribute names and values.
+   */
+  ReadOnlyEntry intern(final ReadOnlyEntry entry)
+  {
+    return intern(entry, null);
+  }
+
+
+
+  /**
+   * Creates a copy of the provided entry that uses the canonical instances held
+   * in this dictionary for its attribute names and values, as with the
+   * {@link #intern(ReadOnlyEntry)} method, and that uses the provided DN object
+   * as its parsed DN.  This allows the entry to share a DN that is already
+   * held elsewhere (e.g., as the key for the entry in a map).
+   *
+   * @param  entry     The entry to intern.  It must not be {@code null}.
+   * @param  parsedDN  The parsed DN to use for the returned entry.  It must be
+   *                   equal to the DN of the provided entry.  It may be
+   *                   {@code null} if the parsed DN of the provided entry
+   *                   should be used.
+   *
+   * @return  A copy of the provided entry that uses the canonical instances of
+   *          its attribute names and values.
+   */
+  ReadOnlyEntry intern(final ReadOnlyEntry entry, final DN parsedDN)
+  {
+    final Collection<Attribute> attrs = entry.getAttributes();
+    final int numAttrs = attrs.size();
+    final ASN1OctetString[][] normValues = new ASN1OctetString[numAttrs][];
+    final String[] lowerNames = new String[numAttrs];
+
+    int i = 0;
+    for (final Attribute a : attrs)
+    {
+      normValues[i] = a.getNormalizedValues();
+      lowerNames[i] = toLowerCase(a.getName());
+      i++;
+    }
+
+    final LinkedHashMap<String,Attribute> attrMap =
+         new LinkedHashMap<String,Attribute>(numAttrs);
+    synchronized (this)
+    {
+      i = 0;
+      for (final Attribute a : attrs)
+      {
+        attrMap.put(internName(lowerNames[i]),
+             InternalSDKHelper.createAttribute(internName(a.getName()),
+                  a.getMatchingRule(), internValues(a.getRawValues()),
+                  internValues(normValues[i])));
+        i++;
+      }
+    }
+
+    return InternalSDKHelper.createReadOnlyEntry(entry, parsedDN, attrMap);
+  }
+
+
+
+  /**
+   * Retrieves the canonical instance of the provided attribute name, adding it
+   * to the dictionary if appropriate.  The caller must hold the lock on this
+   * dictionary.
+   *
+   * @param  name  The attribute name for which to retrieve the canonical
+   *               instance.
+   *
+   * @return  The canonical instance of the provided name, or the provided name
+   *          itself if it is not held in the dictionary.
+   */
+  private String internName(final String name)
+  {
+    final String existing = names.get(name);
+    if (existing != null)
+    {
+      return existing;
+    }
+
+    if ((names.size() + values.size()) < maxSize)
+    {
+      names.add(name);
+    }
+
+    return name;
+  }
+
+
+
+  /**
+   * Creates a copy of the provided array of values that uses the canonical
+   * instance of each value.  The caller must hold the lock on this dictionary.
+   *
+   * @param  a  The values for which to retrieve the canonical instances.  Any
+   *            element may be {@code null}.
+   *
+   * @return  A copy of the provided array that uses the canonical instance of
+   *          each value.
+   */
+  private ASN1OctetString[] internValues(final ASN1OctetString[] a)
+  {
+    final ASN1OctetString[] copy = new ASN1OctetString[a.length];
+    for (int i=0; i < a.length; i++)
+    {
+      copy[i] = internValue(a[i]);
+    }
+
+    return copy;
+  }
+
+
+
+  /**
+   * Retrieves the canonical instance of the provided value, adding it to the
+   * dictionary if it has been encountered before and it is not too long.  The
+   * caller must hold the lock on this dictionary.
+   *
+   * @param  value  The value for which to retrieve the canonical instance.  It
+   *                may be {@code null}.
+   *
+   * @return  The canonical instance of the provided value, or the provided
+   *          value itself if it is not held in the dictionary.
+   */
+  private ASN1OctetString internValue(final ASN1OctetString value)
+  {
+    if ((value == null) || (value.getValue().length > maxValueLength))
+    {
+      return value;
+    }
+
+    final ASN1OctetString existing = values.get(value);
+    if (existing != null)
+    {
+      return existing;
+    }
+
+    // Only add the value once it has been seen before, so that values that
+    // only appear in a single entry are not retained.
+    final int hashCode = value.hashCode();
+    final int slot = (hashCode ^ (hashCode >>> 16)) & (SEEN_SLOTS - 1);
+    final int seenHashCode = hashCode | 1;
+    if (seenHashCodes[slot] != seenHashCode)
+    {
+      seenHashCodes[slot] = seenHashCode;
+      return value;
+    }
+
+    if ((names.size() + values.size()) < maxSize)
+    {
+      values.add(value);
+    }
+
+    return value;
+  }
+}
@@ -0,0 +1,532 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.controls.PersistentSearchChangeType;
+import com.unboundid.util.Debug;
+import com.unboundid.util.LDAPSDKThreadFactory;
+import com.unboundid.util.Mutable;
+import com.unboundid.util.NotMutable;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a mechanism for notifying the persistent searches
+ * active in an in-memory directory server of the changes made to its data.
+ * The request handler reports each add, delete, modify, and modify DN
+ * operation as it is processed, but the resulting events are not published to
+ * the persistent searches until the changes have been published in the data
+ * store.  This ensures that clients are not notified of changes that are
+ * later rolled back (e.g., if a transaction fails), and that notifications are
+ * published in the order in which the changes were made.
+ * <BR><BR>
+ * Publishing an event only requires determining which persistent searches
+ * match it and adding it to their queues, so it is cheap enough to be done by
+ * the thread that made the change.  Notifications are written to clients by a
+ * bounded pool of delivery threads, which are only created as needed and are
+ * retained until the server is shut down.  Each persistent search is
+ * scheduled for delivery at most once at a time, so the number of pending
+ * delivery tasks is limited by the number of persistent searches, and a burst
+ * of changes affecting many persistent searches will be queued for the pool
+ * rather than starting a thread for each of them.
+ */
+@Mutable()
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+final class InMemoryChangeEventBus
+{
+  /**
+   * The maximum number of delivery threads that will be used to write
+   * notifications to clients.
+   */
+  private static final int MAX_DELIVERY_THREADS =
+       Math.max(4, (2 * Runtime.getRuntime().availableProcessors()));
+
+
+
+  // The persistent searches that are currently active.
+  private final CopyOnWriteArrayList<InMemoryPersistentSearch>
+       persistentSearches;
+
+  // The data store whose changes will be published.
+  private final InMemoryDirectoryServerDataStore dataStore;
+
+  // The executor used to deliver notifications to clients, or {@code null} if
+  // it has not been created since the bus was created or last shut down.
+  private ThreadPoolExecutor deliveryExecutor;
+
+
+
+  /**
+   * Creates a new change event bus for the provided data store.
+   *
+   * @param  dataStore  The data store whose changes will be published.
+   */
+  InMemoryChangeEventBus(final InMemoryDirectoryServerDataStore dataStore)
+  {
+    this.dataStore = dataStore;
+
+    persistentSearches = new CopyOnWriteArrayList<InMemoryPersistentSearch>();
+    deliveryExecutor = null;
+  }
+
+
+
+  /**
+   * Indicates whether any persistent searches are currently active.
+   *
+   * @return  {@code true} if any persistent searches are currently active, or
+   *          {@code false} if not.
+   */
+  boolean hasPersistentSearches()
+  {
+    return (! persistentSearches.isEmpty());
+  }
+
+
+
+  /**
+   * Registers the provided persistent search so that it will be notified of
+   * all changes published after this method returns.  This waits for any
+   * write operation in progress to complete, so that the caller may then
+   * obtain a view of the data that includes every change the persistent
+   * search will not be notified about.
+   *
+   * @param  persistentSearch  The persistent search to register.
+   */
+  void addPersistentSearch(final InMemoryPersistentSearch persistentSearch)
+  {
+    dataStore.beginWrite();
+    try
+    {
+      persistentSearches.add(persistentSearch);
+    }
+    finally
+    {
+      dataStore.endWrite();
+    }
+  }
+
+
+
+  /**
+   * Removes and stops the provided persistent search, if it is registered.
+   *
+   * @param  persistentSearch  The persistent search to remove.
+   *
+   * @return  {@code true} if the persistent search was removed, or
+   *          {@code false} if it was not registered.
+   */
+  boolean removePersistentSearch(
+               final InMemoryPersistentSearch persistentSearch)
+  {
+    persistentSearch.stop();
+    return persistentSearches.remove(persistentSearch);
+  }
+
+
+
+  /**
+   * Removes and stops the persistent search with the given message ID that
+   * was requested on the connection associated with the provided request
+   * handler, if there is one.
+   *
+   * @param  requestHandler  The request handler for the connection on which
+   *                         the persistent search was requested.
+   * @param  messageID       The message ID of the persistent search request.
+   *
+   * @return  The persistent search that was removed, or {@code null} if there
+   *          was no such persistent search.
+   */
+  InMemoryPersistentSearch removePersistentSearch(
+                                final InMemoryRequestHandler requestHandler,
+                                final int messageID)
+  {
+    for (final InMemoryPersistentSearch s : persistentSearches)
+    {
+      if ((s.getRequestHandler() == requestHandler) &&
+          (s.getMessageID() == messageID) &&
+          removePersistentSearch(s))
+      {
+        return s;
+      }
+    }
+
+    return null;
+  }
+
+
+
+  /**
+   * Removes and stops all of the persistent searches requested on the
+   * connection associated with the provided request handler.
+   *
+   * @param  requestHandler  The request handler for the connection.
+   */
+  void removePersistentSearches(final InMemoryRequestHandler requestHandler)
+  {
+    for (final InMemoryPersistentSearch s : persistentSearches)
+    {
+      if (s.getRequestHandler() == requestHandler)
+      {
+        removePersistentSearch(s);
+      }
+    }
+  }
+
+
+
+  /**
+   * Removes and stops all of the content synchronization searches in the
+   * refresh and persist mode, and ends each of them with a result code of
+   * {@link com.unboundid.ldap.sdk.ResultCode#E_SYNC_REFRESH_REQUIRED}.  This
+   * must be called while processing the write operation that replaced the
+   * server content.
+   */
+  void requireContentSyncRefresh()
+  {
+    for (final InMemoryPersistentSearch s : persistentSearches)
+    {
+      if (s.isContentSync() && removePersistentSearch(s))
+      {
+        s.requireRefresh();
+      }
+    }
+  }
+
+
+
+  /**
+   * Reports a change made by the write operation in progress for the calling
+   * thread.  Persistent searches will be notified of the change once it has
+   * been published.
+   *
+   * @param  changeType         The type of change that was made.
+   * @param  entry              The entry as it appears after the change, or as
+   *                            it appeared before it was removed for a delete.
+   * @param  previousEntry      The entry as it appeared before the change, or
+   *                            {@code null} for an add.
+   * @param  subordinateChange  Indicates whether the entry was not the target
+   *                            of the operation, but was renamed because it is
+   *                            subordinate to the target of a modify DN
+   *                            operation.
+   * @param  changeNumber       The changelog change number for the change, or
+   *                            -1 if the changelog is not enabled.
+   */
+  void changeCompleted(final PersistentSearchChangeType changeType,
+                       final Entry entry, final Entry previousEntry,
+                       final boolean subordinateChange,
+                       final long changeNumber)
+  {
+    // The persistent searches to notify are determined when the event is
+    // published, but there is no need to create an event if there are no
+    // persistent searches.  Any persistent search registered in the meantime
+    // will not be expecting this change, since registration waits for the
+    // write operation in progress to complete.
+    if (persistentSearches.isEmpty())
+    {
+      return;
+    }
+
+    final DN dn;
+    final DN previousDN;
+    try
+    {
+      dn = entry.getParsedDN();
+      if (previousEntry == null)
+      {
+        previousDN = null;
+      }
+      else
+      {
+        previousDN = previousEntry.getParsedDN();
+      }
+    }
+    catch (final LDAPException le)
+    {
+      // This should never happen.
+      Debug.debugException(le);
+      return;
+    }
+
+    final ChangeEvent event = new ChangeEvent(changeType, entry, dn,
+         previousEntry, previousDN, subordinateChange, changeNumber);
+    dataStore.runAfterPublish(new Runnable()
+    {
+      public void run()
+      {
+        for (final InMemoryPersistentSearch s : persistentSearches)
+        {
+          s.changeCompleted(event);
+        }
+      }
+    });
+  }
+
+
+
+  /**
+   * Arranges for the queued notifications for the provided persistent search
+   * to be delivered by a delivery thread.
+   *
+   * @param  persistentSearch  The persistent search whose notifications should
+   *                           be delivered.
+   */
+  void scheduleDelivery(final InMemoryPersistentSearch persistentSearch)
+  {
+    runOnDeliveryThread(persistentSearch);
+  }
+
+
+
+  /**
+   * Runs the provided task using a delivery thread.  If all of the delivery
+   * threads are busy, then the task will be run once one of them becomes
+   * available.
+   *
+   * @param  task  The task to run.
+   */
+  void runOnDeliveryThread(final Runnable task)
+  {
+    try
+    {
+      getDeliveryExecutor().execute(task);
+    }
+    catch (final RejectedExecutionException ree)
+    {
+      // This will only happen if the bus is shut down while the task is being
+      // submitted, in which case the client connections are being closed.
+      Debug.debugException(ree);
+    }
+  }
+
+
+
+  /**
+   * Retrieves the executor used to deliver notifications to clients, creating
+   * it if necessary.
+   *
+   * @return  The executor used to deliver notifications to clients.
+   */
+  private synchronized ThreadPoolExecutor getDeliveryExecutor()
+  {
+    if (deliveryExecutor == null)
+    {
+      deliveryExecutor = new ThreadPoolExecutor(MAX_DELIVERY_THREADS,
+           MAX_DELIVERY_THREADS, 0L, TimeUnit.MILLISECONDS,
+           new LinkedBlockingQueue<Runnable>(),
+           new LDAPSDKThreadFactory(
+                "In-Memory Directory Server Persistent Search Delivery",
+                true));
+    }
+
+    return deliveryExecutor;
+  }
+
+
+
+  /**
+   * Stops the delivery threads.  Any notifications that have already been
+   * scheduled will still be delivered, but the threads will exit once they
+   * have nothing left to do.  A new set of delivery threads will be created
+   * if any further notifications need to be delivered (e.g., if the server is
+   * restarted).
+   */
+  synchronized void shutDown()
+  {
+    if (deliveryExecutor != null)
+    {
+      deliveryExecutor.shutdown();
+      deliveryExecutor = null;
+    }
+  }
+
+
+
+  /**
+   * This class holds information about a change made in the in-memory
+   * directory server.
+   */
+  @NotMutable()
+  @ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+  static final class ChangeEvent
+  {
+    // Indicates whether the entry was renamed because it is subordinate to the
+    // target of a modify DN operation.
+    private final boolean subordinateChange;
+
+    // The DN of the target entry after the change.
+    private final DN dn;
+
+    // The DN of the target entry before the change.
+    private final DN previousDN;
+
+    // The target entry after the change, or before it for a delete.
+    private final Entry entry;
+
+    // The target entry before the change.
+    private final Entry previousEntry;
+
+    // The changelog change number for the change.
+    private final long changeNumber;
+
+    // The type of change that was made.
+    private final PersistentSearchChangeType changeType;
+
+
+
+    /**
+     * Creates a new change event with the provided information.
+     *
+     * @param  changeType         The type of change that was made.
+     * @param  entry              The target entry after the change, or before
+     *                            it for a delete.
+     * @param  dn                 The parsed DN of the target entry.
+     * @param  previousEntry      The target entry before the change, or
+     *                            {@code null} for an add.
+     * @param  previousDN         The parsed DN of the target entry before the
+     *                            change, or {@code null} for an add.
+     * @param  subordinateChange  Indicates whether the entry was renamed
+     *                            because it is subordinate to the target of a
+     *                            modify DN operation.
+     * @param  changeNumber       The changelog change number for the change,
+     *                            or -1 if there is none.
+     */
+    private ChangeEvent(final PersistentSearchChangeType changeType,
+                        final Entry entry, final DN dn,
+                        final Entry previousEntry, final DN previousDN,
+                        final boolean subordinateChange,
+                        final long changeNumber)
+    {
+      this.changeType        = changeType;
+      this.entry             = entry;
+      this.dn                = dn;
+      this.previousEntry     = previousEntry;
+      this.previousDN        = previousDN;
+      this.subordinateChange = subordinateChange;
+      this.changeNumber      = changeNumber;
+    }
+
+
+
+    /**
+     * Retrieves the type of change that was made.
+     *
+     * @return  The type of change that was made.
+     */
+    PersistentSearchChangeType getChangeType()
+    {
+      return changeType;
+    }
+
+
+
+    /**
+     * Retrieves the target entry after the change, or before it for a delete.
+     *
+     * @return  The target entry after the change, or before it for a delete.
+     */
+    Entry getEntry()
+    {
+      return entry;
+    }
+
+
+
+    /**
+     * Retrieves the parsed DN of the target entry.
+     *
+     * @return  The parsed DN of the target entry.
+     */
+    DN getDN()
+    {
+      return dn;
+    }
+
+
+
+    /**
+     * Retrieves the target entry before the change.
+     *
+     * @return  The target entry before the change, or {@code null} for an
+     *          add.
+     */
+    Entry getPreviousEntry()
+    {
+      return previousEntry;
+    }
+
+
+
+    /**
+     * Retrieves the parsed DN of the target entry before the change.
+     *
+     * @return  The parsed DN of the target entry before the change, or
+     *          {@code null} for an add.
+     */
+    DN getPreviousDN()
+    {
+      return previousDN;
+    }
+
+
+
+    /**
+     * Indicates whether the entry was not the target of the operation, but
+     * was renamed because it is subordinate to the target of a modify DN
+     * operation.  Such changes are not reported to standard persistent
+     * searches.
+     *
+     * @return  {@code true} if the entry was renamed because it is subordinate
+     *          to the target of a modify DN operation, or {@code false} if it
+     *          was the target of the operation.
+     */
+    boolean isSubordinateChange()
+    {
+      return subordinateChange;
+    }
+
+
+
+    /**
+     * Retrieves the changelog change number for the change.
+     *
+     * @return  The changelog change number for the change, or -1 if there is
+     *          none.
+     */
+    long getChangeNumber()
+    {
+      return changeNumber;
+    }
+  }
+}
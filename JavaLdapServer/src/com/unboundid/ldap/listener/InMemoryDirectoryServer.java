@@ -22,6 +22,7 @@ package com.unboundid.ldap.listener;
 
 
 
+import java.io.FileInputStream;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -73,6 +74,7 @@ import com.unboundid.ldap.sdk.LDAPConnectionPool;
 import com.unboundid.ldap.sdk.LDAPException;
 import com.unboundid.ldap.sdk.LDAPInterface;
 import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.LDAPRuntimeException;
 import com.unboundid.ldap.sdk.LDAPSearchException;
 import com.unboundid.ldap.sdk.Modification;
 import com.unboundid.ldap.sdk.ModifyRequest;
@@ -123,19 +125,21 @@ import static com.unboundid.ldap.listener.ListenerMessages.*;
  *   <LI>It provides reasonably complete support for add, compare, delete,
  *       modify, modify DN (including new superior and subtree move/rename),
  *       search, and unbind operations.</LI>
- *   <LI>It will accept abandon requests, but will not do anything with
- *       them.</LI>
+ *   <LI>It will honor abandon requests that target a search in progress or an
+ *       active persistent search, and will ignore any others.</LI>
  *   <LI>It provides support for simple bind operations, and for the SASL PLAIN
  *       mechanism.  It also provides an API that can be used to add support for
  *       additional SASL mechanisms.</LI>
- *   <LI>It provides support for the password modify, StartTLS, and "who am I?"
- *       extended operations, as well as an API that can be used to add support
- *       for additional types of extended operations.</LI>
+ *   <LI>It provides support for the cancel, password modify, StartTLS, and
+ *       "who am I?" extended operations, as well as an API that can be used to
+ *       add support for additional types of extended operations.</LI>
  *   <LI>It provides support for the LDAP assertions, authorization identity,
- *       don't use copy, manage DSA IT, permissive modify, pre-read, post-read,
- *       proxied authorization v1 and v2, server-side sort, simple paged
- *       results, LDAP subentries, subtree delete, and virtual list view request
- *       controls.</LI>
+ *       content synchronization, don't use copy, manage DSA IT, permissive
+ *       modify, persistent search, pre-read, post-read, proxied authorization
+ *       v1 and v2, server-side sort, simple paged results, LDAP subentries,
+ *       subtree delete, and virtual list view request controls.  Content
+ *       synchronization clients will only be able to obtain incremental
+ *       updates if the changelog is enabled.</LI>
  *   <LI>It supports the use of schema (if provided), but it does not currently
  *       allow updating the schema on the fly.</LI>
  *   <LI>It has the ability to maintain a log of operations processed, either
@@ -455,7 +459,9 @@ public final class InMemoryDirectoryServer
 
   /**
    * Shuts down all configured listeners.  Any listeners that are already
-   * stopped will be unaffected.
+   * stopped will be unaffected.  If the server has a data directory, then any
+   * changes recorded in its journal will be forced to disk.  The threads used
+   * to deliver persistent search notifications will also be stopped.
    *
    * @param  closeExistingConnections  Indicates whether to close all existing
    *                                   connections, or merely to stop accepting
@@ -476,6 +482,14 @@ public final class InMemoryDirectoryServer
     }
 
     listeners.clear();
+
+    // Make sure that all changes recorded in the journal are on disk, even if
+    // the sync policy would not otherwise have forced them there yet.
+    inMemoryHandler.syncJournal();
+
+    // Stop the threads used to deliver persistent search notifications.  They
+    // will be created again if the server is restarted.
+    inMemoryHandler.stopPersistentSearchDelivery();
   }
 
 
@@ -610,18 +624,51 @@ public final class InMemoryDirectoryServer
    * it held at the time the snapshot was created.
    * <BR><BR>
    * This method may be used regardless of whether the server is listening for
-   * client connections.
+   * client connections.  The snapshot may also have been read from a file with
+   * the {@link InMemoryDirectoryServerSnapshot#readFrom} method, in which case
+   * the entries and any index data for matching indexes will be loaded
+   * directly from the file.
    *
    * @param  snapshot  The snapshot to be restored.  It must not be
    *                   {@code null}.
+   *
+   * @throws  LDAPRuntimeException  If the snapshot was read from a file and a
+   *                                problem occurs while reading its content.
    */
   public void restoreSnapshot(final InMemoryDirectoryServerSnapshot snapshot)
+         throws LDAPRuntimeException
   {
     inMemoryHandler.restoreSnapshot(snapshot);
   }
 
 
 
+  /**
+   * Writes a snapshot of the current content of this in-memory directory
+   * server instance to its data directory as a checkpoint, and truncates the
+   * journal so that it only needs to hold subsequent changes.  Without a
+   * checkpoint, the journal records every change made since the data
+   * directory was created, so it grows without bound and the time needed to
+   * replay it when the server starts grows with it.  A checkpoint is also
+   * written automatically when the server starts, if the journal has grown
+   * larger than the previous checkpoint.  Write operations will wait until
+   * the checkpoint is complete.
+   * <BR><BR>
+   * This method may be used regardless of whether the server is listening for
+   * client connections.  It will have no effect if the server does not have a
+   * data directory.
+   *
+   * @throws  LDAPException  If a problem occurs while writing the checkpoint or
+   *                         truncating the journal.
+   */
+  public void checkpointJournal()
+         throws LDAPException
+  {
+    inMemoryHandler.checkpointJournal();
+  }
+
+
+
   /**
    * Retrieves the list of base DNs configured for use by the server.
    *
@@ -1170,6 +1217,62 @@ public final class InMemoryDirectoryServer
 
 
 
+  /**
+   * Reads entries from the specified LDIF file and adds them to the server
+   * using a bulk import mode that is intended for loading large data sets,
+   * optionally clearing any existing entries before beginning to add the new
+   * entries.  Entries are parsed and validated in parallel, and the indexes
+   * are built once all of the entries have been added rather than being
+   * updated for each entry.  The entries are subject to the same constraints
+   * as entries added using the {@link #importFromLDIF(boolean,String)} method.
+   * If an error is encountered while adding entries from LDIF then the server
+   * will remain populated with the data it held before the import attempt
+   * (even if the {@code clear} is given with a value of {@code true}).
+   * <BR><BR>
+   * This method may be used regardless of whether the server is listening for
+   * client connections, although the server will not be able to process any
+   * other operations while the import is in progress.
+   *
+   * @param  clear       Indicates whether to remove all existing entries prior
+   *                     to adding entries read from LDIF.
+   * @param  path        The path to the LDIF file from which the entries
+   *                     should be read.  It must not be {@code null}.
+   * @param  numThreads  The number of threads to use to parse entries and to
+   *                     build indexes.  It must be greater than zero.
+   * @param  listener    The listener that should be notified about the
+   *                     progress of the import.  It may be {@code null} if no
+   *                     notification is required.
+   *
+   * @return  The number of entries read from LDIF and added to the server.
+   *
+   * @throws  LDAPException  If a problem occurs while reading entries or adding
+   *                         them to the server.
+   */
+  public int bulkImportFromLDIF(final boolean clear, final String path,
+                                final int numThreads,
+                                final InMemoryImportListener listener)
+         throws LDAPException
+  {
+    final FileInputStream inputStream;
+    try
+    {
+      inputStream = new FileInputStream(path);
+    }
+    catch (final Exception e)
+    {
+      Debug.debugException(e);
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           ERR_MEM_DS_INIT_FROM_LDIF_CANNOT_CREATE_READER.get(path,
+                StaticUtils.getExceptionMessage(e)),
+           e);
+    }
+
+    return inMemoryHandler.bulkImportFromLDIF(clear, inputStream, numThreads,
+         listener);
+  }
+
+
+
   /**
    * Writes the current contents of the server in LDIF form to the specified
    * file.
@@ -0,0 +1,618 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.unboundid.ldap.sdk.ChangeLogEntry;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.RDN;
+import com.unboundid.ldap.sdk.ReadOnlyEntry;
+import com.unboundid.util.Debug;
+import com.unboundid.util.Mutable;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a data structure for holding the changelog entries for
+ * an in-memory directory server.  Changelog entries are kept apart from the
+ * other entries in the server and are indexed by change number, so that
+ * recording a change does not require updating the entry map or any of the
+ * attribute indexes, and so that a range of change numbers can be retrieved
+ * directly.  The changelog has a fixed capacity and behaves like a ring buffer,
+ * in that adding a change when the changelog is full will cause the oldest
+ * change to be discarded.  The changelog data is held in the server data store,
+ * so that it is versioned along with the other server data.
+ */
+@Mutable()
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+final class InMemoryDirectoryServerChangeLog
+{
+  /**
+   * The OID of the changeNumber attribute type.
+   */
+  private static final String CHANGE_NUMBER_OID = "2.16.840.1.113730.3.1.5";
+
+
+
+  // The data store that holds the changelog data.
+  private final InMemoryDirectoryServerDataStore dataStore;
+
+  // The DN of the base entry below which all changelog entries reside.
+  private final DN baseDN;
+
+  // The slot in the data store that holds the changelog data.
+  private final int slot;
+
+  // The maximum number of entries that the changelog may hold.
+  private final int maxEntries;
+
+
+
+  /**
+   * Creates a new changelog with the provided information.
+   *
+   * @param  dataStore   The data store that will hold the changelog data.
+   * @param  baseDN      The DN of the base entry below which all changelog
+   *                     entries reside.
+   * @param  maxEntries  The maximum number of entries that the changelog may
+   *                     hold.  It must be greater than zero.
+   */
+  InMemoryDirectoryServerChangeLog(
+       final InMemoryDirectoryServerDataStore dataStore, final DN baseDN,
+       final int maxEntries)
+  {
+    this.dataStore  = dataStore;
+    this.baseDN     = baseDN;
+    this.maxEntries = maxEntries;
+
+    slot = dataStore.createIndexSlot();
+  }
+
+
+
+  /**
+   * Retrieves the map from change numbers to changelog entries, as visible to
+   * the calling thread.
+   *
+   * @return  The map from change numbers to changelog entries.
+   */
+  @SuppressWarnings("unchecked")
+  private PersistentSortedMap<Long,ReadOnlyEntry> getChangeMap()
+  {
+    final Object root = dataStore.getIndexRoot(slot);
+    if (root == null)
+    {
+      return new PersistentSortedMap<Long,ReadOnlyEntry>();
+    }
+    else
+    {
+      return (PersistentSortedMap<Long,ReadOnlyEntry>) root;
+    }
+  }
+
+
+
+  /**
+   * Removes all entries from the changelog.
+   */
+  void clear()
+  {
+    dataStore.setIndexRoot(slot, null);
+  }
+
+
+
+  /**
+   * Retrieves the number of entries held in the changelog.
+   *
+   * @return  The number of entries held in the changelog.
+   */
+  int size()
+  {
+    return getChangeMap().size();
+  }
+
+
+
+  /**
+   * Retrieves the change number of the oldest entry held in the changelog.
+   *
+   * @return  The change number of the oldest entry held in the changelog, or
+   *          zero if the changelog is empty.
+   */
+  long getFirstChangeNumber()
+  {
+    final PersistentSortedMap<Long,ReadOnlyEntry> changeMap = getChangeMap();
+    if (changeMap.isEmpty())
+    {
+      return 0L;
+    }
+    else
+    {
+      return changeMap.firstKey();
+    }
+  }
+
+
+
+  /**
+   * Adds the provided entry to the changelog, discarding the oldest entries if
+   * necessary to remain within the maximum number of entries.
+   *
+   * @param  changeNumber  The change number for the entry.  It must be greater
+   *                       than the change number of any entry already held in
+   *                       the changelog.
+   * @param  entry         The changelog entry to add.
+   */
+  void add(final long changeNumber, final ReadOnlyEntry entry)
+  {
+    PersistentSortedMap<Long,ReadOnlyEntry> changeMap =
+         getChangeMap().put(changeNumber, entry);
+    while (changeMap.size() > maxEntries)
+    {
+      changeMap = changeMap.remove(changeMap.firstKey());
+    }
+
+    dataStore.setIndexRoot(slot, changeMap);
+  }
+
+
+
+  /**
+   * Replaces the content of the changelog with the provided set of entries.
+   * The maximum number of entries will not be enforced for the entries
+   * provided.
+   *
+   * @param  entries  The changelog entries to use, indexed by change number.
+   */
+  void restore(final Map<Long,ReadOnlyEntry> entries)
+  {
+    PersistentSortedMap<Long,ReadOnlyEntry> changeMap =
+         new PersistentSortedMap<Long,ReadOnlyEntry>();
+    for (final Map.Entry<Long,ReadOnlyEntry> e : entries.entrySet())
+    {
+      changeMap = changeMap.put(e.getKey(), e.getValue());
+    }
+
+    dataStore.setIndexRoot(slot, changeMap);
+  }
+
+
+
+  /**
+   * Retrieves a read-only map of the entries held in the changelog, indexed by
+   * change number.  The map will not reflect any subsequent changes to the
+   * changelog.
+   *
+   * @return  A read-only map of the entries held in the changelog.
+   */
+  Map<Long,ReadOnlyEntry> getEntryMap()
+  {
+    return Collections.unmodifiableMap(getChangeMap().asMap());
+  }
+
+
+
+  /**
+   * Retrieves the entries for all changes made after the specified change
+   * number, in the order in which the changes were made.
+   *
+   * @param  changeNumber  The change number after which to retrieve the
+   *                       changelog entries.
+   *
+   * @return  The entries for all changes made after the specified change
+   *          number, or {@code null} if any of those changes may have been
+   *          discarded from the changelog.
+   */
+  List<ReadOnlyEntry> getEntriesAfter(final long changeNumber)
+  {
+    final PersistentSortedMap<Long,ReadOnlyEntry> changeMap = getChangeMap();
+    if ((! changeMap.isEmpty()) && (changeMap.firstKey() > (changeNumber + 1L)))
+    {
+      return null;
+    }
+
+    final ArrayList<ReadOnlyEntry> entries = new ArrayList<ReadOnlyEntry>();
+    final Iterator<Map.Entry<Long,ReadOnlyEntry>> iterator =
+         changeMap.iterator(changeNumber, false);
+    while (iterator.hasNext())
+    {
+      entries.add(iterator.next().getValue());
+    }
+
+    return entries;
+  }
+
+
+
+  /**
+   * Retrieves the changelog entry with the specified DN.
+   *
+   * @param  dn  The DN of the entry to retrieve.
+   *
+   * @return  The changelog entry with the specified DN, or {@code null} if
+   *          there is no such entry in the changelog.
+   */
+  ReadOnlyEntry getEntry(final DN dn)
+  {
+    final long changeNumber = getChangeNumber(dn);
+    if (changeNumber < 0L)
+    {
+      return null;
+    }
+
+    return getChangeMap().get(changeNumber);
+  }
+
+
+
+  /**
+   * Removes the changelog entry with the specified DN.
+   *
+   * @param  dn  The DN of the entry to remove.
+   *
+   * @return  {@code true} if the entry was removed, or {@code false} if there
+   *          is no such entry in the changelog.
+   */
+  boolean remove(final DN dn)
+  {
+    final long changeNumber = getChangeNumber(dn);
+    if (changeNumber < 0L)
+    {
+      return false;
+    }
+
+    final PersistentSortedMap<Long,ReadOnlyEntry> changeMap = getChangeMap();
+    if (! changeMap.containsKey(changeNumber))
+    {
+      return false;
+    }
+
+    dataStore.setIndexRoot(slot, changeMap.remove(changeNumber));
+    return true;
+  }
+
+
+
+  /**
+   * Retrieves the change number for the changelog entry with the specified
+   * DN.
+   *
+   * @param  dn  The DN for which to retrieve the change number.
+   *
+   * @return  The change number for the changelog entry with the specified DN,
+   *          or -1 if the DN is not that of a changelog entry.
+   */
+  private long getChangeNumber(final DN dn)
+  {
+    if (! baseDN.equals(dn.getParent()))
+    {
+      return -1L;
+    }
+
+    final RDN rdn = dn.getRDN();
+    final String[] names = rdn.getAttributeNames();
+    if ((names.length != 1) || (! isChangeNumberAttribute(names[0])))
+    {
+      return -1L;
+    }
+
+    final String value = rdn.getAttributeValues()[0];
+    final long changeNumber;
+    try
+    {
+      changeNumber = Long.parseLong(value);
+    }
+    catch (final NumberFormatException nfe)
+    {
+      Debug.debugException(nfe);
+      return -1L;
+    }
+
+    if ((changeNumber < 0L) || (! String.valueOf(changeNumber).equals(value)))
+    {
+      return -1L;
+    }
+
+    return changeNumber;
+  }
+
+
+
+  /**
+   * Retrieves an iterator over the changelog entries that may match the
+   * provided filter.  If the filter constrains the changeNumber attribute, then
+   * only entries within the corresponding range of change numbers will be
+   * returned.  Otherwise, all changelog entries will be returned.  The caller
+   * is responsible for determining which of the entries actually match.
+   *
+   * @param  baseEntry  An entry that should be returned before any changelog
+   *                    entries (e.g., the changelog base entry for a subtree
+   *                    search).  It may be {@code null} if only changelog
+   *                    entries should be returned.
+   * @param  filter     The filter for which to retrieve candidate entries.
+   *
+   * @return  An iterator over the candidate entries.
+   */
+  Iterator<ReadOnlyEntry> getCandidateEntries(final ReadOnlyEntry baseEntry,
+                                              final Filter filter)
+  {
+    final PersistentSortedMap<Long,ReadOnlyEntry> changeMap = getChangeMap();
+    final long[] range = getChangeNumberRange(filter);
+    if (range == null)
+    {
+      return new RangeIterator(baseEntry, changeMap.iterator(),
+           Long.MAX_VALUE);
+    }
+    else
+    {
+      return new RangeIterator(baseEntry, changeMap.iterator(range[0], true),
+           range[1]);
+    }
+  }
+
+
+
+  /**
+   * Determines the range of change numbers that an entry must have in order to
+   * match the provided filter.
+   *
+   * @param  filter  The filter for which to make the determination.
+   *
+   * @return  A two-element array containing the lowest and highest change
+   *          numbers (inclusive) that a matching entry may have, or
+   *          {@code null} if the filter does not constrain the change number.
+   */
+  static long[] getChangeNumberRange(final Filter filter)
+  {
+    switch (filter.getFilterType())
+    {
+      case Filter.FILTER_TYPE_AND:
+        long[] andRange = null;
+        for (final Filter f : filter.getComponents())
+        {
+          final long[] r = getChangeNumberRange(f);
+          if (r == null)
+          {
+            continue;
+          }
+          else if (andRange == null)
+          {
+            andRange = r;
+          }
+          else
+          {
+            andRange = new long[]
+            {
+              Math.max(andRange[0], r[0]),
+              Math.min(andRange[1], r[1])
+            };
+          }
+        }
+        return andRange;
+
+      case Filter.FILTER_TYPE_OR:
+        final Filter[] components = filter.getComponents();
+        if (components.length == 0)
+        {
+          return null;
+        }
+
+        long[] orRange = null;
+        for (final Filter f : components)
+        {
+          final long[] r = getChangeNumberRange(f);
+          if (r == null)
+          {
+            return null;
+          }
+          else if (orRange == null)
+          {
+            orRange = r;
+          }
+          else
+          {
+            orRange = new long[]
+            {
+              Math.min(orRange[0], r[0]),
+              Math.max(orRange[1], r[1])
+            };
+          }
+        }
+        return orRange;
+
+      case Filter.FILTER_TYPE_EQUALITY:
+      case Filter.FILTER_TYPE_GREATER_OR_EQUAL:
+      case Filter.FILTER_TYPE_LESS_OR_EQUAL:
+        if (! isChangeNumberAttribute(filter.getAttributeName()))
+        {
+          return null;
+        }
+
+        final long value;
+        try
+        {
+          value = Long.parseLong(filter.getAssertionValue().trim());
+        }
+        catch (final NumberFormatException nfe)
+        {
+          Debug.debugException(nfe);
+          return null;
+        }
+
+        if (filter.getFilterType() == Filter.FILTER_TYPE_EQUALITY)
+        {
+          return new long[] { value, value };
+        }
+        else if (filter.getFilterType() ==
+                 Filter.FILTER_TYPE_GREATER_OR_EQUAL)
+        {
+          return new long[] { value, Long.MAX_VALUE };
+        }
+        else
+        {
+          return new long[] { Long.MIN_VALUE, value };
+        }
+
+      default:
+        return null;
+    }
+  }
+
+
+
+  /**
+   * Indicates whether the provided attribute name refers to the changeNumber
+   * attribute type.
+   *
+   * @param  name  The attribute name for which to make the determination.
+   *
+   * @return  {@code true} if the provided name refers to the changeNumber
+   *          attribute type, or {@code false} if not.
+   */
+  private static boolean isChangeNumberAttribute(final String name)
+  {
+    return name.equalsIgnoreCase(ChangeLogEntry.ATTR_CHANGE_NUMBER) ||
+         name.equals(CHANGE_NUMBER_OID);
+  }
+
+
+
+  /**
+   * This class provides an iterator over an optional base entry followed by
+   * the changelog entries up to a given change number.
+   */
+  private static final class RangeIterator
+          implements Iterator<ReadOnlyEntry>
+  {
+    // The iterator over the changelog entries, starting with the lowest change
+    // number to return.
+    private final Iterator<Map.Entry<Long,ReadOnlyEntry>> iterator;
+
+    // The highest change number to return.
+    private final long toChangeNumber;
+
+    // The next entry to return, or null if there are no more entries.
+    private ReadOnlyEntry nextEntry;
+
+
+
+    /**
+     * Creates a new range iterator with the provided information.
+     *
+     * @param  baseEntry       An entry to return before any changelog entries.
+     *                         It may be {@code null} if there is no such entry.
+     * @param  iterator        The iterator over the changelog entries, starting
+     *                         with the lowest change number to return.
+     * @param  toChangeNumber  The highest change number to return.
+     */
+    private RangeIterator(final ReadOnlyEntry baseEntry,
+                 final Iterator<Map.Entry<Long,ReadOnlyEntry>> iterator,
+                 final long toChangeNumber)
+    {
+      this.iterator       = iterator;
+      this.toChangeNumber = toChangeNumber;
+
+      if (baseEntry == null)
+      {
+        nextEntry = readNextEntry();
+      }
+      else
+      {
+        nextEntry = baseEntry;
+      }
+    }
+
+
+
+    /**
+     * Reads the next changelog entry within the range.
+     *
+     * @return  The next changelog entry within the range, or {@code null} if
+     *          there are no more entries.
+     */
+    private ReadOnlyEntry readNextEntry()
+    {
+      if (! iterator.hasNext())
+      {
+        return null;
+      }
+
+      final Map.Entry<Long,ReadOnlyEntry> e = iterator.next();
+      if (e.getKey() > toChangeNumber)
+      {
+        return null;
+      }
+      else
+      {
+        return e.getValue();
+      }
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean hasNext()
+    {
+      return (nextEntry != null);
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public ReadOnlyEntry next()
+    {
+      if (nextEntry == null)
+      {
+        throw new NoSuchElementException();
+      }
+
+      final ReadOnlyEntry e = nextEntry;
+      nextEntry = readNextEntry();
+      return e;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void remove()
+    {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -22,6 +22,7 @@ package com.unboundid.ldap.listener;
 
 
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -74,8 +75,9 @@ import static com.unboundid.ldap.listener.ListenerMessages.*;
  *       generate a number of operational attributes.</LI>
  *   <LI>Extended Operation Handlers:  The server will support the password
  *       modify extended operation as defined in RFC 3062, the start and end
- *       transaction extended operations as defined in RFC 5805, and the
- *       "Who Am I?" extended operation as defined in RFC 4532.</LI>
+ *       transaction extended operations as defined in RFC 5805, the
+ *       "Who Am I?" extended operation as defined in RFC 4532, and the cancel
+ *       extended operation as defined in RFC 3909.</LI>
  *   <LI>SASL Bind Handlers:  The server will support the SASL PLAIN mechanism
  *       as defined in RFC 4616.</LI>
  *   <LI>Max ChangeLog Entries:  The server will not provide an LDAP
@@ -88,6 +90,8 @@ import static com.unboundid.ldap.listener.ListenerMessages.*;
  *       exception handler.</LI>
  *   <LI>Maximum Size Limit:  The server will not enforce a maximum search size
  *       limit.</LI>
+ *   <LI>Allow Concurrent Reads:  Read operations will not be processed
+ *       concurrently with any other operations.</LI>
  * </UL>
  */
 @NotExtensible()
@@ -95,6 +99,10 @@ import static com.unboundid.ldap.listener.ListenerMessages.*;
 @ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
 public class InMemoryDirectoryServerConfig
 {
+  // Indicates whether read operations may be processed concurrently with other
+  // operations.
+  private boolean allowConcurrentReads;
+
   // Indicates whether to enforce the requirement that attribute values comply
   // with the associated attribute syntax.
   private boolean enforceAttributeSyntaxCompliance;
@@ -109,6 +117,9 @@ public class InMemoryDirectoryServerConfig
   // The base DNs to use for the LDAP listener.
   private DN[] baseDNs;
 
+  // The directory in which the server should keep its journal, if any.
+  private File dataDirectory;
+
   // The log handler that should be used to record access log messages about
   // operations processed by the server.
   private Handler accessLogHandler;
@@ -117,6 +128,12 @@ public class InMemoryDirectoryServerConfig
   // messages about LDAP operations processed by the server.
   private Handler ldapDebugLogHandler;
 
+  // The way in which the server should store its entries.
+  private InMemoryEntryStorageMode entryStorageMode;
+
+  // The policy that controls when journal changes are forced to disk.
+  private InMemoryJournalSyncPolicy journalSyncPolicy;
+
   // The maximum number of entries to retain in a generated changelog.
   private int maxChangeLogEntries;
 
@@ -127,6 +144,10 @@ public class InMemoryDirectoryServerConfig
   // The exception handler that should be used for the listener.
   private LDAPListenerExceptionHandler exceptionHandler;
 
+  // The interval in milliseconds at which journal changes are forced to disk
+  // if the periodic sync policy is used.
+  private long journalSyncIntervalMillis;
+
   // The extended operation handlers that may be used to process extended
   // operations in the server.
   private final List<InMemoryExtendedOperationHandler>
@@ -147,6 +168,21 @@ public class InMemoryDirectoryServerConfig
   // The names or OIDs of the attributes for which to maintain equality indexes.
   private final List<String> equalityIndexAttributes;
 
+  // The names or OIDs of the attributes for which to maintain substring
+  // indexes.
+  private final List<String> substringIndexAttributes;
+
+  // The names or OIDs of the attributes for which to maintain ordering
+  // indexes.
+  private final List<String> orderingIndexAttributes;
+
+  // The names or OIDs of the attributes for which to maintain presence
+  // indexes.
+  private final List<String> presenceIndexAttributes;
+
+  // The configurations for the VLV indexes to maintain.
+  private final List<InMemoryVLVIndexConfig> vlvIndexes;
+
   // A set of additional credentials that can be used for binding without
   // requiring a corresponding entry in the data set.
   private final Map<DN,byte[]> additionalBindCredentials;
@@ -216,13 +252,22 @@ public class InMemoryDirectoryServerConfig
     additionalBindCredentials            = new LinkedHashMap<DN,byte[]>(1);
     accessLogHandler                     = null;
     ldapDebugLogHandler                  = null;
+    allowConcurrentReads                 = false;
     enforceAttributeSyntaxCompliance     = true;
     enforceSingleStructuralObjectClass   = true;
     generateOperationalAttributes        = true;
     maxChangeLogEntries                  = 0;
     maxSizeLimit                         = 0;
     exceptionHandler                     = null;
+    dataDirectory                        = null;
+    journalSyncPolicy = InMemoryJournalSyncPolicy.EVERY_OPERATION;
+    journalSyncIntervalMillis            = 1000L;
+    entryStorageMode                     = InMemoryEntryStorageMode.HEAP;
     equalityIndexAttributes              = new ArrayList<String>(10);
+    substringIndexAttributes             = new ArrayList<String>(10);
+    orderingIndexAttributes              = new ArrayList<String>(10);
+    presenceIndexAttributes              = new ArrayList<String>(10);
+    vlvIndexes = new ArrayList<InMemoryVLVIndexConfig>(1);
     schema                               = Schema.getDefaultStandardSchema();
     allowedOperationTypes                = EnumSet.allOf(OperationType.class);
     authenticationRequiredOperationTypes = EnumSet.noneOf(OperationType.class);
@@ -233,10 +278,11 @@ public class InMemoryDirectoryServerConfig
     operationInterceptors = new ArrayList<InMemoryOperationInterceptor>(5);
 
     extendedOperationHandlers =
-         new ArrayList<InMemoryExtendedOperationHandler>(3);
+         new ArrayList<InMemoryExtendedOperationHandler>(4);
     extendedOperationHandlers.add(new PasswordModifyExtendedOperationHandler());
     extendedOperationHandlers.add(new TransactionExtendedOperationHandler());
     extendedOperationHandlers.add(new WhoAmIExtendedOperationHandler());
+    extendedOperationHandlers.add(new CancelExtendedOperationHandler());
 
     saslBindHandlers = new ArrayList<InMemorySASLBindHandler>(1);
     saslBindHandlers.add(new PLAINBindHandler());
@@ -284,7 +330,15 @@ public class InMemoryDirectoryServerConfig
 
     equalityIndexAttributes =
          new ArrayList<String>(cfg.equalityIndexAttributes);
-
+    substringIndexAttributes =
+         new ArrayList<String>(cfg.substringIndexAttributes);
+    orderingIndexAttributes =
+         new ArrayList<String>(cfg.orderingIndexAttributes);
+    presenceIndexAttributes =
+         new ArrayList<String>(cfg.presenceIndexAttributes);
+    vlvIndexes = new ArrayList<InMemoryVLVIndexConfig>(cfg.vlvIndexes);
+
+    allowConcurrentReads               = cfg.allowConcurrentReads;
     enforceAttributeSyntaxCompliance   = cfg.enforceAttributeSyntaxCompliance;
     enforceSingleStructuralObjectClass = cfg.enforceSingleStructuralObjectClass;
     generateOperationalAttributes      = cfg.generateOperationalAttributes;
@@ -293,6 +347,10 @@ public class InMemoryDirectoryServerConfig
     maxChangeLogEntries                = cfg.maxChangeLogEntries;
     maxSizeLimit                       = cfg.maxSizeLimit;
     exceptionHandler                   = cfg.exceptionHandler;
+    dataDirectory                      = cfg.dataDirectory;
+    journalSyncPolicy                  = cfg.journalSyncPolicy;
+    journalSyncIntervalMillis          = cfg.journalSyncIntervalMillis;
+    entryStorageMode                   = cfg.entryStorageMode;
     schema                             = cfg.schema;
     vendorName                         = cfg.vendorName;
     vendorVersion                      = cfg.vendorVersion;
@@ -962,6 +1020,46 @@ public class InMemoryDirectoryServerConfig
 
 
 
+  /**
+   * Indicates whether the server should allow read operations (including
+   * search, compare, and bind operations, as well as methods like
+   * {@code getEntry} and {@code entryExists}) to be processed concurrently with
+   * other operations.  Write operations will always be processed one at a
+   * time.  If concurrent reads are allowed, then each read operation will see
+   * the data as it appeared when that operation started, and it will neither
+   * wait for nor delay any write operation.
+   *
+   * @return  {@code true} if the server should allow read operations to be
+   *          processed concurrently, or {@code false} if all operations should
+   *          be processed one at a time.
+   */
+  public boolean allowConcurrentReads()
+  {
+    return allowConcurrentReads;
+  }
+
+
+
+  /**
+   * Specifies whether the server should allow read operations (including
+   * search, compare, and bind operations, as well as methods like
+   * {@code getEntry} and {@code entryExists}) to be processed concurrently with
+   * other operations.  Write operations will always be processed one at a
+   * time.  If concurrent reads are allowed, then each read operation will see
+   * the data as it appeared when that operation started, and it will neither
+   * wait for nor delay any write operation.
+   *
+   * @param  allowConcurrentReads  Indicates whether the server should allow
+   *                               read operations to be processed
+   *                               concurrently.
+   */
+  public void setAllowConcurrentReads(final boolean allowConcurrentReads)
+  {
+    this.allowConcurrentReads = allowConcurrentReads;
+  }
+
+
+
   /**
    * Retrieves the maximum number of changelog entries that the server should
    * maintain.
@@ -1034,10 +1132,185 @@ public class InMemoryDirectoryServerConfig
 
 
 
+  /**
+   * Retrieves the directory in which the server should keep a journal of the
+   * changes made to its entries, so that the entries will be retained across
+   * restarts.
+   *
+   * @return  The directory in which the server should keep a journal, or
+   *          {@code null} if the entries should only be held in memory.
+   */
+  public File getDataDirectory()
+  {
+    return dataDirectory;
+  }
+
+
+
+  /**
+   * Specifies the directory in which the server should keep a journal of the
+   * changes made to its entries, so that the entries will be retained across
+   * restarts.  If a data directory is provided, then every write operation
+   * that alters the entries held in the server (including changes made by
+   * methods like {@code importFromLDIF} and {@code clear}) will be recorded in
+   * a journal file in that directory, and the journal will be replayed when a
+   * server using the same data directory is created.  The directory will be
+   * created if it does not exist.  Changelog entries are not recorded in the
+   * journal.  Only one server at a time may use a given data directory.
+   * <BR><BR>
+   * The journal grows with every change.  To bound its size, the server may
+   * write a checkpoint snapshot of all of its entries to the data directory
+   * and truncate the journal.  This is done automatically when the server
+   * starts if the journal has grown larger than the previous checkpoint, and
+   * it may also be done at any time with the
+   * {@link InMemoryDirectoryServer#checkpointJournal} method.  A server that
+   * handles a large number of changes without being restarted should call that
+   * method from time to time to keep the journal from growing without bound.
+   *
+   * @param  dataDirectory  The directory in which the server should keep a
+   *                        journal.  It may be {@code null} if the entries
+   *                        should only be held in memory.
+   */
+  public void setDataDirectory(final File dataDirectory)
+  {
+    this.dataDirectory = dataDirectory;
+  }
+
+
+
+  /**
+   * Retrieves the policy that controls when changes written to the journal
+   * will be forced to disk.  This will only be used if a data directory has
+   * been provided.
+   *
+   * @return  The policy that controls when changes written to the journal will
+   *          be forced to disk.
+   */
+  public InMemoryJournalSyncPolicy getJournalSyncPolicy()
+  {
+    return journalSyncPolicy;
+  }
+
+
+
+  /**
+   * Specifies the policy that controls when changes written to the journal
+   * will be forced to disk.  This will only be used if a data directory has
+   * been provided.  The default policy is
+   * {@link InMemoryJournalSyncPolicy#EVERY_OPERATION}.
+   *
+   * @param  journalSyncPolicy  The policy that controls when changes written
+   *                            to the journal will be forced to disk.  If this
+   *                            is {@code null}, then the default policy will
+   *                            be used.
+   */
+  public void setJournalSyncPolicy(
+                   final InMemoryJournalSyncPolicy journalSyncPolicy)
+  {
+    if (journalSyncPolicy == null)
+    {
+      this.journalSyncPolicy = InMemoryJournalSyncPolicy.EVERY_OPERATION;
+    }
+    else
+    {
+      this.journalSyncPolicy = journalSyncPolicy;
+    }
+  }
+
+
+
+  /**
+   * Retrieves the interval in milliseconds at which changes written to the
+   * journal will be forced to disk if the
+   * {@link InMemoryJournalSyncPolicy#PERIODIC} sync policy is used.
+   *
+   * @return  The interval in milliseconds at which changes written to the
+   *          journal will be forced to disk.
+   */
+  public long getJournalSyncIntervalMillis()
+  {
+    return journalSyncIntervalMillis;
+  }
+
+
+
+  /**
+   * Specifies the interval in milliseconds at which changes written to the
+   * journal will be forced to disk if the
+   * {@link InMemoryJournalSyncPolicy#PERIODIC} sync policy is used.  The
+   * default interval is 1000 milliseconds.
+   *
+   * @param  journalSyncIntervalMillis  The interval in milliseconds at which
+   *                                    changes written to the journal will be
+   *                                    forced to disk.  A value less than or
+   *                                    equal to zero indicates that the
+   *                                    default interval should be used.
+   */
+  public void setJournalSyncIntervalMillis(final long journalSyncIntervalMillis)
+  {
+    if (journalSyncIntervalMillis > 0L)
+    {
+      this.journalSyncIntervalMillis = journalSyncIntervalMillis;
+    }
+    else
+    {
+      this.journalSyncIntervalMillis = 1000L;
+    }
+  }
+
+
+
+  /**
+   * Retrieves the way in which the server should store its entries.
+   *
+   * @return  The way in which the server should store its entries.
+   */
+  public InMemoryEntryStorageMode getEntryStorageMode()
+  {
+    return entryStorageMode;
+  }
+
+
+
+  /**
+   * Specifies the way in which the server should store its entries.  The
+   * default mode is {@link InMemoryEntryStorageMode#HEAP}, in which each entry
+   * is held as an object in the Java heap.  If the
+   * {@link InMemoryEntryStorageMode#OFF_HEAP} mode is used, then the attributes
+   * of each entry will instead be held in an encoded form in memory allocated
+   * outside of the Java heap, which greatly reduces the amount of heap memory
+   * (and therefore the garbage collection overhead) needed for large data
+   * sets.  Entries held in that form are decoded whenever they are retrieved,
+   * and a search will evaluate its filter against the encoded form of each
+   * candidate entry so that only the attributes targeted by the filter need to
+   * be decoded for entries that do not match.  The indexes are held in the
+   * Java heap in either mode.
+   *
+   * @param  entryStorageMode  The way in which the server should store its
+   *                           entries.  If this is {@code null}, then the
+   *                           default mode will be used.
+   */
+  public void setEntryStorageMode(
+                   final InMemoryEntryStorageMode entryStorageMode)
+  {
+    if (entryStorageMode == null)
+    {
+      this.entryStorageMode = InMemoryEntryStorageMode.HEAP;
+    }
+    else
+    {
+      this.entryStorageMode = entryStorageMode;
+    }
+  }
+
+
+
   /**
    * Retrieves a list containing the names or OIDs of the attribute types for
    * which to maintain an equality index to improve the performance of certain
-   * kinds of searches.
+   * kinds of searches.  If the server is configured with a schema, then an
+   * equality index will also be maintained for the objectClass attribute even
+   * if it is not included in this list.
    *
    * @return  A list containing the names or OIDs of the attribute types for
    *          which to maintain an equality index to improve the performance of
@@ -1054,6 +1327,9 @@ public class InMemoryDirectoryServerConfig
   /**
    * Specifies the names or OIDs of the attribute types for which to maintain an
    * equality index to improve the performance of certain kinds of searches.
+   * If the server is configured with a schema, then an equality index will
+   * also be maintained for the objectClass attribute even if it is not included
+   * in the provided list.
    *
    * @param  equalityIndexAttributes  The names or OIDs of the attributes for
    *                                  which to maintain an equality index to
@@ -1073,6 +1349,9 @@ public class InMemoryDirectoryServerConfig
   /**
    * Specifies the names or OIDs of the attribute types for which to maintain an
    * equality index to improve the performance of certain kinds of searches.
+   * If the server is configured with a schema, then an equality index will
+   * also be maintained for the objectClass attribute even if it is not included
+   * in the provided list.
    *
    * @param  equalityIndexAttributes  The names or OIDs of the attributes for
    *                                  which to maintain an equality index to
@@ -1093,6 +1372,215 @@ public class InMemoryDirectoryServerConfig
 
 
 
+  /**
+   * Retrieves a list containing the names or OIDs of the attribute types for
+   * which to maintain a substring index to improve the performance of certain
+   * kinds of searches.
+   *
+   * @return  A list containing the names or OIDs of the attribute types for
+   *          which to maintain a substring index to improve the performance of
+   *          certain kinds of searches, or an empty list if no substring
+   *          indexes should be created.
+   */
+  public List<String> getSubstringIndexAttributes()
+  {
+    return substringIndexAttributes;
+  }
+
+
+
+  /**
+   * Specifies the names or OIDs of the attribute types for which to maintain a
+   * substring index to improve the performance of certain kinds of searches.
+   *
+   * @param  substringIndexAttributes  The names or OIDs of the attributes for
+   *                                   which to maintain a substring index to
+   *                                   improve the performance of certain kinds
+   *                                   of searches.  It may be {@code null} or
+   *                                   empty to indicate that no substring
+   *                                   indexes should be maintained.
+   */
+  public void setSubstringIndexAttributes(
+                   final String... substringIndexAttributes)
+  {
+    setSubstringIndexAttributes(StaticUtils.toList(substringIndexAttributes));
+  }
+
+
+
+  /**
+   * Specifies the names or OIDs of the attribute types for which to maintain a
+   * substring index to improve the performance of certain kinds of searches.
+   *
+   * @param  substringIndexAttributes  The names or OIDs of the attributes for
+   *                                   which to maintain a substring index to
+   *                                   improve the performance of certain kinds
+   *                                   of searches.  It may be {@code null} or
+   *                                   empty to indicate that no substring
+   *                                   indexes should be maintained.
+   */
+  public void setSubstringIndexAttributes(
+                   final Collection<String> substringIndexAttributes)
+  {
+    this.substringIndexAttributes.clear();
+    if (substringIndexAttributes != null)
+    {
+      this.substringIndexAttributes.addAll(substringIndexAttributes);
+    }
+  }
+
+
+
+  /**
+   * Retrieves a list containing the names or OIDs of the attribute types for
+   * which to maintain an ordering index to improve the performance of certain
+   * kinds of searches.
+   *
+   * @return  A list containing the names or OIDs of the attribute types for
+   *          which to maintain an ordering index to improve the performance of
+   *          certain kinds of searches, or an empty list if no ordering indexes
+   *          should be created.
+   */
+  public List<String> getOrderingIndexAttributes()
+  {
+    return orderingIndexAttributes;
+  }
+
+
+
+  /**
+   * Specifies the names or OIDs of the attribute types for which to maintain an
+   * ordering index to improve the performance of certain kinds of searches.
+   *
+   * @param  orderingIndexAttributes  The names or OIDs of the attributes for
+   *                                  which to maintain an ordering index to
+   *                                  improve the performance of certain kinds
+   *                                  of searches.  It may be {@code null} or
+   *                                  empty to indicate that no ordering indexes
+   *                                  should be maintained.
+   */
+  public void setOrderingIndexAttributes(
+                   final String... orderingIndexAttributes)
+  {
+    setOrderingIndexAttributes(StaticUtils.toList(orderingIndexAttributes));
+  }
+
+
+
+  /**
+   * Specifies the names or OIDs of the attribute types for which to maintain an
+   * ordering index to improve the performance of certain kinds of searches.
+   *
+   * @param  orderingIndexAttributes  The names or OIDs of the attributes for
+   *                                  which to maintain an ordering index to
+   *                                  improve the performance of certain kinds
+   *                                  of searches.  It may be {@code null} or
+   *                                  empty to indicate that no ordering indexes
+   *                                  should be maintained.
+   */
+  public void setOrderingIndexAttributes(
+                   final Collection<String> orderingIndexAttributes)
+  {
+    this.orderingIndexAttributes.clear();
+    if (orderingIndexAttributes != null)
+    {
+      this.orderingIndexAttributes.addAll(orderingIndexAttributes);
+    }
+  }
+
+
+
+  /**
+   * Retrieves a list containing the names or OIDs of the attribute types for
+   * which to maintain a presence index to improve the performance of certain
+   * kinds of searches.
+   *
+   * @return  A list containing the names or OIDs of the attribute types for
+   *          which to maintain a presence index to improve the performance of
+   *          certain kinds of searches, or an empty list if no presence indexes
+   *          should be created.
+   */
+  public List<String> getPresenceIndexAttributes()
+  {
+    return presenceIndexAttributes;
+  }
+
+
+
+  /**
+   * Specifies the names or OIDs of the attribute types for which to maintain a
+   * presence index to improve the performance of certain kinds of searches.
+   *
+   * @param  presenceIndexAttributes  The names or OIDs of the attributes for
+   *                                  which to maintain a presence index to
+   *                                  improve the performance of certain kinds
+   *                                  of searches.  It may be {@code null} or
+   *                                  empty to indicate that no presence indexes
+   *                                  should be maintained.
+   */
+  public void setPresenceIndexAttributes(
+                   final String... presenceIndexAttributes)
+  {
+    setPresenceIndexAttributes(StaticUtils.toList(presenceIndexAttributes));
+  }
+
+
+
+  /**
+   * Specifies the names or OIDs of the attribute types for which to maintain a
+   * presence index to improve the performance of certain kinds of searches.
+   *
+   * @param  presenceIndexAttributes  The names or OIDs of the attributes for
+   *                                  which to maintain a presence index to
+   *                                  improve the performance of certain kinds
+   *                                  of searches.  It may be {@code null} or
+   *                                  empty to indicate that no presence indexes
+   *                                  should be maintained.
+   */
+  public void setPresenceIndexAttributes(
+                   final Collection<String> presenceIndexAttributes)
+  {
+    this.presenceIndexAttributes.clear();
+    if (presenceIndexAttributes != null)
+    {
+      this.presenceIndexAttributes.addAll(presenceIndexAttributes);
+    }
+  }
+
+
+
+  /**
+   * Retrieves a list of the configurations for the virtual list view (VLV)
+   * indexes that should be maintained by the server.  A VLV index holds the
+   * entries matching a given base DN, scope, and filter in the order defined
+   * by a set of sort keys, and will be used to process searches with the same
+   * base DN, scope, and filter that include a server-side sort request control
+   * with the same sort keys.  The contents of the list may be altered by the
+   * caller.
+   *
+   * @return  An updatable list of the configurations for the VLV indexes that
+   *          should be maintained by the server.
+   */
+  public List<InMemoryVLVIndexConfig> getVLVIndexes()
+  {
+    return vlvIndexes;
+  }
+
+
+
+  /**
+   * Adds the provided configuration to the set of virtual list view (VLV)
+   * indexes that should be maintained by the server.
+   *
+   * @param  vlvIndex  The configuration for the VLV index to maintain.
+   */
+  public void addVLVIndex(final InMemoryVLVIndexConfig vlvIndex)
+  {
+    vlvIndexes.add(vlvIndex);
+  }
+
+
+
   /**
    * Retrieves the names of the attributes for which referential integrity
    * should be maintained.  If referential integrity is to be provided and an
@@ -1351,6 +1839,77 @@ public class InMemoryDirectoryServerConfig
       buffer.append('}');
     }
 
+    if (! substringIndexAttributes.isEmpty())
+    {
+      buffer.append(", substringIndexAttributes={");
+
+      final Iterator<String> attrIterator = substringIndexAttributes.iterator();
+      while (attrIterator.hasNext())
+      {
+        buffer.append('\'');
+        buffer.append(attrIterator.next());
+        buffer.append('\'');
+        if (attrIterator.hasNext())
+        {
+          buffer.append(", ");
+        }
+      }
+      buffer.append('}');
+    }
+
+    if (! orderingIndexAttributes.isEmpty())
+    {
+      buffer.append(", orderingIndexAttributes={");
+
+      final Iterator<String> attrIterator = orderingIndexAttributes.iterator();
+      while (attrIterator.hasNext())
+      {
+        buffer.append('\'');
+        buffer.append(attrIterator.next());
+        buffer.append('\'');
+        if (attrIterator.hasNext())
+        {
+          buffer.append(", ");
+        }
+      }
+      buffer.append('}');
+    }
+
+    if (! presenceIndexAttributes.isEmpty())
+    {
+      buffer.append(", presenceIndexAttributes={");
+
+      final Iterator<String> attrIterator = presenceIndexAttributes.iterator();
+      while (attrIterator.hasNext())
+      {
+        buffer.append('\'');
+        buffer.append(attrIterator.next());
+        buffer.append('\'');
+        if (attrIterator.hasNext())
+        {
+          buffer.append(", ");
+        }
+      }
+      buffer.append('}');
+    }
+
+    if (! vlvIndexes.isEmpty())
+    {
+      buffer.append(", vlvIndexes={");
+
+      final Iterator<InMemoryVLVIndexConfig> indexIterator =
+           vlvIndexes.iterator();
+      while (indexIterator.hasNext())
+      {
+        indexIterator.next().toString(buffer);
+        if (indexIterator.hasNext())
+        {
+          buffer.append(", ");
+        }
+      }
+      buffer.append('}');
+    }
+
     if (! referentialIntegrityAttributes.isEmpty())
     {
       buffer.append(", referentialIntegrityAttributes={");
@@ -1372,6 +1931,8 @@ public class InMemoryDirectoryServerConfig
 
     buffer.append(", generateOperationalAttributes=");
     buffer.append(generateOperationalAttributes);
+    buffer.append(", allowConcurrentReads=");
+    buffer.append(allowConcurrentReads);
 
     if (maxChangeLogEntries > 0)
     {
@@ -1381,6 +1942,22 @@ public class InMemoryDirectoryServerConfig
 
     buffer.append(", maxSizeLimit=");
     buffer.append(maxSizeLimit);
+    buffer.append(", entryStorageMode=");
+    buffer.append(entryStorageMode.getName());
+
+    if (dataDirectory != null)
+    {
+      buffer.append(", dataDirectory='");
+      buffer.append(dataDirectory.getAbsolutePath());
+      buffer.append("', journalSyncPolicy=");
+      buffer.append(journalSyncPolicy.getName());
+
+      if (journalSyncPolicy == InMemoryJournalSyncPolicy.PERIODIC)
+      {
+        buffer.append(", journalSyncIntervalMillis=");
+        buffer.append(journalSyncIntervalMillis);
+      }
+    }
 
     if (! extendedOperationHandlers.isEmpty())
     {
@@ -0,0 +1,1967 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.unboundid.ldap.sdk.CompiledFilter;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.ReadOnlyEntry;
+import com.unboundid.ldap.sdk.schema.Schema;
+import com.unboundid.util.Debug;
+import com.unboundid.util.Mutable;
+import com.unboundid.util.NotMutable;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a versioned data store for the entries and index data
+ * held in an in-memory directory server.  All of the data is kept in immutable
+ * structures, so each change creates a new version of the data that shares all
+ * unaltered content with the previous version.  This makes it possible to
+ * create or restore a point-in-time snapshot of the data in constant time.
+ * <BR><BR>
+ * Operations that may alter the data must be processed between calls to the
+ * {@link #beginWrite} and {@link #endWrite} methods, and only one such
+ * operation may be in progress at any time.  Changes made by a write
+ * operation will become visible to other threads when the outermost call to
+ * {@code endWrite} returns.  Operations that only need to read the data must be
+ * processed between calls to the {@link #beginRead} and {@link #endRead}
+ * methods.  If
+ * concurrent reads are allowed, then a read operation will not acquire any
+ * lock, but will see the most recently published version of the data as it
+ * appeared when the operation started, regardless of any writes processed in
+ * the meantime.  Otherwise, read operations will be processed in the same way
+ * as write operations.
+ * <BR><BR>
+ * The entries in the version of the data visible to the calling thread may be
+ * accessed through the {@code Map} methods provided by this class.  Entries
+ * are kept in hierarchical order by DN, so that all entries in a given subtree
+ * are adjacent to one another, and the data store also keeps track of the
+ * immediate children of each DN.  This makes it possible to access the entries
+ * in a subtree, or the children of an entry, without examining any other
+ * entries.
+ * <BR><BR>
+ * A write operation may also register tasks to be run once its changes have
+ * been published (e.g., to notify interested clients of those changes).  The
+ * tasks are run in the order in which they were registered, before the write
+ * lock is released, so tasks for successive write operations will never be
+ * run out of order.
+ * <BR><BR>
+ * Each entry is also assigned an integer ID when it is added, which will not
+ * change for as long as the entry remains in the data store.  The IDs of
+ * entries that have been removed will be reused, so that the IDs in use are
+ * kept dense.  Indexes may refer to entries by ID, which allows them to hold
+ * sets of entries as compact {@link EntryIDSet} objects.
+ * <BR><BR>
+ * If the data store has a journal, then the changes made by each write
+ * operation will be appended to the journal when the outermost call to
+ * {@code endWrite} is made, before they are published.
+ * <BR><BR>
+ * If the {@link InMemoryEntryStorageMode#OFF_HEAP} storage mode is used, then
+ * each entry is held as an {@link InMemoryEncodedEntry} rather than as a
+ * {@code ReadOnlyEntry}, and it will be decoded whenever it is retrieved.  The
+ * candidate iterators provided by this class will evaluate a search filter
+ * against the encoded form of each entry so that only entries that may match
+ * are decoded.
+ */
+@Mutable()
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+final class InMemoryDirectoryServerDataStore
+      extends AbstractMap<DN,ReadOnlyEntry>
+{
+  // The most recently published version of the data.
+  private final AtomicReference<Version> publishedVersion;
+
+  // The allocator used to encode entries, or null if entries are held in the
+  // heap.  It must only be accessed while holding the write lock.
+  private final InMemoryEncodedEntry.Allocator allocator;
+
+  // The dictionary used to share attribute names and common values among the
+  // entries held in the heap, or null if entries are held in encoded form.
+  private final InMemoryAttributeDictionary dictionary;
+
+  // A reference to the schema to use when decoding encoded entries.
+  private final AtomicReference<Schema> schemaRef;
+
+  // Indicates whether read operations may be processed concurrently with other
+  // operations.
+  private final boolean allowConcurrentReads;
+
+  // Indicates whether the write operation in progress may have altered entries
+  // other than those whose DNs are in changedDNs.  It must only be accessed
+  // while holding the write lock.
+  private boolean allEntriesChanged;
+
+  // The DNs of the entries that may have been altered by the write operation
+  // in progress, if the data store has a journal.  It must only be accessed
+  // while holding the write lock.
+  private final HashSet<DN> changedDNs;
+
+  // The journal to which changes should be written, if any.  It must only be
+  // accessed while holding the write lock.
+  private InMemoryDirectoryServerJournal journal;
+
+  // The tasks to run once the changes made by the write operation in progress
+  // have been published.  It must only be accessed while holding the write
+  // lock.
+  private final ArrayList<Runnable> publishTasks;
+
+  // The lock that will be held while processing write operations.
+  private final ReentrantLock writeLock;
+
+  // Information about the version of the data in use by read operations in
+  // progress for each thread.
+  private final ThreadLocal<ReadContext> readContexts;
+
+  // The version of the data as altered by the write operation in progress.
+  // It must only be accessed while holding the write lock.
+  private Version workingVersion;
+
+  // The version of the data at the time the write operation in progress
+  // started, if the data store has a journal.  It must only be accessed while
+  // holding the write lock.
+  private Version writeStartVersion;
+
+
+
+  /**
+   * Creates a new empty data store.
+   *
+   * @param  allowConcurrentReads  Indicates whether read operations may be
+   *                               processed concurrently with other
+   *                               operations.
+   * @param  storageMode           The way in which the entries should be
+   *                               stored.
+   * @param  schemaRef             A reference to the schema to use when
+   *                               decoding encoded entries.  The referenced
+   *                               schema may be {@code null} if no schema
+   *                               should be used.
+   */
+  InMemoryDirectoryServerDataStore(final boolean allowConcurrentReads,
+                                   final InMemoryEntryStorageMode storageMode,
+                                   final AtomicReference<Schema> schemaRef)
+  {
+    this.allowConcurrentReads = allowConcurrentReads;
+    this.schemaRef = schemaRef;
+
+    if (storageMode == InMemoryEntryStorageMode.OFF_HEAP)
+    {
+      allocator  = new InMemoryEncodedEntry.Allocator();
+      dictionary = null;
+    }
+    else
+    {
+      allocator  = null;
+      dictionary = new InMemoryAttributeDictionary();
+    }
+
+    writeLock = new ReentrantLock();
+    publishTasks = new ArrayList<Runnable>(1);
+    changedDNs = new HashSet<DN>(10);
+    allEntriesChanged = false;
+    journal = null;
+    writeStartVersion = null;
+    readContexts = new ThreadLocal<ReadContext>()
+    {
+      @Override()
+      protected ReadContext initialValue()
+      {
+        return new ReadContext();
+      }
+    };
+
+    workingVersion = new Version(this,
+         new PersistentSortedMap<DN,Object>(),
+         new PersistentSortedMap<DN,PersistentSortedMap<DN,Boolean>>(),
+         new PersistentSortedMap<DN,Integer>(),
+         new PersistentSortedMap<Integer,Object>(), EntryIDSet.EMPTY,
+         0, new Object[0]);
+    publishedVersion = new AtomicReference<Version>(workingVersion);
+  }
+
+
+
+  /**
+   * Indicates that the calling thread is about to start processing an
+   * operation that will only read the data.  Every call to this method must be
+   * followed by a corresponding call to {@link #endRead}.
+   */
+  void beginRead()
+  {
+    if (allowConcurrentReads)
+    {
+      final ReadContext context = readContexts.get();
+      if (context.depth == 0)
+      {
+        context.version = publishedVersion.get();
+      }
+      context.depth++;
+    }
+    else
+    {
+      beginWrite();
+    }
+  }
+
+
+
+  /**
+   * Updates the read operation in progress for the calling thread so that it
+   * will see the most recently published version of the data.  This has no
+   * effect if the calling thread is processing a write operation or a nested
+   * read operation, or if concurrent reads are not allowed (in which case the
+   * read operation will already see the latest data).
+   */
+  void refreshRead()
+  {
+    if (allowConcurrentReads && (! writeLock.isHeldByCurrentThread()))
+    {
+      final ReadContext context = readContexts.get();
+      if (context.depth == 1)
+      {
+        context.version = publishedVersion.get();
+      }
+    }
+  }
+
+
+
+  /**
+   * Indicates that the calling thread has completed processing for an
+   * operation that only needed to read the data.
+   */
+  void endRead()
+  {
+    if (allowConcurrentReads)
+    {
+      final ReadContext context = readContexts.get();
+      context.depth--;
+      if (context.depth == 0)
+      {
+        context.version = null;
+      }
+    }
+    else
+    {
+      endWrite();
+    }
+  }
+
+
+
+  /**
+   * Indicates that the calling thread is about to start processing an
+   * operation that may alter the data, waiting if necessary for any other
+   * write operation to complete.  Every call to this method must be followed
+   * by a corresponding call to {@link #endWrite}.
+   */
+  void beginWrite()
+  {
+    writeLock.lock();
+    if ((journal != null) && (writeLock.getHoldCount() == 1))
+    {
+      writeStartVersion = workingVersion;
+    }
+  }
+
+
+
+  /**
+   * Indicates that the calling thread has completed processing for an
+   * operation that may have altered the data.  If this is the outermost write
+   * operation for the thread, then any changes it made will be written to the
+   * journal (if there is one) and published, and any registered publish tasks
+   * will be run.  If the journal sync policy requires it, then this method
+   * will not return until the changes have been forced to disk.
+   */
+  void endWrite()
+  {
+    InMemoryDirectoryServerJournal durableJournal = null;
+    long durableLength = -1L;
+    try
+    {
+      if (writeLock.getHoldCount() == 1)
+      {
+        if (journal != null)
+        {
+          if (allEntriesChanged || (! changedDNs.isEmpty()))
+          {
+            durableJournal = journal;
+            durableLength = journal.append(writeStartVersion, workingVersion,
+                 changedDNs, allEntriesChanged);
+            changedDNs.clear();
+            allEntriesChanged = false;
+          }
+
+          writeStartVersion = null;
+        }
+
+        publishedVersion.set(workingVersion);
+
+        if (! publishTasks.isEmpty())
+        {
+          for (final Runnable task : publishTasks)
+          {
+            try
+            {
+              task.run();
+            }
+            catch (final Exception e)
+            {
+              Debug.debugException(e);
+            }
+          }
+          publishTasks.clear();
+        }
+      }
+    }
+    finally
+    {
+      writeLock.unlock();
+    }
+
+    // Wait for the changes to become durable only after releasing the lock,
+    // so that other write operations may proceed and share the same sync.
+    if (durableLength >= 0L)
+    {
+      durableJournal.awaitDurable(durableLength);
+    }
+  }
+
+
+
+  /**
+   * Specifies the journal to which the changes made by subsequent write
+   * operations should be written.  This should only be called while the data
+   * store is being initialized.
+   *
+   * @param  journal  The journal to which changes should be written, or
+   *                  {@code null} if changes should not be journaled.
+   */
+  void setJournal(final InMemoryDirectoryServerJournal journal)
+  {
+    writeLock.lock();
+    try
+    {
+      this.journal = journal;
+      changedDNs.clear();
+      allEntriesChanged = false;
+      writeStartVersion =
+           (writeLock.getHoldCount() == 1) ? null : workingVersion;
+    }
+    finally
+    {
+      writeLock.unlock();
+    }
+  }
+
+
+
+  /**
+   * Records that the entry with the specified DN may have been altered by the
+   * write operation in progress, if the data store has a journal.  This must
+   * only be called while holding the write lock.
+   *
+   * @param  dn  The DN of the entry that may have been altered.
+   */
+  private void recordChange(final DN dn)
+  {
+    if ((journal != null) && (! allEntriesChanged))
+    {
+      changedDNs.add(dn);
+    }
+  }
+
+
+
+  /**
+   * Records that any of the entries may have been altered by the write
+   * operation in progress, if the data store has a journal.  This must only be
+   * called while holding the write lock.
+   */
+  private void recordAllChanged()
+  {
+    if (journal != null)
+    {
+      allEntriesChanged = true;
+      changedDNs.clear();
+    }
+  }
+
+
+
+  /**
+   * Registers a task to be run once the changes made by the write operation in
+   * progress for the calling thread have been published.  The task will be
+   * run by the calling thread while it still holds the write lock, so it must
+   * not block.  If the calling thread is not processing a write operation,
+   * then the task will be run immediately.
+   *
+   * @param  task  The task to be run.  It must not be {@code null}.
+   */
+  void runAfterPublish(final Runnable task)
+  {
+    beginWrite();
+    try
+    {
+      publishTasks.add(task);
+    }
+    finally
+    {
+      endWrite();
+    }
+  }
+
+
+
+  /**
+   * Discards any tasks registered by the write operation in progress for the
+   * calling thread.  This should be used if the changes made by that operation
+   * have been reverted, so that the tasks are no longer appropriate.
+   */
+  void discardPublishTasks()
+  {
+    beginWrite();
+    try
+    {
+      publishTasks.clear();
+    }
+    finally
+    {
+      endWrite();
+    }
+  }
+
+
+
+  /**
+   * Retrieves the version of the data that is visible to the calling thread.
+   * If the calling thread is processing a write operation, then this will
+   * include all changes made by that operation so far.
+   *
+   * @return  The version of the data that is visible to the calling thread.
+   */
+  Version getVersion()
+  {
+    if (writeLock.isHeldByCurrentThread())
+    {
+      return workingVersion;
+    }
+
+    if (allowConcurrentReads)
+    {
+      final Version v = readContexts.get().version;
+      if (v != null)
+      {
+        return v;
+      }
+    }
+
+    return publishedVersion.get();
+  }
+
+
+
+  /**
+   * Replaces the current data with the provided version.  This may only be
+   * used with a version that was previously obtained from this data store.
+   *
+   * @param  version  The version of the data to use.
+   *
+   * @return  {@code true} if the provided version was restored, or
+   *          {@code false} if it was not obtained from this data store and
+   *          therefore could not be used.
+   */
+  boolean restoreVersion(final Version version)
+  {
+    if ((version == null) || (version.dataStore != this) ||
+        (version.indexRoots.length != workingVersion.indexRoots.length))
+    {
+      return false;
+    }
+
+    beginWrite();
+    try
+    {
+      // If the version being restored is the one from the start of the write
+      // operation, then the journal only needs to consider the entries that
+      // have been changed.
+      if (version != writeStartVersion)
+      {
+        recordAllChanged();
+      }
+
+      workingVersion = version;
+      return true;
+    }
+    finally
+    {
+      endWrite();
+    }
+  }
+
+
+
+  /**
+   * Allocates a slot that an index may use to hold its data.  This should only
+   * be called while the data store is being initialized.
+   *
+   * @return  The slot allocated for the index.
+   */
+  int createIndexSlot()
+  {
+    beginWrite();
+    try
+    {
+      final Object[] roots = workingVersion.indexRoots;
+      final Object[] newRoots = new Object[roots.length + 1];
+      System.arraycopy(roots, 0, newRoots, 0, roots.length);
+      workingVersion = new Version(workingVersion, newRoots);
+      return roots.length;
+    }
+    finally
+    {
+      endWrite();
+    }
+  }
+
+
+
+  /**
+   * Retrieves the number of slots that have been allocated for indexes.
+   *
+   * @return  The number of slots that have been allocated for indexes.
+   */
+  int getIndexSlotCount()
+  {
+    return getVersion().indexRoots.length;
+  }
+
+
+
+  /**
+   * Retrieves the data held by the index in the specified slot, as visible to
+   * the calling thread.
+   *
+   * @param  slot  The slot for the index.
+   *
+   * @return  The data held by the index, or {@code null} if the index does not
+   *          yet hold any data.
+   */
+  Object getIndexRoot(final int slot)
+  {
+    return getVersion().indexRoots[slot];
+  }
+
+
+
+  /**
+   * Replaces the data held by the index in the specified slot.
+   *
+   * @param  slot  The slot for the index.
+   * @param  root  The new data for the index.  It may be {@code null} if the
+   *               index does not hold any data.
+   */
+  void setIndexRoot(final int slot, final Object root)
+  {
+    beginWrite();
+    try
+    {
+      final Object[] newRoots = workingVersion.indexRoots.clone();
+      newRoots[slot] = root;
+      workingVersion = new Version(workingVersion, newRoots);
+    }
+    finally
+    {
+      endWrite();
+    }
+  }
+
+
+
+  /**
+   * Retrieves a read-only view of the immediate children of the specified
+   * entry, in the version of the data visible to the calling thread.
+   * Iterating through the view will only examine the children of the entry.
+   *
+   * @param  parentDN  The DN of the entry for which to retrieve the children.
+   *                   It may be the null DN to retrieve all entries that do not
+   *                   have a parent DN.
+   *
+   * @return  A read-only view of the immediate children of the specified
+   *          entry.  It will not be updated to reflect any subsequent changes.
+   */
+  Map<DN,ReadOnlyEntry> getChildren(final DN parentDN)
+  {
+    final Version v = getVersion();
+    final PersistentSortedMap<DN,Boolean> childDNs = v.children.get(parentDN);
+    if (childDNs == null)
+    {
+      return Collections.emptyMap();
+    }
+    else
+    {
+      return new ChildrenView(v.entries, childDNs);
+    }
+  }
+
+
+
+  /**
+   * Retrieves a read-only view of the entries at and below the specified base
+   * DN, in the version of the data visible to the calling thread.  The
+   * entries will be returned in hierarchical order, so that an entry will
+   * always be returned before any of its subordinates.  Iterating through the
+   * view will only examine entries within the subtree, but note that any
+   * attempt to retrieve a specific entry from the view or to determine its size
+   * will require iterating through it.
+   *
+   * @param  baseDN       The base DN for the subtree.  It may be the null DN
+   *                      to retrieve all entries.
+   * @param  includeBase  Indicates whether to include the entry with the
+   *                      specified base DN, if it exists.
+   *
+   * @return  A read-only view of the entries at and below the specified base
+   *          DN.  It will not be updated to reflect any subsequent changes.
+   */
+  Map<DN,ReadOnlyEntry> getSubtree(final DN baseDN,
+                                   final boolean includeBase)
+  {
+    return new SubtreeView(getVersion().entries, baseDN, includeBase);
+  }
+
+
+
+  /**
+   * Retrieves the ID assigned to the entry with the specified DN, in the
+   * version of the data visible to the calling thread.
+   *
+   * @param  dn  The DN of the entry for which to retrieve the ID.
+   *
+   * @return  The ID assigned to the entry with the specified DN, or -1 if there
+   *          is no such entry.
+   */
+  int getEntryID(final DN dn)
+  {
+    final Integer entryID = getVersion().entryIDs.get(dn);
+    if (entryID == null)
+    {
+      return -1;
+    }
+    else
+    {
+      return entryID;
+    }
+  }
+
+
+
+  /**
+   * Retrieves the entry with the specified ID, in the version of the data
+   * visible to the calling thread.
+   *
+   * @param  entryID  The ID of the entry to retrieve.
+   *
+   * @return  The entry with the specified ID, or {@code null} if there is no
+   *          such entry.
+   */
+  ReadOnlyEntry getEntry(final int entryID)
+  {
+    return decode(getVersion().entriesByID.get(entryID));
+  }
+
+
+
+  /**
+   * Retrieves the entries in the version of the data visible to the calling
+   * thread, mapped from their IDs.  Since the map is never altered, it may be
+   * handed to other threads (e.g., to build index data in parallel), and they
+   * will see the same version of the data.  Each value in the map must be
+   * decoded with the {@link #decode} method.
+   *
+   * @return  The entries in the version of the data visible to the calling
+   *          thread, mapped from their IDs, in ascending order by ID.
+   */
+  PersistentSortedMap<Integer,Object> getEntriesByID()
+  {
+    return getVersion().entriesByID;
+  }
+
+
+
+  /**
+   * Retrieves an iterator over the entries in the provided view that may match
+   * the given filter.  If the entries are held in encoded form, then the filter
+   * will be evaluated against the encoded form of each entry, and the iterator
+   * will return {@code null} in place of each entry that does not match,
+   * without decoding it.  Otherwise, the iterator will return every entry.
+   * Either way, the caller must evaluate the filter against each entry that is
+   * returned.
+   *
+   * @param  entries  A view returned by the {@link #getChildren} or
+   *                  {@link #getSubtree} method.
+   * @param  filter   The filter that the entries must match.
+   *
+   * @return  An iterator over the entries in the provided view that may match
+   *          the given filter.
+   */
+  Iterator<ReadOnlyEntry> getCandidates(final Map<DN,ReadOnlyEntry> entries,
+                                        final CompiledFilter filter)
+  {
+    if (allocator == null)
+    {
+      return entries.values().iterator();
+    }
+
+    final Iterator<Map.Entry<DN,ReadOnlyEntry>> iterator =
+         entries.entrySet().iterator();
+    final InMemoryEncodedEntry.Matcher matcher =
+         new InMemoryEncodedEntry.Matcher(filter);
+    return new Iterator<ReadOnlyEntry>()
+    {
+      public boolean hasNext()
+      {
+        return iterator.hasNext();
+      }
+
+      public ReadOnlyEntry next()
+      {
+        return decodeIfMatches(((StoredEntry) iterator.next()).value,
+             matcher);
+      }
+
+      public void remove()
+      {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+
+
+  /**
+   * Retrieves an iterator over the entries with the provided IDs, in the
+   * version of the data visible to the calling thread, that may match the
+   * given filter.  As with the {@link #getCandidates(Map,CompiledFilter)}
+   * method, the iterator will return {@code null} in place of each entry that
+   * does not exist or is known not to match, and the caller must evaluate the
+   * filter against each entry that is returned.
+   *
+   * @param  entryIDs  An iterator over the IDs of the entries to examine.
+   * @param  filter    The filter that the entries must match.
+   *
+   * @return  An iterator over the entries with the provided IDs that may match
+   *          the given filter.
+   */
+  Iterator<ReadOnlyEntry> getCandidates(final Iterator<Integer> entryIDs,
+                                        final CompiledFilter filter)
+  {
+    final PersistentSortedMap<Integer,Object> entriesByID =
+         getVersion().entriesByID;
+    final InMemoryEncodedEntry.Matcher matcher;
+    if (allocator == null)
+    {
+      matcher = null;
+    }
+    else
+    {
+      matcher = new InMemoryEncodedEntry.Matcher(filter);
+    }
+
+    return new Iterator<ReadOnlyEntry>()
+    {
+      public boolean hasNext()
+      {
+        return entryIDs.hasNext();
+      }
+
+      public ReadOnlyEntry next()
+      {
+        return decodeIfMatches(entriesByID.get(entryIDs.next()), matcher);
+      }
+
+      public void remove()
+      {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+
+
+  /**
+   * Decodes the provided stored entry if it may match the filter for the
+   * given matcher.
+   *
+   * @param  value    The stored entry to decode.  It may be {@code null}.
+   * @param  matcher  The matcher to use to evaluate the encoded form of the
+   *                  entry, or {@code null} if the entry should be decoded
+   *                  without being evaluated.
+   *
+   * @return  The decoded entry, or {@code null} if the provided value was
+   *          {@code null} or the entry does not match the filter.
+   */
+  private static ReadOnlyEntry decodeIfMatches(final Object value,
+                                    final InMemoryEncodedEntry.Matcher matcher)
+  {
+    if ((matcher != null) && (value instanceof InMemoryEncodedEntry) &&
+        (! ((InMemoryEncodedEntry) value).mayMatch(matcher)))
+    {
+      return null;
+    }
+
+    return decode(value);
+  }
+
+
+
+  /**
+   * Decodes the provided stored entry, which may be either a
+   * {@code ReadOnlyEntry} or an {@link InMemoryEncodedEntry}.
+   *
+   * @param  value  The stored entry to decode.  It may be {@code null}.
+   *
+   * @return  The decoded entry, or {@code null} if the provided value was
+   *          {@code null}.
+   */
+  static ReadOnlyEntry decode(final Object value)
+  {
+    if (value instanceof InMemoryEncodedEntry)
+    {
+      return ((InMemoryEncodedEntry) value).decode();
+    }
+    else
+    {
+      return (ReadOnlyEntry) value;
+    }
+  }
+
+
+
+  /**
+   * Converts the provided entry to the form in which it should be stored.
+   * This must only be called while holding the write lock.
+   *
+   * @param  dn     The DN to use as the key for the entry.  The stored form
+   *                of the entry will use it as its DN.
+   * @param  entry  The entry to convert.
+   *
+   * @return  The form in which the entry should be stored.
+   */
+  private Object toStoredForm(final DN dn, final ReadOnlyEntry entry)
+  {
+    if (allocator == null)
+    {
+      // Entries held in the data store will be examined many times, so have
+      // each attribute retain the normalized representations of its values.
+      // The dictionary does this while having the entry share the names and
+      // common values already held by other entries.
+      return dictionary.intern(entry, dn);
+    }
+    else
+    {
+      return allocator.encode(dn, entry, schemaRef.get());
+    }
+  }
+
+
+
+  /**
+   * Replaces all of the entries and index data with the provided content, as
+   * read from a snapshot file.  Because the entries are provided in order by
+   * DN along with the position of each entry's parent, all of the structures
+   * can be built directly, without comparing or normalizing any DNs.  This
+   * must only be called while processing a write operation.
+   *
+   * @param  dns              The DNs of the entries, in ascending order.
+   * @param  entries          The entries, in the same order as their DNs.
+   * @param  entryIDs         The IDs to assign to the entries, in the same
+   *                          order as their DNs.  Each ID must be unique, and
+   *                          must be less than {@code nextEntryID}.
+   * @param  parentPositions  The position in the list of DNs of the parent of
+   *                          each entry, or -1 for any entry whose parent is
+   *                          not included in the list.
+   * @param  nextEntryID      The smallest ID that has never been assigned to
+   *                          an entry.
+   * @param  indexRoots       The data to hold for each of the indexes, by
+   *                          slot.  It must have an element for every slot
+   *                          that has been allocated, and any of its elements
+   *                          may be {@code null}.
+   */
+  void load(final List<DN> dns, final List<ReadOnlyEntry> entries,
+            final int[] entryIDs, final int[] parentPositions,
+            final int nextEntryID, final Object[] indexRoots)
+  {
+    beginWrite();
+    try
+    {
+      recordAllChanged();
+
+      final int numEntries = dns.size();
+      final ArrayList<Integer> idList = new ArrayList<Integer>(numEntries);
+      for (final int id : entryIDs)
+      {
+        idList.add(id);
+      }
+
+      // Order the entries by ID, and find the IDs that are not in use.
+      final long[] idPositions = new long[numEntries];
+      for (int i=0; i < numEntries; i++)
+      {
+        idPositions[i] = (((long) entryIDs[i]) << 32) | i;
+      }
+      Arrays.sort(idPositions);
+
+      // Create the key for each entry below the key for its parent, so that
+      // the keys share the DN components they have in common.  Parents always
+      // come before their children in DN order.
+      final ArrayList<DN> keys = new ArrayList<DN>(numEntries);
+      for (int i=0; i < numEntries; i++)
+      {
+        final int parentPos = parentPositions[i];
+        if (parentPos < 0)
+        {
+          keys.add(dns.get(i));
+        }
+        else
+        {
+          keys.add(new DN(dns.get(i).getRDN(), keys.get(parentPos)));
+        }
+      }
+
+      final ArrayList<Object> storedEntries = new ArrayList<Object>(numEntries);
+      for (int i=0; i < numEntries; i++)
+      {
+        storedEntries.add(toStoredForm(keys.get(i), entries.get(i)));
+      }
+
+      final ArrayList<Integer> sortedIDs = new ArrayList<Integer>(numEntries);
+      final ArrayList<Object> entriesInIDOrder =
+           new ArrayList<Object>(numEntries);
+      final EntryIDSet.Builder freeIDBuilder = new EntryIDSet.Builder();
+      int expectedID = 0;
+      for (final long l : idPositions)
+      {
+        final int id = (int) (l >>> 32);
+        while (expectedID < id)
+        {
+          freeIDBuilder.add(expectedID++);
+        }
+        expectedID = id + 1;
+
+        sortedIDs.add(id);
+        entriesInIDOrder.add(storedEntries.get((int) (l & 0xFFFFFFFFL)));
+      }
+      while (expectedID < nextEntryID)
+      {
+        freeIDBuilder.add(expectedID++);
+      }
+
+      // Group the DNs of the children of each entry.  Since the DNs are in
+      // order, the children of each entry will be in order as well, and the
+      // entries with children will be encountered in order.
+      final ArrayList<ArrayList<DN>> childLists =
+           new ArrayList<ArrayList<DN>>(numEntries);
+      final ArrayList<DN> orphanDNs = new ArrayList<DN>(10);
+      for (int i=0; i < numEntries; i++)
+      {
+        childLists.add(null);
+
+        final int parentPos = parentPositions[i];
+        if (parentPos < 0)
+        {
+          orphanDNs.add(keys.get(i));
+        }
+        else
+        {
+          ArrayList<DN> l = childLists.get(parentPos);
+          if (l == null)
+          {
+            l = new ArrayList<DN>(1);
+            childLists.set(parentPos, l);
+          }
+          l.add(keys.get(i));
+        }
+      }
+
+      final ArrayList<DN> parentDNs = new ArrayList<DN>(numEntries);
+      final ArrayList<PersistentSortedMap<DN,Boolean>> childMaps =
+           new ArrayList<PersistentSortedMap<DN,Boolean>>(numEntries);
+      for (int i=0; i < numEntries; i++)
+      {
+        final ArrayList<DN> l = childLists.get(i);
+        if (l != null)
+        {
+          parentDNs.add(keys.get(i));
+          childMaps.add(PersistentSortedMap.<DN,Boolean>createFromSorted(null,
+               l, Collections.nCopies(l.size(), Boolean.TRUE)));
+        }
+      }
+
+      final Version v = workingVersion;
+      PersistentSortedMap<DN,PersistentSortedMap<DN,Boolean>> children =
+           PersistentSortedMap.createFromSorted(v.children.getComparator(),
+                parentDNs, childMaps);
+
+      // Entries whose parents are not present (including the base entries)
+      // are rare, so they can be added to the map of children individually.
+      for (final DN dn : orphanDNs)
+      {
+        final DN parentKey = getParentKey(dn);
+        PersistentSortedMap<DN,Boolean> childDNs = children.get(parentKey);
+        if (childDNs == null)
+        {
+          childDNs = new PersistentSortedMap<DN,Boolean>();
+        }
+        children = children.put(parentKey, childDNs.put(dn, Boolean.TRUE));
+      }
+
+      workingVersion = new Version(this,
+           PersistentSortedMap.createFromSorted(v.entries.getComparator(), keys,
+                storedEntries),
+           children,
+           PersistentSortedMap.createFromSorted(v.entryIDs.getComparator(),
+                keys, idList),
+           PersistentSortedMap.createFromSorted(v.entriesByID.getComparator(),
+                sortedIDs, entriesInIDOrder),
+           freeIDBuilder.build(), nextEntryID, indexRoots.clone());
+    }
+    finally
+    {
+      endWrite();
+    }
+  }
+
+
+
+  /**
+   * Retrieves the DN that should be used as the key for a new entry with the
+   * provided DN.  If the parent of the entry is present, then the key will be
+   * created below the key for the parent, so that it shares the DN components
+   * of the parent and all of its ancestors rather than holding its own copies.
+   *
+   * @param  v   The version of the data to which the entry will be added.
+   * @param  dn  The DN of the new entry.
+   *
+   * @return  The DN that should be used as the key for the new entry.
+   */
+  private static DN getStoredKey(final Version v, final DN dn)
+  {
+    final DN parentDN = dn.getParent();
+    if (parentDN != null)
+    {
+      final Map.Entry<DN,Object> parentEntry = v.entries.getEntry(parentDN);
+      if (parentEntry != null)
+      {
+        return new DN(dn.getRDN(), parentEntry.getKey());
+      }
+    }
+
+    return dn;
+  }
+
+
+
+  /**
+   * Retrieves the DN that should be used as the key in the map of children for
+   * the provided entry DN.
+   *
+   * @param  dn  The DN of the entry.
+   *
+   * @return  The parent DN for the entry, or the null DN if the entry does not
+   *          have a parent.
+   */
+  private static DN getParentKey(final DN dn)
+  {
+    final DN parentDN = dn.getParent();
+    if (parentDN == null)
+    {
+      return DN.NULL_DN;
+    }
+    else
+    {
+      return parentDN;
+    }
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public int size()
+  {
+    return getVersion().entries.size();
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public boolean isEmpty()
+  {
+    return getVersion().entries.isEmpty();
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public boolean containsKey(final Object key)
+  {
+    if (key instanceof DN)
+    {
+      return getVersion().entries.containsKey((DN) key);
+    }
+    else
+    {
+      return false;
+    }
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public ReadOnlyEntry get(final Object key)
+  {
+    if (key instanceof DN)
+    {
+      return decode(getVersion().entries.get((DN) key));
+    }
+    else
+    {
+      return null;
+    }
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public ReadOnlyEntry put(final DN key, final ReadOnlyEntry entry)
+  {
+    beginWrite();
+    try
+    {
+      recordChange(key);
+
+      final Version v = workingVersion;
+      final Map.Entry<DN,Object> previousEntry = v.entries.getEntry(key);
+      if (previousEntry == null)
+      {
+        final DN storedKey = getStoredKey(v, key);
+        final Object value = toStoredForm(storedKey, entry);
+
+        // Assign an ID to the new entry, reusing the smallest available ID that
+        // has been released by a removed entry.
+        final int entryID;
+        final EntryIDSet freeEntryIDs;
+        final int nextEntryID;
+        if (v.freeEntryIDs.isEmpty())
+        {
+          entryID = v.nextEntryID;
+          freeEntryIDs = v.freeEntryIDs;
+          nextEntryID = entryID + 1;
+        }
+        else
+        {
+          entryID = v.freeEntryIDs.first();
+          freeEntryIDs = v.freeEntryIDs.remove(entryID);
+          nextEntryID = v.nextEntryID;
+        }
+
+        final DN parentKey = getParentKey(storedKey);
+        PersistentSortedMap<DN,Boolean> childDNs = v.children.get(parentKey);
+        if (childDNs == null)
+        {
+          childDNs = new PersistentSortedMap<DN,Boolean>();
+        }
+
+        workingVersion = new Version(this, v.entries.put(storedKey, value),
+             v.children.put(parentKey, childDNs.put(storedKey, Boolean.TRUE)),
+             v.entryIDs.put(storedKey, entryID),
+             v.entriesByID.put(entryID, value), freeEntryIDs, nextEntryID,
+             v.indexRoots);
+        return null;
+      }
+      else
+      {
+        final DN storedKey = previousEntry.getKey();
+        final Object value = toStoredForm(storedKey, entry);
+        workingVersion = new Version(this, v.entries.put(storedKey, value),
+             v.children, v.entryIDs,
+             v.entriesByID.put(v.entryIDs.get(storedKey), value),
+             v.freeEntryIDs, v.nextEntryID, v.indexRoots);
+        return decode(previousEntry.getValue());
+      }
+    }
+    finally
+    {
+      endWrite();
+    }
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public ReadOnlyEntry remove(final Object key)
+  {
+    if (! (key instanceof DN))
+    {
+      return null;
+    }
+
+    beginWrite();
+    try
+    {
+      final Version v = workingVersion;
+      final Map.Entry<DN,Object> previousEntry = v.entries.getEntry((DN) key);
+      if (previousEntry == null)
+      {
+        return null;
+      }
+      else
+      {
+        final DN dn = previousEntry.getKey();
+        recordChange(dn);
+
+        final DN parentKey = getParentKey(dn);
+        final PersistentSortedMap<DN,Boolean> childDNs =
+             v.children.get(parentKey).remove(dn);
+        final PersistentSortedMap<DN,PersistentSortedMap<DN,Boolean>>
+             children;
+        if (childDNs.isEmpty())
+        {
+          children = v.children.remove(parentKey);
+        }
+        else
+        {
+          children = v.children.put(parentKey, childDNs);
+        }
+
+        final Integer entryID = v.entryIDs.get(dn);
+        workingVersion = new Version(this, v.entries.remove(dn), children,
+             v.entryIDs.remove(dn), v.entriesByID.remove(entryID),
+             v.freeEntryIDs.add(entryID), v.nextEntryID, v.indexRoots);
+        return decode(previousEntry.getValue());
+      }
+    }
+    finally
+    {
+      endWrite();
+    }
+  }
+
+
+
+  /**
+   * {@inheritDoc}  Index data will not be altered, but entry IDs will be
+   * reassigned from the beginning, so any index data that refers to the
+   * existing entries must be cleared before it is used.
+   */
+  @Override()
+  public void clear()
+  {
+    beginWrite();
+    try
+    {
+      recordAllChanged();
+
+      final Version v = workingVersion;
+      workingVersion = new Version(this, v.entries.clear(),
+           v.children.clear(), v.entryIDs.clear(), v.entriesByID.clear(),
+           EntryIDSet.EMPTY, 0, v.indexRoots);
+    }
+    finally
+    {
+      endWrite();
+    }
+  }
+
+
+
+  /**
+   * {@inheritDoc}  The set returned will reflect the version of the data
+   * visible to the calling thread at the time this method was called, and it
+   * will not be updated to reflect any subsequent changes.
+   */
+  @Override()
+  public Set<Map.Entry<DN,ReadOnlyEntry>> entrySet()
+  {
+    return getVersion().getEntryMap().entrySet();
+  }
+
+
+
+  /**
+   * This class provides a read-only view of the immediate children of an
+   * entry.
+   */
+  private static final class ChildrenView
+          extends AbstractMap<DN,ReadOnlyEntry>
+  {
+    // The DNs of the children.
+    private final PersistentSortedMap<DN,Boolean> childDNs;
+
+    // The set of entries from which to obtain the children.
+    private final PersistentSortedMap<DN,Object> entries;
+
+
+
+    /**
+     * Creates a new children view with the provided information.
+     *
+     * @param  entries   The set of entries from which to obtain the children.
+     * @param  childDNs  The DNs of the children.
+     */
+    private ChildrenView(final PersistentSortedMap<DN,Object> entries,
+                         final PersistentSortedMap<DN,Boolean> childDNs)
+    {
+      this.entries  = entries;
+      this.childDNs = childDNs;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public Set<Map.Entry<DN,ReadOnlyEntry>> entrySet()
+    {
+      return new AbstractSet<Map.Entry<DN,ReadOnlyEntry>>()
+      {
+        @Override()
+        public Iterator<Map.Entry<DN,ReadOnlyEntry>> iterator()
+        {
+          final Iterator<Map.Entry<DN,Boolean>> dnIterator =
+               childDNs.iterator();
+          return new Iterator<Map.Entry<DN,ReadOnlyEntry>>()
+          {
+            public boolean hasNext()
+            {
+              return dnIterator.hasNext();
+            }
+
+            public Map.Entry<DN,ReadOnlyEntry> next()
+            {
+              return new StoredEntry(
+                   entries.getEntry(dnIterator.next().getKey()));
+            }
+
+            public void remove()
+            {
+              throw new UnsupportedOperationException();
+            }
+          };
+        }
+
+        @Override()
+        public int size()
+        {
+          return childDNs.size();
+        }
+      };
+    }
+  }
+
+
+
+  /**
+   * This class provides a read-only view of the entries in a subtree.
+   */
+  private static final class SubtreeView
+          extends AbstractMap<DN,ReadOnlyEntry>
+  {
+    // Indicates whether to include the base entry.
+    private final boolean includeBase;
+
+    // The base DN for the subtree.
+    private final DN baseDN;
+
+    // The set of entries from which to obtain the subtree.
+    private final PersistentSortedMap<DN,Object> entries;
+
+
+
+    /**
+     * Creates a new subtree view with the provided information.
+     *
+     * @param  entries      The set of entries from which to obtain the
+     *                      subtree.
+     * @param  baseDN       The base DN for the subtree.
+     * @param  includeBase  Indicates whether to include the base entry.
+     */
+    private SubtreeView(final PersistentSortedMap<DN,Object> entries,
+                        final DN baseDN, final boolean includeBase)
+    {
+      this.entries     = entries;
+      this.baseDN      = baseDN;
+      this.includeBase = includeBase;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public Set<Map.Entry<DN,ReadOnlyEntry>> entrySet()
+    {
+      return new AbstractSet<Map.Entry<DN,ReadOnlyEntry>>()
+      {
+        @Override()
+        public Iterator<Map.Entry<DN,ReadOnlyEntry>> iterator()
+        {
+          return new SubtreeIterator(
+               entries.iterator(baseDN, includeBase), baseDN);
+        }
+
+        @Override()
+        public int size()
+        {
+          int size = 0;
+          final Iterator<Map.Entry<DN,ReadOnlyEntry>> iterator = iterator();
+          while (iterator.hasNext())
+          {
+            iterator.next();
+            size++;
+          }
+          return size;
+        }
+      };
+    }
+  }
+
+
+
+  /**
+   * This class provides an iterator over the entries in a subtree.  Because
+   * entries are held in hierarchical order, all entries below the base DN
+   * immediately follow it, and iteration can stop as soon as an entry outside
+   * the subtree is encountered.
+   */
+  private static final class SubtreeIterator
+          implements Iterator<Map.Entry<DN,ReadOnlyEntry>>
+  {
+    // The base DN for the subtree.
+    private final DN baseDN;
+
+    // The iterator over all entries at or after the base DN.
+    private final Iterator<Map.Entry<DN,Object>> iterator;
+
+    // Indicates whether an entry outside the subtree has been encountered.
+    private boolean done;
+
+    // The next entry to return, if it has already been retrieved.
+    private Map.Entry<DN,ReadOnlyEntry> nextEntry;
+
+
+
+    /**
+     * Creates a new subtree iterator with the provided information.
+     *
+     * @param  iterator  The iterator over all entries at or after the base DN.
+     * @param  baseDN    The base DN for the subtree.
+     */
+    private SubtreeIterator(final Iterator<Map.Entry<DN,Object>> iterator,
+                 final DN baseDN)
+    {
+      this.iterator = iterator;
+      this.baseDN   = baseDN;
+
+      done      = false;
+      nextEntry = null;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean hasNext()
+    {
+      if ((nextEntry == null) && (! done))
+      {
+        if (iterator.hasNext())
+        {
+          final Map.Entry<DN,Object> e = iterator.next();
+          if (e.getKey().isDescendantOf(baseDN, true))
+          {
+            nextEntry = new StoredEntry(e);
+          }
+          else
+          {
+            done = true;
+          }
+        }
+        else
+        {
+          done = true;
+        }
+      }
+
+      return (nextEntry != null);
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Map.Entry<DN,ReadOnlyEntry> next()
+    {
+      if (! hasNext())
+      {
+        throw new NoSuchElementException();
+      }
+
+      final Map.Entry<DN,ReadOnlyEntry> e = nextEntry;
+      nextEntry = null;
+      return e;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void remove()
+    {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+
+
+  /**
+   * This class provides a map entry for an entry in the data store, which will
+   * be decoded when the value is retrieved.
+   */
+  private static final class StoredEntry
+          implements Map.Entry<DN,ReadOnlyEntry>
+  {
+    // The DN of the entry.
+    private final DN dn;
+
+    // The entry, in the form in which it is stored.
+    private final Object value;
+
+
+
+    /**
+     * Creates a new stored entry from the provided map entry.
+     *
+     * @param  e  The map entry from the data store.
+     */
+    private StoredEntry(final Map.Entry<DN,Object> e)
+    {
+      dn    = e.getKey();
+      value = e.getValue();
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public DN getKey()
+    {
+      return dn;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public ReadOnlyEntry getValue()
+    {
+      return decode(value);
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public ReadOnlyEntry setValue(final ReadOnlyEntry value)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public int hashCode()
+    {
+      return dn.hashCode() ^ getValue().hashCode();
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public boolean equals(final Object o)
+    {
+      if (! (o instanceof Map.Entry))
+      {
+        return false;
+      }
+
+      final Map.Entry<?,?> e = (Map.Entry<?,?>) o;
+      return dn.equals(e.getKey()) && getValue().equals(e.getValue());
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public String toString()
+    {
+      return dn + "=" + getValue();
+    }
+  }
+
+
+
+  /**
+   * This class provides a read-only view of all of the entries in a version of
+   * the data.
+   */
+  private static final class EntryMapView
+          extends AbstractMap<DN,ReadOnlyEntry>
+  {
+    // The set of entries to expose.
+    private final PersistentSortedMap<DN,Object> entries;
+
+
+
+    /**
+     * Creates a new entry map view for the provided set of entries.
+     *
+     * @param  entries  The set of entries to expose.
+     */
+    private EntryMapView(final PersistentSortedMap<DN,Object> entries)
+    {
+      this.entries = entries;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public int size()
+    {
+      return entries.size();
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public boolean containsKey(final Object key)
+    {
+      return (key instanceof DN) && entries.containsKey((DN) key);
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public ReadOnlyEntry get(final Object key)
+    {
+      if (key instanceof DN)
+      {
+        return decode(entries.get((DN) key));
+      }
+      else
+      {
+        return null;
+      }
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public Set<Map.Entry<DN,ReadOnlyEntry>> entrySet()
+    {
+      return new AbstractSet<Map.Entry<DN,ReadOnlyEntry>>()
+      {
+        @Override()
+        public Iterator<Map.Entry<DN,ReadOnlyEntry>> iterator()
+        {
+          final Iterator<Map.Entry<DN,Object>> iterator = entries.iterator();
+          return new Iterator<Map.Entry<DN,ReadOnlyEntry>>()
+          {
+            public boolean hasNext()
+            {
+              return iterator.hasNext();
+            }
+
+            public Map.Entry<DN,ReadOnlyEntry> next()
+            {
+              return new StoredEntry(iterator.next());
+            }
+
+            public void remove()
+            {
+              throw new UnsupportedOperationException();
+            }
+          };
+        }
+
+        @Override()
+        public int size()
+        {
+          return entries.size();
+        }
+      };
+    }
+  }
+
+
+
+  /**
+   * This class holds information about the version of the data in use by the
+   * read operations in progress for a thread.
+   */
+  private static final class ReadContext
+  {
+    // The number of read operations in progress for the thread.
+    private int depth;
+
+    // The version of the data in use by those read operations.
+    private Version version;
+  }
+
+
+
+  /**
+   * This class provides an immutable version of the data held in a data store,
+   * including both the entries and the index data.
+   */
+  @NotMutable()
+  @ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+  static final class Version
+  {
+    // The data store with which this version is associated.
+    private final InMemoryDirectoryServerDataStore dataStore;
+
+    // The data held by each of the indexes, by slot.
+    private final Object[] indexRoots;
+
+    // The entries in this version.
+    private final PersistentSortedMap<DN,Object> entries;
+
+    // The DNs of the immediate children of each entry in this version, indexed
+    // by parent DN.
+    private final PersistentSortedMap<DN,PersistentSortedMap<DN,Boolean>>
+         children;
+
+    // The IDs assigned to the entries in this version, indexed by DN.
+    private final PersistentSortedMap<DN,Integer> entryIDs;
+
+    // The entries in this version, indexed by ID.
+    private final PersistentSortedMap<Integer,Object> entriesByID;
+
+    // The IDs below nextEntryID that are not assigned to any entry.
+    private final EntryIDSet freeEntryIDs;
+
+    // The smallest ID that has never been assigned to an entry.
+    private final int nextEntryID;
+
+
+
+    /**
+     * Creates a new version with the provided information.
+     *
+     * @param  dataStore     The data store with which this version is
+     *                       associated.
+     * @param  entries       The entries in this version.
+     * @param  children      The DNs of the immediate children of each entry
+     *                       in this version, indexed by parent DN.
+     * @param  entryIDs      The IDs assigned to the entries in this version,
+     *                       indexed by DN.
+     * @param  entriesByID   The entries in this version, indexed by ID.
+     * @param  freeEntryIDs  The IDs below {@code nextEntryID} that are not
+     *                       assigned to any entry.
+     * @param  nextEntryID   The smallest ID that has never been assigned to an
+     *                       entry.
+     * @param  indexRoots    The data held by each of the indexes, by slot.
+     */
+    private Version(final InMemoryDirectoryServerDataStore dataStore,
+                 final PersistentSortedMap<DN,Object> entries,
+                 final PersistentSortedMap<DN,PersistentSortedMap<DN,Boolean>>
+                            children,
+                 final PersistentSortedMap<DN,Integer> entryIDs,
+                 final PersistentSortedMap<Integer,Object> entriesByID,
+                 final EntryIDSet freeEntryIDs, final int nextEntryID,
+                 final Object[] indexRoots)
+    {
+      this.dataStore    = dataStore;
+      this.entries      = entries;
+      this.children     = children;
+      this.entryIDs     = entryIDs;
+      this.entriesByID  = entriesByID;
+      this.freeEntryIDs = freeEntryIDs;
+      this.nextEntryID  = nextEntryID;
+      this.indexRoots   = indexRoots;
+    }
+
+
+
+    /**
+     * Creates a new version with the same entries as the provided version but
+     * with different index data.
+     *
+     * @param  version     The version whose entries should be used.
+     * @param  indexRoots  The data held by each of the indexes, by slot.
+     */
+    private Version(final Version version, final Object[] indexRoots)
+    {
+      dataStore    = version.dataStore;
+      entries      = version.entries;
+      children     = version.children;
+      entryIDs     = version.entryIDs;
+      entriesByID  = version.entriesByID;
+      freeEntryIDs = version.freeEntryIDs;
+      nextEntryID  = version.nextEntryID;
+
+      this.indexRoots = indexRoots;
+    }
+
+
+
+    /**
+     * Retrieves the entries in this version, in the form in which they are
+     * stored.  Each value in the map must be decoded with the
+     * {@link InMemoryDirectoryServerDataStore#decode} method.
+     *
+     * @return  The entries in this version.
+     */
+    PersistentSortedMap<DN,Object> getEntries()
+    {
+      return entries;
+    }
+
+
+
+    /**
+     * Retrieves a read-only view of the entries in this version, which will be
+     * decoded as they are retrieved.
+     *
+     * @return  A read-only view of the entries in this version.
+     */
+    Map<DN,ReadOnlyEntry> getEntryMap()
+    {
+      return new EntryMapView(entries);
+    }
+
+
+
+    /**
+     * Retrieves the IDs assigned to the entries in this version.
+     *
+     * @return  The IDs assigned to the entries in this version, indexed by DN.
+     */
+    PersistentSortedMap<DN,Integer> getEntryIDs()
+    {
+      return entryIDs;
+    }
+
+
+
+    /**
+     * Retrieves the smallest ID that has never been assigned to an entry in
+     * this version.
+     *
+     * @return  The smallest ID that has never been assigned to an entry in this
+     *          version.
+     */
+    int getNextEntryID()
+    {
+      return nextEntryID;
+    }
+
+
+
+    /**
+     * Retrieves the data held by the index in the specified slot in this
+     * version.
+     *
+     * @param  slot  The slot for the index.
+     *
+     * @return  The data held by the index, or {@code null} if the index does
+     *          not hold any data.
+     */
+    Object getIndexRoot(final int slot)
+    {
+      return indexRoots[slot];
+    }
+  }
+}
@@ -22,10 +22,15 @@ package com.unboundid.ldap.listener;
 
 
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 import com.unboundid.asn1.ASN1OctetString;
@@ -37,6 +42,7 @@ import com.unboundid.ldap.sdk.LDAPException;
 import com.unboundid.ldap.sdk.ResultCode;
 import com.unboundid.ldap.sdk.schema.AttributeTypeDefinition;
 import com.unboundid.ldap.sdk.schema.Schema;
+import com.unboundid.util.Debug;
 import com.unboundid.util.InternalUseOnly;
 import com.unboundid.util.Mutable;
 import com.unboundid.util.ThreadSafety;
@@ -48,17 +54,30 @@ import static com.unboundid.ldap.listener.ListenerMessages.*;
 
 /**
  * This class provides a data structure for maintaining an equality index for a
- * specified attribute.
+ * specified attribute.  The index data is held in the server data store, so
+ * that it is versioned along with the entries to which it applies.
  */
 @Mutable()
 @ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
 final class InMemoryDirectoryServerEqualityAttributeIndex
+      implements InMemoryDirectoryServerSnapshotIndex
 {
+  /**
+   * A comparator that may be used to order normalized values.
+   */
+  static final Comparator<ASN1OctetString> VALUE_COMPARATOR =
+       new OctetStringComparator();
+
+
+
   // The attribute type with which this index is associated.
   private final AttributeTypeDefinition attributeType;
 
-  // A map from normalized values to the DNs of entries with those values.
-  private final Map<ASN1OctetString,TreeSet<DN>> indexMap;
+  // The data store that holds the index data.
+  private final InMemoryDirectoryServerDataStore dataStore;
+
+  // The slot in the data store that holds the index data.
+  private final int slot;
 
   // The matching rule used to normalize values.
   private final MatchingRule matchingRule;
@@ -76,12 +95,13 @@ final class InMemoryDirectoryServerEqualityAttributeIndex
    *                        schema.
    * @param  schema         The schema for the server.  It must not be
    *                        {@code null}.
+   * @param  dataStore      The data store that will hold the index data.
    *
    * @throws  LDAPException  If the specified attribute type is not defined in
    *                         the schema.
    */
   InMemoryDirectoryServerEqualityAttributeIndex(final String attributeType,
-                                                final Schema schema)
+       final Schema schema, final InMemoryDirectoryServerDataStore dataStore)
        throws LDAPException
   {
     this.schema = schema;
@@ -101,7 +121,8 @@ final class InMemoryDirectoryServerEqualityAttributeIndex
     matchingRule = MatchingRule.selectEqualityMatchingRule(attributeType,
          schema);
 
-    indexMap = new HashMap<ASN1OctetString,TreeSet<DN>>(100);
+    this.dataStore = dataStore;
+    slot = dataStore.createIndexSlot();
   }
 
 
@@ -118,12 +139,36 @@ final class InMemoryDirectoryServerEqualityAttributeIndex
 
 
 
+  /**
+   * Retrieves the map from normalized values to the IDs of entries with those
+   * values, as visible to the calling thread.
+   *
+   * @return  The map from normalized values to the IDs of entries with those
+   *          values.
+   */
+  @SuppressWarnings("unchecked")
+  private PersistentSortedMap<ASN1OctetString,EntryIDSet> getIndexMap()
+  {
+    final Object root = dataStore.getIndexRoot(slot);
+    if (root == null)
+    {
+      return new PersistentSortedMap<ASN1OctetString,EntryIDSet>(
+           VALUE_COMPARATOR);
+    }
+    else
+    {
+      return (PersistentSortedMap<ASN1OctetString,EntryIDSet>) root;
+    }
+  }
+
+
+
   /**
    * Clears all index data for the associated attribute.
    */
-  synchronized void clear()
+  void clear()
   {
-    indexMap.clear();
+    dataStore.setIndexRoot(slot, null);
   }
 
 
@@ -135,13 +180,31 @@ final class InMemoryDirectoryServerEqualityAttributeIndex
    * @return  A copy of the internal map used by this index.
    */
   @InternalUseOnly()
-  synchronized Map<ASN1OctetString,TreeSet<DN>> copyMap()
+  Map<ASN1OctetString,TreeSet<DN>> copyMap()
   {
+    final PersistentSortedMap<ASN1OctetString,EntryIDSet> indexMap =
+         getIndexMap();
     final HashMap<ASN1OctetString,TreeSet<DN>> m =
          new HashMap<ASN1OctetString,TreeSet<DN>>(indexMap.size());
-    for (final Map.Entry<ASN1OctetString,TreeSet<DN>> e : indexMap.entrySet())
+    final Iterator<Map.Entry<ASN1OctetString,EntryIDSet>> iterator =
+         indexMap.iterator();
+    while (iterator.hasNext())
     {
-      m.put(e.getKey(), new TreeSet<DN>(e.getValue()));
+      final Map.Entry<ASN1OctetString,EntryIDSet> e = iterator.next();
+      final TreeSet<DN> dnSet = new TreeSet<DN>();
+      final Iterator<Integer> idIterator = e.getValue().iterator();
+      while (idIterator.hasNext())
+      {
+        try
+        {
+          dnSet.add(dataStore.getEntry(idIterator.next()).getParsedDN());
+        }
+        catch (final LDAPException le)
+        {
+          Debug.debugException(le);
+        }
+      }
+      m.put(e.getKey(), dnSet);
     }
 
     return Collections.unmodifiableMap(m);
@@ -150,70 +213,85 @@ final class InMemoryDirectoryServerEqualityAttributeIndex
 
 
   /**
-   * Retrieves the DNs of the entries that have the specified value for the
+   * Retrieves the IDs of the entries that have the specified value for the
    * associated attribute.
    *
-   * @param  value  The value for which to retrieve the corresponding entry DNs.
+   * @param  value  The value for which to retrieve the corresponding entry IDs.
    *
-   * @return  A set containing the DNs of the entries that have the provided
+   * @return  A set containing the IDs of the entries that have the provided
    *          value, or an empty set if there are none.
    *
    * @throws  LDAPException  If a problem is encountered while attempting to
    *                         make the determination (e.g., if the given value is
    *                         not acceptable for the associated attribute type).
    */
-  synchronized Set<DN> getMatchingEntries(final ASN1OctetString value)
-               throws LDAPException
+  EntryIDSet getMatchingEntries(final ASN1OctetString value)
+             throws LDAPException
   {
-    final TreeSet<DN> dnSet = indexMap.get(matchingRule.normalize(value));
-    if (dnSet == null)
+    final EntryIDSet idSet = getIndexMap().get(matchingRule.normalize(value));
+    if (idSet == null)
     {
-      return Collections.emptySet();
+      return EntryIDSet.EMPTY;
     }
     else
     {
-      return Collections.unmodifiableSet(dnSet);
+      return idSet;
     }
   }
 
 
 
+  /**
+   * Retrieves the number of entries that have the specified value for the
+   * associated attribute.
+   *
+   * @param  value  The value for which to retrieve the number of entries.
+   *
+   * @return  The number of entries that have the specified value.
+   *
+   * @throws  LDAPException  If a problem is encountered while attempting to
+   *                         make the determination (e.g., if the given value is
+   *                         not acceptable for the associated attribute type).
+   */
+  long estimateMatchingEntries(final ASN1OctetString value)
+       throws LDAPException
+  {
+    return getMatchingEntries(value).size();
+  }
+
+
+
   /**
    * Performs the necessary processing for adding the given entry.
    *
-   * @param  entry  The entry to be added.
+   * @param  entry    The entry to be added.
+   * @param  entryID  The ID assigned to the entry.
    *
    * @throws  LDAPException  If a problem is encountered (e.g., the entry has
    *                         one or more values that are not acceptable for the
    *                         associated attribute type).
    */
-  synchronized void processAdd(final Entry entry)
-               throws LDAPException
+  void processAdd(final Entry entry, final int entryID)
+       throws LDAPException
   {
     final Attribute a =
          entry.getAttribute(attributeType.getNameOrOID(), schema);
     if (a != null)
     {
-      final DN dn = entry.getParsedDN();
-
-      final ASN1OctetString[] rawValues = a.getRawValues();
-      final ASN1OctetString[] normalizedValues =
-           new ASN1OctetString[rawValues.length];
-      for (int i=0; i < rawValues.length; i++)
-      {
-        normalizedValues[i] = matchingRule.normalize(rawValues[i]);
-      }
+      final ASN1OctetString[] normalizedValues = normalize(a);
 
+      PersistentSortedMap<ASN1OctetString,EntryIDSet> indexMap =
+           getIndexMap();
       for (final ASN1OctetString v : normalizedValues)
       {
-        TreeSet<DN> dnSet = indexMap.get(v);
-        if (dnSet == null)
+        EntryIDSet idSet = indexMap.get(v);
+        if (idSet == null)
         {
-          dnSet = new TreeSet<DN>();
-          indexMap.put(v, dnSet);
+          idSet = EntryIDSet.EMPTY;
         }
-        dnSet.add(dn);
+        indexMap = indexMap.put(v, idSet.add(entryID));
       }
+      dataStore.setIndexRoot(slot, indexMap);
     }
   }
 
@@ -222,41 +300,264 @@ final class InMemoryDirectoryServerEqualityAttributeIndex
   /**
    * Performs the necessary processing for deleting the given entry.
    *
-   * @param  entry  The entry to be deleted.
+   * @param  entry    The entry to be deleted.
+   * @param  entryID  The ID assigned to the entry.
    *
    * @throws  LDAPException  If a problem is encountered (e.g., the entry has
    *                         one or more values that are not acceptable for the
    *                         associated attribute type).
    */
-  synchronized void processDelete(final Entry entry)
-               throws LDAPException
+  void processDelete(final Entry entry, final int entryID)
+       throws LDAPException
   {
     final Attribute a =
          entry.getAttribute(attributeType.getNameOrOID(), schema);
     if (a != null)
     {
-      final DN dn = entry.getParsedDN();
-
-      final ASN1OctetString[] rawValues = a.getRawValues();
-      final ASN1OctetString[] normalizedValues =
-           new ASN1OctetString[rawValues.length];
-      for (int i=0; i < rawValues.length; i++)
-      {
-        normalizedValues[i] = matchingRule.normalize(rawValues[i]);
-      }
+      final ASN1OctetString[] normalizedValues = normalize(a);
 
+      PersistentSortedMap<ASN1OctetString,EntryIDSet> indexMap =
+           getIndexMap();
       for (final ASN1OctetString v : normalizedValues)
       {
-        final TreeSet<DN> dnSet = indexMap.get(v);
-        if (dnSet != null)
+        final EntryIDSet idSet = indexMap.get(v);
+        if (idSet != null)
         {
-          dnSet.remove(dn);
-          if (dnSet.isEmpty())
+          final EntryIDSet newIDSet = idSet.remove(entryID);
+          if (newIDSet.isEmpty())
+          {
+            indexMap = indexMap.remove(v);
+          }
+          else
           {
-            indexMap.remove(v);
+            indexMap = indexMap.put(v, newIDSet);
           }
         }
       }
+      dataStore.setIndexRoot(slot, indexMap);
+    }
+  }
+
+
+
+  /**
+   * Creates a builder that may be used to build the complete data for this
+   * index from scratch.
+   *
+   * @return  The builder that was created.
+   */
+  InMemoryDirectoryServerIndexBuilder createBuilder()
+  {
+    return new IndexBuilder();
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  public String getSnapshotIndexName()
+  {
+    return "equality:" + attributeType.getOID() + ':' +
+         matchingRule.getEqualityMatchingRuleOID();
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @SuppressWarnings("unchecked")
+  public void writeSnapshotData(
+                   final InMemoryDirectoryServerDataStore.Version version,
+                   final DataOutputStream outputStream)
+         throws IOException
+  {
+    InMemoryDirectoryServerSnapshotFile.writeIndexMap(outputStream,
+         (PersistentSortedMap<ASN1OctetString,EntryIDSet>)
+              version.getIndexRoot(slot));
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  public void readSnapshotData(
+                   final InMemoryDirectoryServerSnapshotFile.Reader reader,
+                   final Object[] indexRoots)
+         throws IOException
+  {
+    indexRoots[slot] = InMemoryDirectoryServerSnapshotFile.
+         readOctetStringIndexMap(reader, VALUE_COMPARATOR);
+  }
+
+
+
+  /**
+   * Retrieves the normalized representations of the values of the provided
+   * attribute.  If the attribute uses the same matching rule as this index,
+   * then the normalized values retained by the attribute will be used.
+   *
+   * @param  a  The attribute whose values should be normalized.
+   *
+   * @return  The normalized representations of the values of the provided
+   *          attribute.
+   *
+   * @throws  LDAPException  If any of the values are not acceptable for the
+   *                         associated attribute type.
+   */
+  private ASN1OctetString[] normalize(final Attribute a)
+          throws LDAPException
+  {
+    final ASN1OctetString[] rawValues = a.getRawValues();
+    final ASN1OctetString[] attrNormalizedValues;
+    if (a.getMatchingRule() == matchingRule)
+    {
+      attrNormalizedValues = a.getNormalizedValues();
+    }
+    else
+    {
+      attrNormalizedValues = null;
+    }
+
+    final ASN1OctetString[] normalizedValues =
+         new ASN1OctetString[rawValues.length];
+    for (int i=0; i < rawValues.length; i++)
+    {
+      if ((attrNormalizedValues != null) && (attrNormalizedValues[i] != null))
+      {
+        normalizedValues[i] = attrNormalizedValues[i];
+      }
+      else
+      {
+        // Make sure that the bytes of each key have been fully materialized,
+        // since keys may be accessed by multiple threads at once.
+        normalizedValues[i] = new ASN1OctetString(
+             matchingRule.normalize(rawValues[i]).getValue());
+      }
+    }
+
+    return normalizedValues;
+  }
+
+
+
+  /**
+   * This class provides a builder for the data held in this index.
+   */
+  private final class IndexBuilder
+          extends InMemoryDirectoryServerIndexBuilder
+  {
+    // The set builders for each normalized value.
+    private final TreeMap<ASN1OctetString,EntryIDSet.Builder> builders;
+
+    // The index map that was built.
+    private PersistentSortedMap<ASN1OctetString,EntryIDSet> indexMap;
+
+
+
+    /**
+     * Creates a new builder for this index.
+     */
+    private IndexBuilder()
+    {
+      builders = new TreeMap<ASN1OctetString,EntryIDSet.Builder>(
+           VALUE_COMPARATOR);
+      indexMap = null;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    void processAdd(final Entry entry, final int entryID)
+    {
+      final Attribute a =
+           entry.getAttribute(attributeType.getNameOrOID(), schema);
+      if (a == null)
+      {
+        return;
+      }
+
+      try
+      {
+        for (final ASN1OctetString v : normalize(a))
+        {
+          addEntryID(builders, v, entryID);
+        }
+      }
+      catch (final LDAPException le)
+      {
+        Debug.debugException(le);
+      }
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    void build()
+    {
+      indexMap = createIndexMap(
+           new PersistentSortedMap<ASN1OctetString,EntryIDSet>(
+                VALUE_COMPARATOR),
+           builders);
+      builders.clear();
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    void install()
+    {
+      dataStore.setIndexRoot(slot, indexMap);
+    }
+  }
+
+
+
+  /**
+   * This class provides a comparator that orders octet strings by comparing
+   * their values byte by byte.
+   */
+  private static final class OctetStringComparator
+          implements Comparator<ASN1OctetString>, Serializable
+  {
+    /**
+     * The serial version UID for this serializable class.
+     */
+    private static final long serialVersionUID = 2418810337541416428L;
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public int compare(final ASN1OctetString s1, final ASN1OctetString s2)
+    {
+      final byte[] b1 = s1.getValue();
+      final byte[] b2 = s2.getValue();
+
+      final int length = Math.min(b1.length, b2.length);
+      for (int i=0; i < length; i++)
+      {
+        final int c = (b1[i] & 0xFF) - (b2[i] & 0xFF);
+        if (c != 0)
+        {
+          return c;
+        }
+      }
+
+      return b1.length - b2.length;
     }
   }
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import java.util.Map;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.util.Mutable;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class defines an API that may be used to build the complete data for
+ * an index of the in-memory directory server from scratch.  Unlike updating an
+ * index one entry at a time, a builder does not access the data store while
+ * it is examining the entries, so the builders for different indexes may be
+ * run concurrently in separate threads.  A builder should be used as follows:
+ * <OL>
+ *   <LI>The {@link #processAdd} method should be called for each entry in the
+ *       data store, in ascending order by entry ID.</LI>
+ *   <LI>The {@link #build} method should be called to create the index data
+ *       from the entries that have been processed.</LI>
+ *   <LI>The {@link #install} method should be called by the thread processing
+ *       the write operation to replace the data held in the data store with
+ *       the data that was built.</LI>
+ * </OL>
+ * The first two steps may be performed by any thread, as long as they are
+ * performed by the same thread.
+ */
+@Mutable()
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+abstract class InMemoryDirectoryServerIndexBuilder
+{
+  /**
+   * Performs the necessary processing for the provided entry.
+   *
+   * @param  entry    The entry to be indexed.
+   * @param  entryID  The ID assigned to the entry.  It must be greater than the
+   *                  ID of any entry that has already been processed.
+   */
+  abstract void processAdd(final Entry entry, final int entryID);
+
+
+
+  /**
+   * Creates the index data for all of the entries that have been processed.
+   */
+  abstract void build();
+
+
+
+  /**
+   * Replaces the index data held in the data store with the data that was
+   * created by the {@link #build} method.  This must only be called while
+   * processing a write operation.
+   */
+  abstract void install();
+
+
+
+  /**
+   * Adds the specified entry ID to the set builder associated with the given
+   * key in the provided map, creating the set builder if necessary.
+   *
+   * @param  <K>       The type of key used in the map.
+   * @param  builders  The map from keys to set builders.
+   * @param  key       The key with which to associate the entry ID.
+   * @param  entryID   The entry ID to associate with the key.
+   */
+  static <K> void addEntryID(final Map<K,EntryIDSet.Builder> builders,
+                             final K key, final int entryID)
+  {
+    EntryIDSet.Builder b = builders.get(key);
+    if (b == null)
+    {
+      b = new EntryIDSet.Builder();
+      builders.put(key, b);
+    }
+    b.add(entryID);
+  }
+
+
+
+  /**
+   * Creates an index map containing the entry ID sets from the provided set
+   * builders.
+   *
+   * @param  <K>       The type of key used in the map.
+   * @param  emptyMap  An empty index map that uses the appropriate comparator.
+   * @param  builders  The map from keys to set builders.
+   *
+   * @return  The index map that was created.
+   */
+  static <K> PersistentSortedMap<K,EntryIDSet> createIndexMap(
+              final PersistentSortedMap<K,EntryIDSet> emptyMap,
+              final Map<K,EntryIDSet.Builder> builders)
+  {
+    PersistentSortedMap<K,EntryIDSet> m = emptyMap;
+    for (final Map.Entry<K,EntryIDSet.Builder> e : builders.entrySet())
+    {
+      m = m.put(e.getKey(), e.getValue().build());
+    }
+
+    return m;
+  }
+}
@@ -0,0 +1,1051 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+import com.unboundid.asn1.ASN1Buffer;
+import com.unboundid.asn1.ASN1BufferSequence;
+import com.unboundid.asn1.ASN1Exception;
+import com.unboundid.asn1.ASN1StreamReader;
+import com.unboundid.asn1.ASN1StreamReaderSequence;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ReadOnlyEntry;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.schema.Schema;
+import com.unboundid.util.Debug;
+import com.unboundid.util.DebugType;
+import com.unboundid.util.Mutable;
+import com.unboundid.util.StaticUtils;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+import static com.unboundid.ldap.listener.ListenerMessages.*;
+
+
+
+/**
+ * This class provides a write-ahead journal that may be used to make the
+ * content of an in-memory directory server durable.  Each write operation that
+ * alters the entries held in the data store causes a transaction to be
+ * appended to the journal, and the journal is replayed when the server starts
+ * to restore the entries that it held.  The journal records the resulting
+ * state of each entry that was added, modified, renamed, or deleted, rather
+ * than the operation itself, so replaying a transaction does not require any
+ * of the operation processing to be repeated.  Index data is not recorded, and
+ * the indexes must be rebuilt once the journal has been replayed.  Changelog
+ * entries are not recorded either, so the changelog will be empty when the
+ * server is restarted, but each transaction that follows a change to the
+ * server's last change number records the new value, so that change numbers
+ * continue from where they left off rather than being reused.
+ * <BR><BR>
+ * The journal file starts with an eight-byte header, followed by a sequence
+ * of frames.  Each frame consists of a four-byte length, a one-byte set of
+ * flags, a four-byte CRC-32 checksum of the flags and content, and the
+ * content, which is a sequence of BER elements that each describe one change
+ * to the entries.  A transaction is normally written as a single frame, but
+ * large transactions may span several frames, and a transaction is only
+ * complete once a frame with the commit flag has been written.  When the
+ * journal is replayed, any incomplete or damaged transaction at the end of the
+ * journal (as may be left if the system crashes while it is being written)
+ * will be discarded.
+ * <BR><BR>
+ * The journal may be checkpointed, in which case a snapshot file containing
+ * all of the entries is written to the data directory and the journal is
+ * truncated so that it only holds the changes made after the snapshot was
+ * created.  When the server starts, the checkpoint (if any) is loaded before
+ * the journal is replayed.  Because the journal records the resulting state of
+ * each entry, replaying a transaction that is already reflected in the
+ * checkpoint does no harm, so the journal is only truncated once the
+ * checkpoint has been completely written.
+ * <BR><BR>
+ * Transactions are appended to the journal by the thread processing the write
+ * operation while it holds the data store write lock, which ensures that they
+ * are written in the order in which they were applied.  Forcing them to disk
+ * is done separately, according to the configured sync policy.  If every
+ * operation must be synchronized, then each thread waits for its transaction
+ * to be synchronized after it has released the write lock, so a single sync
+ * may cover the transactions for any number of operations that completed in
+ * the meantime.
+ */
+@Mutable()
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+final class InMemoryDirectoryServerJournal
+{
+  /**
+   * The name of the journal file within the data directory.
+   */
+  static final String JOURNAL_FILE_NAME = "changes.journal";
+
+
+
+  /**
+   * The name of the checkpoint snapshot file within the data directory.
+   */
+  static final String CHECKPOINT_FILE_NAME = "checkpoint.snapshot";
+
+
+
+  /**
+   * The name of the file within the data directory to which a checkpoint is
+   * written before it replaces the current checkpoint.
+   */
+  private static final String CHECKPOINT_TEMP_FILE_NAME =
+       "checkpoint.snapshot.tmp";
+
+
+
+  /**
+   * The header that appears at the start of every journal file.
+   */
+  private static final byte[] JOURNAL_HEADER =
+       StaticUtils.getBytes("UIMDSJ01");
+
+
+
+  /**
+   * The number of bytes in the header that precedes the content of each frame.
+   */
+  private static final int FRAME_HEADER_LENGTH = 9;
+
+
+
+  /**
+   * The approximate maximum size of the content of a frame.  Transactions that
+   * are larger than this will be split across multiple frames.
+   */
+  private static final int MAX_FRAME_CONTENT_LENGTH = 1024 * 1024;
+
+
+
+  /**
+   * The frame flag that indicates the frame is the last one in a transaction.
+   */
+  private static final byte FLAG_COMMIT = 0x01;
+
+
+
+  /**
+   * The BER type for a change element that adds or replaces an entry.
+   */
+  private static final byte TYPE_PUT = (byte) 0xA0;
+
+
+
+  /**
+   * The BER type for a change element that removes an entry.
+   */
+  private static final byte TYPE_REMOVE = (byte) 0x81;
+
+
+
+  /**
+   * The BER type for a change element that removes all entries.
+   */
+  private static final byte TYPE_CLEAR = (byte) 0x82;
+
+
+
+  /**
+   * The BER type for an element that holds the server's last change number.
+   */
+  private static final byte TYPE_LAST_CHANGE_NUMBER = (byte) 0x83;
+
+
+
+  // Indicates whether a problem has been encountered while writing to the
+  // journal or the journal has been closed, in which case no further changes
+  // will be written.
+  private volatile boolean failed;
+
+  // A message describing the problem encountered while writing to the journal,
+  // or null if no problem has been encountered.
+  private volatile String failureMessage;
+
+  // The buffer used to encode the content of a frame.  It must only be
+  // accessed by the thread appending to the journal.
+  private final ASN1Buffer buffer;
+
+  // The checksum used to protect the content of a frame.  It must only be
+  // accessed by the thread appending to the journal.
+  private final CRC32 checksum;
+
+  // The channel used to access the journal file.
+  private final FileChannel channel;
+
+  // The checkpoint snapshot file.
+  private final File checkpointFile;
+
+  // The journal file.
+  private final File journalFile;
+
+  // The server's last change number, which will be recorded in the journal
+  // whenever it changes and restored when the journal is replayed.
+  private final AtomicLong lastChangeNumber;
+
+  // The last change number most recently recorded in the journal or in the
+  // checkpoint.  It must only be accessed by the thread holding the data store
+  // write lock.
+  private long journaledChangeNumber;
+
+  // The policy that controls when changes will be forced to disk.
+  private final InMemoryJournalSyncPolicy syncPolicy;
+
+  // The number of bytes that have been written to the journal file.
+  private volatile long writtenLength;
+
+  // The number of bytes of the journal file that are known to have been forced
+  // to disk.  It must only be accessed while synchronized on syncLock.
+  private long syncedLength;
+
+  // The object used to ensure that only one thread forces the journal to disk
+  // at any time.
+  private final Object syncLock;
+
+  // The random access file for the journal.
+  private final RandomAccessFile randomAccessFile;
+
+  // The thread that will periodically force changes to disk, if appropriate.
+  private final SyncThread syncThread;
+
+
+
+  /**
+   * Creates a new journal that will use the specified data directory.  The
+   * directory will be created if it does not already exist, and the journal
+   * file will be created within it if it does not already exist.  The
+   * {@link #replay} method must be called before any changes are appended.
+   *
+   * @param  dataDirectory       The directory in which the journal file is to
+   *                             be held.
+   * @param  syncPolicy          The policy that controls when changes will be
+   *                             forced to disk.
+   * @param  syncIntervalMillis  The interval in milliseconds at which changes
+   *                             will be forced to disk if the sync policy is
+   *                             {@code PERIODIC}.
+   * @param  lastChangeNumber    The server's last change number.  Its value
+   *                             will be recorded in the journal whenever it
+   *                             changes, and it will be updated when the
+   *                             journal is replayed.
+   *
+   * @throws  LDAPException  If the journal file cannot be opened.
+   */
+  InMemoryDirectoryServerJournal(final File dataDirectory,
+                                 final InMemoryJournalSyncPolicy syncPolicy,
+                                 final long syncIntervalMillis,
+                                 final AtomicLong lastChangeNumber)
+       throws LDAPException
+  {
+    this.syncPolicy       = syncPolicy;
+    this.lastChangeNumber = lastChangeNumber;
+
+    journalFile    = new File(dataDirectory, JOURNAL_FILE_NAME);
+    checkpointFile = new File(dataDirectory, CHECKPOINT_FILE_NAME);
+    if ((! dataDirectory.isDirectory()) && (! dataDirectory.mkdirs()))
+    {
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           ERR_MEM_HANDLER_JOURNAL_CANNOT_CREATE_DIRECTORY.get(
+                dataDirectory.getAbsolutePath()));
+    }
+
+    try
+    {
+      randomAccessFile = new RandomAccessFile(journalFile, "rw");
+      channel = randomAccessFile.getChannel();
+    }
+    catch (final IOException ioe)
+    {
+      Debug.debugException(ioe);
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           ERR_MEM_HANDLER_JOURNAL_CANNOT_OPEN.get(
+                journalFile.getAbsolutePath(),
+                StaticUtils.getExceptionMessage(ioe)),
+           ioe);
+    }
+
+    buffer   = new ASN1Buffer();
+    checksum = new CRC32();
+    syncLock = new Object();
+    failed   = false;
+
+    failureMessage = null;
+
+    journaledChangeNumber = lastChangeNumber.get();
+
+    if (syncPolicy == InMemoryJournalSyncPolicy.PERIODIC)
+    {
+      syncThread = new SyncThread(syncIntervalMillis);
+    }
+    else
+    {
+      syncThread = null;
+    }
+  }
+
+
+
+  /**
+   * Retrieves the journal file.
+   *
+   * @return  The journal file.
+   */
+  File getJournalFile()
+  {
+    return journalFile;
+  }
+
+
+
+  /**
+   * Retrieves the checkpoint snapshot file.  It will only exist if the journal
+   * has been checkpointed.
+   *
+   * @return  The checkpoint snapshot file.
+   */
+  File getCheckpointFile()
+  {
+    return checkpointFile;
+  }
+
+
+
+  /**
+   * Retrieves the number of bytes that have been written to the journal file.
+   *
+   * @return  The number of bytes that have been written to the journal file.
+   */
+  long getLength()
+  {
+    return writtenLength;
+  }
+
+
+
+  /**
+   * Retrieves a message describing the problem encountered while writing to
+   * the journal, if any.  Once a problem has been encountered, no further
+   * changes will be written to the journal, so the server should not accept
+   * any further changes.
+   *
+   * @return  A message describing the problem encountered while writing to
+   *          the journal, or {@code null} if no problem has been encountered.
+   */
+  String getFailureMessage()
+  {
+    return failureMessage;
+  }
+
+
+
+  /**
+   * Applies all of the complete transactions held in the journal to the
+   * provided data store, restores the last change number that they recorded
+   * (if any), and prepares the journal so that subsequent changes will be
+   * appended after the last complete transaction.  Any incomplete or
+   * damaged content after the last complete transaction will be removed from
+   * the journal.  The data store must not have a journal when this method is
+   * called, and it must already hold the content of the checkpoint, if there
+   * is one.  It will not update any index data.
+   *
+   * @param  dataStore  The data store to which the changes should be applied.
+   * @param  schema     The schema to use for the entries, if any.
+   *
+   * @return  The number of transactions that were replayed.
+   *
+   * @throws  LDAPException  If the journal file is not a valid journal, or if
+   *                         it cannot be read.
+   */
+  int replay(final InMemoryDirectoryServerDataStore dataStore,
+             final Schema schema)
+      throws LDAPException
+  {
+    long validLength = JOURNAL_HEADER.length;
+    int numTransactions = 0;
+
+    dataStore.beginWrite();
+    try
+    {
+      // The last change number may have been restored from the checkpoint.
+      journaledChangeNumber = lastChangeNumber.get();
+
+      if (channel.size() < JOURNAL_HEADER.length)
+      {
+        channel.truncate(0L);
+        channel.write(ByteBuffer.wrap(JOURNAL_HEADER), 0L);
+      }
+      else
+      {
+        final DataInputStream inputStream = new DataInputStream(
+             new BufferedInputStream(Channels.newInputStream(
+                  channel.position(0L)), 65536));
+
+        final byte[] header = new byte[JOURNAL_HEADER.length];
+        inputStream.readFully(header);
+        for (int i=0; i < header.length; i++)
+        {
+          if (header[i] != JOURNAL_HEADER[i])
+          {
+            throw new LDAPException(ResultCode.LOCAL_ERROR,
+                 ERR_MEM_HANDLER_JOURNAL_INVALID_HEADER.get(
+                      journalFile.getAbsolutePath()));
+          }
+        }
+
+        // Apply the changes as they are read, but remember the last version
+        // that includes only complete transactions so that the changes from
+        // an incomplete transaction can be discarded.
+        InMemoryDirectoryServerDataStore.Version committedVersion =
+             dataStore.getVersion();
+        long committedChangeNumber = journaledChangeNumber;
+        long frameChangeNumber = journaledChangeNumber;
+        long position = validLength;
+        while (true)
+        {
+          final byte[] content;
+          final byte flags;
+          try
+          {
+            final int length = inputStream.readInt();
+            flags = inputStream.readByte();
+            final int expectedChecksum = inputStream.readInt();
+            if ((length < 0) ||
+                (length > (channel.size() - position - FRAME_HEADER_LENGTH)))
+            {
+              break;
+            }
+
+            content = new byte[length];
+            inputStream.readFully(content);
+
+            checksum.reset();
+            checksum.update(flags);
+            checksum.update(content);
+            if (((int) checksum.getValue()) != expectedChecksum)
+            {
+              break;
+            }
+          }
+          catch (final EOFException eofe)
+          {
+            Debug.debugException(eofe);
+            break;
+          }
+
+          try
+          {
+            frameChangeNumber =
+                 applyChanges(dataStore, schema, content, frameChangeNumber);
+          }
+          catch (final LDAPException le)
+          {
+            // The frame was not damaged, so the journal must have been written
+            // by an incompatible version.
+            Debug.debugException(le);
+            throw new LDAPException(ResultCode.LOCAL_ERROR,
+                 ERR_MEM_HANDLER_JOURNAL_CANNOT_REPLAY.get(
+                      journalFile.getAbsolutePath(), le.getMessage()),
+                 le);
+          }
+
+          position += (FRAME_HEADER_LENGTH + content.length);
+          if ((flags & FLAG_COMMIT) != 0)
+          {
+            committedVersion = dataStore.getVersion();
+            committedChangeNumber = frameChangeNumber;
+            validLength = position;
+            numTransactions++;
+          }
+        }
+
+        dataStore.restoreVersion(committedVersion);
+        channel.truncate(validLength);
+
+        journaledChangeNumber = committedChangeNumber;
+        lastChangeNumber.set(committedChangeNumber);
+      }
+
+      channel.position(validLength);
+    }
+    catch (final IOException ioe)
+    {
+      Debug.debugException(ioe);
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           ERR_MEM_HANDLER_JOURNAL_CANNOT_REPLAY.get(
+                journalFile.getAbsolutePath(),
+                StaticUtils.getExceptionMessage(ioe)),
+           ioe);
+    }
+    finally
+    {
+      dataStore.endWrite();
+    }
+
+    writtenLength = validLength;
+    synchronized (syncLock)
+    {
+      syncedLength = validLength;
+    }
+
+    if (syncThread != null)
+    {
+      syncThread.start();
+    }
+
+    return numTransactions;
+  }
+
+
+
+  /**
+   * Applies the changes in the provided frame content to the given data store.
+   *
+   * @param  dataStore         The data store to which the changes should be
+   *                           applied.
+   * @param  schema            The schema to use for the entries, if any.
+   * @param  content           The content of the frame.
+   * @param  lastChangeNumber  The last change number recorded before the
+   *                           frame.
+   *
+   * @return  The last change number recorded in the frame, or the provided
+   *          last change number if the frame does not record one.
+   *
+   * @throws  LDAPException  If the content cannot be decoded.
+   */
+  private static long applyChanges(
+               final InMemoryDirectoryServerDataStore dataStore,
+               final Schema schema, final byte[] content,
+               final long lastChangeNumber)
+          throws LDAPException
+  {
+    long changeNumber = lastChangeNumber;
+    final ASN1StreamReader reader =
+         new ASN1StreamReader(new ByteArrayInputStream(content));
+    try
+    {
+      while (true)
+      {
+        final int type = reader.peek();
+        if (type < 0)
+        {
+          return changeNumber;
+        }
+
+        switch ((byte) type)
+        {
+          case TYPE_PUT:
+            final ASN1StreamReaderSequence entrySequence =
+                 reader.beginSequence();
+            final String dn = reader.readString();
+            final ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+            final ASN1StreamReaderSequence attrSequence =
+                 reader.beginSequence();
+            while (attrSequence.hasMoreElements())
+            {
+              attributes.add(Attribute.readFrom(reader, schema));
+            }
+            if (entrySequence.hasMoreElements())
+            {
+              throw new LDAPException(ResultCode.DECODING_ERROR,
+                   ERR_MEM_HANDLER_JOURNAL_INVALID_CHANGE.get());
+            }
+
+            final ReadOnlyEntry entry =
+                 new ReadOnlyEntry(new DN(dn, schema), schema, attributes);
+            dataStore.put(entry.getParsedDN(), entry);
+            break;
+
+          case TYPE_REMOVE:
+            dataStore.remove(new DN(reader.readString(), schema));
+            break;
+
+          case TYPE_CLEAR:
+            reader.readNull();
+            dataStore.clear();
+            break;
+
+          case TYPE_LAST_CHANGE_NUMBER:
+            changeNumber = reader.readLong();
+            break;
+
+          default:
+            throw new LDAPException(ResultCode.DECODING_ERROR,
+                 ERR_MEM_HANDLER_JOURNAL_INVALID_CHANGE.get());
+        }
+      }
+    }
+    catch (final ASN1Exception ae)
+    {
+      Debug.debugException(ae);
+      throw new LDAPException(ResultCode.DECODING_ERROR, ae.getMessage(), ae);
+    }
+    catch (final IOException ioe)
+    {
+      Debug.debugException(ioe);
+      throw new LDAPException(ResultCode.DECODING_ERROR,
+           StaticUtils.getExceptionMessage(ioe), ioe);
+    }
+  }
+
+
+
+  /**
+   * Appends a transaction to the journal that records the changes between the
+   * provided versions of the data.  This must only be called by the thread
+   * holding the data store write lock.
+   *
+   * @param  startVersion  The version of the data before the changes were
+   *                       made.
+   * @param  endVersion    The version of the data after the changes were made.
+   * @param  changedDNs    The DNs of the entries that may have been altered.
+   *                       Entries that are the same in both versions will be
+   *                       ignored.
+   * @param  allChanged    Indicates whether the changes may not be limited to
+   *                       the provided DNs, in which case the transaction will
+   *                       remove all entries and then add all of the entries
+   *                       in the end version.
+   *
+   * @return  The length that the journal must reach on disk in order for the
+   *          transaction to be durable, or -1 if no transaction was written.
+   */
+  long append(final InMemoryDirectoryServerDataStore.Version startVersion,
+              final InMemoryDirectoryServerDataStore.Version endVersion,
+              final Collection<DN> changedDNs, final boolean allChanged)
+  {
+    if (failed)
+    {
+      return -1L;
+    }
+
+    final PersistentSortedMap<DN,Object> oldEntries =
+         startVersion.getEntries();
+    final PersistentSortedMap<DN,Object> newEntries =
+         endVersion.getEntries();
+
+    try
+    {
+      boolean frameWritten = false;
+      buffer.clear();
+
+      final long changeNumber = lastChangeNumber.get();
+      if (changeNumber != journaledChangeNumber)
+      {
+        buffer.addInteger(TYPE_LAST_CHANGE_NUMBER, changeNumber);
+      }
+
+      if (allChanged)
+      {
+        buffer.addNull(TYPE_CLEAR);
+
+        final Iterator<Map.Entry<DN,Object>> iterator =
+             newEntries.iterator();
+        while (iterator.hasNext())
+        {
+          addPut(InMemoryDirectoryServerDataStore.decode(
+               iterator.next().getValue()));
+          if (buffer.length() >= MAX_FRAME_CONTENT_LENGTH)
+          {
+            writeFrame((byte) 0x00);
+            frameWritten = true;
+          }
+        }
+      }
+      else
+      {
+        for (final DN dn : changedDNs)
+        {
+          final Object newEntry = newEntries.get(dn);
+          if (newEntry == oldEntries.get(dn))
+          {
+            continue;
+          }
+
+          if (newEntry == null)
+          {
+            buffer.addOctetString(TYPE_REMOVE, dn.toString());
+          }
+          else
+          {
+            addPut(InMemoryDirectoryServerDataStore.decode(newEntry));
+          }
+
+          if (buffer.length() >= MAX_FRAME_CONTENT_LENGTH)
+          {
+            writeFrame((byte) 0x00);
+            frameWritten = true;
+          }
+        }
+
+        if ((! frameWritten) && (buffer.length() == 0))
+        {
+          return -1L;
+        }
+      }
+
+      writeFrame(FLAG_COMMIT);
+      journaledChangeNumber = changeNumber;
+      return writtenLength;
+    }
+    catch (final IOException ioe)
+    {
+      // The change has already been applied, so there is no way to report the
+      // failure to the client.  Stop journaling rather than writing a journal
+      // that omits changes, and have subsequent changes rejected.
+      Debug.debugException(ioe);
+      setFailed(ioe);
+      return -1L;
+    }
+  }
+
+
+
+  /**
+   * Writes the provided snapshot to the data directory as the new checkpoint,
+   * and truncates the journal so that it only holds changes made after the
+   * snapshot was created.  This must only be called by the thread holding the
+   * data store write lock, and the snapshot must reflect all of the changes
+   * that have been appended to the journal.
+   *
+   * @param  snapshot  The snapshot to be written as the checkpoint.
+   *
+   * @throws  LDAPException  If a problem occurs while writing the checkpoint or
+   *                         truncating the journal.
+   */
+  void checkpoint(final InMemoryDirectoryServerSnapshot snapshot)
+       throws LDAPException
+  {
+    // Write the checkpoint to a temporary file and then rename it, so that the
+    // current checkpoint remains intact if the system crashes while the new
+    // one is being written.  The journal is still complete at that point.
+    final File tempFile =
+         new File(checkpointFile.getParentFile(), CHECKPOINT_TEMP_FILE_NAME);
+    InMemoryDirectoryServerSnapshotFile.write(snapshot, tempFile);
+    if (! tempFile.renameTo(checkpointFile))
+    {
+      if (! tempFile.delete())
+      {
+        tempFile.deleteOnExit();
+      }
+
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           ERR_MEM_HANDLER_JOURNAL_CANNOT_CHECKPOINT.get(
+                checkpointFile.getAbsolutePath(),
+                journalFile.getAbsolutePath()));
+    }
+
+    synchronized (syncLock)
+    {
+      try
+      {
+        channel.truncate(JOURNAL_HEADER.length);
+        channel.position(JOURNAL_HEADER.length);
+        channel.force(false);
+      }
+      catch (final IOException ioe)
+      {
+        Debug.debugException(ioe);
+        setFailed(ioe);
+        throw new LDAPException(ResultCode.LOCAL_ERROR, failureMessage, ioe);
+      }
+
+      writtenLength = JOURNAL_HEADER.length;
+      syncedLength  = JOURNAL_HEADER.length;
+    }
+
+    journaledChangeNumber = snapshot.getLastChangeNumber();
+  }
+
+
+
+  /**
+   * Appends an element to the frame buffer that will add or replace the
+   * provided entry.
+   *
+   * @param  entry  The entry to be written.
+   */
+  private void addPut(final ReadOnlyEntry entry)
+  {
+    final ASN1BufferSequence entrySequence = buffer.beginSequence(TYPE_PUT);
+    buffer.addOctetString(entry.getDN());
+
+    final ASN1BufferSequence attrSequence = buffer.beginSequence();
+    for (final Attribute a : entry.getAttributes())
+    {
+      a.writeTo(buffer);
+    }
+    attrSequence.end();
+
+    entrySequence.end();
+  }
+
+
+
+  /**
+   * Writes a frame containing the content of the frame buffer to the journal
+   * file, and clears the buffer.
+   *
+   * @param  flags  The flags for the frame.
+   *
+   * @throws  IOException  If a problem occurs while writing the frame.
+   */
+  private void writeFrame(final byte flags)
+          throws IOException
+  {
+    final byte[] content = buffer.toByteArray();
+    buffer.clear();
+
+    checksum.reset();
+    checksum.update(flags);
+    checksum.update(content);
+
+    final ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_LENGTH);
+    header.putInt(content.length);
+    header.put(flags);
+    header.putInt((int) checksum.getValue());
+    header.flip();
+
+    final ByteBuffer[] buffers = { header, ByteBuffer.wrap(content) };
+    long remaining = FRAME_HEADER_LENGTH + content.length;
+    while (remaining > 0L)
+    {
+      remaining -= channel.write(buffers);
+    }
+
+    writtenLength += (FRAME_HEADER_LENGTH + content.length);
+  }
+
+
+
+  /**
+   * Waits, if required by the sync policy, until the journal has been forced
+   * to disk up to the specified length.  This must not be called by a thread
+   * that holds the data store write lock.
+   *
+   * @param  length  The length that the journal must reach on disk, as
+   *                 returned by the {@link #append} method.
+   */
+  void awaitDurable(final long length)
+  {
+    if (syncPolicy == InMemoryJournalSyncPolicy.EVERY_OPERATION)
+    {
+      sync(length);
+    }
+  }
+
+
+
+  /**
+   * Forces the journal to disk up to at least the specified length, unless
+   * that has already been done.  If another thread is already forcing the
+   * journal to disk, then this method will wait for it to complete, since that
+   * may be sufficient to cover the specified length.
+   *
+   * @param  length  The length that the journal must reach on disk.
+   */
+  void sync(final long length)
+  {
+    synchronized (syncLock)
+    {
+      if ((syncedLength >= length) || failed)
+      {
+        return;
+      }
+
+      // Everything written so far will be covered by this sync, including
+      // any transactions appended by other threads after the specified one.
+      final long targetLength = writtenLength;
+      try
+      {
+        channel.force(false);
+        syncedLength = targetLength;
+      }
+      catch (final IOException ioe)
+      {
+        Debug.debugException(ioe);
+        setFailed(ioe);
+      }
+    }
+  }
+
+
+
+  /**
+   * Records that a problem was encountered while writing to the journal, so
+   * that no further changes will be written to it, and logs a message about
+   * it.
+   *
+   * @param  ioe  The exception that was caught.
+   */
+  private synchronized void setFailed(final IOException ioe)
+  {
+    if (failureMessage == null)
+    {
+      failureMessage = ERR_MEM_HANDLER_JOURNAL_WRITE_FAILED.get(
+           journalFile.getAbsolutePath(), StaticUtils.getExceptionMessage(ioe));
+      Debug.debug(Level.SEVERE, DebugType.OTHER, failureMessage);
+    }
+
+    failed = true;
+  }
+
+
+
+  /**
+   * Forces all changes written so far to disk.
+   */
+  void syncAll()
+  {
+    sync(writtenLength);
+  }
+
+
+
+  /**
+   * Forces all changes written so far to disk and closes the journal.
+   */
+  void close()
+  {
+    if (syncThread != null)
+    {
+      syncThread.shutDown();
+    }
+
+    syncAll();
+
+    try
+    {
+      randomAccessFile.close();
+    }
+    catch (final IOException ioe)
+    {
+      Debug.debugException(ioe);
+    }
+
+    failed = true;
+  }
+
+
+
+  /**
+   * This class provides a thread that periodically forces changes written to
+   * the journal to disk.
+   */
+  private final class SyncThread
+          extends Thread
+  {
+    // The interval in milliseconds between syncs.
+    private final long intervalMillis;
+
+    // Indicates whether the thread has been asked to stop.
+    private volatile boolean stopRequested;
+
+
+
+    /**
+     * Creates a new sync thread with the provided interval.
+     *
+     * @param  intervalMillis  The interval in milliseconds between syncs.
+     */
+    private SyncThread(final long intervalMillis)
+    {
+      super("In-Memory Directory Server Journal Sync Thread");
+      setDaemon(true);
+
+      this.intervalMillis = intervalMillis;
+      stopRequested = false;
+    }
+
+
+
+    /**
+     * Periodically forces changes to disk until a shutdown is requested.
+     */
+    @Override()
+    public void run()
+    {
+      while (! stopRequested)
+      {
+        // Wait rather than sleeping so that the thread is never interrupted,
+        // since interrupting a thread while it is forcing changes to disk
+        // would close the journal file channel.
+        synchronized (this)
+        {
+          if (! stopRequested)
+          {
+            try
+            {
+              wait(intervalMillis);
+            }
+            catch (final InterruptedException ie)
+            {
+              Debug.debugException(ie);
+            }
+          }
+        }
+
+        sync(writtenLength);
+      }
+    }
+
+
+
+    /**
+     * Stops the thread and waits for it to exit.
+     */
+    private void shutDown()
+    {
+      synchronized (this)
+      {
+        stopRequested = true;
+        notifyAll();
+      }
+
+      try
+      {
+        join();
+      }
+      catch (final InterruptedException ie)
+      {
+        Debug.debugException(ie);
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,713 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.matchingrules.MatchingRule;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.schema.AttributeTypeDefinition;
+import com.unboundid.ldap.sdk.schema.Schema;
+import com.unboundid.util.Debug;
+import com.unboundid.util.Mutable;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+import static com.unboundid.ldap.listener.ListenerMessages.*;
+
+
+
+/**
+ * This class provides a data structure for maintaining an ordering index for a
+ * specified attribute.  Values are normalized using the ordering matching rule
+ * for the attribute, and are kept in the order defined by that matching rule so
+ * that greater-or-equal and less-or-equal filters can be processed as range
+ * scans.  The index data is held in the server data store, so that it is
+ * versioned along with the entries to which it applies.
+ */
+@Mutable()
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+final class InMemoryDirectoryServerOrderingAttributeIndex
+      implements InMemoryDirectoryServerSnapshotIndex
+{
+  // The attribute type with which this index is associated.
+  private final AttributeTypeDefinition attributeType;
+
+  // The comparator used to order normalized values.
+  private final Comparator<ASN1OctetString> valueComparator;
+
+  // The data store that holds the index data.
+  private final InMemoryDirectoryServerDataStore dataStore;
+
+  // The slot in the data store that holds the index data.
+  private final int slot;
+
+  // The matching rule used to normalize and order values.
+  private final MatchingRule matchingRule;
+
+  // The schema for the server.
+  private final Schema schema;
+
+
+
+  /**
+   * Creates a new ordering attribute index for the specified attribute type.
+   *
+   * @param  attributeType  The name or OID of the attribute type with which
+   *                        this index is associated.  It must be defined in the
+   *                        schema.
+   * @param  schema         The schema for the server.  It must not be
+   *                        {@code null}.
+   * @param  dataStore      The data store that will hold the index data.
+   *
+   * @throws  LDAPException  If the specified attribute type is not defined in
+   *                         the schema.
+   */
+  InMemoryDirectoryServerOrderingAttributeIndex(final String attributeType,
+       final Schema schema, final InMemoryDirectoryServerDataStore dataStore)
+       throws LDAPException
+  {
+    this.schema = schema;
+    if (schema == null)
+    {
+      throw new LDAPException(ResultCode.PARAM_ERROR,
+           ERR_DS_ORDERING_INDEX_NO_SCHEMA.get(attributeType));
+    }
+
+    this.attributeType = schema.getAttributeType(attributeType);
+    if (this.attributeType == null)
+    {
+      throw new LDAPException(ResultCode.PARAM_ERROR,
+           ERR_DS_ORDERING_INDEX_UNDEFINED_ATTRIBUTE_TYPE.get(attributeType));
+    }
+
+    matchingRule = MatchingRule.selectOrderingMatchingRule(attributeType,
+         schema);
+    valueComparator = new OrderingMatchingRuleComparator(matchingRule);
+
+    this.dataStore = dataStore;
+    slot = dataStore.createIndexSlot();
+  }
+
+
+
+  /**
+   * Retrieves the attribute type definition for this index.
+   *
+   * @return  The attribute type definition for this index.
+   */
+  AttributeTypeDefinition getAttributeType()
+  {
+    return attributeType;
+  }
+
+
+
+  /**
+   * Retrieves the map from normalized values to the IDs of entries with those
+   * values, as visible to the calling thread.
+   *
+   * @return  The map from normalized values to the IDs of entries with those
+   *          values.
+   */
+  @SuppressWarnings("unchecked")
+  private PersistentSortedMap<ASN1OctetString,EntryIDSet> getIndexMap()
+  {
+    final Object root = dataStore.getIndexRoot(slot);
+    if (root == null)
+    {
+      return new PersistentSortedMap<ASN1OctetString,EntryIDSet>(
+           valueComparator);
+    }
+    else
+    {
+      return (PersistentSortedMap<ASN1OctetString,EntryIDSet>) root;
+    }
+  }
+
+
+
+  /**
+   * Clears all index data for the associated attribute.
+   */
+  void clear()
+  {
+    dataStore.setIndexRoot(slot, null);
+  }
+
+
+
+  /**
+   * Retrieves the IDs of the entries that have at least one value for the
+   * associated attribute that is greater than or equal to the provided value.
+   *
+   * @param  value  The assertion value for which to retrieve the corresponding
+   *                entry IDs.
+   *
+   * @return  A set containing the IDs of the matching entries, or an empty set
+   *          if there are none.
+   *
+   * @throws  LDAPException  If a problem is encountered while attempting to
+   *                         make the determination (e.g., if the given value is
+   *                         not acceptable for the associated attribute type).
+   */
+  EntryIDSet getEntriesGreaterOrEqual(final ASN1OctetString value)
+             throws LDAPException
+  {
+    final ASN1OctetString normalizedValue = matchingRule.normalize(value);
+
+    final ArrayList<EntryIDSet> idSets = new ArrayList<EntryIDSet>();
+    final Iterator<Map.Entry<ASN1OctetString,EntryIDSet>> iterator =
+         getIndexMap().iterator(normalizedValue, true);
+    while (iterator.hasNext())
+    {
+      idSets.add(iterator.next().getValue());
+    }
+
+    return EntryIDSet.union(idSets);
+  }
+
+
+
+  /**
+   * Retrieves the IDs of the entries that have at least one value for the
+   * associated attribute that is less than or equal to the provided value.
+   *
+   * @param  value  The assertion value for which to retrieve the corresponding
+   *                entry IDs.
+   *
+   * @return  A set containing the IDs of the matching entries, or an empty set
+   *          if there are none.
+   *
+   * @throws  LDAPException  If a problem is encountered while attempting to
+   *                         make the determination (e.g., if the given value is
+   *                         not acceptable for the associated attribute type).
+   */
+  EntryIDSet getEntriesLessOrEqual(final ASN1OctetString value)
+             throws LDAPException
+  {
+    final ASN1OctetString normalizedValue = matchingRule.normalize(value);
+
+    final ArrayList<EntryIDSet> idSets = new ArrayList<EntryIDSet>();
+    final Iterator<Map.Entry<ASN1OctetString,EntryIDSet>> iterator =
+         getIndexMap().iterator();
+    while (iterator.hasNext())
+    {
+      final Map.Entry<ASN1OctetString,EntryIDSet> e = iterator.next();
+      if (valueComparator.compare(e.getKey(), normalizedValue) > 0)
+      {
+        break;
+      }
+
+      idSets.add(e.getValue());
+    }
+
+    return EntryIDSet.union(idSets);
+  }
+
+
+
+  /**
+   * Retrieves an iterator over the sets of IDs of the entries with each value
+   * of the associated attribute that is greater than or equal to the provided
+   * value, in order of increasing value.  Each set is obtained from the index
+   * only when it is needed, so that the IDs of a few matching entries can be
+   * obtained without building the complete set of matching entries.  An entry
+   * with multiple values in the range will appear in multiple sets.
+   *
+   * @param  value  The assertion value for which to retrieve the corresponding
+   *                sets of entry IDs.
+   *
+   * @return  An iterator over the sets of IDs of the matching entries.
+   *
+   * @throws  LDAPException  If a problem is encountered while attempting to
+   *                         make the determination (e.g., if the given value is
+   *                         not acceptable for the associated attribute type).
+   */
+  Iterator<EntryIDSet> iterateGreaterOrEqual(final ASN1OctetString value)
+       throws LDAPException
+  {
+    final PersistentSortedMap<ASN1OctetString,EntryIDSet> indexMap =
+         getIndexMap();
+    return new IDSetIterator(
+         indexMap.iterator(matchingRule.normalize(value), true),
+         indexMap.size());
+  }
+
+
+
+  /**
+   * Retrieves an iterator over the sets of IDs of the entries with each value
+   * of the associated attribute that is less than or equal to the provided
+   * value, in order of increasing value.  Each set is obtained from the index
+   * only when it is needed, so that the IDs of a few matching entries can be
+   * obtained without building the complete set of matching entries.  An entry
+   * with multiple values in the range will appear in multiple sets.
+   *
+   * @param  value  The assertion value for which to retrieve the corresponding
+   *                sets of entry IDs.
+   *
+   * @return  An iterator over the sets of IDs of the matching entries.
+   *
+   * @throws  LDAPException  If a problem is encountered while attempting to
+   *                         make the determination (e.g., if the given value is
+   *                         not acceptable for the associated attribute type).
+   */
+  Iterator<EntryIDSet> iterateLessOrEqual(final ASN1OctetString value)
+       throws LDAPException
+  {
+    final PersistentSortedMap<ASN1OctetString,EntryIDSet> indexMap =
+         getIndexMap();
+    final int pos = indexMap.indexOf(matchingRule.normalize(value));
+    final int toIndex = (pos >= 0) ? (pos + 1) : -(pos + 1);
+    return new IDSetIterator(indexMap.iterator(), toIndex);
+  }
+
+
+
+  /**
+   * Estimates the number of entries that have at least one value for the
+   * associated attribute that is greater than or equal to the provided value.
+   * The estimate is based on the number of distinct values in that range and
+   * the number of entries with a sample of those values.
+   *
+   * @param  value  The assertion value for which to make the estimate.
+   *
+   * @return  The estimated number of matching entries.
+   *
+   * @throws  LDAPException  If a problem is encountered while attempting to
+   *                         make the determination (e.g., if the given value is
+   *                         not acceptable for the associated attribute type).
+   */
+  long estimateGreaterOrEqual(final ASN1OctetString value)
+       throws LDAPException
+  {
+    final PersistentSortedMap<ASN1OctetString,EntryIDSet> indexMap =
+         getIndexMap();
+    final int pos = indexMap.indexOf(matchingRule.normalize(value));
+    final int fromIndex = (pos >= 0) ? pos : -(pos + 1);
+    return EntryIDSet.estimateUnionSize(indexMap, fromIndex, indexMap.size());
+  }
+
+
+
+  /**
+   * Estimates the number of entries that have at least one value for the
+   * associated attribute that is less than or equal to the provided value.
+   * The estimate is based on the number of distinct values in that range and
+   * the number of entries with a sample of those values.
+   *
+   * @param  value  The assertion value for which to make the estimate.
+   *
+   * @return  The estimated number of matching entries.
+   *
+   * @throws  LDAPException  If a problem is encountered while attempting to
+   *                         make the determination (e.g., if the given value is
+   *                         not acceptable for the associated attribute type).
+   */
+  long estimateLessOrEqual(final ASN1OctetString value)
+       throws LDAPException
+  {
+    final PersistentSortedMap<ASN1OctetString,EntryIDSet> indexMap =
+         getIndexMap();
+    final int pos = indexMap.indexOf(matchingRule.normalize(value));
+    final int toIndex = (pos >= 0) ? (pos + 1) : -(pos + 1);
+    return EntryIDSet.estimateUnionSize(indexMap, 0, toIndex);
+  }
+
+
+
+  /**
+   * Performs the necessary processing for adding the given entry.
+   *
+   * @param  entry    The entry to be added.
+   * @param  entryID  The ID assigned to the entry.
+   *
+   * @throws  LDAPException  If a problem is encountered (e.g., the entry has
+   *                         one or more values that are not acceptable for the
+   *                         associated attribute type).
+   */
+  void processAdd(final Entry entry, final int entryID)
+       throws LDAPException
+  {
+    final Attribute a =
+         entry.getAttribute(attributeType.getNameOrOID(), schema);
+    if (a != null)
+    {
+      final ASN1OctetString[] rawValues = a.getRawValues();
+      final ASN1OctetString[] normalizedValues =
+           new ASN1OctetString[rawValues.length];
+      for (int i=0; i < rawValues.length; i++)
+      {
+        // Make sure that the bytes of each key have been fully materialized,
+        // since keys may be accessed by multiple threads at once.
+        normalizedValues[i] = new ASN1OctetString(
+             matchingRule.normalize(rawValues[i]).getValue());
+      }
+
+      PersistentSortedMap<ASN1OctetString,EntryIDSet> indexMap =
+           getIndexMap();
+      for (final ASN1OctetString v : normalizedValues)
+      {
+        EntryIDSet idSet = indexMap.get(v);
+        if (idSet == null)
+        {
+          idSet = EntryIDSet.EMPTY;
+        }
+        indexMap = indexMap.put(v, idSet.add(entryID));
+      }
+      dataStore.setIndexRoot(slot, indexMap);
+    }
+  }
+
+
+
+  /**
+   * Performs the necessary processing for deleting the given entry.
+   *
+   * @param  entry    The entry to be deleted.
+   * @param  entryID  The ID assigned to the entry.
+   *
+   * @throws  LDAPException  If a problem is encountered (e.g., the entry has
+   *                         one or more values that are not acceptable for the
+   *                         associated attribute type).
+   */
+  void processDelete(final Entry entry, final int entryID)
+       throws LDAPException
+  {
+    final Attribute a =
+         entry.getAttribute(attributeType.getNameOrOID(), schema);
+    if (a != null)
+    {
+      final ASN1OctetString[] rawValues = a.getRawValues();
+      final ASN1OctetString[] normalizedValues =
+           new ASN1OctetString[rawValues.length];
+      for (int i=0; i < rawValues.length; i++)
+      {
+        normalizedValues[i] = matchingRule.normalize(rawValues[i]);
+      }
+
+      PersistentSortedMap<ASN1OctetString,EntryIDSet> indexMap =
+           getIndexMap();
+      for (final ASN1OctetString v : normalizedValues)
+      {
+        final EntryIDSet idSet = indexMap.get(v);
+        if (idSet != null)
+        {
+          final EntryIDSet newIDSet = idSet.remove(entryID);
+          if (newIDSet.isEmpty())
+          {
+            indexMap = indexMap.remove(v);
+          }
+          else
+          {
+            indexMap = indexMap.put(v, newIDSet);
+          }
+        }
+      }
+      dataStore.setIndexRoot(slot, indexMap);
+    }
+  }
+
+
+
+  /**
+   * Creates a builder that may be used to build the complete data for this
+   * index from scratch.
+   *
+   * @return  The builder that was created.
+   */
+  InMemoryDirectoryServerIndexBuilder createBuilder()
+  {
+    return new IndexBuilder();
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  public String getSnapshotIndexName()
+  {
+    return "ordering:" + attributeType.getOID() + ':' +
+         matchingRule.getOrderingMatchingRuleOID();
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @SuppressWarnings("unchecked")
+  public void writeSnapshotData(
+                   final InMemoryDirectoryServerDataStore.Version version,
+                   final DataOutputStream outputStream)
+         throws IOException
+  {
+    InMemoryDirectoryServerSnapshotFile.writeIndexMap(outputStream,
+         (PersistentSortedMap<ASN1OctetString,EntryIDSet>)
+              version.getIndexRoot(slot));
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  public void readSnapshotData(
+                   final InMemoryDirectoryServerSnapshotFile.Reader reader,
+                   final Object[] indexRoots)
+         throws IOException
+  {
+    indexRoots[slot] = InMemoryDirectoryServerSnapshotFile.
+         readOctetStringIndexMap(reader, valueComparator);
+  }
+
+
+
+  /**
+   * This class provides a builder for the data held in this index.
+   */
+  private final class IndexBuilder
+          extends InMemoryDirectoryServerIndexBuilder
+  {
+    // The set builders for each normalized value.
+    private final TreeMap<ASN1OctetString,EntryIDSet.Builder> builders;
+
+    // The index map that was built.
+    private PersistentSortedMap<ASN1OctetString,EntryIDSet> indexMap;
+
+
+
+    /**
+     * Creates a new builder for this index.
+     */
+    private IndexBuilder()
+    {
+      builders = new TreeMap<ASN1OctetString,EntryIDSet.Builder>(
+           valueComparator);
+      indexMap = null;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    void processAdd(final Entry entry, final int entryID)
+    {
+      final Attribute a =
+           entry.getAttribute(attributeType.getNameOrOID(), schema);
+      if (a == null)
+      {
+        return;
+      }
+
+      final ASN1OctetString[] rawValues = a.getRawValues();
+      final ASN1OctetString[] normalizedValues =
+           new ASN1OctetString[rawValues.length];
+      try
+      {
+        for (int i=0; i < rawValues.length; i++)
+        {
+          normalizedValues[i] = new ASN1OctetString(
+               matchingRule.normalize(rawValues[i]).getValue());
+        }
+      }
+      catch (final LDAPException le)
+      {
+        Debug.debugException(le);
+        return;
+      }
+
+      for (final ASN1OctetString v : normalizedValues)
+      {
+        addEntryID(builders, v, entryID);
+      }
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    void build()
+    {
+      indexMap = createIndexMap(
+           new PersistentSortedMap<ASN1OctetString,EntryIDSet>(
+                valueComparator),
+           builders);
+      builders.clear();
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    void install()
+    {
+      dataStore.setIndexRoot(slot, indexMap);
+    }
+  }
+
+
+
+  /**
+   * This class provides a comparator that orders normalized values using an
+   * ordering matching rule.  If the matching rule is not able to compare a
+   * pair of values (e.g., because it does not actually support ordering), then
+   * they will be ordered by comparing their values byte by byte.  Since every
+   * candidate obtained from the index is checked against the filter, that is
+   * sufficient to keep the index consistent.
+   */
+  private static final class OrderingMatchingRuleComparator
+          implements Comparator<ASN1OctetString>, Serializable
+  {
+    /**
+     * The serial version UID for this serializable class.
+     */
+    private static final long serialVersionUID = -6188419475290135273L;
+
+
+
+    // The matching rule used to compare values.
+    private final MatchingRule matchingRule;
+
+
+
+    /**
+     * Creates a new comparator that will use the provided matching rule.
+     *
+     * @param  matchingRule  The matching rule used to compare values.
+     */
+    private OrderingMatchingRuleComparator(final MatchingRule matchingRule)
+    {
+      this.matchingRule = matchingRule;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public int compare(final ASN1OctetString s1, final ASN1OctetString s2)
+    {
+      try
+      {
+        return matchingRule.compareValues(s1, s2);
+      }
+      catch (final LDAPException le)
+      {
+        Debug.debugException(le);
+        return InMemoryDirectoryServerEqualityAttributeIndex.VALUE_COMPARATOR.
+             compare(s1, s2);
+      }
+    }
+  }
+
+
+
+  /**
+   * This class provides an iterator over the sets of entry IDs held in a range
+   * of the index.
+   */
+  private static final class IDSetIterator
+          implements Iterator<EntryIDSet>
+  {
+    // The iterator over the entries in the index map.
+    private final Iterator<Map.Entry<ASN1OctetString,EntryIDSet>> iterator;
+
+    // The number of sets that remain to be returned.
+    private int remaining;
+
+
+
+    /**
+     * Creates a new ID set iterator with the provided information.
+     *
+     * @param  iterator   The iterator over the entries in the index map,
+     *                    positioned at the start of the range.
+     * @param  maxValues  The maximum number of sets to return.
+     */
+    private IDSetIterator(
+                 final Iterator<Map.Entry<ASN1OctetString,EntryIDSet>> iterator,
+                 final int maxValues)
+    {
+      this.iterator = iterator;
+      remaining = maxValues;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean hasNext()
+    {
+      return ((remaining > 0) && iterator.hasNext());
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public EntryIDSet next()
+    {
+      if (remaining <= 0)
+      {
+        throw new NoSuchElementException();
+      }
+
+      remaining--;
+      return iterator.next().getValue();
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void remove()
+    {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.schema.AttributeTypeDefinition;
+import com.unboundid.ldap.sdk.schema.Schema;
+import com.unboundid.util.Mutable;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+import static com.unboundid.ldap.listener.ListenerMessages.*;
+
+
+
+/**
+ * This class provides a data structure for maintaining a presence index for a
+ * specified attribute.  It holds the IDs of all entries that contain the
+ * attribute (with or without attribute options).  The index data is held in
+ * the server data store, so that it is versioned along with the entries to
+ * which it applies.
+ */
+@Mutable()
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+final class InMemoryDirectoryServerPresenceAttributeIndex
+      implements InMemoryDirectoryServerSnapshotIndex
+{
+  // The attribute type with which this index is associated.
+  private final AttributeTypeDefinition attributeType;
+
+  // The data store that holds the index data.
+  private final InMemoryDirectoryServerDataStore dataStore;
+
+  // The slot in the data store that holds the index data.
+  private final int slot;
+
+
+
+  /**
+   * Creates a new presence attribute index for the specified attribute type.
+   *
+   * @param  attributeType  The name or OID of the attribute type with which
+   *                        this index is associated.  It must be defined in the
+   *                        schema.
+   * @param  schema         The schema for the server.  It must not be
+   *                        {@code null}.
+   * @param  dataStore      The data store that will hold the index data.
+   *
+   * @throws  LDAPException  If the specified attribute type is not defined in
+   *                         the schema.
+   */
+  InMemoryDirectoryServerPresenceAttributeIndex(final String attributeType,
+       final Schema schema, final InMemoryDirectoryServerDataStore dataStore)
+       throws LDAPException
+  {
+    if (schema == null)
+    {
+      throw new LDAPException(ResultCode.PARAM_ERROR,
+           ERR_DS_PRESENCE_INDEX_NO_SCHEMA.get(attributeType));
+    }
+
+    this.attributeType = schema.getAttributeType(attributeType);
+    if (this.attributeType == null)
+    {
+      throw new LDAPException(ResultCode.PARAM_ERROR,
+           ERR_DS_PRESENCE_INDEX_UNDEFINED_ATTRIBUTE_TYPE.get(attributeType));
+    }
+
+    this.dataStore = dataStore;
+    slot = dataStore.createIndexSlot();
+  }
+
+
+
+  /**
+   * Retrieves the attribute type definition for this index.
+   *
+   * @return  The attribute type definition for this index.
+   */
+  AttributeTypeDefinition getAttributeType()
+  {
+    return attributeType;
+  }
+
+
+
+  /**
+   * Retrieves the set of IDs of entries containing the associated attribute, as
+   * visible to the calling thread.
+   *
+   * @return  The set of IDs of entries containing the associated attribute.
+   */
+  private EntryIDSet getIDSet()
+  {
+    final Object root = dataStore.getIndexRoot(slot);
+    if (root == null)
+    {
+      return EntryIDSet.EMPTY;
+    }
+    else
+    {
+      return (EntryIDSet) root;
+    }
+  }
+
+
+
+  /**
+   * Clears all index data for the associated attribute.
+   */
+  void clear()
+  {
+    dataStore.setIndexRoot(slot, null);
+  }
+
+
+
+  /**
+   * Retrieves the IDs of the entries that contain the associated attribute.
+   *
+   * @return  A set containing the IDs of the entries that contain the
+   *          associated attribute, or an empty set if there are none.
+   */
+  EntryIDSet getMatchingEntries()
+  {
+    return getIDSet();
+  }
+
+
+
+  /**
+   * Retrieves the number of entries that contain the associated attribute.
+   *
+   * @return  The number of entries that contain the associated attribute.
+   */
+  long estimateMatchingEntries()
+  {
+    return getIDSet().size();
+  }
+
+
+
+  /**
+   * Performs the necessary processing for adding the given entry.
+   *
+   * @param  entry    The entry to be added.
+   * @param  entryID  The ID assigned to the entry.
+   */
+  void processAdd(final Entry entry, final int entryID)
+  {
+    if (hasAttribute(entry))
+    {
+      dataStore.setIndexRoot(slot, getIDSet().add(entryID));
+    }
+  }
+
+
+
+  /**
+   * Performs the necessary processing for deleting the given entry.
+   *
+   * @param  entry    The entry to be deleted.
+   * @param  entryID  The ID assigned to the entry.
+   */
+  void processDelete(final Entry entry, final int entryID)
+  {
+    if (hasAttribute(entry))
+    {
+      dataStore.setIndexRoot(slot, getIDSet().remove(entryID));
+    }
+  }
+
+
+
+  /**
+   * Creates a builder that may be used to build the complete data for this
+   * index from scratch.
+   *
+   * @return  The builder that was created.
+   */
+  InMemoryDirectoryServerIndexBuilder createBuilder()
+  {
+    return new IndexBuilder();
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  public String getSnapshotIndexName()
+  {
+    return "presence:" + attributeType.getOID();
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  public void writeSnapshotData(
+                   final InMemoryDirectoryServerDataStore.Version version,
+                   final DataOutputStream outputStream)
+         throws IOException
+  {
+    InMemoryDirectoryServerSnapshotFile.writeIDSet(outputStream,
+         (EntryIDSet) version.getIndexRoot(slot));
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  public void readSnapshotData(
+                   final InMemoryDirectoryServerSnapshotFile.Reader reader,
+                   final Object[] indexRoots)
+         throws IOException
+  {
+    indexRoots[slot] = InMemoryDirectoryServerSnapshotFile.readIDSet(reader);
+  }
+
+
+
+  /**
+   * Indicates whether the provided entry contains the associated attribute,
+   * with or without attribute options.
+   *
+   * @param  entry  The entry for which to make the determination.
+   *
+   * @return  {@code true} if the entry contains the associated attribute, or
+   *          {@code false} if not.
+   */
+  private boolean hasAttribute(final Entry entry)
+  {
+    for (final Attribute a : entry.getAttributes())
+    {
+      if (attributeType.hasNameOrOID(a.getBaseName()))
+      {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+
+
+  /**
+   * This class provides a builder for the data held in this index.
+   */
+  private final class IndexBuilder
+          extends InMemoryDirectoryServerIndexBuilder
+  {
+    // The builder for the set of IDs of entries containing the attribute.
+    private final EntryIDSet.Builder builder;
+
+    // The set of IDs that was built.
+    private EntryIDSet idSet;
+
+
+
+    /**
+     * Creates a new builder for this index.
+     */
+    private IndexBuilder()
+    {
+      builder = new EntryIDSet.Builder();
+      idSet = null;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    void processAdd(final Entry entry, final int entryID)
+    {
+      if (hasAttribute(entry))
+      {
+        builder.add(entryID);
+      }
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    void build()
+    {
+      idSet = builder.build();
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    void install()
+    {
+      dataStore.setIndexRoot(slot, idSet);
+    }
+  }
+}
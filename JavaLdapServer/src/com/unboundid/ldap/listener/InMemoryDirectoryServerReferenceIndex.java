@@ -0,0 +1,424 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.matchingrules.DistinguishedNameMatchingRule;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.schema.Schema;
+import com.unboundid.util.Debug;
+import com.unboundid.util.Mutable;
+import com.unboundid.util.StaticUtils;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a data structure for maintaining a reverse-reference
+ * index for the attributes configured for referential integrity processing.
+ * It maps the normalized form of each DN referenced by one of those attributes
+ * to the IDs of the entries that contain the reference, so that the entries
+ * referencing a deleted or renamed entry can be found without examining every
+ * entry in the server.  The index data is held in the server data store, so
+ * that it is versioned along with the entries to which it applies.
+ */
+@Mutable()
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+final class InMemoryDirectoryServerReferenceIndex
+      implements InMemoryDirectoryServerSnapshotIndex
+{
+  // The reference to the schema for the server.
+  private final AtomicReference<Schema> schemaRef;
+
+  // The data store that holds the index data.
+  private final InMemoryDirectoryServerDataStore dataStore;
+
+  // The slot in the data store that holds the index data.
+  private final int slot;
+
+  // The names of the attributes whose values should be indexed.
+  private final Set<String> attributeNames;
+
+
+
+  /**
+   * Creates a new reverse-reference index for the specified attributes.
+   *
+   * @param  attributeNames  The names of the attributes whose values should be
+   *                         indexed.
+   * @param  schemaRef       The reference to the schema for the server.
+   * @param  dataStore       The data store that will hold the index data.
+   */
+  InMemoryDirectoryServerReferenceIndex(final Set<String> attributeNames,
+       final AtomicReference<Schema> schemaRef,
+       final InMemoryDirectoryServerDataStore dataStore)
+  {
+    this.attributeNames = attributeNames;
+    this.schemaRef      = schemaRef;
+    this.dataStore      = dataStore;
+
+    slot = dataStore.createIndexSlot();
+  }
+
+
+
+  /**
+   * Retrieves the map from normalized DNs to the IDs of entries that reference
+   * them, as visible to the calling thread.
+   *
+   * @return  The map from normalized DNs to the IDs of entries that reference
+   *          them.
+   */
+  @SuppressWarnings("unchecked")
+  private PersistentSortedMap<String,EntryIDSet> getIndexMap()
+  {
+    final Object root = dataStore.getIndexRoot(slot);
+    if (root == null)
+    {
+      return new PersistentSortedMap<String,EntryIDSet>();
+    }
+    else
+    {
+      return (PersistentSortedMap<String,EntryIDSet>) root;
+    }
+  }
+
+
+
+  /**
+   * Clears all index data.
+   */
+  void clear()
+  {
+    dataStore.setIndexRoot(slot, null);
+  }
+
+
+
+  /**
+   * Retrieves the IDs of the entries that reference the specified DN in any of
+   * the indexed attributes.
+   *
+   * @param  dn  The DN for which to retrieve the referencing entries.
+   *
+   * @return  A set containing the IDs of the entries that reference the
+   *          specified DN, or an empty set if there are none.
+   */
+  EntryIDSet getReferencingEntries(final DN dn)
+  {
+    final String key = normalize(new ASN1OctetString(dn.toNormalizedString()));
+    if (key == null)
+    {
+      return EntryIDSet.EMPTY;
+    }
+
+    final EntryIDSet idSet = getIndexMap().get(key);
+    if (idSet == null)
+    {
+      return EntryIDSet.EMPTY;
+    }
+    else
+    {
+      return idSet;
+    }
+  }
+
+
+
+  /**
+   * Performs the necessary processing for adding the given entry.
+   *
+   * @param  entry    The entry to be added.
+   * @param  entryID  The ID assigned to the entry.
+   */
+  void processAdd(final Entry entry, final int entryID)
+  {
+    final Set<String> keys = getKeys(entry);
+    if (keys.isEmpty())
+    {
+      return;
+    }
+
+    PersistentSortedMap<String,EntryIDSet> indexMap = getIndexMap();
+    for (final String key : keys)
+    {
+      EntryIDSet idSet = indexMap.get(key);
+      if (idSet == null)
+      {
+        idSet = EntryIDSet.EMPTY;
+      }
+      indexMap = indexMap.put(key, idSet.add(entryID));
+    }
+    dataStore.setIndexRoot(slot, indexMap);
+  }
+
+
+
+  /**
+   * Performs the necessary processing for deleting the given entry.
+   *
+   * @param  entry    The entry to be deleted.
+   * @param  entryID  The ID assigned to the entry.
+   */
+  void processDelete(final Entry entry, final int entryID)
+  {
+    final Set<String> keys = getKeys(entry);
+    if (keys.isEmpty())
+    {
+      return;
+    }
+
+    PersistentSortedMap<String,EntryIDSet> indexMap = getIndexMap();
+    for (final String key : keys)
+    {
+      final EntryIDSet idSet = indexMap.get(key);
+      if (idSet != null)
+      {
+        final EntryIDSet newIDSet = idSet.remove(entryID);
+        if (newIDSet.isEmpty())
+        {
+          indexMap = indexMap.remove(key);
+        }
+        else
+        {
+          indexMap = indexMap.put(key, newIDSet);
+        }
+      }
+    }
+    dataStore.setIndexRoot(slot, indexMap);
+  }
+
+
+
+  /**
+   * Creates a builder that may be used to build the complete data for this
+   * index from scratch.
+   *
+   * @return  The builder that was created.
+   */
+  InMemoryDirectoryServerIndexBuilder createBuilder()
+  {
+    return new IndexBuilder();
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  public String getSnapshotIndexName()
+  {
+    final TreeSet<String> names = new TreeSet<String>();
+    for (final String s : attributeNames)
+    {
+      names.add(StaticUtils.toLowerCase(s));
+    }
+
+    final StringBuilder buffer = new StringBuilder("reference");
+    for (final String s : names)
+    {
+      buffer.append(':');
+      buffer.append(s);
+    }
+
+    return buffer.toString();
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @SuppressWarnings("unchecked")
+  public void writeSnapshotData(
+                   final InMemoryDirectoryServerDataStore.Version version,
+                   final DataOutputStream outputStream)
+         throws IOException
+  {
+    InMemoryDirectoryServerSnapshotFile.writeIndexMap(outputStream,
+         (PersistentSortedMap<String,EntryIDSet>) version.getIndexRoot(slot));
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  public void readSnapshotData(
+                   final InMemoryDirectoryServerSnapshotFile.Reader reader,
+                   final Object[] indexRoots)
+         throws IOException
+  {
+    indexRoots[slot] =
+         InMemoryDirectoryServerSnapshotFile.readStringIndexMap(reader, null);
+  }
+
+
+
+  /**
+   * Retrieves the normalized forms of the DNs referenced by the indexed
+   * attributes in the provided entry.
+   *
+   * @param  entry  The entry to examine.
+   *
+   * @return  The normalized forms of the DNs referenced by the entry.
+   */
+  private Set<String> getKeys(final Entry entry)
+  {
+    Set<String> keys = null;
+
+    final Schema schema = schemaRef.get();
+    for (final String attrName : attributeNames)
+    {
+      final Attribute a = entry.getAttribute(attrName, schema);
+      if (a == null)
+      {
+        continue;
+      }
+
+      for (final ASN1OctetString v : a.getRawValues())
+      {
+        final String key = normalize(v);
+        if (key != null)
+        {
+          if (keys == null)
+          {
+            keys = new HashSet<String>(a.size());
+          }
+          keys.add(key);
+        }
+      }
+    }
+
+    if (keys == null)
+    {
+      return Collections.emptySet();
+    }
+    else
+    {
+      return keys;
+    }
+  }
+
+
+
+  /**
+   * Normalizes the provided value in the same way as the distinguished name
+   * matching rule used for referential integrity processing.
+   *
+   * @param  value  The value to be normalized.
+   *
+   * @return  The normalized form of the provided value, or {@code null} if it
+   *          is not a valid DN.
+   */
+  private static String normalize(final ASN1OctetString value)
+  {
+    try
+    {
+      return DistinguishedNameMatchingRule.getInstance().normalize(
+           value).stringValue();
+    }
+    catch (final LDAPException le)
+    {
+      Debug.debugException(le);
+      return null;
+    }
+  }
+
+
+
+  /**
+   * This class provides a builder for the data held in this index.
+   */
+  private final class IndexBuilder
+          extends InMemoryDirectoryServerIndexBuilder
+  {
+    // The set builders for each referenced DN.
+    private final TreeMap<String,EntryIDSet.Builder> builders;
+
+    // The index map that was built.
+    private PersistentSortedMap<String,EntryIDSet> indexMap;
+
+
+
+    /**
+     * Creates a new builder for this index.
+     */
+    private IndexBuilder()
+    {
+      builders = new TreeMap<String,EntryIDSet.Builder>();
+      indexMap = null;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    void processAdd(final Entry entry, final int entryID)
+    {
+      for (final String key : getKeys(entry))
+      {
+        addEntryID(builders, key, entryID);
+      }
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    void build()
+    {
+      indexMap = createIndexMap(new PersistentSortedMap<String,EntryIDSet>(),
+           builders);
+      builders.clear();
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    void install()
+    {
+      dataStore.setIndexRoot(slot, indexMap);
+    }
+  }
+}
@@ -22,13 +22,20 @@ package com.unboundid.ldap.listener;
 
 
 
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 
 import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPRuntimeException;
 import com.unboundid.ldap.sdk.ReadOnlyEntry;
+import com.unboundid.util.Debug;
 import com.unboundid.util.NotMutable;
 import com.unboundid.util.ThreadSafety;
 import com.unboundid.util.ThreadSafetyLevel;
@@ -41,6 +48,21 @@ import com.unboundid.util.ThreadSafetyLevel;
  * will reflect only data held in the server (including both user data and any
  * changelog information, if that is enabled), but will not alter the settings
  * of the server which are defined through configuration.
+ * <BR><BR>
+ * A snapshot shares its data with the server from which it was created, so
+ * creating a snapshot does not require copying any entries, and restoring a
+ * snapshot into the server from which it was created does not require any
+ * entries to be copied or any indexes to be rebuilt.
+ * <BR><BR>
+ * A snapshot may also be written to a file with the {@link #writeTo} method and
+ * later read back with the {@link #readFrom} method.  The file uses a compact
+ * binary format that includes the index data along with the entries, and it is
+ * read through memory-mapped regions, so that restoring a snapshot read from a
+ * file into a server with the same index configuration does not require the
+ * entries to be parsed from text or the indexes (other than any VLV indexes) to
+ * be rebuilt.  The content of a snapshot read from a file is not decoded until
+ * it is needed, so it does not occupy memory until it is either restored into
+ * a server or accessed through the {@link #getEntryMap} method.
  */
 @NotMutable()
 @ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
@@ -60,8 +82,32 @@ public final class InMemoryDirectoryServerSnapshot
   // The last change number value at the time the snapshot was created.
   private final long lastChangeNumber;
 
-  // The set of entries held in the server at the time the snapshot was created.
-  private final Map<DN,ReadOnlyEntry> entryMap;
+  // The set of entries held in the server at the time the snapshot was created,
+  // not including changelog entries.  For a snapshot read from a file, it will
+  // be decoded when it is first needed.
+  private volatile Map<DN,ReadOnlyEntry> entryMap;
+
+  // The set of changelog entries held in the server at the time the snapshot
+  // was created, indexed by change number.
+  private volatile Map<Long,ReadOnlyEntry> changeLogEntryMap;
+
+  // The set of all entries held in the server at the time the snapshot was
+  // created, including changelog entries.  It will be created when it is first
+  // needed.
+  private transient volatile Map<DN,ReadOnlyEntry> fullEntryMap;
+
+  // The version of the server data (including index data) at the time the
+  // snapshot was created.  It will not be available if the snapshot has been
+  // deserialized.
+  private final transient InMemoryDirectoryServerDataStore.Version dataVersion;
+
+  // The file from which the snapshot was read, if applicable.
+  private final transient File snapshotFile;
+
+  // The indexes whose data may be included when the snapshot is written to a
+  // file.
+  private final transient List<InMemoryDirectoryServerSnapshotIndex>
+       snapshotIndexes;
 
 
 
@@ -69,22 +115,218 @@ public final class InMemoryDirectoryServerSnapshot
    * Creates a new in-memory directory server snapshot with the provided
    * information.
    *
-   * @param  m                  A map of the entries contained in the server
-   *                            (including changelog entries) at the time the
+   * @param  dataVersion        The version of the server data (including
+   *                            changelog entries and index data) at the time
+   *                            the snapshot was created.
+   * @param  changeLogEntryMap  The changelog entries held in the server at the
+   *                            time the snapshot was created, indexed by
+   *                            change number.
+   * @param  firstChangeNumber  The first change number value at the time the
    *                            snapshot was created.
+   * @param  lastChangeNumber   The last change number value at the time the
+   *                            snapshot was created.
+   * @param  snapshotIndexes    The indexes whose data may be included when the
+   *                            snapshot is written to a file.
+   */
+  InMemoryDirectoryServerSnapshot(
+       final InMemoryDirectoryServerDataStore.Version dataVersion,
+       final Map<Long,ReadOnlyEntry> changeLogEntryMap,
+       final long firstChangeNumber, final long lastChangeNumber,
+       final List<InMemoryDirectoryServerSnapshotIndex> snapshotIndexes)
+  {
+    this.dataVersion       = dataVersion;
+    this.changeLogEntryMap = changeLogEntryMap;
+    this.firstChangeNumber = firstChangeNumber;
+    this.lastChangeNumber  = lastChangeNumber;
+    this.snapshotIndexes   = snapshotIndexes;
+
+    snapshotFile = null;
+    entryMap = Collections.unmodifiableMap(dataVersion.getEntryMap());
+  }
+
+
+
+  /**
+   * Creates a new in-memory directory server snapshot whose content will be
+   * read from the specified file when it is needed.
+   *
+   * @param  snapshotFile       The file from which the snapshot was read.
    * @param  firstChangeNumber  The first change number value at the time the
    *                            snapshot was created.
    * @param  lastChangeNumber   The last change number value at the time the
    *                            snapshot was created.
    */
-  InMemoryDirectoryServerSnapshot(final Map<DN,ReadOnlyEntry> m,
-                                  final long firstChangeNumber,
-                                  final long lastChangeNumber)
+  private InMemoryDirectoryServerSnapshot(final File snapshotFile,
+                                          final long firstChangeNumber,
+                                          final long lastChangeNumber)
   {
+    this.snapshotFile      = snapshotFile;
     this.firstChangeNumber = firstChangeNumber;
     this.lastChangeNumber  = lastChangeNumber;
 
-    entryMap = Collections.unmodifiableMap(new TreeMap<DN,ReadOnlyEntry>(m));
+    dataVersion       = null;
+    snapshotIndexes   = Collections.emptyList();
+    entryMap          = null;
+    changeLogEntryMap = null;
+  }
+
+
+
+  /**
+   * Reads a snapshot from the specified file, which must have been written by
+   * the {@link #writeTo} method.  Only the header of the file will be read by
+   * this method, and the rest of the content will be read when it is needed.
+   *
+   * @param  file  The file from which the snapshot should be read.  It must
+   *               not be {@code null}, and it must not be altered for as long
+   *               as the snapshot may be used.
+   *
+   * @return  The snapshot that was read.
+   *
+   * @throws  LDAPException  If the file cannot be read or is not a valid
+   *                         snapshot file.
+   */
+  public static InMemoryDirectoryServerSnapshot readFrom(final File file)
+         throws LDAPException
+  {
+    final long[] changeNumbers =
+         InMemoryDirectoryServerSnapshotFile.readChangeNumbers(file);
+    return new InMemoryDirectoryServerSnapshot(file.getAbsoluteFile(),
+         changeNumbers[0], changeNumbers[1]);
+  }
+
+
+
+  /**
+   * Writes this snapshot to the specified file, so that it can be read later
+   * with the {@link #readFrom} method.  If this snapshot was created by the
+   * server (rather than being deserialized or read from a file), then the data
+   * for all indexes other than VLV indexes will be written along with the
+   * entries.
+   *
+   * @param  file  The file to which the snapshot should be written.  It must
+   *               not be {@code null}.  If the file already exists, then it
+   *               will be overwritten.
+   *
+   * @throws  LDAPException  If a problem occurs while writing the file.
+   */
+  public void writeTo(final File file)
+         throws LDAPException
+  {
+    decodeSnapshotFile();
+    InMemoryDirectoryServerSnapshotFile.write(this, file);
+  }
+
+
+
+  /**
+   * Retrieves the file from which this snapshot was read, if applicable.
+   *
+   * @return  The file from which this snapshot was read, or {@code null} if it
+   *          was not read from a file.
+   */
+  File getSnapshotFile()
+  {
+    return snapshotFile;
+  }
+
+
+
+  /**
+   * Retrieves the indexes whose data may be included when this snapshot is
+   * written to a file.
+   *
+   * @return  The indexes whose data may be included when this snapshot is
+   *          written to a file.
+   */
+  List<InMemoryDirectoryServerSnapshotIndex> getSnapshotIndexes()
+  {
+    return snapshotIndexes;
+  }
+
+
+
+  /**
+   * Ensures that the entries have been decoded if this snapshot was read from
+   * a file.  The entries will be decoded without a schema, since the snapshot
+   * is not associated with any server.
+   *
+   * @throws  LDAPRuntimeException  If a problem occurs while reading the file.
+   */
+  private synchronized void decodeSnapshotFile()
+          throws LDAPRuntimeException
+  {
+    if ((snapshotFile == null) || (entryMap != null))
+    {
+      return;
+    }
+
+    final InMemoryDirectoryServerSnapshotFile content;
+    try
+    {
+      content = InMemoryDirectoryServerSnapshotFile.read(snapshotFile, null,
+           Collections.<InMemoryDirectoryServerSnapshotIndex>emptyList(), 0);
+    }
+    catch (final LDAPException le)
+    {
+      Debug.debugException(le);
+      throw new LDAPRuntimeException(le);
+    }
+
+    final List<DN> dns = content.getDNs();
+    final List<ReadOnlyEntry> entries = content.getEntries();
+    final LinkedHashMap<DN,ReadOnlyEntry> m =
+         new LinkedHashMap<DN,ReadOnlyEntry>(dns.size());
+    for (int i=0; i < dns.size(); i++)
+    {
+      m.put(dns.get(i), entries.get(i));
+    }
+
+    changeLogEntryMap =
+         Collections.unmodifiableMap(content.getChangeLogEntries());
+    entryMap = Collections.unmodifiableMap(m);
+  }
+
+
+
+  /**
+   * Writes this snapshot to the provided object output stream, decoding the
+   * content of the snapshot file first if necessary.
+   *
+   * @param  outputStream  The object output stream to which the snapshot
+   *                       should be written.
+   *
+   * @throws  IOException  If a problem occurs while writing the snapshot.
+   */
+  private void writeObject(final ObjectOutputStream outputStream)
+          throws IOException
+  {
+    try
+    {
+      decodeSnapshotFile();
+    }
+    catch (final LDAPRuntimeException le)
+    {
+      Debug.debugException(le);
+      throw new IOException(le.getMessage(), le);
+    }
+
+    outputStream.defaultWriteObject();
+  }
+
+
+
+  /**
+   * Retrieves the version of the server data at the time the snapshot was
+   * created.
+   *
+   * @return  The version of the server data at the time the snapshot was
+   *          created, or {@code null} if it is not available because the
+   *          snapshot has been deserialized.
+   */
+  InMemoryDirectoryServerDataStore.Version getDataVersion()
+  {
+    return dataVersion;
   }
 
 
@@ -97,14 +339,85 @@ public final class InMemoryDirectoryServerSnapshot
    *
    * @return  An unmodifiable map of all entries defined in the server at the
    *          time the snapshot was created.
+   *
+   * @throws  LDAPRuntimeException  If this snapshot was read from a file and a
+   *                                problem occurs while reading its content.
    */
   public Map<DN,ReadOnlyEntry> getEntryMap()
+         throws LDAPRuntimeException
   {
+    decodeSnapshotFile();
+    final Map<Long,ReadOnlyEntry> changeLogEntries = getChangeLogEntryMap();
+    if (changeLogEntries.isEmpty())
+    {
+      return entryMap;
+    }
+
+    Map<DN,ReadOnlyEntry> m = fullEntryMap;
+    if (m == null)
+    {
+      final LinkedHashMap<DN,ReadOnlyEntry> fullMap =
+           new LinkedHashMap<DN,ReadOnlyEntry>(
+                entryMap.size() + changeLogEntries.size());
+      fullMap.putAll(entryMap);
+      for (final ReadOnlyEntry e : changeLogEntries.values())
+      {
+        try
+        {
+          fullMap.put(e.getParsedDN(), e);
+        }
+        catch (final LDAPException le)
+        {
+          Debug.debugException(le);
+        }
+      }
+
+      m = Collections.unmodifiableMap(fullMap);
+      fullEntryMap = m;
+    }
+
+    return m;
+  }
+
+
+
+  /**
+   * Retrieves an unmodifiable map of the entries defined in the server at the
+   * time the snapshot was created, excluding changelog entries.
+   *
+   * @return  An unmodifiable map of the entries defined in the server at the
+   *          time the snapshot was created, excluding changelog entries.
+   */
+  Map<DN,ReadOnlyEntry> getEntryMapWithoutChangeLog()
+  {
+    decodeSnapshotFile();
     return entryMap;
   }
 
 
 
+  /**
+   * Retrieves an unmodifiable map of the changelog entries defined in the
+   * server at the time the snapshot was created, indexed by change number.
+   *
+   * @return  An unmodifiable map of the changelog entries defined in the server
+   *          at the time the snapshot was created.
+   */
+  Map<Long,ReadOnlyEntry> getChangeLogEntryMap()
+  {
+    decodeSnapshotFile();
+    if (changeLogEntryMap == null)
+    {
+      return Collections.emptyMap();
+    }
+    else
+    {
+      return changeLogEntryMap;
+    }
+  }
+
+
+
   /**
    * Retrieves the first change number for the server at the time the snapshot
    * was created.
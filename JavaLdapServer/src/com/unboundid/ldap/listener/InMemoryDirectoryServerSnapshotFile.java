@@ -0,0 +1,1424 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.unboundid.asn1.ASN1Buffer;
+import com.unboundid.asn1.ASN1BufferSequence;
+import com.unboundid.asn1.ASN1Exception;
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.asn1.ASN1StreamReader;
+import com.unboundid.asn1.ASN1StreamReaderSequence;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.RDN;
+import com.unboundid.ldap.sdk.ReadOnlyEntry;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.schema.Schema;
+import com.unboundid.util.Debug;
+import com.unboundid.util.NotMutable;
+import com.unboundid.util.StaticUtils;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+import static com.unboundid.ldap.listener.ListenerMessages.*;
+
+
+
+/**
+ * This class provides support for writing the content of an in-memory
+ * directory server snapshot to a binary file, and for reading it back.  The
+ * file is read through memory-mapped regions rather than a stream, and it is
+ * laid out so that the data store can be populated without parsing any text:
+ * <UL>
+ *   <LI>The entries are written in the order in which the data store keeps
+ *       them (which places each entry after its parent), along with the ID of
+ *       each entry and the position of its parent.  Each entry DN is written
+ *       as the components of its RDN, so it can be created from the RDN and
+ *       the DN of the parent entry that has already been read, and the data
+ *       store can build its maps directly without comparing or normalizing
+ *       any DNs.</LI>
+ *   <LI>The attributes of each entry are written as a BER sequence of
+ *       attributes in the form used by the LDAP protocol.</LI>
+ *   <LI>The data for each index that implements the
+ *       {@link InMemoryDirectoryServerSnapshotIndex} interface is written in
+ *       a section identified by its snapshot index name, so the index data can
+ *       be used as-is when the file is read by a server with the same index
+ *       configuration.  Any index whose data is not present must be rebuilt
+ *       from the entries.</LI>
+ * </UL>
+ * An instance of this class holds the content that has been read from a
+ * snapshot file.
+ */
+@NotMutable()
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+final class InMemoryDirectoryServerSnapshotFile
+{
+  /**
+   * The header that appears at the start of every snapshot file.
+   */
+  private static final byte[] FILE_HEADER = StaticUtils.getBytes("UIMDSS01");
+
+
+
+  /**
+   * The maximum size of a region of the file that will be mapped into memory
+   * at any time.
+   */
+  private static final long MAX_MAPPED_REGION_SIZE = 256L * 1024L * 1024L;
+
+
+
+  // The IDs of the entries, in the same order as the entries.
+  private final int[] entryIDs;
+
+  // The position of the parent of each entry, or -1 for entries whose parents
+  // are not included in the file.
+  private final int[] parentPositions;
+
+  // The smallest ID that had never been assigned to an entry.
+  private final int nextEntryID;
+
+  // The DNs of the entries, in ascending order.
+  private final List<DN> dns;
+
+  // The entries, in the same order as their DNs.
+  private final List<ReadOnlyEntry> entries;
+
+  // The first change number at the time the snapshot was created.
+  private final long firstChangeNumber;
+
+  // The last change number at the time the snapshot was created.
+  private final long lastChangeNumber;
+
+  // The changelog entries, indexed by change number.
+  private final Map<Long,ReadOnlyEntry> changeLogEntries;
+
+  // The data read for each index slot.
+  private final Object[] indexRoots;
+
+  // The indexes whose data was read from the file.
+  private final Set<InMemoryDirectoryServerSnapshotIndex> loadedIndexes;
+
+
+
+  /**
+   * Creates a new instance with the content read from a snapshot file.
+   *
+   * @param  firstChangeNumber  The first change number at the time the
+   *                            snapshot was created.
+   * @param  lastChangeNumber   The last change number at the time the snapshot
+   *                            was created.
+   * @param  dns                The DNs of the entries, in ascending order.
+   * @param  entries            The entries, in the same order as their DNs.
+   * @param  entryIDs           The IDs of the entries.
+   * @param  parentPositions    The position of the parent of each entry.
+   * @param  nextEntryID        The smallest ID that had never been assigned
+   *                            to an entry.
+   * @param  changeLogEntries   The changelog entries, indexed by change
+   *                            number.
+   * @param  indexRoots         The data read for each index slot.
+   * @param  loadedIndexes      The indexes whose data was read from the file.
+   */
+  private InMemoryDirectoryServerSnapshotFile(final long firstChangeNumber,
+               final long lastChangeNumber, final List<DN> dns,
+               final List<ReadOnlyEntry> entries, final int[] entryIDs,
+               final int[] parentPositions, final int nextEntryID,
+               final Map<Long,ReadOnlyEntry> changeLogEntries,
+               final Object[] indexRoots,
+               final Set<InMemoryDirectoryServerSnapshotIndex> loadedIndexes)
+  {
+    this.firstChangeNumber = firstChangeNumber;
+    this.lastChangeNumber  = lastChangeNumber;
+    this.dns               = dns;
+    this.entries           = entries;
+    this.entryIDs          = entryIDs;
+    this.parentPositions   = parentPositions;
+    this.nextEntryID       = nextEntryID;
+    this.changeLogEntries  = changeLogEntries;
+    this.indexRoots        = indexRoots;
+    this.loadedIndexes     = loadedIndexes;
+  }
+
+
+
+  /**
+   * Retrieves the first change number at the time the snapshot was created.
+   *
+   * @return  The first change number at the time the snapshot was created.
+   */
+  long getFirstChangeNumber()
+  {
+    return firstChangeNumber;
+  }
+
+
+
+  /**
+   * Retrieves the last change number at the time the snapshot was created.
+   *
+   * @return  The last change number at the time the snapshot was created.
+   */
+  long getLastChangeNumber()
+  {
+    return lastChangeNumber;
+  }
+
+
+
+  /**
+   * Retrieves the DNs of the entries, in ascending order.
+   *
+   * @return  The DNs of the entries, in ascending order.
+   */
+  List<DN> getDNs()
+  {
+    return dns;
+  }
+
+
+
+  /**
+   * Retrieves the entries, in the same order as their DNs.
+   *
+   * @return  The entries, in the same order as their DNs.
+   */
+  List<ReadOnlyEntry> getEntries()
+  {
+    return entries;
+  }
+
+
+
+  /**
+   * Retrieves the IDs of the entries, in the same order as the entries.
+   *
+   * @return  The IDs of the entries.
+   */
+  int[] getEntryIDs()
+  {
+    return entryIDs;
+  }
+
+
+
+  /**
+   * Retrieves the position of the parent of each entry, in the same order as
+   * the entries.
+   *
+   * @return  The position of the parent of each entry, or -1 for any entry
+   *          whose parent is not included in the file.
+   */
+  int[] getParentPositions()
+  {
+    return parentPositions;
+  }
+
+
+
+  /**
+   * Retrieves the smallest ID that had never been assigned to an entry at the
+   * time the snapshot was created.
+   *
+   * @return  The smallest ID that had never been assigned to an entry.
+   */
+  int getNextEntryID()
+  {
+    return nextEntryID;
+  }
+
+
+
+  /**
+   * Retrieves the changelog entries, indexed by change number.
+   *
+   * @return  The changelog entries, indexed by change number.
+   */
+  Map<Long,ReadOnlyEntry> getChangeLogEntries()
+  {
+    return changeLogEntries;
+  }
+
+
+
+  /**
+   * Retrieves the data read for each index slot.
+   *
+   * @return  The data read for each index slot.  Any element may be
+   *          {@code null} if no data was read for that slot.
+   */
+  Object[] getIndexRoots()
+  {
+    return indexRoots;
+  }
+
+
+
+  /**
+   * Retrieves the indexes whose data was read from the file.
+   *
+   * @return  The indexes whose data was read from the file.
+   */
+  Set<InMemoryDirectoryServerSnapshotIndex> getLoadedIndexes()
+  {
+    return loadedIndexes;
+  }
+
+
+
+  /**
+   * Writes the content of the provided snapshot to the specified file.  If
+   * the snapshot still has the version of the data from which it was created,
+   * then the index data will be written along with the entries.
+   *
+   * @param  snapshot  The snapshot to be written.
+   * @param  file      The file to which the snapshot should be written.  If it
+   *                   already exists, then it will be overwritten.
+   *
+   * @throws  LDAPException  If a problem occurs while writing the file.
+   */
+  static void write(final InMemoryDirectoryServerSnapshot snapshot,
+                    final File file)
+         throws LDAPException
+  {
+    RandomAccessFile randomAccessFile = null;
+    try
+    {
+      randomAccessFile = new RandomAccessFile(file, "rw");
+      randomAccessFile.setLength(0L);
+
+      final FileChannel channel = randomAccessFile.getChannel();
+      final DataOutputStream outputStream = new DataOutputStream(
+           new BufferedOutputStream(Channels.newOutputStream(channel),
+                65536));
+      outputStream.write(FILE_HEADER);
+      outputStream.writeLong(snapshot.getFirstChangeNumber());
+      outputStream.writeLong(snapshot.getLastChangeNumber());
+
+      final InMemoryDirectoryServerDataStore.Version version =
+           snapshot.getDataVersion();
+      if (version == null)
+      {
+        // The entries will be assigned new IDs, so none of the index data can
+        // be written.
+        final TreeMap<DN,ReadOnlyEntry> sortedEntries =
+             new TreeMap<DN,ReadOnlyEntry>(
+                  snapshot.getEntryMapWithoutChangeLog());
+        writeEntries(outputStream, sortedEntries.entrySet().iterator(), null,
+             sortedEntries.size(), sortedEntries.size());
+      }
+      else
+      {
+        writeEntries(outputStream,
+             version.getEntryMap().entrySet().iterator(),
+             version.getEntryIDs().iterator(), version.getEntries().size(),
+             version.getNextEntryID());
+      }
+
+      final ASN1Buffer buffer = new ASN1Buffer();
+      final TreeMap<Long,ReadOnlyEntry> changeLogEntries =
+           new TreeMap<Long,ReadOnlyEntry>(snapshot.getChangeLogEntryMap());
+      outputStream.writeInt(changeLogEntries.size());
+      for (final Map.Entry<Long,ReadOnlyEntry> e : changeLogEntries.entrySet())
+      {
+        outputStream.writeLong(e.getKey());
+        writeString(outputStream, e.getValue().getDN());
+        writeAttributes(outputStream, buffer, e.getValue());
+      }
+
+      final List<InMemoryDirectoryServerSnapshotIndex> indexes;
+      if (version == null)
+      {
+        indexes = Collections.emptyList();
+      }
+      else
+      {
+        indexes = snapshot.getSnapshotIndexes();
+      }
+
+      // Each index section is preceded by its length, so that a server that
+      // does not have the index can skip over it.  The length is filled in
+      // once the section has been written.
+      outputStream.writeInt(indexes.size());
+      for (final InMemoryDirectoryServerSnapshotIndex i : indexes)
+      {
+        writeString(outputStream, i.getSnapshotIndexName());
+        outputStream.flush();
+
+        final long lengthPosition = channel.position();
+        outputStream.writeLong(0L);
+        i.writeSnapshotData(version, outputStream);
+        outputStream.flush();
+
+        final ByteBuffer lengthBuffer = ByteBuffer.allocate(8);
+        lengthBuffer.putLong(channel.position() - lengthPosition - 8L);
+        lengthBuffer.flip();
+        while (lengthBuffer.hasRemaining())
+        {
+          channel.write(lengthBuffer,
+               lengthPosition + lengthBuffer.position());
+        }
+      }
+
+      outputStream.flush();
+      channel.force(false);
+    }
+    catch (final IOException ioe)
+    {
+      Debug.debugException(ioe);
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           ERR_MEM_SNAPSHOT_CANNOT_WRITE.get(file.getAbsolutePath(),
+                StaticUtils.getExceptionMessage(ioe)),
+           ioe);
+    }
+    finally
+    {
+      if (randomAccessFile != null)
+      {
+        try
+        {
+          randomAccessFile.close();
+        }
+        catch (final IOException ioe)
+        {
+          Debug.debugException(ioe);
+        }
+      }
+    }
+  }
+
+
+
+  /**
+   * Writes the provided entries to the given output stream.
+   *
+   * @param  outputStream  The output stream to which the entries should be
+   *                       written.
+   * @param  entries       An iterator over the entries to write, in ascending
+   *                       order by DN.
+   * @param  ids           An iterator over the IDs of the entries, in the same
+   *                       order as the entries.  It may be {@code null} if
+   *                       each entry should be assigned its position as its
+   *                       ID.
+   * @param  numEntries    The number of entries to be written.
+   * @param  nextEntryID   The smallest ID that has never been assigned to an
+   *                       entry.
+   *
+   * @throws  IOException  If a problem occurs while writing the entries.
+   */
+  private static void writeEntries(final DataOutputStream outputStream,
+               final Iterator<Map.Entry<DN,ReadOnlyEntry>> entries,
+               final Iterator<Map.Entry<DN,Integer>> ids,
+               final int numEntries, final int nextEntryID)
+          throws IOException
+  {
+    outputStream.writeInt(numEntries);
+    outputStream.writeInt(nextEntryID);
+
+    // Because the entries are in order by DN, every entry comes after all of
+    // its ancestors, and the entries that are ancestors of the current entry
+    // can be tracked with a stack.
+    final ASN1Buffer buffer = new ASN1Buffer();
+    final ArrayList<DN> ancestorDNs = new ArrayList<DN>(10);
+    final ArrayList<Integer> ancestorPositions = new ArrayList<Integer>(10);
+    int position = 0;
+    while (entries.hasNext())
+    {
+      final Map.Entry<DN,ReadOnlyEntry> e = entries.next();
+      final DN dn = e.getKey();
+
+      while ((! ancestorDNs.isEmpty()) &&
+           (! dn.isDescendantOf(ancestorDNs.get(ancestorDNs.size() - 1),
+                false)))
+      {
+        ancestorDNs.remove(ancestorDNs.size() - 1);
+        ancestorPositions.remove(ancestorPositions.size() - 1);
+      }
+
+      int parentPosition = -1;
+      if ((! ancestorDNs.isEmpty()) &&
+          (ancestorDNs.get(ancestorDNs.size() - 1).getRDNs().length ==
+               (dn.getRDNs().length - 1)))
+      {
+        parentPosition = ancestorPositions.get(ancestorPositions.size() - 1);
+      }
+
+      if (ids == null)
+      {
+        outputStream.writeInt(position);
+      }
+      else
+      {
+        outputStream.writeInt(ids.next().getValue());
+      }
+      outputStream.writeInt(parentPosition);
+
+      if (parentPosition < 0)
+      {
+        writeString(outputStream, dn.toString());
+      }
+      else
+      {
+        final RDN rdn = dn.getRDN();
+        final String[] names = rdn.getAttributeNames();
+        final byte[][] values = rdn.getByteArrayAttributeValues();
+        outputStream.writeInt(names.length);
+        for (int i=0; i < names.length; i++)
+        {
+          writeString(outputStream, names[i]);
+          writeBytes(outputStream, values[i]);
+        }
+      }
+
+      writeAttributes(outputStream, buffer, e.getValue());
+
+      ancestorDNs.add(dn);
+      ancestorPositions.add(position);
+      position++;
+    }
+  }
+
+
+
+  /**
+   * Writes the attributes of the provided entry to the given output stream as
+   * a BER sequence.
+   *
+   * @param  outputStream  The output stream to which the attributes should be
+   *                       written.
+   * @param  buffer        The buffer to use to encode the attributes.
+   * @param  entry         The entry whose attributes should be written.
+   *
+   * @throws  IOException  If a problem occurs while writing the attributes.
+   */
+  private static void writeAttributes(final DataOutputStream outputStream,
+                                      final ASN1Buffer buffer,
+                                      final ReadOnlyEntry entry)
+          throws IOException
+  {
+    buffer.clear();
+    final ASN1BufferSequence attrSequence = buffer.beginSequence();
+    for (final Attribute a : entry.getAttributes())
+    {
+      a.writeTo(buffer);
+    }
+    attrSequence.end();
+    buffer.writeTo(outputStream);
+  }
+
+
+
+  /**
+   * Writes the provided string to the given output stream, preceded by its
+   * length.
+   *
+   * @param  outputStream  The output stream to which the string should be
+   *                       written.
+   * @param  s             The string to be written.
+   *
+   * @throws  IOException  If a problem occurs while writing the string.
+   */
+  private static void writeString(final DataOutputStream outputStream,
+                                  final String s)
+          throws IOException
+  {
+    writeBytes(outputStream, StaticUtils.getBytes(s));
+  }
+
+
+
+  /**
+   * Writes the provided byte array to the given output stream, preceded by
+   * its length.
+   *
+   * @param  outputStream  The output stream to which the bytes should be
+   *                       written.
+   * @param  b             The bytes to be written.
+   *
+   * @throws  IOException  If a problem occurs while writing the bytes.
+   */
+  private static void writeBytes(final DataOutputStream outputStream,
+                                 final byte[] b)
+          throws IOException
+  {
+    outputStream.writeInt(b.length);
+    outputStream.write(b);
+  }
+
+
+
+  /**
+   * Writes the provided index map to the given output stream.  The keys must
+   * be either octet strings or strings.
+   *
+   * @param  outputStream  The output stream to which the map should be
+   *                       written.
+   * @param  map           The map to be written.  It may be {@code null} if
+   *                       the index does not hold any data.
+   *
+   * @throws  IOException  If a problem occurs while writing the map.
+   */
+  static void writeIndexMap(final DataOutputStream outputStream,
+                            final PersistentSortedMap<?,EntryIDSet> map)
+         throws IOException
+  {
+    if (map == null)
+    {
+      outputStream.writeInt(0);
+      return;
+    }
+
+    outputStream.writeInt(map.size());
+    final Iterator<? extends Map.Entry<?,EntryIDSet>> iterator =
+         map.iterator();
+    while (iterator.hasNext())
+    {
+      final Map.Entry<?,EntryIDSet> e = iterator.next();
+      final Object key = e.getKey();
+      if (key instanceof ASN1OctetString)
+      {
+        writeBytes(outputStream, ((ASN1OctetString) key).getValue());
+      }
+      else
+      {
+        writeString(outputStream, String.valueOf(key));
+      }
+
+      writeIDSet(outputStream, e.getValue());
+    }
+  }
+
+
+
+  /**
+   * Writes the provided entry ID set to the given output stream.
+   *
+   * @param  outputStream  The output stream to which the set should be
+   *                       written.
+   * @param  idSet         The set to be written.  It may be {@code null} if
+   *                       the set is empty.
+   *
+   * @throws  IOException  If a problem occurs while writing the set.
+   */
+  static void writeIDSet(final DataOutputStream outputStream,
+                         final EntryIDSet idSet)
+         throws IOException
+  {
+    if (idSet == null)
+    {
+      outputStream.writeInt(0);
+      return;
+    }
+
+    outputStream.writeInt(idSet.size());
+    final Iterator<Integer> iterator = idSet.iterator();
+    while (iterator.hasNext())
+    {
+      outputStream.writeInt(iterator.next());
+    }
+  }
+
+
+
+  /**
+   * Reads the first and last change numbers from the specified snapshot file,
+   * and verifies that it starts with a valid header.
+   *
+   * @param  file  The snapshot file to read.
+   *
+   * @return  An array containing the first and last change numbers.
+   *
+   * @throws  LDAPException  If the file cannot be read or is not a valid
+   *                         snapshot file.
+   */
+  static long[] readChangeNumbers(final File file)
+         throws LDAPException
+  {
+    RandomAccessFile randomAccessFile = null;
+    try
+    {
+      randomAccessFile = new RandomAccessFile(file, "r");
+      final Reader reader = new Reader(randomAccessFile.getChannel());
+      readHeader(reader, file);
+      return new long[] { reader.readLong(), reader.readLong() };
+    }
+    catch (final IOException ioe)
+    {
+      Debug.debugException(ioe);
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           ERR_MEM_SNAPSHOT_CANNOT_READ.get(file.getAbsolutePath(),
+                StaticUtils.getExceptionMessage(ioe)),
+           ioe);
+    }
+    finally
+    {
+      close(randomAccessFile);
+    }
+  }
+
+
+
+  /**
+   * Reads the content of the specified snapshot file.
+   *
+   * @param  file           The snapshot file to read.
+   * @param  schema         The schema to use for the entries, if any.
+   * @param  indexes        The indexes whose data should be read from the
+   *                        file, if it is present.
+   * @param  numIndexSlots  The number of index slots allocated in the data
+   *                        store into which the content will be loaded.
+   *
+   * @return  The content read from the file.
+   *
+   * @throws  LDAPException  If the file cannot be read or is not a valid
+   *                         snapshot file.
+   */
+  static InMemoryDirectoryServerSnapshotFile read(final File file,
+              final Schema schema,
+              final Collection<InMemoryDirectoryServerSnapshotIndex> indexes,
+              final int numIndexSlots)
+         throws LDAPException
+  {
+    RandomAccessFile randomAccessFile = null;
+    try
+    {
+      randomAccessFile = new RandomAccessFile(file, "r");
+      final Reader reader = new Reader(randomAccessFile.getChannel());
+      readHeader(reader, file);
+
+      final long firstChangeNumber = reader.readLong();
+      final long lastChangeNumber = reader.readLong();
+
+      final int numEntries = reader.readInt();
+      final int nextEntryID = reader.readInt();
+      if ((numEntries < 0) || (nextEntryID < numEntries))
+      {
+        throw new IOException(ERR_MEM_SNAPSHOT_MALFORMED.get());
+      }
+
+      final ASN1StreamReader asn1Reader = new ASN1StreamReader(reader);
+      final ArrayList<DN> dns = new ArrayList<DN>(numEntries);
+      final ArrayList<ReadOnlyEntry> entries =
+           new ArrayList<ReadOnlyEntry>(numEntries);
+      final int[] entryIDs = new int[numEntries];
+      final int[] parentPositions = new int[numEntries];
+      final BitSet usedIDs = new BitSet(nextEntryID);
+      for (int i=0; i < numEntries; i++)
+      {
+        entryIDs[i] = reader.readInt();
+        parentPositions[i] = reader.readInt();
+        if ((entryIDs[i] < 0) || (entryIDs[i] >= nextEntryID) ||
+            usedIDs.get(entryIDs[i]) || (parentPositions[i] >= i))
+        {
+          throw new IOException(ERR_MEM_SNAPSHOT_MALFORMED.get());
+        }
+        usedIDs.set(entryIDs[i]);
+
+        final DN dn;
+        if (parentPositions[i] < 0)
+        {
+          dn = new DN(reader.readString(), schema);
+        }
+        else
+        {
+          final int numComponents = reader.readInt();
+          if (numComponents <= 0)
+          {
+            throw new IOException(ERR_MEM_SNAPSHOT_MALFORMED.get());
+          }
+
+          final String[] names = new String[numComponents];
+          final byte[][] values = new byte[numComponents][];
+          for (int j=0; j < numComponents; j++)
+          {
+            names[j] = reader.readString();
+            values[j] = reader.readBytes();
+          }
+
+          dn = new DN(new RDN(names, values, schema),
+               dns.get(parentPositions[i]));
+        }
+
+        dns.add(dn);
+        entries.add(new ReadOnlyEntry(dn, schema,
+             readAttributes(asn1Reader, schema)));
+      }
+
+      final int numChanges = reader.readInt();
+      if (numChanges < 0)
+      {
+        throw new IOException(ERR_MEM_SNAPSHOT_MALFORMED.get());
+      }
+
+      final LinkedHashMap<Long,ReadOnlyEntry> changeLogEntries =
+           new LinkedHashMap<Long,ReadOnlyEntry>(
+                numChanges);
+      for (int i=0; i < numChanges; i++)
+      {
+        final long changeNumber = reader.readLong();
+        final DN dn = new DN(reader.readString(), schema);
+        changeLogEntries.put(changeNumber,
+             new ReadOnlyEntry(dn, schema, readAttributes(asn1Reader, schema)));
+      }
+
+      final HashMap<String,InMemoryDirectoryServerSnapshotIndex> indexesByName =
+           new HashMap<String,InMemoryDirectoryServerSnapshotIndex>(
+                indexes.size());
+      for (final InMemoryDirectoryServerSnapshotIndex i : indexes)
+      {
+        indexesByName.put(i.getSnapshotIndexName(), i);
+      }
+
+      final Object[] indexRoots = new Object[numIndexSlots];
+      final HashSet<InMemoryDirectoryServerSnapshotIndex> loadedIndexes =
+           new HashSet<InMemoryDirectoryServerSnapshotIndex>(
+                indexes.size());
+      final int numIndexes = reader.readInt();
+      for (int i=0; i < numIndexes; i++)
+      {
+        final String name = reader.readString();
+        final long length = reader.readLong();
+        final long start = reader.getPosition();
+
+        final InMemoryDirectoryServerSnapshotIndex index =
+             indexesByName.remove(name);
+        if (index == null)
+        {
+          reader.seek(start + length);
+          continue;
+        }
+
+        index.readSnapshotData(reader, indexRoots);
+        if (reader.getPosition() != (start + length))
+        {
+          throw new IOException(ERR_MEM_SNAPSHOT_MALFORMED.get());
+        }
+        loadedIndexes.add(index);
+      }
+
+      return new InMemoryDirectoryServerSnapshotFile(firstChangeNumber,
+           lastChangeNumber, dns, entries, entryIDs, parentPositions,
+           nextEntryID, changeLogEntries, indexRoots, loadedIndexes);
+    }
+    catch (final IOException ioe)
+    {
+      Debug.debugException(ioe);
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           ERR_MEM_SNAPSHOT_CANNOT_READ.get(file.getAbsolutePath(),
+                StaticUtils.getExceptionMessage(ioe)),
+           ioe);
+    }
+    catch (final LDAPException le)
+    {
+      Debug.debugException(le);
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           ERR_MEM_SNAPSHOT_CANNOT_READ.get(file.getAbsolutePath(),
+                le.getMessage()),
+           le);
+    }
+    finally
+    {
+      close(randomAccessFile);
+    }
+  }
+
+
+
+  /**
+   * Reads the file header from the provided reader and verifies that it is
+   * valid.
+   *
+   * @param  reader  The reader from which to read the header.
+   * @param  file    The file being read.
+   *
+   * @throws  IOException  If the header cannot be read or is not valid.
+   */
+  private static void readHeader(final Reader reader, final File file)
+          throws IOException
+  {
+    final byte[] header = new byte[FILE_HEADER.length];
+    reader.readFully(header);
+    for (int i=0; i < header.length; i++)
+    {
+      if (header[i] != FILE_HEADER[i])
+      {
+        throw new IOException(ERR_MEM_SNAPSHOT_INVALID_HEADER.get(
+             file.getAbsolutePath()));
+      }
+    }
+  }
+
+
+
+  /**
+   * Reads a BER sequence of attributes from the provided reader.
+   *
+   * @param  asn1Reader  The reader from which to read the attributes.
+   * @param  schema      The schema to use for the attributes, if any.
+   *
+   * @return  The attributes that were read.
+   *
+   * @throws  IOException  If the attributes cannot be read.
+   */
+  private static ArrayList<Attribute> readAttributes(
+                                           final ASN1StreamReader asn1Reader,
+                                           final Schema schema)
+          throws IOException
+  {
+    try
+    {
+      final ArrayList<Attribute> attributes = new ArrayList<Attribute>(10);
+      final ASN1StreamReaderSequence attrSequence = asn1Reader.beginSequence();
+      if (attrSequence == null)
+      {
+        throw new EOFException();
+      }
+
+      while (attrSequence.hasMoreElements())
+      {
+        attributes.add(Attribute.readFrom(asn1Reader, schema));
+      }
+
+      return attributes;
+    }
+    catch (final ASN1Exception ae)
+    {
+      Debug.debugException(ae);
+      throw new IOException(ae.getMessage(), ae);
+    }
+    catch (final LDAPException le)
+    {
+      Debug.debugException(le);
+      throw new IOException(le.getMessage(), le);
+    }
+  }
+
+
+
+  /**
+   * Reads an index map in which the keys are octet strings, as written by the
+   * {@link #writeIndexMap} method.
+   *
+   * @param  reader      The reader from which to read the map.
+   * @param  comparator  The comparator used to order keys in the map.
+   *
+   * @return  The map that was read, or {@code null} if it is empty.
+   *
+   * @throws  IOException  If the map cannot be read.
+   */
+  static PersistentSortedMap<ASN1OctetString,EntryIDSet>
+              readOctetStringIndexMap(final Reader reader,
+                   final java.util.Comparator<? super ASN1OctetString>
+                              comparator)
+         throws IOException
+  {
+    final int size = reader.readSize();
+    if (size == 0)
+    {
+      return null;
+    }
+
+    final ArrayList<ASN1OctetString> keys =
+         new ArrayList<ASN1OctetString>(size);
+    final ArrayList<EntryIDSet> values = new ArrayList<EntryIDSet>(size);
+    for (int i=0; i < size; i++)
+    {
+      keys.add(new ASN1OctetString(reader.readBytes()));
+      values.add(readIDSet(reader));
+    }
+
+    return PersistentSortedMap.createFromSorted(comparator, keys, values);
+  }
+
+
+
+  /**
+   * Reads an index map in which the keys are strings, as written by the
+   * {@link #writeIndexMap} method.
+   *
+   * @param  reader      The reader from which to read the map.
+   * @param  comparator  The comparator used to order keys in the map.  It may
+   *                     be {@code null} if the keys use their natural
+   *                     ordering.
+   *
+   * @return  The map that was read, or {@code null} if it is empty.
+   *
+   * @throws  IOException  If the map cannot be read.
+   */
+  static PersistentSortedMap<String,EntryIDSet> readStringIndexMap(
+              final Reader reader,
+              final java.util.Comparator<? super String> comparator)
+         throws IOException
+  {
+    final int size = reader.readSize();
+    if (size == 0)
+    {
+      return null;
+    }
+
+    final ArrayList<String> keys = new ArrayList<String>(size);
+    final ArrayList<EntryIDSet> values = new ArrayList<EntryIDSet>(size);
+    for (int i=0; i < size; i++)
+    {
+      keys.add(reader.readString());
+      values.add(readIDSet(reader));
+    }
+
+    return PersistentSortedMap.createFromSorted(comparator, keys, values);
+  }
+
+
+
+  /**
+   * Reads an entry ID set, as written by the {@link #writeIDSet} method.
+   *
+   * @param  reader  The reader from which to read the set.
+   *
+   * @return  The set that was read.
+   *
+   * @throws  IOException  If the set cannot be read.
+   */
+  static EntryIDSet readIDSet(final Reader reader)
+         throws IOException
+  {
+    final int size = reader.readSize();
+    final EntryIDSet.Builder builder = new EntryIDSet.Builder();
+    int previousID = -1;
+    for (int i=0; i < size; i++)
+    {
+      final int id = reader.readInt();
+      if (id <= previousID)
+      {
+        throw new IOException(ERR_MEM_SNAPSHOT_MALFORMED.get());
+      }
+
+      builder.add(id);
+      previousID = id;
+    }
+
+    return builder.build();
+  }
+
+
+
+  /**
+   * Closes the provided file, if it is not {@code null}.
+   *
+   * @param  randomAccessFile  The file to close.
+   */
+  private static void close(final RandomAccessFile randomAccessFile)
+  {
+    if (randomAccessFile != null)
+    {
+      try
+      {
+        randomAccessFile.close();
+      }
+      catch (final IOException ioe)
+      {
+        Debug.debugException(ioe);
+      }
+    }
+  }
+
+
+
+  /**
+   * This class provides an input stream that reads a snapshot file through
+   * memory-mapped regions of the file.  Only one region of the file is mapped
+   * at any time, and a new region is mapped whenever data beyond the end of the
+   * current region is needed, so files larger than the maximum size of a
+   * single mapping can be read.  It supports the mark and reset methods, so it
+   * may be used directly by an {@code ASN1StreamReader} along with the other
+   * methods that it provides.
+   */
+  @NotMutable()
+  @ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+  static final class Reader
+         extends InputStream
+  {
+    // The region of the file that is currently mapped, if any.
+    private MappedByteBuffer buffer;
+
+    // The channel used to access the file.
+    private final FileChannel channel;
+
+    // The size of the file.
+    private final long fileSize;
+
+    // The position in the file at which the current region starts.
+    private long bufferStart;
+
+    // The position in the file that has been marked.
+    private long markPosition;
+
+
+
+    /**
+     * Creates a new reader for the file accessed by the provided channel.
+     *
+     * @param  channel  The channel used to access the file.
+     *
+     * @throws  IOException  If the size of the file cannot be determined.
+     */
+    private Reader(final FileChannel channel)
+            throws IOException
+    {
+      this.channel = channel;
+
+      fileSize     = channel.size();
+      buffer       = null;
+      bufferStart  = 0L;
+      markPosition = 0L;
+    }
+
+
+
+    /**
+     * Retrieves the current position in the file.
+     *
+     * @return  The current position in the file.
+     */
+    long getPosition()
+    {
+      if (buffer == null)
+      {
+        return bufferStart;
+      }
+      else
+      {
+        return bufferStart + buffer.position();
+      }
+    }
+
+
+
+    /**
+     * Moves to the specified position in the file.
+     *
+     * @param  position  The position to which to move.
+     *
+     * @throws  IOException  If the position is beyond the end of the file.
+     */
+    void seek(final long position)
+         throws IOException
+    {
+      if ((position < 0L) || (position > fileSize))
+      {
+        throw new EOFException();
+      }
+
+      if ((buffer != null) && (position >= bufferStart) &&
+          (position <= (bufferStart + buffer.limit())))
+      {
+        buffer.position((int) (position - bufferStart));
+      }
+      else
+      {
+        buffer = null;
+        bufferStart = position;
+      }
+    }
+
+
+
+    /**
+     * Ensures that at least the specified number of bytes can be read from the
+     * current region, mapping a new region if necessary.
+     *
+     * @param  length  The number of bytes that must be available.
+     *
+     * @throws  IOException  If there are not enough bytes remaining in the
+     *                       file, or if a new region cannot be mapped.
+     */
+    private void ensureAvailable(final int length)
+            throws IOException
+    {
+      if ((buffer != null) && (buffer.remaining() >= length))
+      {
+        return;
+      }
+
+      final long position = getPosition();
+      if ((position + length) > fileSize)
+      {
+        throw new EOFException();
+      }
+
+      final long regionSize = Math.max(length,
+           Math.min(MAX_MAPPED_REGION_SIZE, fileSize - position));
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+           regionSize);
+      bufferStart = position;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public int read()
+           throws IOException
+    {
+      if (getPosition() >= fileSize)
+      {
+        return -1;
+      }
+
+      ensureAvailable(1);
+      return (buffer.get() & 0xFF);
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public int read(final byte[] b, final int offset, final int length)
+           throws IOException
+    {
+      if (length == 0)
+      {
+        return 0;
+      }
+
+      final long remaining = fileSize - getPosition();
+      if (remaining <= 0L)
+      {
+        return -1;
+      }
+
+      final int bytesToRead = (int) Math.min(length, remaining);
+      int bytesRead = 0;
+      while (bytesRead < bytesToRead)
+      {
+        ensureAvailable(1);
+        final int n = Math.min(bytesToRead - bytesRead, buffer.remaining());
+        buffer.get(b, offset + bytesRead, n);
+        bytesRead += n;
+      }
+
+      return bytesRead;
+    }
+
+
+
+    /**
+     * Reads enough bytes to fill the provided array.
+     *
+     * @param  b  The array to fill.
+     *
+     * @throws  IOException  If the end of the file is reached before the array
+     *                       has been filled.
+     */
+    void readFully(final byte[] b)
+         throws IOException
+    {
+      if ((b.length > 0) && (read(b, 0, b.length) != b.length))
+      {
+        throw new EOFException();
+      }
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public long skip(final long n)
+           throws IOException
+    {
+      final long position = getPosition();
+      final long bytesToSkip = Math.max(0L, Math.min(n, fileSize - position));
+      seek(position + bytesToSkip);
+      return bytesToSkip;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public int available()
+    {
+      return (int) Math.min(Integer.MAX_VALUE, fileSize - getPosition());
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public boolean markSupported()
+    {
+      return true;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public void mark(final int readLimit)
+    {
+      markPosition = getPosition();
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public void reset()
+           throws IOException
+    {
+      seek(markPosition);
+    }
+
+
+
+    /**
+     * Reads a four-byte integer.
+     *
+     * @return  The integer that was read.
+     *
+     * @throws  IOException  If the end of the file has been reached.
+     */
+    int readInt()
+        throws IOException
+    {
+      ensureAvailable(4);
+      return buffer.getInt();
+    }
+
+
+
+    /**
+     * Reads an eight-byte integer.
+     *
+     * @return  The integer that was read.
+     *
+     * @throws  IOException  If the end of the file has been reached.
+     */
+    long readLong()
+         throws IOException
+    {
+      ensureAvailable(8);
+      return buffer.getLong();
+    }
+
+
+
+    /**
+     * Reads a four-byte integer that represents the number of elements or
+     * bytes that follow, and verifies that it is not negative.
+     *
+     * @return  The size that was read.
+     *
+     * @throws  IOException  If the end of the file has been reached or if the
+     *                       size is negative.
+     */
+    int readSize()
+        throws IOException
+    {
+      final int size = readInt();
+      if (size < 0)
+      {
+        throw new IOException(ERR_MEM_SNAPSHOT_MALFORMED.get());
+      }
+
+      return size;
+    }
+
+
+
+    /**
+     * Reads a byte array that is preceded by its length.
+     *
+     * @return  The byte array that was read.
+     *
+     * @throws  IOException  If the end of the file has been reached or if the
+     *                       length is not valid.
+     */
+    byte[] readBytes()
+           throws IOException
+    {
+      final int length = readSize();
+      if (length > (fileSize - getPosition()))
+      {
+        throw new EOFException();
+      }
+
+      final byte[] b = new byte[length];
+      readFully(b);
+      return b;
+    }
+
+
+
+    /**
+     * Reads a UTF-8 string that is preceded by its length.
+     *
+     * @return  The string that was read.
+     *
+     * @throws  IOException  If the end of the file has been reached or if the
+     *                       length is not valid.
+     */
+    String readString()
+           throws IOException
+    {
+      return StaticUtils.toUTF8String(readBytes());
+    }
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This interface defines an API that may be implemented by an index of the
+ * in-memory directory server whose data can be written to a snapshot file and
+ * later read back from it, so that the index does not need to be rebuilt from
+ * the entries when the snapshot file is loaded.  Any index that does not
+ * implement this interface, or whose data is not present in a snapshot file,
+ * will be rebuilt from the entries using an
+ * {@link InMemoryDirectoryServerIndexBuilder}.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.INTERFACE_NOT_THREADSAFE)
+interface InMemoryDirectoryServerSnapshotIndex
+{
+  /**
+   * Retrieves the name that identifies the data for this index in a snapshot
+   * file.  It must be different for any two indexes that may be defined in
+   * the same server, and it must incorporate anything about the configuration
+   * of the index that affects its content, so that the data will only be read
+   * by an index that would have created the same data.
+   *
+   * @return  The name that identifies the data for this index in a snapshot
+   *          file.
+   */
+  String getSnapshotIndexName();
+
+
+
+  /**
+   * Writes the data held by this index in the provided version of the data
+   * store to the given output stream.
+   *
+   * @param  version       The version of the data store whose index data
+   *                       should be written.
+   * @param  outputStream  The output stream to which the data should be
+   *                       written.
+   *
+   * @throws  IOException  If a problem occurs while writing the data.
+   */
+  void writeSnapshotData(final InMemoryDirectoryServerDataStore.Version version,
+                         final DataOutputStream outputStream)
+       throws IOException;
+
+
+
+  /**
+   * Reads the data for this index, as written by the
+   * {@link #writeSnapshotData} method, from the provided reader.
+   *
+   * @param  reader      The reader from which the data should be read.
+   * @param  indexRoots  The array in which to place the data read for each of
+   *                     the slots used by this index.
+   *
+   * @throws  IOException  If a problem occurs while reading the data, or if
+   *                       the data is malformed.
+   */
+  void readSnapshotData(final InMemoryDirectoryServerSnapshotFile.Reader reader,
+                        final Object[] indexRoots)
+       throws IOException;
+}
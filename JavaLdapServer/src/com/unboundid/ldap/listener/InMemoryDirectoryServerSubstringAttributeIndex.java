@@ -0,0 +1,897 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.matchingrules.MatchingRule;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.schema.AttributeTypeDefinition;
+import com.unboundid.ldap.sdk.schema.Schema;
+import com.unboundid.util.Debug;
+import com.unboundid.util.Mutable;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+import static com.unboundid.ldap.listener.ListenerMessages.*;
+
+
+
+/**
+ * This class provides a data structure for maintaining a substring index for a
+ * specified attribute.  Each normalized value is indexed by a set of keys with
+ * a fixed maximum length:  an initial key containing the start of the value,
+ * and a substring key starting at each position in the value.  A substring
+ * assertion can then be processed by looking up the keys that start with each
+ * of its components.  The set of entries obtained from the index may include
+ * some that do not actually match the assertion, so the assertion must still
+ * be evaluated against each of them.
+ * <BR><BR>
+ * The index data is held in the server data store, so that it is versioned
+ * along with the entries to which it applies.
+ */
+@Mutable()
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+final class InMemoryDirectoryServerSubstringAttributeIndex
+      implements InMemoryDirectoryServerSnapshotIndex
+{
+  /**
+   * The maximum length in bytes of the keys used for the index.
+   */
+  static final int KEY_LENGTH = 6;
+
+
+
+  // The attribute type with which this index is associated.
+  private final AttributeTypeDefinition attributeType;
+
+  // The data store that holds the index data.
+  private final InMemoryDirectoryServerDataStore dataStore;
+
+  // The slot in the data store that holds the initial keys.
+  private final int initialSlot;
+
+  // The slot in the data store that holds the substring keys.
+  private final int substringSlot;
+
+  // The matching rule used to normalize values.
+  private final MatchingRule matchingRule;
+
+  // The schema for the server.
+  private final Schema schema;
+
+
+
+  /**
+   * Creates a new substring attribute index for the specified attribute type.
+   *
+   * @param  attributeType  The name or OID of the attribute type with which
+   *                        this index is associated.  It must be defined in the
+   *                        schema.
+   * @param  schema         The schema for the server.  It must not be
+   *                        {@code null}.
+   * @param  dataStore      The data store that will hold the index data.
+   *
+   * @throws  LDAPException  If the specified attribute type is not defined in
+   *                         the schema.
+   */
+  InMemoryDirectoryServerSubstringAttributeIndex(final String attributeType,
+       final Schema schema, final InMemoryDirectoryServerDataStore dataStore)
+       throws LDAPException
+  {
+    this.schema = schema;
+    if (schema == null)
+    {
+      throw new LDAPException(ResultCode.PARAM_ERROR,
+           ERR_DS_SUBSTRING_INDEX_NO_SCHEMA.get(attributeType));
+    }
+
+    this.attributeType = schema.getAttributeType(attributeType);
+    if (this.attributeType == null)
+    {
+      throw new LDAPException(ResultCode.PARAM_ERROR,
+           ERR_DS_SUBSTRING_INDEX_UNDEFINED_ATTRIBUTE_TYPE.get(attributeType));
+    }
+
+    matchingRule = MatchingRule.selectSubstringMatchingRule(attributeType,
+         schema);
+
+    this.dataStore = dataStore;
+    initialSlot = dataStore.createIndexSlot();
+    substringSlot = dataStore.createIndexSlot();
+  }
+
+
+
+  /**
+   * Retrieves the attribute type definition for this index.
+   *
+   * @return  The attribute type definition for this index.
+   */
+  AttributeTypeDefinition getAttributeType()
+  {
+    return attributeType;
+  }
+
+
+
+  /**
+   * Retrieves the map from keys to the IDs of entries with values containing
+   * those keys, as visible to the calling thread.
+   *
+   * @param  slot  The slot that holds the map to retrieve.
+   *
+   * @return  The map from keys to the IDs of entries with values containing
+   *          those keys.
+   */
+  @SuppressWarnings("unchecked")
+  private PersistentSortedMap<ASN1OctetString,EntryIDSet> getIndexMap(
+               final int slot)
+  {
+    final Object root = dataStore.getIndexRoot(slot);
+    if (root == null)
+    {
+      return new PersistentSortedMap<ASN1OctetString,EntryIDSet>(
+           InMemoryDirectoryServerEqualityAttributeIndex.VALUE_COMPARATOR);
+    }
+    else
+    {
+      return (PersistentSortedMap<ASN1OctetString,EntryIDSet>) root;
+    }
+  }
+
+
+
+  /**
+   * Clears all index data for the associated attribute.
+   */
+  void clear()
+  {
+    dataStore.setIndexRoot(initialSlot, null);
+    dataStore.setIndexRoot(substringSlot, null);
+  }
+
+
+
+  /**
+   * Retrieves the IDs of the entries that may match a substring assertion with
+   * the provided components for the associated attribute.
+   *
+   * @param  subInitial  The subInitial component for the assertion, or
+   *                     {@code null} if there is none.
+   * @param  subAny      The subAny components for the assertion.  It may be
+   *                     {@code null} or empty if there are none.
+   * @param  subFinal    The subFinal component for the assertion, or
+   *                     {@code null} if there is none.
+   *
+   * @return  A set containing the IDs of the entries that may match the
+   *          assertion, or {@code null} if the index cannot be used to narrow
+   *          down the set of entries (e.g., because all of the components are
+   *          empty).  The set may include IDs of entries that do not actually
+   *          match the assertion.
+   *
+   * @throws  LDAPException  If a problem is encountered while attempting to
+   *                         make the determination (e.g., if a component is
+   *                         not acceptable for the associated attribute type).
+   */
+  EntryIDSet getCandidateEntries(final ASN1OctetString subInitial,
+                                 final ASN1OctetString[] subAny,
+                                 final ASN1OctetString subFinal)
+             throws LDAPException
+  {
+    EntryIDSet candidateSet = null;
+
+    if (subInitial != null)
+    {
+      final byte[] b = matchingRule.normalizeSubstring(subInitial,
+           MatchingRule.SUBSTRING_TYPE_SUBINITIAL).getValue();
+      if (b.length > 0)
+      {
+        candidateSet = intersect(candidateSet, getEntriesForPrefix(
+             getIndexMap(initialSlot), b, 0, Math.min(b.length, KEY_LENGTH)));
+      }
+    }
+
+    if (subAny != null)
+    {
+      for (final ASN1OctetString s : subAny)
+      {
+        final byte[] b = matchingRule.normalizeSubstring(s,
+             MatchingRule.SUBSTRING_TYPE_SUBANY).getValue();
+        candidateSet = intersect(candidateSet, getEntriesForSubstring(b));
+      }
+    }
+
+    if (subFinal != null)
+    {
+      final byte[] b = matchingRule.normalizeSubstring(subFinal,
+           MatchingRule.SUBSTRING_TYPE_SUBFINAL).getValue();
+      if ((b.length > 0) && (b.length < KEY_LENGTH))
+      {
+        // A key that is shorter than the maximum key length can only have
+        // come from the end of a value, so an exact match on the key is
+        // sufficient.
+        final EntryIDSet idSet =
+             getIndexMap(substringSlot).get(createKey(b, 0, b.length));
+        if (idSet == null)
+        {
+          return EntryIDSet.EMPTY;
+        }
+        candidateSet = intersect(candidateSet, idSet);
+      }
+      else
+      {
+        candidateSet = intersect(candidateSet, getEntriesForSubstring(b));
+      }
+    }
+
+    return candidateSet;
+  }
+
+
+
+  /**
+   * Estimates the number of entries that may match a substring assertion with
+   * the provided components for the associated attribute.  The estimate is
+   * based on the number of keys that start with each component and the number
+   * of entries associated with a sample of those keys.
+   *
+   * @param  subInitial  The subInitial component for the assertion, or
+   *                     {@code null} if there is none.
+   * @param  subAny      The subAny components for the assertion.  It may be
+   *                     {@code null} or empty if there are none.
+   * @param  subFinal    The subFinal component for the assertion, or
+   *                     {@code null} if there is none.
+   *
+   * @return  The estimated number of entries that may match the assertion, or
+   *          -1 if the index cannot be used to narrow down the set of entries.
+   *
+   * @throws  LDAPException  If a problem is encountered while attempting to
+   *                         make the determination (e.g., if a component is
+   *                         not acceptable for the associated attribute type).
+   */
+  long estimateCandidateEntries(final ASN1OctetString subInitial,
+                                final ASN1OctetString[] subAny,
+                                final ASN1OctetString subFinal)
+       throws LDAPException
+  {
+    long estimate = -1L;
+
+    if (subInitial != null)
+    {
+      final byte[] b = matchingRule.normalizeSubstring(subInitial,
+           MatchingRule.SUBSTRING_TYPE_SUBINITIAL).getValue();
+      if (b.length > 0)
+      {
+        estimate = min(estimate,
+             estimatePrefix(getIndexMap(initialSlot), b));
+      }
+    }
+
+    if (subAny != null)
+    {
+      for (final ASN1OctetString s : subAny)
+      {
+        final byte[] b = matchingRule.normalizeSubstring(s,
+             MatchingRule.SUBSTRING_TYPE_SUBANY).getValue();
+        if (b.length > 0)
+        {
+          estimate = min(estimate,
+               estimatePrefix(getIndexMap(substringSlot), b));
+        }
+      }
+    }
+
+    if (subFinal != null)
+    {
+      final byte[] b = matchingRule.normalizeSubstring(subFinal,
+           MatchingRule.SUBSTRING_TYPE_SUBFINAL).getValue();
+      if ((b.length > 0) && (b.length < KEY_LENGTH))
+      {
+        final EntryIDSet idSet =
+             getIndexMap(substringSlot).get(createKey(b, 0, b.length));
+        estimate = min(estimate, ((idSet == null) ? 0L : idSet.size()));
+      }
+      else if (b.length > 0)
+      {
+        estimate = min(estimate,
+             estimatePrefix(getIndexMap(substringSlot), b));
+      }
+    }
+
+    return estimate;
+  }
+
+
+
+  /**
+   * Estimates the number of entries associated with the keys in the provided
+   * map that start with the first part of the given byte array.
+   *
+   * @param  indexMap  The index map to examine.
+   * @param  b         The byte array containing the prefix.  At most the
+   *                   maximum key length will be used.
+   *
+   * @return  The estimated number of entries associated with the keys that
+   *          start with the prefix.
+   */
+  private static long estimatePrefix(
+       final PersistentSortedMap<ASN1OctetString,EntryIDSet> indexMap,
+       final byte[] b)
+  {
+    final int length = Math.min(b.length, KEY_LENGTH);
+    final int startPos = indexMap.indexOf(createKey(b, 0, length));
+    final int fromIndex = (startPos >= 0) ? startPos : -(startPos + 1);
+
+    // The keys that start with the prefix end just before the smallest key
+    // that is greater than all of them, which can be obtained by incrementing
+    // the last byte of the prefix that can be incremented.
+    int toIndex = indexMap.size();
+    for (int i=(length - 1); i >= 0; i--)
+    {
+      if ((b[i] & 0xFF) != 0xFF)
+      {
+        final byte[] endKey = new byte[i + 1];
+        System.arraycopy(b, 0, endKey, 0, (i + 1));
+        endKey[i]++;
+
+        final int endPos = indexMap.indexOf(new ASN1OctetString(endKey));
+        toIndex = (endPos >= 0) ? endPos : -(endPos + 1);
+        break;
+      }
+    }
+
+    return EntryIDSet.estimateUnionSize(indexMap, fromIndex, toIndex);
+  }
+
+
+
+  /**
+   * Retrieves the smaller of the provided estimates.
+   *
+   * @param  estimate1  The first estimate, or -1 if it is not available.
+   * @param  estimate2  The second estimate.  It must not be negative.
+   *
+   * @return  The smaller of the provided estimates.
+   */
+  private static long min(final long estimate1, final long estimate2)
+  {
+    if (estimate1 < 0L)
+    {
+      return estimate2;
+    }
+    else
+    {
+      return Math.min(estimate1, estimate2);
+    }
+  }
+
+
+
+  /**
+   * Retrieves the IDs of the entries with values that contain the provided
+   * substring.  If the substring is longer than the maximum key length, then
+   * it will be broken into a number of pieces that are each looked up
+   * separately.
+   *
+   * @param  b  The normalized substring to look up.
+   *
+   * @return  A set containing the IDs of the entries with values that may
+   *          contain the provided substring, or {@code null} if the substring
+   *          is empty.
+   */
+  private EntryIDSet getEntriesForSubstring(final byte[] b)
+  {
+    if (b.length == 0)
+    {
+      return null;
+    }
+
+    final PersistentSortedMap<ASN1OctetString,EntryIDSet> indexMap =
+         getIndexMap(substringSlot);
+    if (b.length <= KEY_LENGTH)
+    {
+      return getEntriesForPrefix(indexMap, b, 0, b.length);
+    }
+
+    EntryIDSet candidateSet = null;
+    int pos = 0;
+    while (true)
+    {
+      final int start = Math.min(pos, (b.length - KEY_LENGTH));
+      candidateSet = intersect(candidateSet,
+           getEntriesForPrefix(indexMap, b, start, KEY_LENGTH));
+      if (candidateSet.isEmpty() || ((start + KEY_LENGTH) >= b.length))
+      {
+        return candidateSet;
+      }
+
+      pos += KEY_LENGTH;
+    }
+  }
+
+
+
+  /**
+   * Retrieves the IDs of the entries associated with all keys in the provided
+   * map that start with the specified portion of the given byte array.
+   *
+   * @param  indexMap  The index map to examine.
+   * @param  b         The byte array containing the prefix.
+   * @param  offset    The position in the array at which the prefix starts.
+   * @param  length    The number of bytes in the prefix.
+   *
+   * @return  A set containing the IDs of the entries associated with all keys
+   *          that start with the specified prefix.
+   */
+  private static EntryIDSet getEntriesForPrefix(
+       final PersistentSortedMap<ASN1OctetString,EntryIDSet> indexMap,
+       final byte[] b, final int offset, final int length)
+  {
+    final ASN1OctetString prefixKey = createKey(b, offset, length);
+    final byte[] prefix = prefixKey.getValue();
+
+    final ArrayList<EntryIDSet> idSets = new ArrayList<EntryIDSet>();
+    final Iterator<Map.Entry<ASN1OctetString,EntryIDSet>> iterator =
+         indexMap.iterator(prefixKey, true);
+    while (iterator.hasNext())
+    {
+      final Map.Entry<ASN1OctetString,EntryIDSet> e = iterator.next();
+      if (! startsWith(e.getKey().getValue(), prefix))
+      {
+        break;
+      }
+
+      idSets.add(e.getValue());
+    }
+
+    return EntryIDSet.union(idSets);
+  }
+
+
+
+  /**
+   * Creates an index key from the specified portion of the provided byte array.
+   *
+   * @param  b       The byte array containing the key.
+   * @param  offset  The position in the array at which the key starts.
+   * @param  length  The number of bytes in the key.
+   *
+   * @return  The index key that was created.
+   */
+  private static ASN1OctetString createKey(final byte[] b, final int offset,
+                                           final int length)
+  {
+    // The key must not share the provided array, since the octet string would
+    // otherwise create a copy of the key bytes the first time they are
+    // accessed, and keys may be accessed by multiple threads at once.
+    final byte[] keyBytes = new byte[length];
+    System.arraycopy(b, offset, keyBytes, 0, length);
+    return new ASN1OctetString(keyBytes);
+  }
+
+
+
+  /**
+   * Indicates whether the provided byte array starts with the given prefix.
+   *
+   * @param  b       The byte array to examine.
+   * @param  prefix  The prefix for which to make the determination.
+   *
+   * @return  {@code true} if the provided byte array starts with the given
+   *          prefix, or {@code false} if not.
+   */
+  private static boolean startsWith(final byte[] b, final byte[] prefix)
+  {
+    if (b.length < prefix.length)
+    {
+      return false;
+    }
+
+    for (int i=0; i < prefix.length; i++)
+    {
+      if (b[i] != prefix[i])
+      {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+
+
+  /**
+   * Retrieves the intersection of the provided sets.
+   *
+   * @param  candidateSet  The current candidate set, or {@code null} if there
+   *                       is none yet.
+   * @param  idSet         The set to intersect with the candidate set, or
+   *                       {@code null} if the candidate set should not be
+   *                       altered.
+   *
+   * @return  The intersection of the provided sets.
+   */
+  private static EntryIDSet intersect(final EntryIDSet candidateSet,
+                                      final EntryIDSet idSet)
+  {
+    if (idSet == null)
+    {
+      return candidateSet;
+    }
+    else if (candidateSet == null)
+    {
+      return idSet;
+    }
+    else
+    {
+      return candidateSet.and(idSet);
+    }
+  }
+
+
+
+  /**
+   * Retrieves the keys that should be used to index the provided entry.
+   *
+   * @param  entry          The entry for which to retrieve the keys.
+   * @param  initialKeys    The set to which the initial keys should be added.
+   * @param  substringKeys  The set to which the substring keys should be
+   *                        added.
+   *
+   * @throws  LDAPException  If the entry has one or more values that are not
+   *                         acceptable for the associated attribute type.
+   */
+  private void getKeys(final Entry entry,
+                       final Set<ASN1OctetString> initialKeys,
+                       final Set<ASN1OctetString> substringKeys)
+          throws LDAPException
+  {
+    final Attribute a =
+         entry.getAttribute(attributeType.getNameOrOID(), schema);
+    if (a == null)
+    {
+      return;
+    }
+
+    for (final ASN1OctetString rawValue : a.getRawValues())
+    {
+      final byte[] b = matchingRule.normalize(rawValue).getValue();
+      if (b.length == 0)
+      {
+        continue;
+      }
+
+      initialKeys.add(createKey(b, 0, Math.min(b.length, KEY_LENGTH)));
+      for (int i=0; i < b.length; i++)
+      {
+        substringKeys.add(
+             createKey(b, i, Math.min((b.length - i), KEY_LENGTH)));
+      }
+    }
+  }
+
+
+
+  /**
+   * Performs the necessary processing for adding the given entry.
+   *
+   * @param  entry    The entry to be added.
+   * @param  entryID  The ID assigned to the entry.
+   *
+   * @throws  LDAPException  If a problem is encountered (e.g., the entry has
+   *                         one or more values that are not acceptable for the
+   *                         associated attribute type).
+   */
+  void processAdd(final Entry entry, final int entryID)
+       throws LDAPException
+  {
+    final LinkedHashSet<ASN1OctetString> initialKeys =
+         new LinkedHashSet<ASN1OctetString>(10);
+    final LinkedHashSet<ASN1OctetString> substringKeys =
+         new LinkedHashSet<ASN1OctetString>(20);
+    getKeys(entry, initialKeys, substringKeys);
+    if (initialKeys.isEmpty())
+    {
+      return;
+    }
+
+    dataStore.setIndexRoot(initialSlot,
+         addKeys(getIndexMap(initialSlot), initialKeys, entryID));
+    dataStore.setIndexRoot(substringSlot,
+         addKeys(getIndexMap(substringSlot), substringKeys, entryID));
+  }
+
+
+
+  /**
+   * Performs the necessary processing for deleting the given entry.
+   *
+   * @param  entry    The entry to be deleted.
+   * @param  entryID  The ID assigned to the entry.
+   *
+   * @throws  LDAPException  If a problem is encountered (e.g., the entry has
+   *                         one or more values that are not acceptable for the
+   *                         associated attribute type).
+   */
+  void processDelete(final Entry entry, final int entryID)
+       throws LDAPException
+  {
+    final LinkedHashSet<ASN1OctetString> initialKeys =
+         new LinkedHashSet<ASN1OctetString>(10);
+    final LinkedHashSet<ASN1OctetString> substringKeys =
+         new LinkedHashSet<ASN1OctetString>(20);
+    getKeys(entry, initialKeys, substringKeys);
+    if (initialKeys.isEmpty())
+    {
+      return;
+    }
+
+    dataStore.setIndexRoot(initialSlot,
+         removeKeys(getIndexMap(initialSlot), initialKeys, entryID));
+    dataStore.setIndexRoot(substringSlot,
+         removeKeys(getIndexMap(substringSlot), substringKeys, entryID));
+  }
+
+
+
+  /**
+   * Creates a builder that may be used to build the complete data for this
+   * index from scratch.
+   *
+   * @return  The builder that was created.
+   */
+  InMemoryDirectoryServerIndexBuilder createBuilder()
+  {
+    return new IndexBuilder();
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  public String getSnapshotIndexName()
+  {
+    return "substring:" + attributeType.getOID() + ':' +
+         matchingRule.getSubstringMatchingRuleOID() + ':' + KEY_LENGTH;
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @SuppressWarnings("unchecked")
+  public void writeSnapshotData(
+                   final InMemoryDirectoryServerDataStore.Version version,
+                   final DataOutputStream outputStream)
+         throws IOException
+  {
+    InMemoryDirectoryServerSnapshotFile.writeIndexMap(outputStream,
+         (PersistentSortedMap<ASN1OctetString,EntryIDSet>)
+              version.getIndexRoot(initialSlot));
+    InMemoryDirectoryServerSnapshotFile.writeIndexMap(outputStream,
+         (PersistentSortedMap<ASN1OctetString,EntryIDSet>)
+              version.getIndexRoot(substringSlot));
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  public void readSnapshotData(
+                   final InMemoryDirectoryServerSnapshotFile.Reader reader,
+                   final Object[] indexRoots)
+         throws IOException
+  {
+    indexRoots[initialSlot] = InMemoryDirectoryServerSnapshotFile.
+         readOctetStringIndexMap(reader,
+              InMemoryDirectoryServerEqualityAttributeIndex.VALUE_COMPARATOR);
+    indexRoots[substringSlot] = InMemoryDirectoryServerSnapshotFile.
+         readOctetStringIndexMap(reader,
+              InMemoryDirectoryServerEqualityAttributeIndex.VALUE_COMPARATOR);
+  }
+
+
+
+  /**
+   * Associates the provided entry ID with each of the given keys.
+   *
+   * @param  indexMap  The index map to update.
+   * @param  keys      The keys with which to associate the entry ID.
+   * @param  entryID   The entry ID to associate with the keys.
+   *
+   * @return  The updated index map.
+   */
+  private static PersistentSortedMap<ASN1OctetString,EntryIDSet> addKeys(
+       final PersistentSortedMap<ASN1OctetString,EntryIDSet> indexMap,
+       final Set<ASN1OctetString> keys, final int entryID)
+  {
+    PersistentSortedMap<ASN1OctetString,EntryIDSet> m = indexMap;
+    for (final ASN1OctetString k : keys)
+    {
+      EntryIDSet idSet = m.get(k);
+      if (idSet == null)
+      {
+        idSet = EntryIDSet.EMPTY;
+      }
+      m = m.put(k, idSet.add(entryID));
+    }
+
+    return m;
+  }
+
+
+
+  /**
+   * Removes the association between the provided entry ID and each of the
+   * given keys.
+   *
+   * @param  indexMap  The index map to update.
+   * @param  keys      The keys with which the entry ID should no longer be
+   *                   associated.
+   * @param  entryID   The entry ID to remove from the keys.
+   *
+   * @return  The updated index map.
+   */
+  private static PersistentSortedMap<ASN1OctetString,EntryIDSet> removeKeys(
+       final PersistentSortedMap<ASN1OctetString,EntryIDSet> indexMap,
+       final Set<ASN1OctetString> keys, final int entryID)
+  {
+    PersistentSortedMap<ASN1OctetString,EntryIDSet> m = indexMap;
+    for (final ASN1OctetString k : keys)
+    {
+      final EntryIDSet idSet = m.get(k);
+      if (idSet != null)
+      {
+        final EntryIDSet newIDSet = idSet.remove(entryID);
+        if (newIDSet.isEmpty())
+        {
+          m = m.remove(k);
+        }
+        else
+        {
+          m = m.put(k, newIDSet);
+        }
+      }
+    }
+
+    return m;
+  }
+
+
+
+  /**
+   * This class provides a builder for the data held in this index.
+   */
+  private final class IndexBuilder
+          extends InMemoryDirectoryServerIndexBuilder
+  {
+    // The set builders for each initial key.
+    private final TreeMap<ASN1OctetString,EntryIDSet.Builder> initialBuilders;
+
+    // The set builders for each substring key.
+    private final TreeMap<ASN1OctetString,EntryIDSet.Builder>
+         substringBuilders;
+
+    // The index map for the initial keys that was built.
+    private PersistentSortedMap<ASN1OctetString,EntryIDSet> initialMap;
+
+    // The index map for the substring keys that was built.
+    private PersistentSortedMap<ASN1OctetString,EntryIDSet> substringMap;
+
+
+
+    /**
+     * Creates a new builder for this index.
+     */
+    private IndexBuilder()
+    {
+      initialBuilders = new TreeMap<ASN1OctetString,EntryIDSet.Builder>(
+           InMemoryDirectoryServerEqualityAttributeIndex.VALUE_COMPARATOR);
+      substringBuilders = new TreeMap<ASN1OctetString,EntryIDSet.Builder>(
+           InMemoryDirectoryServerEqualityAttributeIndex.VALUE_COMPARATOR);
+      initialMap = null;
+      substringMap = null;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    void processAdd(final Entry entry, final int entryID)
+    {
+      final LinkedHashSet<ASN1OctetString> initialKeys =
+           new LinkedHashSet<ASN1OctetString>(10);
+      final LinkedHashSet<ASN1OctetString> substringKeys =
+           new LinkedHashSet<ASN1OctetString>(20);
+      try
+      {
+        getKeys(entry, initialKeys, substringKeys);
+      }
+      catch (final LDAPException le)
+      {
+        Debug.debugException(le);
+        return;
+      }
+
+      for (final ASN1OctetString k : initialKeys)
+      {
+        addEntryID(initialBuilders, k, entryID);
+      }
+
+      for (final ASN1OctetString k : substringKeys)
+      {
+        addEntryID(substringBuilders, k, entryID);
+      }
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    void build()
+    {
+      initialMap = createIndexMap(
+           new PersistentSortedMap<ASN1OctetString,EntryIDSet>(
+                InMemoryDirectoryServerEqualityAttributeIndex.VALUE_COMPARATOR),
+           initialBuilders);
+      initialBuilders.clear();
+
+      substringMap = createIndexMap(
+           new PersistentSortedMap<ASN1OctetString,EntryIDSet>(
+                InMemoryDirectoryServerEqualityAttributeIndex.VALUE_COMPARATOR),
+           substringBuilders);
+      substringBuilders.clear();
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    void install()
+    {
+      dataStore.setIndexRoot(initialSlot, initialMap);
+      dataStore.setIndexRoot(substringSlot, substringMap);
+    }
+  }
+}
@@ -29,6 +29,7 @@ import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
@@ -83,6 +84,22 @@ import static com.unboundid.ldap.listener.ListenerMessages.*;
  *       file to use to initially populate the server.  If this is not provided,
  *       then the server will initially be empty.  The LDIF file will not be
  *       updated as operations are processed in the server.</LI>
+ *   <LI>"--dataDirectory {path}" -- specifies the path to a directory in
+ *       which the server should keep a journal of the changes made to its
+ *       data, so that the data will be retained when the server is restarted.
+ *       If the journal already contains entries, then the LDIF file will not
+ *       be imported.  If this is not provided, then the data will only be held
+ *       in memory.</LI>
+ *   <LI>"--journalSyncPolicy {policy}" -- specifies when changes written to
+ *       the journal will be forced to disk.  The value may be
+ *       "everyOperation", "periodic", or "none".  If this is not provided,
+ *       then "everyOperation" will be used.</LI>
+ *   <LI>"--journalSyncIntervalMillis {millis}" -- specifies the interval at
+ *       which changes written to the journal will be forced to disk when the
+ *       "periodic" sync policy is used.</LI>
+ *   <LI>"--entryStorageMode {mode}" -- specifies how the server should store
+ *       its entries.  The value may be "heap" or "offHeap".  If this is not
+ *       provided, then "heap" will be used.</LI>
  *   <LI>"-D {bindDN}" or "--additionalBindDN {bindDN}" -- specifies an
  *       additional DN that can be used to authenticate to the server, even if
  *       there is no account for that user.  If this is provided, then the
@@ -132,6 +149,23 @@ import static com.unboundid.ldap.listener.ListenerMessages.*;
  *       index should be maintained for the specified attribute.  The equality
  *       index may be used to speed up certain kinds of searches, although it
  *       will cause the server to consume more memory.</LI>
+ *   <LI>"--substringIndex {attr}" -- specifies that a substring index should
+ *       be maintained for the specified attribute.  The substring index may be
+ *       used to speed up searches with substring filters, although it will
+ *       cause the server to consume more memory.</LI>
+ *   <LI>"--orderingIndex {attr}" -- specifies that an ordering index should
+ *       be maintained for the specified attribute.  The ordering index may be
+ *       used to speed up searches with greater-or-equal and less-or-equal
+ *       filters, although it will cause the server to consume more memory.</LI>
+ *   <LI>"--presenceIndex {attr}" -- specifies that a presence index should
+ *       be maintained for the specified attribute.  The presence index may be
+ *       used to speed up searches with presence filters, although it will
+ *       cause the server to consume more memory.</LI>
+ *   <LI>"--allowConcurrentReads" -- indicates that the server should allow
+ *       search, compare, and bind operations to be processed concurrently
+ *       with other operations, each using the data as it appeared when that
+ *       operation started.  Write operations will still be processed one at
+ *       a time.</LI>
  *   <LI>"-Z" or "--useSSL" -- indicates that the server should encrypt all
  *       communication using SSL.  If this is provided, then the
  *       "--keyStorePath" and "--keyStorePassword" arguments must also be
@@ -187,6 +221,10 @@ public final class InMemoryDirectoryServerTool
   // to standard output.
   private BooleanArgument accessLogToStandardOutArgument;
 
+  // The argument used to indicate that read operations may be processed
+  // concurrently.
+  private BooleanArgument allowConcurrentReadsArgument;
+
   // The argument used to prevent the in-memory server from starting.  This is
   // only intended to be used for internal testing purposes.
   private BooleanArgument dontStartArgument;
@@ -228,6 +266,10 @@ public final class InMemoryDirectoryServerTool
   // initially populate the server.
   private FileArgument ldifFileArgument;
 
+  // The argument used to specify the path to a directory in which the server
+  // should keep a journal of the changes made to its data.
+  private FileArgument dataDirectoryArgument;
+
   // The argument used to specify the path to the SSL trust store file.
   private FileArgument trustStorePathArgument;
 
@@ -245,6 +287,17 @@ public final class InMemoryDirectoryServerTool
   // The argument used to specify the port on which the server should listen.
   private IntegerArgument portArgument;
 
+  // The argument used to specify the interval at which journal changes should
+  // be forced to disk with the periodic sync policy.
+  private IntegerArgument journalSyncIntervalArgument;
+
+  // The argument used to specify the policy that controls when journal changes
+  // should be forced to disk.
+  private StringArgument journalSyncPolicyArgument;
+
+  // The argument used to specify how the server should store its entries.
+  private StringArgument entryStorageModeArgument;
+
   // The argument used to specify the password for the additional bind DN.
   private StringArgument additionalBindPasswordArgument;
 
@@ -252,6 +305,18 @@ public final class InMemoryDirectoryServerTool
   // indexes.
   private StringArgument equalityIndexArgument;
 
+  // The argument used to specify the attributes for which to maintain substring
+  // indexes.
+  private StringArgument substringIndexArgument;
+
+  // The argument used to specify the attributes for which to maintain ordering
+  // indexes.
+  private StringArgument orderingIndexArgument;
+
+  // The argument used to specify the attributes for which to maintain presence
+  // indexes.
+  private StringArgument presenceIndexArgument;
+
   // The argument used to specify the password to use to access the contents of
   // the SSL key store
   private StringArgument keyStorePasswordArgument;
@@ -331,6 +396,7 @@ public final class InMemoryDirectoryServerTool
     super(outStream, errStream);
 
     directoryServer                   = null;
+    allowConcurrentReadsArgument      = null;
     dontStartArgument                 = null;
     useDefaultSchemaArgument          = null;
     useSSLArgument                    = null;
@@ -343,12 +409,19 @@ public final class InMemoryDirectoryServerTool
     ldapDebugLogToStandardOutArgument = null;
     ldapDebugLogFileArgument          = null;
     ldifFileArgument                  = null;
+    dataDirectoryArgument             = null;
     trustStorePathArgument            = null;
     useSchemaFileArgument             = null;
     maxChangeLogEntriesArgument       = null;
     portArgument                      = null;
+    journalSyncIntervalArgument       = null;
+    journalSyncPolicyArgument         = null;
+    entryStorageModeArgument          = null;
     additionalBindPasswordArgument    = null;
     equalityIndexArgument             = null;
+    substringIndexArgument            = null;
+    orderingIndexArgument             = null;
+    presenceIndexArgument             = null;
     keyStorePasswordArgument          = null;
     trustStorePasswordArgument        = null;
     vendorNameArgument                = null;
@@ -414,6 +487,43 @@ public final class InMemoryDirectoryServerTool
          INFO_MEM_DS_TOOL_ARG_DESC_LDIF_FILE.get(), true, true, true, false);
     parser.addArgument(ldifFileArgument);
 
+    dataDirectoryArgument = new FileArgument(null, "dataDirectory", false, 1,
+         INFO_MEM_DS_TOOL_ARG_PLACEHOLDER_PATH.get(),
+         INFO_MEM_DS_TOOL_ARG_DESC_DATA_DIRECTORY.get(), false, false, false,
+         true);
+    parser.addArgument(dataDirectoryArgument);
+
+    final LinkedHashSet<String> syncPolicyNames =
+         new LinkedHashSet<String>(3);
+    for (final InMemoryJournalSyncPolicy p : InMemoryJournalSyncPolicy.values())
+    {
+      syncPolicyNames.add(p.getName());
+    }
+    journalSyncPolicyArgument = new StringArgument(null, "journalSyncPolicy",
+         false, 1, INFO_MEM_DS_TOOL_ARG_PLACEHOLDER_POLICY.get(),
+         INFO_MEM_DS_TOOL_ARG_DESC_JOURNAL_SYNC_POLICY.get(), syncPolicyNames,
+         InMemoryJournalSyncPolicy.EVERY_OPERATION.getName());
+    parser.addArgument(journalSyncPolicyArgument);
+
+    journalSyncIntervalArgument = new IntegerArgument(null,
+         "journalSyncIntervalMillis", false, 1,
+         INFO_MEM_DS_TOOL_ARG_PLACEHOLDER_MILLIS.get(),
+         INFO_MEM_DS_TOOL_ARG_DESC_JOURNAL_SYNC_INTERVAL.get(), 1,
+         Integer.MAX_VALUE, 1000);
+    parser.addArgument(journalSyncIntervalArgument);
+
+    final LinkedHashSet<String> storageModeNames =
+         new LinkedHashSet<String>(2);
+    for (final InMemoryEntryStorageMode m : InMemoryEntryStorageMode.values())
+    {
+      storageModeNames.add(m.getName());
+    }
+    entryStorageModeArgument = new StringArgument(null, "entryStorageMode",
+         false, 1, INFO_MEM_DS_TOOL_ARG_PLACEHOLDER_MODE.get(),
+         INFO_MEM_DS_TOOL_ARG_DESC_ENTRY_STORAGE_MODE.get(), storageModeNames,
+         InMemoryEntryStorageMode.HEAP.getName());
+    parser.addArgument(entryStorageModeArgument);
+
     additionalBindDNArgument = new DNArgument('D', "additionalBindDN", false, 1,
          INFO_MEM_DS_TOOL_ARG_PLACEHOLDER_BIND_DN.get(),
          INFO_MEM_DS_TOOL_ARG_DESC_ADDITIONAL_BIND_DN.get());
@@ -469,6 +579,26 @@ public final class InMemoryDirectoryServerTool
          INFO_MEM_DS_TOOL_ARG_DESC_EQ_INDEX.get());
     parser.addArgument(equalityIndexArgument);
 
+    substringIndexArgument = new StringArgument(null, "substringIndex", false,
+         0, INFO_MEM_DS_TOOL_ARG_PLACEHOLDER_ATTR.get(),
+         INFO_MEM_DS_TOOL_ARG_DESC_SUBSTRING_INDEX.get());
+    parser.addArgument(substringIndexArgument);
+
+    orderingIndexArgument = new StringArgument(null, "orderingIndex", false,
+         0, INFO_MEM_DS_TOOL_ARG_PLACEHOLDER_ATTR.get(),
+         INFO_MEM_DS_TOOL_ARG_DESC_ORDERING_INDEX.get());
+    parser.addArgument(orderingIndexArgument);
+
+    presenceIndexArgument = new StringArgument(null, "presenceIndex", false,
+         0, INFO_MEM_DS_TOOL_ARG_PLACEHOLDER_ATTR.get(),
+         INFO_MEM_DS_TOOL_ARG_DESC_PRESENCE_INDEX.get());
+    parser.addArgument(presenceIndexArgument);
+
+    allowConcurrentReadsArgument = new BooleanArgument(null,
+         "allowConcurrentReads",
+         INFO_MEM_DS_TOOL_ARG_DESC_ALLOW_CONCURRENT_READS.get());
+    parser.addArgument(allowConcurrentReadsArgument);
+
     useSSLArgument = new BooleanArgument('Z', "useSSL",
          INFO_MEM_DS_TOOL_ARG_DESC_USE_SSL.get());
     parser.addArgument(useSSLArgument);
@@ -528,6 +658,11 @@ public final class InMemoryDirectoryServerTool
     parser.addDependentArgumentSet(additionalBindPasswordArgument,
          additionalBindDNArgument);
 
+    parser.addDependentArgumentSet(journalSyncPolicyArgument,
+         dataDirectoryArgument);
+    parser.addDependentArgumentSet(journalSyncIntervalArgument,
+         journalSyncPolicyArgument);
+
     parser.addDependentArgumentSet(useSSLArgument, keyStorePathArgument);
     parser.addDependentArgumentSet(useSSLArgument, keyStorePasswordArgument);
     parser.addDependentArgumentSet(useStartTLSArgument, keyStorePathArgument);
@@ -579,16 +714,29 @@ public final class InMemoryDirectoryServerTool
     }
 
 
-    // If an LDIF file was provided, then use it to populate the server.
-    if (ldifFileArgument.isPresent())
+    // If an LDIF file was provided, then use it to populate the server, unless
+    // the entries have already been restored from the journal.
+    if (ldifFileArgument.isPresent() && dataDirectoryArgument.isPresent() &&
+        (directoryServer.countEntries() > 0))
+    {
+      out(INFO_MEM_DS_TOOL_RECOVERED_ENTRIES_FROM_JOURNAL.get(
+           directoryServer.countEntries(),
+           dataDirectoryArgument.getValue().getAbsolutePath()));
+    }
+    else if (ldifFileArgument.isPresent())
     {
       final File ldifFile = ldifFileArgument.getValue();
       try
       {
-        final int numEntries = directoryServer.importFromLDIF(true,
-             ldifFile.getAbsolutePath());
-        out(INFO_MEM_DS_TOOL_ADDED_ENTRIES_FROM_LDIF.get(numEntries,
-             ldifFile.getAbsolutePath()));
+        final long startTime = System.nanoTime();
+        final int numEntries = directoryServer.bulkImportFromLDIF(true,
+             ldifFile.getAbsolutePath(),
+             Runtime.getRuntime().availableProcessors(), null);
+        final long elapsedMillis =
+             Math.max(1L, (System.nanoTime() - startTime) / 1000000L);
+        out(INFO_MEM_DS_TOOL_ADDED_ENTRIES_FROM_LDIF_WITH_RATE.get(numEntries,
+             ldifFile.getAbsolutePath(), elapsedMillis,
+             (numEntries * 1000L) / elapsedMillis));
       }
       catch (final LDAPException le)
       {
@@ -725,6 +873,23 @@ public final class InMemoryDirectoryServerTool
     }
 
 
+    // If a data directory was specified, then update the configuration with it
+    // and the journal sync settings.
+    if (dataDirectoryArgument.isPresent())
+    {
+      serverConfig.setDataDirectory(dataDirectoryArgument.getValue());
+      serverConfig.setJournalSyncPolicy(InMemoryJournalSyncPolicy.forName(
+           journalSyncPolicyArgument.getValue()));
+      serverConfig.setJournalSyncIntervalMillis(
+           journalSyncIntervalArgument.getValue());
+    }
+
+
+    // Update the configuration with the entry storage mode.
+    serverConfig.setEntryStorageMode(InMemoryEntryStorageMode.forName(
+         entryStorageModeArgument.getValue()));
+
+
     // If a maximum number of changelog entries was specified, then update the
     // configuration with that.
     if (maxChangeLogEntriesArgument.isPresent())
@@ -883,6 +1048,37 @@ public final class InMemoryDirectoryServerTool
            equalityIndexArgument.getValues());
     }
 
+
+    // If substring indexing is to be performed, then configure it.
+    if (substringIndexArgument.isPresent())
+    {
+      serverConfig.setSubstringIndexAttributes(
+           substringIndexArgument.getValues());
+    }
+
+
+    // If ordering indexing is to be performed, then configure it.
+    if (orderingIndexArgument.isPresent())
+    {
+      serverConfig.setOrderingIndexAttributes(
+           orderingIndexArgument.getValues());
+    }
+
+
+    // If presence indexing is to be performed, then configure it.
+    if (presenceIndexArgument.isPresent())
+    {
+      serverConfig.setPresenceIndexAttributes(
+           presenceIndexArgument.getValues());
+    }
+
+
+    // If read operations may be processed concurrently, then configure that.
+    if (allowConcurrentReadsArgument.isPresent())
+    {
+      serverConfig.setAllowConcurrentReads(true);
+    }
+
     return serverConfig;
   }
 
@@ -0,0 +1,582 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.CompiledFilter;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.EntrySorter;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ReadOnlyEntry;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.controls.SortKey;
+import com.unboundid.ldap.sdk.schema.Schema;
+import com.unboundid.util.Debug;
+import com.unboundid.util.Mutable;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a data structure for maintaining a virtual list view
+ * (VLV) index.  It holds the entries that match a given base DN, scope, and
+ * filter in a tree ordered by a given set of sort keys, in which each node
+ * tracks the size of its subtree, so that the position of an entry in the
+ * sorted list and the entry at a given position can both be found in
+ * logarithmic time.  The index data is held in the server data store, so that
+ * it is versioned along with the entries to which it applies.
+ * <BR><BR>
+ * LDAP subentries and referral entries are not held in the index, since they
+ * may need to be handled differently depending on the controls included in a
+ * search request.  Instead, the index keeps track of how many such entries
+ * match, and will only be used for searches in which the result would not be
+ * affected by their absence.
+ */
+@Mutable()
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+final class InMemoryDirectoryServerVLVIndex
+{
+  // The filter that will be used to determine whether an entry belongs in the
+  // index.
+  private final CompiledFilter compiledFilter;
+
+  // The base DN for the index.
+  private final DN baseDN;
+
+  // The comparator used to order the entries in the index.
+  private final EntrySorter entrySorter;
+
+  // The comparator used to compare entries using only the primary sort key.
+  private final EntrySorter primarySortKeySorter;
+
+  // The filter for the index.
+  private final Filter filter;
+
+  // The data store that holds the index data.
+  private final InMemoryDirectoryServerDataStore dataStore;
+
+  // The slot in the data store that holds the index data.
+  private final int slot;
+
+  // The schema for the server.
+  private final Schema schema;
+
+  // The scope for the index.
+  private final SearchScope scope;
+
+  // The sort keys for the index.
+  private final SortKey[] sortKeys;
+
+
+
+  /**
+   * Creates a new VLV index with the provided configuration.
+   *
+   * @param  config     The configuration for the index.
+   * @param  schema     The schema for the server.  It may be {@code null} if
+   *                    the server does not use a schema.
+   * @param  dataStore  The data store that will hold the index data.
+   *
+   * @throws  LDAPException  If the base DN for the index cannot be parsed
+   *                         using the server schema.
+   */
+  InMemoryDirectoryServerVLVIndex(final InMemoryVLVIndexConfig config,
+       final Schema schema, final InMemoryDirectoryServerDataStore dataStore)
+       throws LDAPException
+  {
+    this.schema    = schema;
+    this.dataStore = dataStore;
+
+    baseDN   = new DN(config.getBaseDN().toString(), schema);
+    scope    = config.getScope();
+    filter   = config.getFilter();
+    sortKeys = config.getSortKeys();
+
+    compiledFilter       = CompiledFilter.compile(filter, schema);
+    entrySorter          = new EntrySorter(false, schema, sortKeys);
+    primarySortKeySorter = new EntrySorter(false, schema, sortKeys[0]);
+
+    slot = dataStore.createIndexSlot();
+  }
+
+
+
+  /**
+   * Retrieves the index data, as visible to the calling thread.
+   *
+   * @return  The index data.
+   */
+  private IndexData getIndexData()
+  {
+    final Object root = dataStore.getIndexRoot(slot);
+    if (root == null)
+    {
+      return new IndexData(new PersistentSortedMap<Entry,Integer>(entrySorter),
+           0, 0);
+    }
+    else
+    {
+      return (IndexData) root;
+    }
+  }
+
+
+
+  /**
+   * Clears all index data.
+   */
+  void clear()
+  {
+    dataStore.setIndexRoot(slot, null);
+  }
+
+
+
+  /**
+   * Indicates whether this index may be used to obtain the sorted results for
+   * a search with the provided criteria.
+   *
+   * @param  searchBaseDN       The base DN for the search.
+   * @param  searchScope        The scope for the search.
+   * @param  searchFilter       The filter for the search.
+   * @param  searchSortKeys     The sort keys from the server-side sort request
+   *                            control.
+   * @param  includeSubEntries  Indicates whether LDAP subentries should be
+   *                            included in the search results.
+   *
+   * @return  {@code true} if this index may be used to obtain the sorted
+   *          results for the search, or {@code false} if not.
+   */
+  boolean isUsableFor(final DN searchBaseDN, final SearchScope searchScope,
+                      final Filter searchFilter,
+                      final SortKey[] searchSortKeys,
+                      final boolean includeSubEntries)
+  {
+    if ((! baseDN.equals(searchBaseDN)) || (! scope.equals(searchScope)) ||
+        (! filter.equals(searchFilter)) ||
+        (sortKeys.length != searchSortKeys.length))
+    {
+      return false;
+    }
+
+    for (int i=0; i < sortKeys.length; i++)
+    {
+      final SortKey k1 = sortKeys[i];
+      final SortKey k2 = searchSortKeys[i];
+      if ((! k1.getAttributeName().equalsIgnoreCase(k2.getAttributeName())) ||
+          (k1.reverseOrder() != k2.reverseOrder()))
+      {
+        return false;
+      }
+
+      final String mr1 = k1.getMatchingRuleID();
+      final String mr2 = k2.getMatchingRuleID();
+      if ((mr1 == null) ? (mr2 != null) : (! mr1.equalsIgnoreCase(mr2)))
+      {
+        return false;
+      }
+    }
+
+    final IndexData indexData = getIndexData();
+    return ((indexData.referralCount == 0) &&
+         ((indexData.subentryCount == 0) || (! includeSubEntries)));
+  }
+
+
+
+  /**
+   * Retrieves the number of entries held in the index.
+   *
+   * @return  The number of entries held in the index.
+   */
+  int size()
+  {
+    return getIndexData().entries.size();
+  }
+
+
+
+  /**
+   * Retrieves the position in the sorted list of the first entry whose value
+   * for the primary sort key is greater than or equal to the provided
+   * assertion value (or, for a reverse-order sort key, less than or equal to
+   * it).
+   *
+   * @param  assertionValue  The assertion value for which to find the target
+   *                         position.
+   *
+   * @return  The zero-based position of the target entry, or the number of
+   *          entries in the index if there is no such entry.
+   */
+  int getTargetPosition(final ASN1OctetString assertionValue)
+  {
+    // Using the null DN for the test entry ensures that it will be ordered
+    // before any entry with the same primary sort key value.
+    final ReadOnlyEntry testEntry = new ReadOnlyEntry(DN.NULL_DN, schema,
+         new Attribute(sortKeys[0].getAttributeName(), assertionValue));
+    return getIndexData().entries.countLessThan(testEntry,
+         primarySortKeySorter);
+  }
+
+
+
+  /**
+   * Retrieves the entries at the specified positions in the sorted list.
+   *
+   * @param  fromIndex  The zero-based position of the first entry to retrieve.
+   * @param  toIndex    The zero-based position after the last entry to
+   *                    retrieve.
+   *
+   * @return  The entries at the specified positions in the sorted list.
+   */
+  List<Entry> getEntries(final int fromIndex, final int toIndex)
+  {
+    final PersistentSortedMap<Entry,Integer> entries =
+         getIndexData().entries;
+    final int start = Math.max(0, fromIndex);
+    final int end = Math.min(entries.size(), toIndex);
+    if (start >= end)
+    {
+      return new ArrayList<Entry>(0);
+    }
+
+    final ArrayList<Entry> entryList = new ArrayList<Entry>(end - start);
+    final Iterator<Map.Entry<Entry,Integer>> iterator =
+         entries.iterator(entries.entryAt(start).getKey(), true);
+    while (iterator.hasNext() && (entryList.size() < (end - start)))
+    {
+      entryList.add(dataStore.getEntry(iterator.next().getValue()));
+    }
+
+    return entryList;
+  }
+
+
+
+  /**
+   * Performs the necessary processing for adding the given entry.
+   *
+   * @param  entry    The entry to be added.
+   * @param  entryID  The ID assigned to the entry.
+   */
+  void processAdd(final Entry entry, final int entryID)
+  {
+    if (! matches(entry))
+    {
+      return;
+    }
+
+    final IndexData indexData = getIndexData();
+    if (isSubentry(entry))
+    {
+      dataStore.setIndexRoot(slot, new IndexData(indexData.entries,
+           (indexData.subentryCount + 1), indexData.referralCount));
+    }
+    else if (isReferral(entry))
+    {
+      dataStore.setIndexRoot(slot, new IndexData(indexData.entries,
+           indexData.subentryCount, (indexData.referralCount + 1)));
+    }
+    else
+    {
+      final ReadOnlyEntry key;
+      if (entry instanceof ReadOnlyEntry)
+      {
+        key = (ReadOnlyEntry) entry;
+      }
+      else
+      {
+        key = new ReadOnlyEntry(entry);
+      }
+
+      dataStore.setIndexRoot(slot, new IndexData(
+           indexData.entries.put(key, entryID), indexData.subentryCount,
+           indexData.referralCount));
+    }
+  }
+
+
+
+  /**
+   * Performs the necessary processing for deleting the given entry.
+   *
+   * @param  entry    The entry to be deleted.
+   * @param  entryID  The ID assigned to the entry.
+   */
+  void processDelete(final Entry entry, final int entryID)
+  {
+    if (! matches(entry))
+    {
+      return;
+    }
+
+    final IndexData indexData = getIndexData();
+    if (isSubentry(entry))
+    {
+      dataStore.setIndexRoot(slot, new IndexData(indexData.entries,
+           (indexData.subentryCount - 1), indexData.referralCount));
+    }
+    else if (isReferral(entry))
+    {
+      dataStore.setIndexRoot(slot, new IndexData(indexData.entries,
+           indexData.subentryCount, (indexData.referralCount - 1)));
+    }
+    else
+    {
+      dataStore.setIndexRoot(slot, new IndexData(
+           indexData.entries.remove(entry), indexData.subentryCount,
+           indexData.referralCount));
+    }
+  }
+
+
+
+  /**
+   * Creates a builder that may be used to build the complete data for this
+   * index from scratch.
+   *
+   * @return  The builder that was created.
+   */
+  InMemoryDirectoryServerIndexBuilder createBuilder()
+  {
+    return new IndexBuilder();
+  }
+
+
+
+  /**
+   * Indicates whether the provided entry is within the scope of this index and
+   * matches its filter.
+   *
+   * @param  entry  The entry for which to make the determination.
+   *
+   * @return  {@code true} if the entry is within the scope of this index and
+   *          matches its filter, or {@code false} if not.
+   */
+  private boolean matches(final Entry entry)
+  {
+    try
+    {
+      return (entry.getParsedDN().matchesBaseAndScope(baseDN, scope) &&
+           compiledFilter.matchesEntry(entry));
+    }
+    catch (final LDAPException le)
+    {
+      Debug.debugException(le);
+      return false;
+    }
+  }
+
+
+
+  /**
+   * Indicates whether the provided entry is an LDAP subentry.
+   *
+   * @param  entry  The entry for which to make the determination.
+   *
+   * @return  {@code true} if the entry is an LDAP subentry, or {@code false} if
+   *          not.
+   */
+  private static boolean isSubentry(final Entry entry)
+  {
+    return (entry.hasObjectClass("ldapSubEntry") ||
+         entry.hasObjectClass("inheritableLDAPSubEntry"));
+  }
+
+
+
+  /**
+   * Indicates whether the provided entry is a referral entry.
+   *
+   * @param  entry  The entry for which to make the determination.
+   *
+   * @return  {@code true} if the entry is a referral entry, or {@code false} if
+   *          not.
+   */
+  private static boolean isReferral(final Entry entry)
+  {
+    return (entry.hasObjectClass("referral") && entry.hasAttribute("ref"));
+  }
+
+
+
+  /**
+   * Retrieves a string representation of this VLV index.
+   *
+   * @return  A string representation of this VLV index.
+   */
+  @Override()
+  public String toString()
+  {
+    final StringBuilder buffer = new StringBuilder();
+    buffer.append("InMemoryDirectoryServerVLVIndex(baseDN='");
+    baseDN.toString(buffer);
+    buffer.append("', scope=");
+    buffer.append(scope.getName());
+    buffer.append(", filter='");
+    filter.toString(buffer);
+    buffer.append("', sortKeys={");
+    for (int i=0; i < sortKeys.length; i++)
+    {
+      if (i > 0)
+      {
+        buffer.append(", ");
+      }
+      sortKeys[i].toString(buffer);
+    }
+    buffer.append("})");
+    return buffer.toString();
+  }
+
+
+
+  /**
+   * This class holds the data for a VLV index.  It is never altered once it
+   * has been created.
+   */
+  private static final class IndexData
+  {
+    // The entries held in the index, in sorted order, mapped to their IDs.
+    private final PersistentSortedMap<Entry,Integer> entries;
+
+    // The number of referral entries that match the index criteria.
+    private final int referralCount;
+
+    // The number of LDAP subentries that match the index criteria.
+    private final int subentryCount;
+
+
+
+    /**
+     * Creates a new set of index data with the provided information.
+     *
+     * @param  entries        The entries held in the index, in sorted order,
+     *                        mapped to their IDs.
+     * @param  subentryCount  The number of LDAP subentries that match the
+     *                        index criteria.
+     * @param  referralCount  The number of referral entries that match the
+     *                        index criteria.
+     */
+    private IndexData(final PersistentSortedMap<Entry,Integer> entries,
+                      final int subentryCount, final int referralCount)
+    {
+      this.entries       = entries;
+      this.subentryCount = subentryCount;
+      this.referralCount = referralCount;
+    }
+  }
+
+
+
+  /**
+   * This class provides a builder for the data held in this index.
+   */
+  private final class IndexBuilder
+          extends InMemoryDirectoryServerIndexBuilder
+  {
+    // The number of referral entries that match the index criteria.
+    private int referralCount;
+
+    // The number of LDAP subentries that match the index criteria.
+    private int subentryCount;
+
+    // The entries held in the index, in sorted order, mapped to their IDs.
+    private PersistentSortedMap<Entry,Integer> entries;
+
+
+
+    /**
+     * Creates a new builder for this index.
+     */
+    private IndexBuilder()
+    {
+      entries = new PersistentSortedMap<Entry,Integer>(entrySorter);
+      referralCount = 0;
+      subentryCount = 0;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    void processAdd(final Entry entry, final int entryID)
+    {
+      if (! matches(entry))
+      {
+        return;
+      }
+
+      if (isSubentry(entry))
+      {
+        subentryCount++;
+      }
+      else if (isReferral(entry))
+      {
+        referralCount++;
+      }
+      else if (entry instanceof ReadOnlyEntry)
+      {
+        entries = entries.put(entry, entryID);
+      }
+      else
+      {
+        entries = entries.put(new ReadOnlyEntry(entry), entryID);
+      }
+    }
+
+
+
+    /**
+     * {@inheritDoc}  The entries are kept in sorted order as they are
+     * processed, so there is nothing more to do.
+     */
+    @Override()
+    void build()
+    {
+      // No implementation is required.
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    void install()
+    {
+      dataStore.setIndexRoot(slot,
+           new IndexData(entries, subentryCount, referralCount));
+    }
+  }
+}
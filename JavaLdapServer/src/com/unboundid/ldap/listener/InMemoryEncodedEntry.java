@@ -0,0 +1,512 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Set;
+
+import com.unboundid.asn1.ASN1Buffer;
+import com.unboundid.asn1.ASN1BufferSequence;
+import com.unboundid.asn1.ASN1StreamReader;
+import com.unboundid.asn1.ASN1StreamReaderSequence;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.CompiledFilter;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPRuntimeException;
+import com.unboundid.ldap.sdk.ReadOnlyEntry;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.schema.Schema;
+import com.unboundid.util.Debug;
+import com.unboundid.util.NotMutable;
+import com.unboundid.util.StaticUtils;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+import static com.unboundid.ldap.listener.ListenerMessages.*;
+
+
+
+/**
+ * This class provides a compact representation of an entry held in the
+ * in-memory directory server when the
+ * {@link InMemoryEntryStorageMode#OFF_HEAP} storage mode is in use.  The
+ * attributes of the entry are held as a BER sequence of attributes in a slab
+ * of memory allocated outside of the Java heap, so the only heap memory used
+ * for the entry is this object (which shares its DN with the data store).
+ * <BR><BR>
+ * The entry is decoded each time it is needed, so the decoded entry is not
+ * retained.  A search filter may be evaluated against the encoded form with
+ * the {@link #mayMatch} method, which only decodes the attributes targeted by
+ * the filter, so that only entries that may match need to be fully decoded.
+ * <BR><BR>
+ * The content of a slab is never altered once an entry has been written to
+ * it, so an encoded entry may be used by any number of threads at once.  Slabs
+ * are not explicitly freed, but a slab (and the memory allocated for it) will
+ * be reclaimed by the garbage collector once none of the entries written to it
+ * are referenced by any version of the data, including versions held by
+ * snapshots.
+ */
+@NotMutable()
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+final class InMemoryEncodedEntry
+{
+  /**
+   * The size of each slab of memory in which entries are written.  Entries
+   * that are larger than this will be written to a slab of their own.
+   */
+  static final int SLAB_SIZE = 1024 * 1024;
+
+
+
+  // The slab in which the encoded attributes are held.
+  private final ByteBuffer slab;
+
+  // The DN of the entry.
+  private final DN dn;
+
+  // The length of the encoded attributes.
+  private final int length;
+
+  // The position in the slab at which the encoded attributes start.
+  private final int offset;
+
+  // The schema with which the entry was associated, if any.
+  private final Schema schema;
+
+
+
+  /**
+   * Creates a new encoded entry with the provided information.
+   *
+   * @param  dn      The DN of the entry.
+   * @param  schema  The schema with which the entry was associated, if any.
+   * @param  slab    The slab in which the encoded attributes are held.
+   * @param  offset  The position in the slab at which the encoded attributes
+   *                 start.
+   * @param  length  The length of the encoded attributes.
+   */
+  private InMemoryEncodedEntry(final DN dn, final Schema schema,
+                               final ByteBuffer slab, final int offset,
+                               final int length)
+  {
+    this.dn     = dn;
+    this.schema = schema;
+    this.slab   = slab;
+    this.offset = offset;
+    this.length = length;
+  }
+
+
+
+  /**
+   * Retrieves the DN of this entry.
+   *
+   * @return  The DN of this entry.
+   */
+  DN getDN()
+  {
+    return dn;
+  }
+
+
+
+  /**
+   * Retrieves the number of bytes used by the encoded attributes of this entry
+   * outside of the Java heap.
+   *
+   * @return  The number of bytes used by the encoded attributes of this entry.
+   */
+  int getEncodedLength()
+  {
+    return length;
+  }
+
+
+
+  /**
+   * Decodes this entry.
+   *
+   * @return  The decoded entry.
+   *
+   * @throws  LDAPRuntimeException  If the entry cannot be decoded.  This
+   *                                should never happen.
+   */
+  ReadOnlyEntry decode()
+                throws LDAPRuntimeException
+  {
+    final ArrayList<Attribute> attributes = new ArrayList<Attribute>(20);
+    try
+    {
+      final ASN1StreamReader reader = new ASN1StreamReader(
+           new ByteArrayInputStream(getBytes(offset, length)));
+      final ASN1StreamReaderSequence attrSequence = reader.beginSequence();
+      while (attrSequence.hasMoreElements())
+      {
+        attributes.add(Attribute.readFrom(reader, schema));
+      }
+    }
+    catch (final Exception e)
+    {
+      Debug.debugException(e);
+      throw new LDAPRuntimeException(new LDAPException(ResultCode.LOCAL_ERROR,
+           ERR_MEM_ENCODED_ENTRY_CANNOT_DECODE.get(dn.toString(),
+                StaticUtils.getExceptionMessage(e)),
+           e));
+    }
+
+    return new ReadOnlyEntry(dn, schema, attributes);
+  }
+
+
+
+  /**
+   * Indicates whether this entry may match the provided filter.  Only the
+   * attributes targeted by the filter will be decoded in order to make the
+   * determination.
+   *
+   * @param  matcher  The matcher for the filter to evaluate.
+   *
+   * @return  {@code false} if the entry does not match the filter, or
+   *          {@code true} if it does, or if the filter could not be evaluated
+   *          without decoding the entire entry (in which case the filter
+   *          should be evaluated against the decoded entry).
+   */
+  boolean mayMatch(final Matcher matcher)
+  {
+    // Presence filters use the schema of the entry to find the attribute
+    // rather than the schema used to compile the filter, so the targeted
+    // attributes are only known if the two are the same.
+    final CompiledFilter filter = matcher.filter;
+    if (filter.getSchema() != schema)
+    {
+      return true;
+    }
+
+    try
+    {
+      final ArrayList<Attribute> attributes = new ArrayList<Attribute>(2);
+      final int end = offset + length;
+      int pos = getContentStart(offset);
+      while (pos < end)
+      {
+        // Each attribute is a sequence whose first element is the attribute
+        // description.
+        final int attrContentStart = getContentStart(pos);
+        final int attrEnd = attrContentStart + getLength(pos + 1);
+        final int nameStart = getContentStart(attrContentStart);
+        final int nameLength = getLength(attrContentStart + 1);
+        if (matcher.isTargeted(slab, nameStart, nameLength))
+        {
+          final ASN1StreamReader reader = new ASN1StreamReader(
+               new ByteArrayInputStream(getBytes(pos, attrEnd - pos)));
+          attributes.add(Attribute.readFrom(reader, schema));
+        }
+
+        pos = attrEnd;
+      }
+
+      return filter.matchesEntry(new Entry(dn, schema, attributes));
+    }
+    catch (final Exception e)
+    {
+      // Any exception encountered while evaluating the filter must be
+      // encountered again when evaluating the decoded entry.
+      Debug.debugException(e);
+      return true;
+    }
+  }
+
+
+
+  /**
+   * Retrieves the position of the value of the BER element that starts at the
+   * specified position in the slab.
+   *
+   * @param  pos  The position at which the element starts.
+   *
+   * @return  The position of the value of the element.
+   */
+  private int getContentStart(final int pos)
+  {
+    final int firstLengthByte = slab.get(pos + 1) & 0xFF;
+    if ((firstLengthByte & 0x80) == 0)
+    {
+      return pos + 2;
+    }
+    else
+    {
+      return pos + 2 + (firstLengthByte & 0x7F);
+    }
+  }
+
+
+
+  /**
+   * Retrieves the length of the value of a BER element whose length is
+   * encoded at the specified position in the slab.
+   *
+   * @param  pos  The position at which the length is encoded.
+   *
+   * @return  The length of the value of the element.
+   */
+  private int getLength(final int pos)
+  {
+    final int firstLengthByte = slab.get(pos) & 0xFF;
+    if ((firstLengthByte & 0x80) == 0)
+    {
+      return firstLengthByte;
+    }
+
+    int length = 0;
+    final int numLengthBytes = firstLengthByte & 0x7F;
+    for (int i=1; i <= numLengthBytes; i++)
+    {
+      length = (length << 8) | (slab.get(pos + i) & 0xFF);
+    }
+    return length;
+  }
+
+
+
+  /**
+   * Copies the specified range of bytes from the slab.
+   *
+   * @param  start   The position of the first byte to copy.
+   * @param  length  The number of bytes to copy.
+   *
+   * @return  The bytes that were copied.
+   */
+  private byte[] getBytes(final int start, final int length)
+  {
+    // The slab is shared by multiple threads, so its position must not be
+    // altered.
+    final ByteBuffer b = slab.duplicate();
+    b.position(start);
+
+    final byte[] bytes = new byte[length];
+    b.get(bytes);
+    return bytes;
+  }
+
+
+
+  /**
+   * Retrieves a string representation of this encoded entry.
+   *
+   * @return  A string representation of this encoded entry.
+   */
+  @Override()
+  public String toString()
+  {
+    return decode().toString();
+  }
+
+
+
+  /**
+   * This class provides a means of writing encoded entries to slabs.  It is
+   * not threadsafe, so it must only be used while holding the write lock for
+   * the data store.
+   */
+  @ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+  static final class Allocator
+  {
+    // The buffer used to encode entries.
+    private final ASN1Buffer buffer;
+
+    // The slab to which entries are currently being written.
+    private ByteBuffer currentSlab;
+
+    // A buffer used to write to the current slab.  It is a duplicate of the
+    // slab, so that the position of the slab itself is never altered while it
+    // may be read by other threads.
+    private ByteBuffer currentSlabWriter;
+
+
+
+    /**
+     * Creates a new allocator.
+     */
+    Allocator()
+    {
+      buffer = new ASN1Buffer();
+      currentSlab = null;
+      currentSlabWriter = null;
+    }
+
+
+
+    /**
+     * Encodes the provided entry and writes it to a slab.
+     *
+     * @param  dn     The DN of the entry.  It should be the DN object used as
+     *                the key for the entry in the data store.
+     * @param  entry   The entry to encode.
+     * @param  schema  The schema to use when decoding the entry.  It may be
+     *                 {@code null} if no schema should be used.
+     *
+     * @return  The encoded entry.
+     */
+    InMemoryEncodedEntry encode(final DN dn, final ReadOnlyEntry entry,
+                                final Schema schema)
+    {
+      buffer.clear();
+      final ASN1BufferSequence attrSequence = buffer.beginSequence();
+      for (final Attribute a : entry.getAttributes())
+      {
+        a.writeTo(buffer);
+      }
+      attrSequence.end();
+
+      final int length = buffer.length();
+      if (length > SLAB_SIZE)
+      {
+        final ByteBuffer slab = ByteBuffer.allocateDirect(length);
+        slab.duplicate().put(buffer.asByteBuffer());
+        return new InMemoryEncodedEntry(dn, schema, slab, 0,
+             length);
+      }
+
+      if ((currentSlab == null) || (currentSlabWriter.remaining() < length))
+      {
+        currentSlab = ByteBuffer.allocateDirect(SLAB_SIZE);
+        currentSlabWriter = currentSlab.duplicate();
+      }
+
+      final int offset = currentSlabWriter.position();
+      currentSlabWriter.put(buffer.asByteBuffer());
+      return new InMemoryEncodedEntry(dn, schema, currentSlab,
+           offset, length);
+    }
+  }
+
+
+
+  /**
+   * This class provides a form of a compiled filter that has been prepared for
+   * evaluation against encoded entries.
+   */
+  @NotMutable()
+  @ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+  static final class Matcher
+  {
+    // The filter to evaluate.
+    private final CompiledFilter filter;
+
+    // The lowercase names of the attributes targeted by the filter.
+    private final Set<String> keys;
+
+    // The bytes of the lowercase names of the attributes targeted by the
+    // filter.
+    private final byte[][] keyBytes;
+
+
+
+    /**
+     * Creates a new matcher for the provided filter.
+     *
+     * @param  filter  The filter to evaluate.
+     */
+    Matcher(final CompiledFilter filter)
+    {
+      this.filter = filter;
+
+      keys = filter.getTargetedAttributeKeys();
+      keyBytes = new byte[keys.size()][];
+
+      int i = 0;
+      for (final String key : keys)
+      {
+        keyBytes[i++] = StaticUtils.getBytes(key);
+      }
+    }
+
+
+
+    /**
+     * Indicates whether the attribute with the name at the specified position
+     * in the provided slab is targeted by the filter.
+     *
+     * @param  slab    The slab containing the attribute name.
+     * @param  start   The position of the attribute name.
+     * @param  length  The length of the attribute name.
+     *
+     * @return  {@code true} if the attribute is targeted by the filter, or
+     *          {@code false} if not.
+     */
+    private boolean isTargeted(final ByteBuffer slab, final int start,
+                               final int length)
+    {
+      // Attribute names are almost always ASCII, so compare the bytes directly
+      // to avoid creating a string for each attribute examined.
+      for (int i=0; i < length; i++)
+      {
+        if ((slab.get(start + i) & 0x80) != 0)
+        {
+          final ByteBuffer b = slab.duplicate();
+          b.position(start);
+
+          final byte[] nameBytes = new byte[length];
+          b.get(nameBytes);
+          return keys.contains(
+               StaticUtils.toLowerCase(StaticUtils.toUTF8String(nameBytes)));
+        }
+      }
+
+      for (final byte[] key : keyBytes)
+      {
+        if (key.length != length)
+        {
+          continue;
+        }
+
+        boolean matches = true;
+        for (int i=0; i < length; i++)
+        {
+          byte b = slab.get(start + i);
+          if ((b >= 'A') && (b <= 'Z'))
+          {
+            b += ('a' - 'A');
+          }
+
+          if (b != key[i])
+          {
+            matches = false;
+            break;
+          }
+        }
+
+        if (matches)
+        {
+          return true;
+        }
+      }
+
+      return false;
+    }
+  }
+}
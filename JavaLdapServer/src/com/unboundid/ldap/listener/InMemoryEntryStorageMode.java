@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This enum defines the ways in which the in-memory directory server may store
+ * the entries that it holds.  See the documentation for the
+ * {@link InMemoryDirectoryServerConfig#setEntryStorageMode} method for more
+ * information.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public enum InMemoryEntryStorageMode
+{
+  /**
+   * Indicates that each entry should be held in the Java heap as a fully
+   * decoded entry object.  This provides the fastest access to entries, but
+   * each entry will typically occupy several times as much memory as its
+   * encoded form, and all of that memory must be managed by the garbage
+   * collector.
+   */
+  HEAP("heap"),
+
+
+
+  /**
+   * Indicates that each entry should be held in its encoded form in memory
+   * allocated outside of the Java heap, with only a small reference to it and
+   * the entry DN held in the heap.  Entries will be decoded when they are
+   * needed, and search filters will be evaluated by decoding only the
+   * attributes that they target.  This greatly reduces the heap memory needed
+   * for large data sets at the cost of additional processing to access
+   * entries.  The memory allocated outside of the heap is limited by the
+   * {@code -XX:MaxDirectMemorySize} JVM option.
+   */
+  OFF_HEAP("offHeap");
+
+
+
+  // The name for this storage mode.
+  private final String name;
+
+
+
+  /**
+   * Creates a new entry storage mode with the provided name.
+   *
+   * @param  name  The name for this storage mode.
+   */
+  private InMemoryEntryStorageMode(final String name)
+  {
+    this.name = name;
+  }
+
+
+
+  /**
+   * Retrieves the name for this storage mode.
+   *
+   * @return  The name for this storage mode.
+   */
+  public String getName()
+  {
+    return name;
+  }
+
+
+
+  /**
+   * Retrieves the storage mode with the specified name.
+   *
+   * @param  name  The name of the storage mode to retrieve.  It must not be
+   *               {@code null}.
+   *
+   * @return  The requested storage mode, or {@code null} if there is no mode
+   *          with the specified name.
+   */
+  public static InMemoryEntryStorageMode forName(final String name)
+  {
+    for (final InMemoryEntryStorageMode m : values())
+    {
+      if (m.name.equalsIgnoreCase(name))
+      {
+        return m;
+      }
+    }
+
+    return null;
+  }
+
+
+
+  /**
+   * Retrieves a string representation of this storage mode.
+   *
+   * @return  A string representation of this storage mode.
+   */
+  @Override()
+  public String toString()
+  {
+    return name;
+  }
+}
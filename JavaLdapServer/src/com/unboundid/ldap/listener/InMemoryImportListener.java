@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import com.unboundid.util.Extensible;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This interface defines an API that may be implemented by a class that should
+ * be notified about the progress of a bulk import into the in-memory directory
+ * server (as performed by the
+ * {@link InMemoryDirectoryServer#bulkImportFromLDIF} method).  All of the
+ * methods will be invoked by the thread performing the import, so they should
+ * return quickly to avoid slowing it down.
+ */
+@Extensible()
+@ThreadSafety(level=ThreadSafetyLevel.INTERFACE_NOT_THREADSAFE)
+public interface InMemoryImportListener
+{
+  /**
+   * Indicates that the import has added another batch of entries to the
+   * server.  This will be invoked periodically while entries are being read
+   * from LDIF, but not while the indexes are being built.
+   *
+   * @param  entriesAdded   The total number of entries added so far.
+   * @param  elapsedMillis  The number of milliseconds that have elapsed since
+   *                        the import started.
+   */
+  void importProgress(final int entriesAdded, final long elapsedMillis);
+
+
+
+  /**
+   * Indicates that the import has completed successfully.  It will not be
+   * invoked if the import fails.
+   *
+   * @param  entriesAdded  The total number of entries added to the server.
+   * @param  loadMillis    The number of milliseconds spent reading entries from
+   *                       LDIF and adding them to the server.
+   * @param  indexMillis   The number of milliseconds spent building the
+   *                       indexes once all of the entries had been added.
+   */
+  void importCompleted(final int entriesAdded, final long loadMillis,
+                       final long indexMillis);
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This enum defines the policies that the in-memory directory server may use
+ * to determine when changes written to its journal should be forced to disk.
+ * See the documentation for the
+ * {@link InMemoryDirectoryServerConfig#setDataDirectory} method for more
+ * information about the journal.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public enum InMemoryJournalSyncPolicy
+{
+  /**
+   * Indicates that the result of a write operation should not be returned
+   * until the change has been forced to disk.  Write operations that complete
+   * at about the same time will share a single disk sync, so this does not
+   * require a separate sync for each operation.  No change for which a result
+   * has been returned will be lost if the system crashes.
+   */
+  EVERY_OPERATION("everyOperation"),
+
+
+
+  /**
+   * Indicates that changes should be forced to disk by a background thread at
+   * a regular interval, as specified by the
+   * {@link InMemoryDirectoryServerConfig#setJournalSyncIntervalMillis} method.
+   * Changes made since the last sync may be lost if the system crashes, but
+   * they will not be lost if only the server process exits.
+   */
+  PERIODIC("periodic"),
+
+
+
+  /**
+   * Indicates that changes should be written to the journal without ever being
+   * explicitly forced to disk, leaving it to the operating system to decide
+   * when to do so.  Changes will not be lost if only the server process exits,
+   * but any number of recent changes may be lost if the system crashes.
+   */
+  NONE("none");
+
+
+
+  // The name for this sync policy.
+  private final String name;
+
+
+
+  /**
+   * Creates a new journal sync policy with the provided name.
+   *
+   * @param  name  The name for this sync policy.
+   */
+  private InMemoryJournalSyncPolicy(final String name)
+  {
+    this.name = name;
+  }
+
+
+
+  /**
+   * Retrieves the name for this sync policy.
+   *
+   * @return  The name for this sync policy.
+   */
+  public String getName()
+  {
+    return name;
+  }
+
+
+
+  /**
+   * Retrieves the sync policy with the specified name.
+   *
+   * @param  name  The name of the sync policy to retrieve.  It must not be
+   *               {@code null}.
+   *
+   * @return  The requested sync policy, or {@code null} if there is no policy
+   *          with the specified name.
+   */
+  public static InMemoryJournalSyncPolicy forName(final String name)
+  {
+    for (final InMemoryJournalSyncPolicy p : values())
+    {
+      if (p.name.equalsIgnoreCase(name))
+      {
+        return p;
+      }
+    }
+
+    return null;
+  }
+
+
+
+  /**
+   * Retrieves a string representation of this sync policy.
+   *
+   * @return  A string representation of this sync policy.
+   */
+  @Override()
+  public String toString()
+  {
+    return name;
+  }
+}
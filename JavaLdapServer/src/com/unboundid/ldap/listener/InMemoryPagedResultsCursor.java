@@ -0,0 +1,271 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import java.util.List;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.controls.SortKey;
+import com.unboundid.util.Mutable;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a data structure that holds the DNs of the complete set
+ * of entries matching a search that is being processed using the simple paged
+ * results control.  It is created when the first page of results is returned,
+ * and is used to return each subsequent page without processing the search
+ * again, so that the cost of obtaining a page is proportional to the size of
+ * that page rather than to the size of the result set.  All pages are returned
+ * from the set of entries that matched when the first page was requested, but
+ * only the DNs of those entries are retained, and each entry is retrieved
+ * again as it is returned.
+ */
+@Mutable()
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+final class InMemoryPagedResultsCursor
+{
+  // Indicates whether the search included LDAP subentries.
+  private final boolean includeSubEntries;
+
+  // Indicates whether the search included the ManageDsaIT control.
+  private final boolean manageDsaIT;
+
+  // The base DN for the search.
+  private final DN baseDN;
+
+  // The filter for the search.
+  private final Filter filter;
+
+  // The DNs of the entries that matched the search, in the order that they
+  // should be returned.
+  private final List<DN> dns;
+
+  // The request handler for the connection on which the search was requested.
+  private final InMemoryRequestHandler requestHandler;
+
+  // The identifier for this cursor.
+  private final long cursorID;
+
+  // The time (as reported by System.nanoTime) that this cursor was last used.
+  private volatile long lastUsedTime;
+
+  // The scope for the search.
+  private final SearchScope scope;
+
+  // The string representation of the sort keys for the search, or
+  // {@code null} if the results are not sorted.
+  private final String sortOrder;
+
+
+
+  /**
+   * Creates a new paged results cursor with the provided information.
+   *
+   * @param  cursorID           The identifier for this cursor.
+   * @param  requestHandler     The request handler for the connection on
+   *                            which the search was requested.
+   * @param  baseDN             The base DN for the search.
+   * @param  scope              The scope for the search.
+   * @param  filter             The filter for the search.
+   * @param  sortKeys           The sort keys for the search, or {@code null}
+   *                            if the results are not sorted.
+   * @param  includeSubEntries  Indicates whether the search included LDAP
+   *                            subentries.
+   * @param  manageDsaIT        Indicates whether the search included the
+   *                            ManageDsaIT control.
+   * @param  dns                The DNs of the entries that matched the
+   *                            search, in the order that they should be
+   *                            returned.  It must not be altered after the
+   *                            cursor is created.
+   */
+  InMemoryPagedResultsCursor(final long cursorID,
+       final InMemoryRequestHandler requestHandler, final DN baseDN,
+       final SearchScope scope, final Filter filter, final SortKey[] sortKeys,
+       final boolean includeSubEntries, final boolean manageDsaIT,
+       final List<DN> dns)
+  {
+    this.cursorID          = cursorID;
+    this.requestHandler    = requestHandler;
+    this.baseDN            = baseDN;
+    this.scope             = scope;
+    this.filter            = filter;
+    this.includeSubEntries = includeSubEntries;
+    this.manageDsaIT       = manageDsaIT;
+    this.dns               = dns;
+
+    sortOrder    = getSortOrder(sortKeys);
+    lastUsedTime = System.nanoTime();
+  }
+
+
+
+  /**
+   * Retrieves the identifier for this cursor.
+   *
+   * @return  The identifier for this cursor.
+   */
+  long getCursorID()
+  {
+    return cursorID;
+  }
+
+
+
+  /**
+   * Retrieves the request handler for the connection on which the search was
+   * requested.  The cursor may only be used by that request handler.
+   *
+   * @return  The request handler for the connection on which the search was
+   *          requested.
+   */
+  InMemoryRequestHandler getRequestHandler()
+  {
+    return requestHandler;
+  }
+
+
+
+  /**
+   * Retrieves the time that this cursor was last used.
+   *
+   * @return  The time (as reported by {@code System.nanoTime}) that this cursor
+   *          was last used.
+   */
+  long getLastUsedTime()
+  {
+    return lastUsedTime;
+  }
+
+
+
+  /**
+   * Records that this cursor has just been used.
+   */
+  void markUsed()
+  {
+    lastUsedTime = System.nanoTime();
+  }
+
+
+
+  /**
+   * Retrieves the total number of entries that matched the search.
+   *
+   * @return  The total number of entries that matched the search.
+   */
+  int size()
+  {
+    return dns.size();
+  }
+
+
+
+  /**
+   * Retrieves the DN of the entry at the specified position in the result set.
+   *
+   * @param  position  The position of the entry to retrieve.  It must be at
+   *                   least zero and less than the number of entries in the
+   *                   result set.
+   *
+   * @return  The DN of the entry at the specified position.
+   */
+  DN getDN(final int position)
+  {
+    return dns.get(position);
+  }
+
+
+
+  /**
+   * Indicates whether this cursor was created for a search with the provided
+   * criteria, and may therefore be used to obtain subsequent pages of results
+   * for it.
+   *
+   * @param  searchBaseDN       The base DN for the search.
+   * @param  searchScope        The scope for the search.
+   * @param  searchFilter       The filter for the search.
+   * @param  searchSortKeys     The sort keys for the search, or {@code null}
+   *                            if the results are not to be sorted.
+   * @param  searchSubEntries   Indicates whether the search includes LDAP
+   *                            subentries.
+   * @param  searchManageDsaIT  Indicates whether the search includes the
+   *                            ManageDsaIT control.
+   *
+   * @return  {@code true} if this cursor was created for a search with the
+   *          provided criteria, or {@code false} if not.
+   */
+  boolean isFor(final DN searchBaseDN, final SearchScope searchScope,
+                final Filter searchFilter, final SortKey[] searchSortKeys,
+                final boolean searchSubEntries,
+                final boolean searchManageDsaIT)
+  {
+    if ((includeSubEntries != searchSubEntries) ||
+        (manageDsaIT != searchManageDsaIT) ||
+        (! baseDN.equals(searchBaseDN)) || (! scope.equals(searchScope)) ||
+        (! filter.equals(searchFilter)))
+    {
+      return false;
+    }
+
+    final String searchSortOrder = getSortOrder(searchSortKeys);
+    if (sortOrder == null)
+    {
+      return (searchSortOrder == null);
+    }
+    else
+    {
+      return sortOrder.equalsIgnoreCase(searchSortOrder);
+    }
+  }
+
+
+
+  /**
+   * Retrieves a string representation of the provided set of sort keys.
+   *
+   * @param  sortKeys  The sort keys for which to obtain the string
+   *                   representation.  It may be {@code null}.
+   *
+   * @return  A string representation of the provided set of sort keys, or
+   *          {@code null} if the given set of sort keys was {@code null}.
+   */
+  private static String getSortOrder(final SortKey[] sortKeys)
+  {
+    if (sortKeys == null)
+    {
+      return null;
+    }
+
+    final StringBuilder buffer = new StringBuilder();
+    for (final SortKey k : sortKeys)
+    {
+      k.toString(buffer);
+    }
+    return buffer.toString();
+  }
+}
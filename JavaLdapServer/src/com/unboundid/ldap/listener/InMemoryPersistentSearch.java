@@ -0,0 +1,668 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+import com.unboundid.ldap.protocol.SearchResultDoneProtocolOp;
+import com.unboundid.ldap.protocol.SearchResultReferenceProtocolOp;
+import com.unboundid.ldap.sdk.CompiledFilter;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.controls.ContentSyncState;
+import com.unboundid.ldap.sdk.controls.ContentSyncStateControl;
+import com.unboundid.ldap.sdk.controls.EntryChangeNotificationControl;
+import com.unboundid.ldap.sdk.controls.PersistentSearchChangeType;
+import com.unboundid.ldap.sdk.controls.PersistentSearchRequestControl;
+import com.unboundid.util.Debug;
+import com.unboundid.util.DebugType;
+import com.unboundid.util.Mutable;
+import com.unboundid.util.ObjectPair;
+import com.unboundid.util.StaticUtils;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+import static com.unboundid.ldap.listener.ListenerMessages.*;
+
+
+
+/**
+ * This class holds information about a persistent search that is active on a
+ * client connection to the in-memory directory server.  It may be either a
+ * standard persistent search (as requested with the
+ * {@link PersistentSearchRequestControl}), or a content synchronization search
+ * in the refresh and persist mode (as requested with the
+ * {@link com.unboundid.ldap.sdk.controls.ContentSyncRequestControl}), in which
+ * case each notification will include a {@link ContentSyncStateControl}
+ * indicating how the change affects the client's copy of the search results.
+ * <BR><BR>
+ * The {@link InMemoryChangeEventBus} offers it each change made in the server,
+ * and changes that are relevant to the search are placed in a bounded queue.
+ * Once the initial phase of the search has completed, the queue is drained by
+ * a delivery thread, so that writing the notifications to a slow client never
+ * delays the operation that made the change.  If the client falls so far
+ * behind that the queue is full, then its connection will be terminated.  A
+ * content synchronization search will be ended with a result code of
+ * {@link ResultCode#E_SYNC_REFRESH_REQUIRED} if the server content is
+ * replaced in a way that cannot be described by change notifications.
+ */
+@Mutable()
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+final class InMemoryPersistentSearch
+      implements Runnable
+{
+  /**
+   * The maximum number of change notifications that may be waiting to be sent
+   * to the client.
+   */
+  static final int MAX_QUEUED_CHANGES = 10000;
+
+
+
+  // Indicates whether the delivery of queued changes has been scheduled.
+  private final AtomicBoolean deliveryScheduled;
+
+  // Indicates whether the search result done message indicating that a
+  // refresh is required has been sent or scheduled.
+  private final AtomicBoolean refreshRequiredSent;
+
+  // The queue of changes waiting to be sent to the client, along with the
+  // content synchronization state for each, if appropriate.
+  private final ArrayBlockingQueue<ObjectPair<InMemoryChangeEventBus.
+       ChangeEvent,ContentSyncState>> queue;
+
+  // Indicates whether the requested attributes should include all operational
+  // attributes.
+  private final boolean allOpAttrs;
+
+  // Indicates whether the requested attributes should include all user
+  // attributes.
+  private final boolean allUserAttrs;
+
+  // Indicates whether this is a content synchronization search.
+  private final boolean contentSync;
+
+  // Indicates whether the search includes LDAP subentries.
+  private final boolean includeSubEntries;
+
+  // Indicates whether the request included the ManageDsaIT control.
+  private final boolean manageDsaIT;
+
+  // Indicates whether to include entry change notification controls.
+  private final boolean returnECs;
+
+  // Indicates whether to return only attribute types without values.
+  private final boolean typesOnly;
+
+  // Indicates whether the delivery of queued changes is being held until the
+  // initial phase of the search has completed.
+  private volatile boolean deliveryHeld;
+
+  // Indicates whether the client must refresh its content, so this search
+  // should be ended as soon as the initial phase has completed.
+  private volatile boolean refreshRequired;
+
+  // Indicates whether this persistent search has been stopped.
+  private volatile boolean stopped;
+
+  // The compiled filter for the search.
+  private final CompiledFilter filter;
+
+  // The base DN for the search.
+  private final DN baseDN;
+
+  // The change event bus with which this persistent search is registered.
+  private final InMemoryChangeEventBus changeEventBus;
+
+  // The request handler for the connection on which the search was requested.
+  private final InMemoryRequestHandler requestHandler;
+
+  // The encoded set of change types for which to return notifications.
+  private final int changeTypes;
+
+  // The message ID of the search request.
+  private final int messageID;
+
+  // The client connection on which the search was requested.
+  private final LDAPListenerClientConnection connection;
+
+  // The attributes requested by the client.
+  private final Map<String,List<List<String>>> returnAttrs;
+
+  // The scope for the search.
+  private final SearchScope scope;
+
+  // The socket for the client connection.
+  private final Socket socket;
+
+  // The content synchronization generation in which the search was requested,
+  // or null if this is not a content synchronization search.
+  private final String syncGeneration;
+
+
+
+  /**
+   * Creates a new persistent search with the provided information.  Changes
+   * will be queued as soon as it has been registered with the change event
+   * bus, but they will not be delivered until {@link #startDelivery} has been
+   * called.
+   *
+   * @param  changeEventBus     The change event bus with which the persistent
+   *                            search will be registered.
+   * @param  requestHandler     The request handler for the client connection.
+   * @param  connection         The client connection on which the search was
+   *                            requested.
+   * @param  messageID          The message ID of the search request.
+   * @param  baseDN             The base DN for the search.
+   * @param  scope              The scope for the search.
+   * @param  filter             The compiled filter for the search.
+   * @param  psearchControl     The persistent search request control, or
+   *                            {@code null} if this is a content
+   *                            synchronization search.
+   * @param  syncGeneration     The content synchronization generation in which
+   *                            the search was requested, or {@code null} if
+   *                            this is not a content synchronization search.
+   * @param  includeSubEntries  Indicates whether the search includes LDAP
+   *                            subentries.
+   * @param  manageDsaIT        Indicates whether the request included the
+   *                            ManageDsaIT control.
+   * @param  allUserAttrs       Indicates whether to return all user
+   *                            attributes.
+   * @param  allOpAttrs         Indicates whether to return all operational
+   *                            attributes.
+   * @param  returnAttrs        The attributes requested by the client.
+   * @param  typesOnly          Indicates whether to return only attribute types
+   *                            without values.
+   */
+  InMemoryPersistentSearch(final InMemoryChangeEventBus changeEventBus,
+                           final InMemoryRequestHandler requestHandler,
+                           final LDAPListenerClientConnection connection,
+                           final int messageID, final DN baseDN,
+                           final SearchScope scope,
+                           final CompiledFilter filter,
+                           final PersistentSearchRequestControl psearchControl,
+                           final String syncGeneration,
+                           final boolean includeSubEntries,
+                           final boolean manageDsaIT,
+                           final boolean allUserAttrs,
+                           final boolean allOpAttrs,
+                           final Map<String,List<List<String>>> returnAttrs,
+                           final boolean typesOnly)
+  {
+    this.changeEventBus    = changeEventBus;
+    this.requestHandler    = requestHandler;
+    this.connection        = connection;
+    this.messageID         = messageID;
+    this.baseDN            = baseDN;
+    this.scope             = scope;
+    this.filter            = filter;
+    this.syncGeneration    = syncGeneration;
+    this.includeSubEntries = includeSubEntries;
+    this.manageDsaIT       = manageDsaIT;
+    this.allUserAttrs      = allUserAttrs;
+    this.allOpAttrs        = allOpAttrs;
+    this.returnAttrs       = returnAttrs;
+    this.typesOnly         = typesOnly;
+
+    if (psearchControl == null)
+    {
+      contentSync = true;
+      changeTypes = PersistentSearchChangeType.encodeChangeTypes(
+           PersistentSearchChangeType.allChangeTypes());
+      returnECs   = false;
+    }
+    else
+    {
+      contentSync = false;
+      changeTypes = PersistentSearchChangeType.encodeChangeTypes(
+           psearchControl.getChangeTypes());
+      returnECs   = psearchControl.returnECs();
+    }
+
+    socket            = connection.getSocket();
+    queue             = new ArrayBlockingQueue<ObjectPair<
+         InMemoryChangeEventBus.ChangeEvent,ContentSyncState>>(
+         MAX_QUEUED_CHANGES);
+    deliveryScheduled   = new AtomicBoolean(false);
+    refreshRequiredSent = new AtomicBoolean(false);
+    deliveryHeld        = true;
+    refreshRequired     = false;
+    stopped             = false;
+  }
+
+
+
+  /**
+   * Retrieves the request handler for the client connection on which the
+   * search was requested.
+   *
+   * @return  The request handler for the client connection on which the search
+   *          was requested.
+   */
+  InMemoryRequestHandler getRequestHandler()
+  {
+    return requestHandler;
+  }
+
+
+
+  /**
+   * Retrieves the message ID of the search request.
+   *
+   * @return  The message ID of the search request.
+   */
+  int getMessageID()
+  {
+    return messageID;
+  }
+
+
+
+  /**
+   * Indicates whether this is a content synchronization search.
+   *
+   * @return  {@code true} if this is a content synchronization search, or
+   *          {@code false} if it is a standard persistent search.
+   */
+  boolean isContentSync()
+  {
+    return contentSync;
+  }
+
+
+
+  /**
+   * Indicates that the initial phase of the search has completed, so that any
+   * queued changes, and any subsequent changes, may be delivered to the client.
+   * If the client has been required to refresh its content in the meantime,
+   * then the search will be ended instead.
+   */
+  void startDelivery()
+  {
+    deliveryHeld = false;
+    if (refreshRequired)
+    {
+      if (refreshRequiredSent.compareAndSet(false, true))
+      {
+        sendRefreshRequiredResult();
+      }
+      return;
+    }
+
+    if ((! queue.isEmpty()) && deliveryScheduled.compareAndSet(false, true))
+    {
+      changeEventBus.scheduleDelivery(this);
+    }
+  }
+
+
+
+  /**
+   * Queues a notification for the provided change if it is relevant to this
+   * persistent search.  This will be called by the thread that made the
+   * change, so it will not block.
+   *
+   * @param  event  The change event to consider.
+   */
+  void changeCompleted(final InMemoryChangeEventBus.ChangeEvent event)
+  {
+    if (stopped || ((changeTypes & event.getChangeType().intValue()) == 0))
+    {
+      return;
+    }
+
+    // A standard persistent search is only notified about the target entry of
+    // a change, and only if the entry matches the search criteria afterward
+    // (or, for a delete, before).  A content synchronization search needs to
+    // be told about any change that brings an entry into or out of the set of
+    // matching entries, or that alters an entry in that set.
+    final ContentSyncState state;
+    if (contentSync)
+    {
+      final boolean matchedBefore = matches(event.getPreviousEntry(),
+           event.getPreviousDN());
+      final boolean matchesAfter =
+           (event.getChangeType() != PersistentSearchChangeType.DELETE) &&
+           matches(event.getEntry(), event.getDN());
+      if (matchesAfter)
+      {
+        state = (matchedBefore
+             ? ContentSyncState.MODIFY
+             : ContentSyncState.ADD);
+      }
+      else if (matchedBefore)
+      {
+        state = ContentSyncState.DELETE;
+      }
+      else
+      {
+        return;
+      }
+    }
+    else if (event.isSubordinateChange() ||
+             (! matches(event.getEntry(), event.getDN())))
+    {
+      return;
+    }
+    else
+    {
+      state = null;
+    }
+
+    if (! queue.offer(new ObjectPair<InMemoryChangeEventBus.ChangeEvent,
+         ContentSyncState>(event, state)))
+    {
+      // The client is not keeping up with the changes, so terminate its
+      // connection.  The socket is closed directly rather than through the
+      // client connection, since that could block if another thread is in the
+      // middle of writing to the client.
+      if (Debug.debugEnabled(DebugType.LDAP))
+      {
+        Debug.debug(Level.WARNING, DebugType.LDAP,
+             ERR_MEM_PSEARCH_QUEUE_FULL.get(messageID,
+                  connection.getConnectionID(), MAX_QUEUED_CHANGES));
+      }
+
+      changeEventBus.removePersistentSearch(this);
+      try
+      {
+        socket.close();
+      }
+      catch (final IOException ioe)
+      {
+        Debug.debugException(ioe);
+      }
+      return;
+    }
+
+    if ((! deliveryHeld) && deliveryScheduled.compareAndSet(false, true))
+    {
+      changeEventBus.scheduleDelivery(this);
+    }
+  }
+
+
+
+  /**
+   * Indicates whether the provided entry matches the criteria for this
+   * persistent search.
+   *
+   * @param  entry  The entry to examine.  It may be {@code null}.
+   * @param  dn     The parsed DN of the entry.  It may be {@code null} only if
+   *                the entry is {@code null}.
+   *
+   * @return  {@code true} if the entry matches the criteria for this persistent
+   *          search, or {@code false} if not.
+   */
+  private boolean matches(final Entry entry, final DN dn)
+  {
+    if (entry == null)
+    {
+      return false;
+    }
+
+    if ((! includeSubEntries) &&
+        (entry.hasObjectClass("ldapSubEntry") ||
+         entry.hasObjectClass("inheritableLDAPSubEntry")))
+    {
+      return false;
+    }
+
+    try
+    {
+      return (dn.matchesBaseAndScope(baseDN, scope) &&
+           filter.matchesEntry(entry));
+    }
+    catch (final LDAPException le)
+    {
+      Debug.debugException(le);
+      return false;
+    }
+  }
+
+
+
+  /**
+   * Sends the queued change notifications to the client.  This will be
+   * invoked by a delivery thread.
+   */
+  public void run()
+  {
+    while (true)
+    {
+      final ObjectPair<InMemoryChangeEventBus.ChangeEvent,ContentSyncState>
+           notification = queue.poll();
+      if (notification == null)
+      {
+        // Make sure that any change queued after the poll but before delivery
+        // was marked unscheduled will still be delivered.
+        deliveryScheduled.set(false);
+        if (queue.isEmpty() || (! deliveryScheduled.compareAndSet(false, true)))
+        {
+          return;
+        }
+        continue;
+      }
+
+      synchronized (this)
+      {
+        if (stopped)
+        {
+          queue.clear();
+          return;
+        }
+
+        try
+        {
+          sendNotification(notification.getFirst(), notification.getSecond());
+        }
+        catch (final LDAPException le)
+        {
+          Debug.debugException(le);
+          changeEventBus.removePersistentSearch(this);
+          connection.close(le);
+          return;
+        }
+      }
+    }
+  }
+
+
+
+  /**
+   * Sends a notification for the provided change to the client.
+   *
+   * @param  event      The change for which to send the notification.
+   * @param  syncState  The content synchronization state for the change, or
+   *                    {@code null} if this is not a content synchronization
+   *                    search.
+   *
+   * @throws  LDAPException  If a problem occurs while sending the notification.
+   */
+  private void sendNotification(final InMemoryChangeEventBus.ChangeEvent event,
+                                final ContentSyncState syncState)
+          throws LDAPException
+  {
+    final Control[] controls;
+    if (syncState != null)
+    {
+      controls = new Control[]
+      {
+        new ContentSyncStateControl(syncState,
+             InMemoryRequestHandler.getEntryUUID(event.getEntry()),
+             InMemoryRequestHandler.createContentSyncCookie(
+                  syncGeneration, event.getChangeNumber()))
+      };
+    }
+    else if (returnECs)
+    {
+      final String previousDN;
+      if (event.getChangeType() == PersistentSearchChangeType.MODIFY_DN)
+      {
+        previousDN = event.getPreviousDN().toString();
+      }
+      else
+      {
+        previousDN = null;
+      }
+
+      controls = new Control[]
+      {
+        new EntryChangeNotificationControl(event.getChangeType(), previousDN,
+             event.getChangeNumber())
+      };
+    }
+    else
+    {
+      controls = null;
+    }
+
+    // An entry that has been removed from the content synchronization results
+    // will only be identified by its DN and entryUUID.
+    if (syncState == ContentSyncState.DELETE)
+    {
+      final String dn;
+      if (event.getChangeType() == PersistentSearchChangeType.DELETE)
+      {
+        dn = event.getEntry().getDN();
+      }
+      else
+      {
+        dn = event.getPreviousEntry().getDN();
+      }
+
+      connection.sendSearchResultEntry(messageID, new Entry(dn), controls);
+      return;
+    }
+
+    // A referral entry will be returned as a search result reference unless
+    // the client included the ManageDsaIT control.
+    final Entry entry = event.getEntry();
+    if ((! manageDsaIT) && entry.hasObjectClass("referral") &&
+        entry.hasAttribute("ref"))
+    {
+      connection.sendSearchResultReference(messageID,
+           new SearchResultReferenceProtocolOp(
+                StaticUtils.toList(entry.getAttributeValues("ref"))),
+           controls);
+      return;
+    }
+
+    final SearchResultEntry searchEntry =
+         requestHandler.createSearchResultEntry(entry, allUserAttrs,
+              allOpAttrs, returnAttrs, typesOnly);
+    connection.sendSearchResultEntry(messageID, searchEntry, controls);
+  }
+
+
+
+  /**
+   * Stops this persistent search so that no further notifications will be sent
+   * to the client.  Any notification currently being sent will be allowed to
+   * complete.
+   */
+  void stop()
+  {
+    stopped = true;
+  }
+
+
+
+  /**
+   * Indicates that the client must refresh its content because the server
+   * content has been replaced.  This persistent search must already have been
+   * stopped.  If the initial phase of the search has completed, then a search
+   * result done message with a result code of
+   * {@link ResultCode#E_SYNC_REFRESH_REQUIRED} will be sent by a delivery
+   * thread, so that the caller is not delayed by a slow client.  Otherwise, it
+   * will be sent once the initial phase has completed, unless the search
+   * completes with a different result.
+   */
+  void requireRefresh()
+  {
+    refreshRequired = true;
+    if ((! deliveryHeld) && refreshRequiredSent.compareAndSet(false, true))
+    {
+      changeEventBus.runOnDeliveryThread(new Runnable()
+      {
+        public void run()
+        {
+          sendRefreshRequiredResult();
+        }
+      });
+    }
+  }
+
+
+
+  /**
+   * Completes this persistent search by sending a search result done message
+   * with a result code of {@link ResultCode#E_SYNC_REFRESH_REQUIRED}.
+   */
+  private void sendRefreshRequiredResult()
+  {
+    sendSearchResultDone(ResultCode.E_SYNC_REFRESH_REQUIRED,
+         ERR_MEM_PSEARCH_SYNC_REFRESH_REQUIRED.get());
+  }
+
+
+
+  /**
+   * Completes this persistent search by sending a search result done message
+   * to the client.  It must already have been stopped, and the done message
+   * will not be sent until any notification currently being sent has been
+   * completed.
+   *
+   * @param  resultCode         The result code for the search.
+   * @param  diagnosticMessage  The diagnostic message for the search, if any.
+   */
+  void sendSearchResultDone(final ResultCode resultCode,
+                            final String diagnosticMessage)
+  {
+    synchronized (this)
+    {
+      try
+      {
+        connection.sendSearchResultDone(messageID,
+             new SearchResultDoneProtocolOp(resultCode.intValue(), null,
+                  diagnosticMessage, null));
+      }
+      catch (final LDAPException le)
+      {
+        Debug.debugException(le);
+        connection.close(le);
+      }
+    }
+  }
+}
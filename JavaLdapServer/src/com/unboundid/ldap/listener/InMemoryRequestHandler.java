@@ -22,12 +22,15 @@ package com.unboundid.ldap.listener;
 
 
 
+import java.io.File;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -38,12 +41,22 @@ import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 
+import com.unboundid.asn1.ASN1Element;
 import com.unboundid.asn1.ASN1Integer;
+import com.unboundid.asn1.ASN1Long;
 import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.asn1.ASN1Sequence;
+import com.unboundid.ldap.protocol.AbandonRequestProtocolOp;
 import com.unboundid.ldap.protocol.AddRequestProtocolOp;
 import com.unboundid.ldap.protocol.AddResponseProtocolOp;
 import com.unboundid.ldap.protocol.BindRequestProtocolOp;
@@ -54,6 +67,7 @@ import com.unboundid.ldap.protocol.DeleteRequestProtocolOp;
 import com.unboundid.ldap.protocol.DeleteResponseProtocolOp;
 import com.unboundid.ldap.protocol.ExtendedRequestProtocolOp;
 import com.unboundid.ldap.protocol.ExtendedResponseProtocolOp;
+import com.unboundid.ldap.protocol.IntermediateResponseProtocolOp;
 import com.unboundid.ldap.protocol.LDAPMessage;
 import com.unboundid.ldap.protocol.ModifyRequestProtocolOp;
 import com.unboundid.ldap.protocol.ModifyResponseProtocolOp;
@@ -67,10 +81,10 @@ import com.unboundid.ldap.matchingrules.GeneralizedTimeMatchingRule;
 import com.unboundid.ldap.matchingrules.IntegerMatchingRule;
 import com.unboundid.ldap.matchingrules.MatchingRule;
 import com.unboundid.ldap.matchingrules.OctetStringMatchingRule;
-import com.unboundid.ldap.protocol.SearchResultReferenceProtocolOp;
 import com.unboundid.ldap.sdk.Attribute;
 import com.unboundid.ldap.sdk.BindResult;
 import com.unboundid.ldap.sdk.ChangeLogEntry;
+import com.unboundid.ldap.sdk.CompiledFilter;
 import com.unboundid.ldap.sdk.Control;
 import com.unboundid.ldap.sdk.DN;
 import com.unboundid.ldap.sdk.Entry;
@@ -79,6 +93,7 @@ import com.unboundid.ldap.sdk.ExtendedRequest;
 import com.unboundid.ldap.sdk.ExtendedResult;
 import com.unboundid.ldap.sdk.Filter;
 import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPRuntimeException;
 import com.unboundid.ldap.sdk.LDAPURL;
 import com.unboundid.ldap.sdk.Modification;
 import com.unboundid.ldap.sdk.ModificationType;
@@ -87,6 +102,7 @@ import com.unboundid.ldap.sdk.RDN;
 import com.unboundid.ldap.sdk.ReadOnlyEntry;
 import com.unboundid.ldap.sdk.ResultCode;
 import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultListener;
 import com.unboundid.ldap.sdk.SearchResultReference;
 import com.unboundid.ldap.sdk.SearchScope;
 import com.unboundid.ldap.sdk.schema.AttributeTypeDefinition;
@@ -100,9 +116,17 @@ import com.unboundid.ldap.sdk.schema.Schema;
 import com.unboundid.ldap.sdk.controls.AssertionRequestControl;
 import com.unboundid.ldap.sdk.controls.AuthorizationIdentityRequestControl;
 import com.unboundid.ldap.sdk.controls.AuthorizationIdentityResponseControl;
+import com.unboundid.ldap.sdk.controls.ContentSyncDoneControl;
+import com.unboundid.ldap.sdk.controls.ContentSyncInfoIntermediateResponse;
+import com.unboundid.ldap.sdk.controls.ContentSyncRequestControl;
+import com.unboundid.ldap.sdk.controls.ContentSyncRequestMode;
+import com.unboundid.ldap.sdk.controls.ContentSyncState;
+import com.unboundid.ldap.sdk.controls.ContentSyncStateControl;
 import com.unboundid.ldap.sdk.controls.DontUseCopyRequestControl;
 import com.unboundid.ldap.sdk.controls.ManageDsaITRequestControl;
 import com.unboundid.ldap.sdk.controls.PermissiveModifyRequestControl;
+import com.unboundid.ldap.sdk.controls.PersistentSearchChangeType;
+import com.unboundid.ldap.sdk.controls.PersistentSearchRequestControl;
 import com.unboundid.ldap.sdk.controls.PostReadRequestControl;
 import com.unboundid.ldap.sdk.controls.PostReadResponseControl;
 import com.unboundid.ldap.sdk.controls.PreReadRequestControl;
@@ -119,6 +143,7 @@ import com.unboundid.ldap.sdk.controls.TransactionSpecificationRequestControl;
 import com.unboundid.ldap.sdk.controls.VirtualListViewRequestControl;
 import com.unboundid.ldap.sdk.controls.VirtualListViewResponseControl;
 import com.unboundid.ldap.sdk.extensions.AbortedTransactionExtendedResult;
+import com.unboundid.ldap.sdk.extensions.CancelExtendedRequest;
 import com.unboundid.ldap.sdk.extensions.StartTLSExtendedRequest;
 import com.unboundid.ldif.LDIFAddChangeRecord;
 import com.unboundid.ldif.LDIFDeleteChangeRecord;
@@ -126,13 +151,17 @@ import com.unboundid.ldif.LDIFException;
 import com.unboundid.ldif.LDIFModifyChangeRecord;
 import com.unboundid.ldif.LDIFModifyDNChangeRecord;
 import com.unboundid.ldif.LDIFReader;
+import com.unboundid.ldif.LDIFReaderEntryTranslator;
 import com.unboundid.ldif.LDIFWriter;
 import com.unboundid.util.Debug;
+import com.unboundid.util.DebugType;
+import com.unboundid.util.LDAPSDKThreadFactory;
 import com.unboundid.util.Mutable;
 import com.unboundid.util.ObjectPair;
 import com.unboundid.util.StaticUtils;
 import com.unboundid.util.ThreadSafety;
 import com.unboundid.util.ThreadSafetyLevel;
+import com.unboundid.util.Validator;
 
 import static com.unboundid.ldap.listener.ListenerMessages.*;
 
@@ -157,6 +186,52 @@ public final class InMemoryRequestHandler
 
 
 
+  /**
+   * The number of entries that will be added during a bulk import between
+   * each notification of the import listener.
+   */
+  private static final int BULK_IMPORT_PROGRESS_INTERVAL = 10000;
+
+
+
+  /**
+   * The maximum number of paged results cursors that will be retained for a
+   * single connection.  If a client starts more paged searches than this
+   * without completing them, then its least recently used cursors will be
+   * discarded.
+   */
+  private static final int MAX_PAGED_RESULTS_CURSORS = 10;
+
+
+
+  /**
+   * The maximum number of paged results cursors that will be retained for all
+   * connections combined.  If this is exceeded, then the least recently used
+   * cursors will be discarded, regardless of the connection that created
+   * them.
+   */
+  private static final int MAX_TOTAL_PAGED_RESULTS_CURSORS = 1000;
+
+
+
+  /**
+   * The length of time in milliseconds that a paged results cursor will be
+   * retained without being used before it is discarded.
+   */
+  private static final long PAGED_RESULTS_CURSOR_IDLE_TIMEOUT_MILLIS =
+       300000L;
+
+
+
+  /**
+   * The number of candidate entries to examine between checks to determine
+   * whether a search has exceeded its time limit or has been abandoned or
+   * canceled by the client.
+   */
+  private static final int SEARCH_INTERRUPTION_CHECK_INTERVAL = 256;
+
+
+
   /**
    * The OID for a proprietary control that can be used to indicate that the
    * associated operation should be considered an internal operation that was
@@ -176,6 +251,10 @@ public final class InMemoryRequestHandler
   // The change number for the last changelog entry in the server.
   private final AtomicLong lastChangeNumber;
 
+  // The identifier to use for the next paged results cursor created on any
+  // connection.
+  private final AtomicLong nextPagedResultsCursorID;
+
   // A delay (in milliseconds) to insert before processing operations.
   private final AtomicLong processingDelayMillis;
 
@@ -186,6 +265,12 @@ public final class InMemoryRequestHandler
   // The entry to use as the subschema subentry.
   private final AtomicReference<ReadOnlyEntry> subschemaSubentryRef;
 
+  // The identifier of the current content synchronization generation.  It is
+  // included in every content synchronization cookie, and it is replaced
+  // whenever the data is replaced without the changes being recorded in the
+  // changelog, so that cookies issued before then will no longer be accepted.
+  private final AtomicReference<String> contentSyncGeneration;
+
   // The reference to the schema that will be used for this request handler.
   private final AtomicReference<Schema> schemaRef;
 
@@ -195,12 +280,31 @@ public final class InMemoryRequestHandler
   // The DN of the currently-authenticated user for the associated connection.
   private DN authenticatedDN;
 
+  // Indicates whether the client has requested that the search currently being
+  // processed for the associated connection be abandoned.
+  private boolean activeSearchAbandoned;
+
+  // The message ID of the search currently being processed for the associated
+  // connection, or -1 if no search is in progress.
+  private int activeSearchMessageID;
+
   // The base DN for the server changelog.
   private final DN changeLogBaseDN;
 
   // The DN of the subschema subentry.
   private final DN subschemaSubentryDN;
 
+  // The changelog for the server, or null if the changelog is not enabled.
+  private final InMemoryDirectoryServerChangeLog changeLog;
+
+  // The bus used to notify persistent searches of changes to the data.
+  private final InMemoryChangeEventBus changeEventBus;
+
+  // A persistent search on the associated connection that has been canceled
+  // by the extended operation in progress, and whose search result done
+  // message must be sent before the response to that operation.
+  private InMemoryPersistentSearch canceledPersistentSearch;
+
   // The configuration used to create this request handler.
   private final InMemoryDirectoryServerConfig config;
 
@@ -221,6 +325,31 @@ public final class InMemoryRequestHandler
   private final Map<AttributeTypeDefinition,
      InMemoryDirectoryServerEqualityAttributeIndex> equalityIndexes;
 
+  // The set of substring indexes defined for the server.
+  private final Map<AttributeTypeDefinition,
+     InMemoryDirectoryServerSubstringAttributeIndex> substringIndexes;
+
+  // The set of ordering indexes defined for the server.
+  private final Map<AttributeTypeDefinition,
+     InMemoryDirectoryServerOrderingAttributeIndex> orderingIndexes;
+
+  // The set of presence indexes defined for the server.
+  private final Map<AttributeTypeDefinition,
+     InMemoryDirectoryServerPresenceAttributeIndex> presenceIndexes;
+
+  // The VLV indexes that should be maintained.
+  private final List<InMemoryDirectoryServerVLVIndex> vlvIndexes;
+
+  // The index of the entries that reference each DN through the referential
+  // integrity attributes, or null if referential integrity is not enabled.
+  private final InMemoryDirectoryServerReferenceIndex referenceIndex;
+
+  // The indexes whose data can be written to and read from snapshot files.
+  private final List<InMemoryDirectoryServerSnapshotIndex> snapshotIndexes;
+
+  // The planner used to decide how to use indexes when processing searches.
+  private final InMemorySearchPlanner searchPlanner;
+
   // An additional set of credentials that may be used for bind operations.
   private final Map<DN,byte[]> additionalBindCredentials;
 
@@ -234,14 +363,25 @@ public final class InMemoryRequestHandler
   // A map of state information specific to the associated connection.
   private final Map<String,Object> connectionState;
 
+  // The cursors for paged searches in progress on all connections, indexed by
+  // cursor ID in order from least to most recently used.  It must only be
+  // accessed while synchronized on the map.
+  private final LinkedHashMap<Long,InMemoryPagedResultsCursor>
+       pagedResultsCursors;
+
   // The set of base DNs for the server.
   private final Set<DN> baseDNs;
 
   // The set of referential integrity attributes for the server.
   private final Set<String> referentialIntegrityAttributes;
 
-  // The map of entries currently held in the server.
-  private final Map<DN,ReadOnlyEntry> entryMap;
+  // The map of entries currently held in the server.  It also holds the index
+  // data, and manages the versions of the data visible to each operation.
+  private final InMemoryDirectoryServerDataStore entryMap;
+
+  // The journal used to make changes to the entries durable, or null if the
+  // entries are only held in memory.
+  private final InMemoryDirectoryServerJournal journal;
 
 
 
@@ -283,7 +423,10 @@ public final class InMemoryRequestHandler
            ERR_MEM_HANDLER_NO_BASE_DNS.get());
     }
 
-    entryMap = new TreeMap<DN,ReadOnlyEntry>();
+    entryMap = new InMemoryDirectoryServerDataStore(
+         config.allowConcurrentReads(), config.getEntryStorageMode(),
+         schemaRef);
+    changeEventBus = new InMemoryChangeEventBus(entryMap);
 
     final LinkedHashSet<DN> baseDNSet =
          new LinkedHashSet<DN>(Arrays.asList(baseDNArray));
@@ -357,12 +500,97 @@ public final class InMemoryRequestHandler
     for (final String s : eqIndexAttrs)
     {
       final InMemoryDirectoryServerEqualityAttributeIndex i =
-           new InMemoryDirectoryServerEqualityAttributeIndex(s, schema);
+           new InMemoryDirectoryServerEqualityAttributeIndex(s, schema,
+                entryMap);
       equalityIndexes.put(i.getAttributeType(), i);
     }
 
+    // Filters targeting object classes are very common, so always maintain an
+    // equality index for the objectClass attribute if it isn't already
+    // configured.
+    if (schema != null)
+    {
+      final AttributeTypeDefinition ocType =
+           schema.getAttributeType("objectClass");
+      if ((ocType != null) && (! equalityIndexes.containsKey(ocType)))
+      {
+        equalityIndexes.put(ocType,
+             new InMemoryDirectoryServerEqualityAttributeIndex("objectClass",
+                  schema, entryMap));
+      }
+    }
+
+    final List<String> subIndexAttrs = config.getSubstringIndexAttributes();
+    substringIndexes = new HashMap<AttributeTypeDefinition,
+         InMemoryDirectoryServerSubstringAttributeIndex>(subIndexAttrs.size());
+    for (final String s : subIndexAttrs)
+    {
+      final InMemoryDirectoryServerSubstringAttributeIndex i =
+           new InMemoryDirectoryServerSubstringAttributeIndex(s, schema,
+                entryMap);
+      substringIndexes.put(i.getAttributeType(), i);
+    }
+
+    final List<String> ordIndexAttrs = config.getOrderingIndexAttributes();
+    orderingIndexes = new HashMap<AttributeTypeDefinition,
+         InMemoryDirectoryServerOrderingAttributeIndex>(ordIndexAttrs.size());
+    for (final String s : ordIndexAttrs)
+    {
+      final InMemoryDirectoryServerOrderingAttributeIndex i =
+           new InMemoryDirectoryServerOrderingAttributeIndex(s, schema,
+                entryMap);
+      orderingIndexes.put(i.getAttributeType(), i);
+    }
+
+    final List<String> presIndexAttrs = config.getPresenceIndexAttributes();
+    presenceIndexes = new HashMap<AttributeTypeDefinition,
+         InMemoryDirectoryServerPresenceAttributeIndex>(presIndexAttrs.size());
+    for (final String s : presIndexAttrs)
+    {
+      final InMemoryDirectoryServerPresenceAttributeIndex i =
+           new InMemoryDirectoryServerPresenceAttributeIndex(s, schema,
+                entryMap);
+      presenceIndexes.put(i.getAttributeType(), i);
+    }
+
+    final List<InMemoryVLVIndexConfig> vlvIndexConfigs =
+         config.getVLVIndexes();
+    final ArrayList<InMemoryDirectoryServerVLVIndex> vlvIndexList =
+         new ArrayList<InMemoryDirectoryServerVLVIndex>(
+              vlvIndexConfigs.size());
+    for (final InMemoryVLVIndexConfig c : vlvIndexConfigs)
+    {
+      vlvIndexList.add(new InMemoryDirectoryServerVLVIndex(c, schema,
+           entryMap));
+    }
+    vlvIndexes = Collections.unmodifiableList(vlvIndexList);
+
+    searchPlanner = new InMemorySearchPlanner(entryMap, schemaRef,
+         equalityIndexes, substringIndexes, orderingIndexes, presenceIndexes);
+
     referentialIntegrityAttributes = Collections.unmodifiableSet(
          config.getReferentialIntegrityAttributes());
+    if (referentialIntegrityAttributes.isEmpty())
+    {
+      referenceIndex = null;
+    }
+    else
+    {
+      referenceIndex = new InMemoryDirectoryServerReferenceIndex(
+           referentialIntegrityAttributes, schemaRef, entryMap);
+    }
+
+    final ArrayList<InMemoryDirectoryServerSnapshotIndex> snapshotIndexList =
+         new ArrayList<InMemoryDirectoryServerSnapshotIndex>(10);
+    snapshotIndexList.addAll(equalityIndexes.values());
+    snapshotIndexList.addAll(substringIndexes.values());
+    snapshotIndexList.addAll(orderingIndexes.values());
+    snapshotIndexList.addAll(presenceIndexes.values());
+    if (referenceIndex != null)
+    {
+      snapshotIndexList.add(referenceIndex);
+    }
+    snapshotIndexes = Collections.unmodifiableList(snapshotIndexList);
 
     baseDNs = Collections.unmodifiableSet(baseDNSet);
     generateOperationalAttributes = config.generateOperationalAttributes();
@@ -371,7 +599,15 @@ public final class InMemoryRequestHandler
     connectionState               = Collections.emptyMap();
     firstChangeNumber             = new AtomicLong(0L);
     lastChangeNumber              = new AtomicLong(0L);
+    contentSyncGeneration         =
+         new AtomicReference<String>(UUID.randomUUID().toString());
     processingDelayMillis         = new AtomicLong(0L);
+    nextPagedResultsCursorID      = new AtomicLong(0L);
+    activeSearchMessageID         = -1;
+    activeSearchAbandoned         = false;
+    canceledPersistentSearch      = null;
+    pagedResultsCursors           =
+         new LinkedHashMap<Long,InMemoryPagedResultsCursor>(16, 0.75f, true);
 
     final ReadOnlyEntry subschemaSubentry = generateSubschemaSubentry(schema);
     subschemaSubentryRef.set(subschemaSubentry);
@@ -385,6 +621,8 @@ public final class InMemoryRequestHandler
 
     if (maxChangelogEntries > 0)
     {
+      changeLog = new InMemoryDirectoryServerChangeLog(entryMap,
+           changeLogBaseDN, maxChangelogEntries);
       baseDNSet.add(changeLogBaseDN);
 
       final ReadOnlyEntry changeLogBaseEntry = new ReadOnlyEntry(
@@ -413,8 +651,36 @@ public final class InMemoryRequestHandler
       entryMap.put(changeLogBaseDN, changeLogBaseEntry);
       indexAdd(changeLogBaseEntry);
     }
+    else
+    {
+      changeLog = null;
+    }
 
     initialSnapshot = createSnapshot();
+
+    // If a data directory was provided, then restore the entries recorded in
+    // its journal and record all subsequent changes in it.
+    final File dataDirectory = config.getDataDirectory();
+    if (dataDirectory == null)
+    {
+      journal = null;
+    }
+    else
+    {
+      journal = new InMemoryDirectoryServerJournal(dataDirectory,
+           config.getJournalSyncPolicy(),
+           config.getJournalSyncIntervalMillis(), lastChangeNumber);
+      try
+      {
+        restoreFromJournal();
+      }
+      catch (final LDAPException le)
+      {
+        Debug.debugException(le);
+        journal.close();
+        throw le;
+      }
+    }
   }
 
 
@@ -434,20 +700,35 @@ public final class InMemoryRequestHandler
     authenticatedDN = DN.NULL_DN;
     connectionState =
          Collections.synchronizedMap(new LinkedHashMap<String,Object>(0));
+    activeSearchMessageID    = -1;
+    activeSearchAbandoned    = false;
+    canceledPersistentSearch = null;
 
     config                         = parent.config;
     generateOperationalAttributes  = parent.generateOperationalAttributes;
     additionalBindCredentials      = parent.additionalBindCredentials;
     baseDNs                        = parent.baseDNs;
     changeLogBaseDN                = parent.changeLogBaseDN;
+    changeLog                      = parent.changeLog;
     firstChangeNumber              = parent.firstChangeNumber;
     lastChangeNumber               = parent.lastChangeNumber;
+    nextPagedResultsCursorID       = parent.nextPagedResultsCursorID;
+    pagedResultsCursors            = parent.pagedResultsCursors;
+    contentSyncGeneration          = parent.contentSyncGeneration;
     processingDelayMillis          = parent.processingDelayMillis;
     maxChangelogEntries            = parent.maxChangelogEntries;
     maxSizeLimit                   = parent.maxSizeLimit;
     equalityIndexes                = parent.equalityIndexes;
+    substringIndexes               = parent.substringIndexes;
+    orderingIndexes                = parent.orderingIndexes;
+    presenceIndexes                = parent.presenceIndexes;
+    vlvIndexes                     = parent.vlvIndexes;
+    searchPlanner                  = parent.searchPlanner;
     referentialIntegrityAttributes = parent.referentialIntegrityAttributes;
+    referenceIndex                 = parent.referenceIndex;
+    snapshotIndexes                = parent.snapshotIndexes;
     entryMap                       = parent.entryMap;
+    changeEventBus                 = parent.changeEventBus;
     entryValidatorRef              = parent.entryValidatorRef;
     extendedRequestHandlers        = parent.extendedRequestHandlers;
     saslBindHandlers               = parent.saslBindHandlers;
@@ -455,6 +736,7 @@ public final class InMemoryRequestHandler
     subschemaSubentryRef           = parent.subschemaSubentryRef;
     subschemaSubentryDN            = parent.subschemaSubentryDN;
     initialSnapshot                = parent.initialSnapshot;
+    journal                        = parent.journal;
   }
 
 
@@ -481,6 +763,33 @@ public final class InMemoryRequestHandler
 
 
 
+  /**
+   * Indicates that the client connection with which this request handler
+   * instance is associated is being closed, so any persistent searches active
+   * on that connection will be stopped, and any paged results cursors created
+   * on that connection will be discarded.
+   */
+  @Override()
+  public void closeInstance()
+  {
+    changeEventBus.removePersistentSearches(this);
+
+    synchronized (pagedResultsCursors)
+    {
+      final Iterator<InMemoryPagedResultsCursor> iterator =
+           pagedResultsCursors.values().iterator();
+      while (iterator.hasNext())
+      {
+        if (iterator.next().getRequestHandler() == this)
+        {
+          iterator.remove();
+        }
+      }
+    }
+  }
+
+
+
   /**
    * Creates a point-in-time snapshot of the information contained in this
    * in-memory request handler.  If desired, it may be restored using the
@@ -491,10 +800,26 @@ public final class InMemoryRequestHandler
    */
   public InMemoryDirectoryServerSnapshot createSnapshot()
   {
-    synchronized (entryMap)
+    entryMap.beginRead();
+    try
+    {
+      final Map<Long,ReadOnlyEntry> changeLogEntries;
+      if (changeLog == null)
+      {
+        changeLogEntries = Collections.emptyMap();
+      }
+      else
+      {
+        changeLogEntries = changeLog.getEntryMap();
+      }
+
+      return new InMemoryDirectoryServerSnapshot(entryMap.getVersion(),
+           changeLogEntries, firstChangeNumber.get(), lastChangeNumber.get(),
+           snapshotIndexes);
+    }
+    finally
     {
-      return new InMemoryDirectoryServerSnapshot(entryMap,
-           firstChangeNumber.get(), lastChangeNumber.get());
+      entryMap.endRead();
     }
   }
 
@@ -506,38 +831,126 @@ public final class InMemoryRequestHandler
    *
    * @param  snapshot  The snapshot to be restored.  It must not be
    *                   {@code null}.
+   *
+   * @throws  LDAPRuntimeException  If the snapshot was read from a file and a
+   *                                problem occurs while reading its content.
    */
   public void restoreSnapshot(final InMemoryDirectoryServerSnapshot snapshot)
+         throws LDAPRuntimeException
   {
-    synchronized (entryMap)
+    if (snapshot.getSnapshotFile() != null)
+    {
+      restoreSnapshotFile(snapshot.getSnapshotFile());
+      return;
+    }
+
+    entryMap.beginWrite();
+    try
     {
-      entryMap.clear();
-      entryMap.putAll(snapshot.getEntryMap());
+      // Persistent searches should not be notified of any changes that are
+      // being reverted.
+      entryMap.discardPublishTasks();
 
-      for (final InMemoryDirectoryServerEqualityAttributeIndex i :
-           equalityIndexes.values())
+      // If the snapshot was created from this request handler, then its data
+      // (including the index data) can be used as-is.  Otherwise, the entries
+      // will need to be copied and the indexes rebuilt.
+      if (! entryMap.restoreVersion(snapshot.getDataVersion()))
       {
-        i.clear();
-        for (final Entry e : entryMap.values())
+        entryMap.clear();
+        entryMap.putAll(snapshot.getEntryMapWithoutChangeLog());
+
+        if (changeLog != null)
         {
-          try
-          {
-            i.processAdd(e);
-          }
-          catch (final Exception ex)
-          {
-            Debug.debugException(ex);
-          }
+          changeLog.restore(snapshot.getChangeLogEntryMap());
         }
+
+        rebuildIndexes(1);
       }
 
       firstChangeNumber.set(snapshot.getFirstChangeNumber());
       lastChangeNumber.set(snapshot.getLastChangeNumber());
+      startContentSyncGeneration();
+    }
+    finally
+    {
+      entryMap.endWrite();
+    }
+  }
+
+
+
+  /**
+   * Updates the content of this in-memory request handler to match the content
+   * of the provided snapshot file.  The file will be read before the write
+   * lock is acquired, and the entries and index data read from it will be
+   * loaded into the data store without being added one at a time.  Any indexes
+   * whose data is not included in the file will be rebuilt.
+   *
+   * @param  file  The snapshot file to be restored.
+   *
+   * @throws  LDAPRuntimeException  If a problem occurs while reading the file.
+   */
+  private void restoreSnapshotFile(final File file)
+          throws LDAPRuntimeException
+  {
+    final InMemoryDirectoryServerSnapshotFile content;
+    try
+    {
+      content = InMemoryDirectoryServerSnapshotFile.read(file, schemaRef.get(),
+           snapshotIndexes, entryMap.getIndexSlotCount());
+    }
+    catch (final LDAPException le)
+    {
+      Debug.debugException(le);
+      throw new LDAPRuntimeException(le);
+    }
+
+    entryMap.beginWrite();
+    try
+    {
+      entryMap.discardPublishTasks();
+      entryMap.load(content.getDNs(), content.getEntries(),
+           content.getEntryIDs(), content.getParentPositions(),
+           content.getNextEntryID(), content.getIndexRoots());
+
+      if (changeLog != null)
+      {
+        changeLog.restore(content.getChangeLogEntries());
+      }
+
+      rebuildIndexes(Runtime.getRuntime().availableProcessors(),
+           content.getLoadedIndexes());
+
+      firstChangeNumber.set(content.getFirstChangeNumber());
+      lastChangeNumber.set(content.getLastChangeNumber());
+      startContentSyncGeneration();
+    }
+    finally
+    {
+      entryMap.endWrite();
     }
   }
 
 
 
+  /**
+   * Starts a new content synchronization generation, so that any cookie issued
+   * before now will no longer be accepted, and ends any content
+   * synchronization searches in the refresh and persist mode with a result
+   * code of {@link ResultCode#E_SYNC_REFRESH_REQUIRED}.  This must be called
+   * while holding the write lock whenever the data is changed in a way that
+   * is not recorded in the changelog (e.g., when a snapshot is restored),
+   * since the change numbers and changelog content that cookies refer to can
+   * no longer be relied upon to describe the changes since they were issued.
+   */
+  private void startContentSyncGeneration()
+  {
+    contentSyncGeneration.set(UUID.randomUUID().toString());
+    changeEventBus.requireContentSyncRefresh();
+  }
+
+
+
   /**
    * Retrieves the schema that will be used by the server, if any.
    *
@@ -706,6 +1119,41 @@ public final class InMemoryRequestHandler
 
 
 
+  /**
+   * Indicates that the client has requested that an operation be abandoned.
+   * Only a search that is currently being processed for the associated
+   * connection may be abandoned, in which case its processing will stop the
+   * next time it checks for interruption and no response will be returned for
+   * it, or a persistent search active on the connection, in which case no
+   * further change notifications will be sent for it.  Abandon requests
+   * targeting any other operation will be ignored.
+   *
+   * @param  messageID  The message ID of the LDAP message containing the
+   *                    abandon request.
+   * @param  request    The abandon request that was included in the LDAP
+   *                    message that was received.
+   * @param  controls   The set of controls included in the LDAP message.  It
+   *                    may be empty if there were no controls, but will not be
+   *                    {@code null}.
+   */
+  @Override()
+  public void processAbandonRequest(final int messageID,
+                                    final AbandonRequestProtocolOp request,
+                                    final List<Control> controls)
+  {
+    if ((activeSearchMessageID >= 0) &&
+        (request.getIDToAbandon() == activeSearchMessageID))
+    {
+      activeSearchAbandoned = true;
+    }
+    else
+    {
+      changeEventBus.removePersistentSearch(this, request.getIDToAbandon());
+    }
+  }
+
+
+
   /**
    * Attempts to add an entry to the in-memory data set.  The attempt will fail
    * if any of the following conditions is true:
@@ -743,7 +1191,8 @@ public final class InMemoryRequestHandler
                                        final AddRequestProtocolOp request,
                                        final List<Control> controls)
   {
-    synchronized (entryMap)
+    entryMap.beginWrite();
+    try
     {
       // Sleep before processing, if appropriate.
       sleepBeforeProcessing();
@@ -788,6 +1237,17 @@ public final class InMemoryRequestHandler
       }
 
 
+      // If changes can no longer be recorded in the journal, then reject the
+      // operation rather than making a change that would be lost.
+      final String journalFailureMessage = getJournalFailureMessage();
+      if (journalFailureMessage != null)
+      {
+        return new LDAPMessage(messageID, new AddResponseProtocolOp(
+             ResultCode.UNAVAILABLE_INT_VALUE, null, journalFailureMessage,
+             null));
+      }
+
+
       // See if this add request is part of a transaction.  If so, then perform
       // appropriate processing for it and return success immediately without
       // actually doing any further processing.
@@ -815,28 +1275,9 @@ public final class InMemoryRequestHandler
 
       // Get the entry to be added.  If a schema was provided, then make sure
       // the attributes are created with the appropriate matching rules.
-      final Entry entry;
       final Schema schema = schemaRef.get();
-      if (schema == null)
-      {
-        entry = new Entry(request.getDN(), request.getAttributes());
-      }
-      else
-      {
-        final List<Attribute> providedAttrs = request.getAttributes();
-        final List<Attribute> newAttrs =
-             new ArrayList<Attribute>(providedAttrs.size());
-        for (final Attribute a : providedAttrs)
-        {
-          final String baseName = a.getBaseName();
-          final MatchingRule matchingRule =
-               MatchingRule.selectEqualityMatchingRule(baseName, schema);
-          newAttrs.add(new Attribute(a.getName(), matchingRule,
-               a.getRawValues()));
-        }
-
-        entry = new Entry(request.getDN(), schema, newAttrs);
-      }
+      final Entry entry =
+           createEntryForAdd(request.getDN(), request.getAttributes(), schema);
 
       // Make sure that the DN is valid.
       final DN dn;
@@ -899,50 +1340,9 @@ public final class InMemoryRequestHandler
              ERR_MEM_HANDLER_ADD_ALREADY_EXISTS.get(request.getDN()), null));
       }
 
-      // Make sure that all RDN attribute values are present in the entry.
-      final RDN      rdn           = dn.getRDN();
-      final String[] rdnAttrNames  = rdn.getAttributeNames();
-      final byte[][] rdnAttrValues = rdn.getByteArrayAttributeValues();
-      for (int i=0; i < rdnAttrNames.length; i++)
-      {
-        final MatchingRule matchingRule =
-             MatchingRule.selectEqualityMatchingRule(rdnAttrNames[i], schema);
-        entry.addAttribute(new Attribute(rdnAttrNames[i], matchingRule,
-             rdnAttrValues[i]));
-      }
-
-      // Make sure that all superior object classes are present in the entry.
-      if (schema != null)
-      {
-        final String[] objectClasses = entry.getObjectClassValues();
-        if (objectClasses != null)
-        {
-          final LinkedHashMap<String,String> ocMap =
-               new LinkedHashMap<String,String>(objectClasses.length);
-          for (final String ocName : objectClasses)
-          {
-            final ObjectClassDefinition oc = schema.getObjectClass(ocName);
-            if (oc == null)
-            {
-              ocMap.put(StaticUtils.toLowerCase(ocName), ocName);
-            }
-            else
-            {
-              ocMap.put(StaticUtils.toLowerCase(oc.getNameOrOID()), ocName);
-              for (final ObjectClassDefinition supClass :
-                   oc.getSuperiorClasses(schema, true))
-              {
-                ocMap.put(StaticUtils.toLowerCase(supClass.getNameOrOID()),
-                     supClass.getNameOrOID());
-              }
-            }
-          }
-
-          final String[] newObjectClasses = new String[ocMap.size()];
-          ocMap.values().toArray(newObjectClasses);
-          entry.setAttribute("objectClass", newObjectClasses);
-        }
-      }
+      // Make sure that all RDN attribute values and superior object classes
+      // are present in the entry.
+      addRDNValuesAndSuperiorClasses(entry, dn, schema);
 
       // If a schema was provided, then make sure the entry complies with it.
       // Also make sure that there are no attributes marked with
@@ -993,48 +1393,7 @@ public final class InMemoryRequestHandler
       // Add a number of operational attributes to the entry.
       if (generateOperationalAttributes)
       {
-        final Date d = new Date();
-        if (! entry.hasAttribute("entryDN"))
-        {
-          entry.addAttribute(new Attribute("entryDN",
-               DistinguishedNameMatchingRule.getInstance(),
-               dn.toNormalizedString()));
-        }
-        if (! entry.hasAttribute("entryUUID"))
-        {
-          entry.addAttribute(new Attribute("entryUUID",
-               UUID.randomUUID().toString()));
-        }
-        if (! entry.hasAttribute("subschemaSubentry"))
-        {
-          entry.addAttribute(new Attribute("subschemaSubentry",
-               DistinguishedNameMatchingRule.getInstance(),
-               subschemaSubentryDN.toString()));
-        }
-        if (! entry.hasAttribute("creatorsName"))
-        {
-          entry.addAttribute(new Attribute("creatorsName",
-               DistinguishedNameMatchingRule.getInstance(),
-               authzDN.toString()));
-        }
-        if (! entry.hasAttribute("createTimestamp"))
-        {
-          entry.addAttribute(new Attribute("createTimestamp",
-               GeneralizedTimeMatchingRule.getInstance(),
-               StaticUtils.encodeGeneralizedTime(d)));
-        }
-        if (! entry.hasAttribute("modifiersName"))
-        {
-          entry.addAttribute(new Attribute("modifiersName",
-               DistinguishedNameMatchingRule.getInstance(),
-               authzDN.toString()));
-        }
-        if (! entry.hasAttribute("modifyTimestamp"))
-        {
-          entry.addAttribute(new Attribute("modifyTimestamp",
-               GeneralizedTimeMatchingRule.getInstance(),
-               StaticUtils.encodeGeneralizedTime(d)));
-        }
+        addGeneratedOperationalAttributes(entry, dn, authzDN);
       }
 
       // If the request includes the assertion request control, then check it
@@ -1066,6 +1425,8 @@ public final class InMemoryRequestHandler
         entryMap.put(dn, new ReadOnlyEntry(entry));
         indexAdd(entry);
         addChangeLogEntry(request, authzDN);
+        notifyPersistentSearches(PersistentSearchChangeType.ADD,
+             entryMap.get(dn), null, false);
         return new LDAPMessage(messageID,
              new AddResponseProtocolOp(ResultCode.SUCCESS_INT_VALUE, null, null,
                   null),
@@ -1079,6 +1440,8 @@ public final class InMemoryRequestHandler
         entryMap.put(dn, new ReadOnlyEntry(entry));
         indexAdd(entry);
         addChangeLogEntry(request, authzDN);
+        notifyPersistentSearches(PersistentSearchChangeType.ADD,
+             entryMap.get(dn), null, false);
         return new LDAPMessage(messageID,
              new AddResponseProtocolOp(ResultCode.SUCCESS_INT_VALUE, null, null,
                   null),
@@ -1092,30 +1455,190 @@ public final class InMemoryRequestHandler
                 dn.getParentString()),
            null));
     }
+    finally
+    {
+      entryMap.endWrite();
+    }
   }
 
 
 
   /**
-   * Attempts to process the provided bind request.  The attempt will fail if
-   * any of the following conditions is true:
-   * <UL>
-   *   <LI>There is a problem with any of the request controls.</LI>
-   *   <LI>The bind request is not a simple bind request.</LI>
-   *   <LI>The bind request contains a malformed bind DN.</LI>
-   *   <LI>The bind DN is not the null DN and is not the DN of any entry in the
-   *       data set.</LI>
-   *   <LI>The bind password is empty and the bind DN is not the null DN.</LI>
-   *   <LI>The target user does not have a userPassword value that matches the
-   *       provided bind password.</LI>
-   * </UL>
+   * Creates an entry with the provided DN and attributes for use in an add
+   * operation.  If a schema is provided, then the attributes will be created
+   * with the appropriate equality matching rules.
    *
-   * @param  messageID  The message ID of the LDAP message containing the bind
-   *                    request.
-   * @param  request    The bind request that was included in the LDAP message
-   *                    that was received.
-   * @param  controls   The set of controls included in the LDAP message.  It
-   *                    may be empty if there were no controls, but will not be
+   * @param  dn          The DN for the entry to create.
+   * @param  attributes  The attributes to include in the entry.
+   * @param  schema      The schema to use for the entry.  It may be
+   *                     {@code null} if no schema should be used.
+   *
+   * @return  The entry that was created.
+   */
+  private static Entry createEntryForAdd(final String dn,
+                                         final Collection<Attribute> attributes,
+                                         final Schema schema)
+  {
+    if (schema == null)
+    {
+      return new Entry(dn, attributes);
+    }
+
+    final List<Attribute> newAttrs =
+         new ArrayList<Attribute>(attributes.size());
+    for (final Attribute a : attributes)
+    {
+      final String baseName = a.getBaseName();
+      final MatchingRule matchingRule =
+           MatchingRule.selectEqualityMatchingRule(baseName, schema);
+      newAttrs.add(new Attribute(a.getName(), matchingRule,
+           a.getRawValues()));
+    }
+
+    return new Entry(dn, schema, newAttrs);
+  }
+
+
+
+  /**
+   * Updates the provided entry so that it contains all of the attribute values
+   * from its RDN and, if a schema is provided, all of the superior classes of
+   * its object classes.
+   *
+   * @param  entry   The entry to be updated.
+   * @param  dn      The parsed DN of the entry.
+   * @param  schema  The schema to use to identify superior object classes.  It
+   *                 may be {@code null} if no schema should be used.
+   */
+  private static void addRDNValuesAndSuperiorClasses(final Entry entry,
+                                                     final DN dn,
+                                                     final Schema schema)
+  {
+    // Make sure that all RDN attribute values are present in the entry.
+    final RDN      rdn           = dn.getRDN();
+    final String[] rdnAttrNames  = rdn.getAttributeNames();
+    final byte[][] rdnAttrValues = rdn.getByteArrayAttributeValues();
+    for (int i=0; i < rdnAttrNames.length; i++)
+    {
+      final MatchingRule matchingRule =
+           MatchingRule.selectEqualityMatchingRule(rdnAttrNames[i], schema);
+      entry.addAttribute(new Attribute(rdnAttrNames[i], matchingRule,
+           rdnAttrValues[i]));
+    }
+
+    // Make sure that all superior object classes are present in the entry.
+    if (schema != null)
+    {
+      final String[] objectClasses = entry.getObjectClassValues();
+      if (objectClasses != null)
+      {
+        final LinkedHashMap<String,String> ocMap =
+             new LinkedHashMap<String,String>(objectClasses.length);
+        for (final String ocName : objectClasses)
+        {
+          final ObjectClassDefinition oc = schema.getObjectClass(ocName);
+          if (oc == null)
+          {
+            ocMap.put(StaticUtils.toLowerCase(ocName), ocName);
+          }
+          else
+          {
+            ocMap.put(StaticUtils.toLowerCase(oc.getNameOrOID()), ocName);
+            for (final ObjectClassDefinition supClass :
+                 oc.getSuperiorClasses(schema, true))
+            {
+              ocMap.put(StaticUtils.toLowerCase(supClass.getNameOrOID()),
+                   supClass.getNameOrOID());
+            }
+          }
+        }
+
+        final String[] newObjectClasses = new String[ocMap.size()];
+        ocMap.values().toArray(newObjectClasses);
+        entry.setAttribute("objectClass", newObjectClasses);
+      }
+    }
+  }
+
+
+
+  /**
+   * Adds the operational attributes that the server generates for new entries
+   * to the provided entry, unless the entry already contains them.
+   *
+   * @param  entry    The entry to be updated.
+   * @param  dn       The parsed DN of the entry.
+   * @param  authzDN  The authorization DN for the add operation.
+   */
+  private void addGeneratedOperationalAttributes(final Entry entry,
+                                                 final DN dn, final DN authzDN)
+  {
+    final Date d = new Date();
+    if (! entry.hasAttribute("entryDN"))
+    {
+      entry.addAttribute(new Attribute("entryDN",
+           DistinguishedNameMatchingRule.getInstance(),
+           dn.toNormalizedString()));
+    }
+    if (! entry.hasAttribute("entryUUID"))
+    {
+      entry.addAttribute(new Attribute("entryUUID",
+           UUID.randomUUID().toString()));
+    }
+    if (! entry.hasAttribute("subschemaSubentry"))
+    {
+      entry.addAttribute(new Attribute("subschemaSubentry",
+           DistinguishedNameMatchingRule.getInstance(),
+           subschemaSubentryDN.toString()));
+    }
+    if (! entry.hasAttribute("creatorsName"))
+    {
+      entry.addAttribute(new Attribute("creatorsName",
+           DistinguishedNameMatchingRule.getInstance(),
+           authzDN.toString()));
+    }
+    if (! entry.hasAttribute("createTimestamp"))
+    {
+      entry.addAttribute(new Attribute("createTimestamp",
+           GeneralizedTimeMatchingRule.getInstance(),
+           StaticUtils.encodeGeneralizedTime(d)));
+    }
+    if (! entry.hasAttribute("modifiersName"))
+    {
+      entry.addAttribute(new Attribute("modifiersName",
+           DistinguishedNameMatchingRule.getInstance(),
+           authzDN.toString()));
+    }
+    if (! entry.hasAttribute("modifyTimestamp"))
+    {
+      entry.addAttribute(new Attribute("modifyTimestamp",
+           GeneralizedTimeMatchingRule.getInstance(),
+           StaticUtils.encodeGeneralizedTime(d)));
+    }
+  }
+
+
+
+  /**
+   * Attempts to process the provided bind request.  The attempt will fail if
+   * any of the following conditions is true:
+   * <UL>
+   *   <LI>There is a problem with any of the request controls.</LI>
+   *   <LI>The bind request is not a simple bind request.</LI>
+   *   <LI>The bind request contains a malformed bind DN.</LI>
+   *   <LI>The bind DN is not the null DN and is not the DN of any entry in the
+   *       data set.</LI>
+   *   <LI>The bind password is empty and the bind DN is not the null DN.</LI>
+   *   <LI>The target user does not have a userPassword value that matches the
+   *       provided bind password.</LI>
+   * </UL>
+   *
+   * @param  messageID  The message ID of the LDAP message containing the bind
+   *                    request.
+   * @param  request    The bind request that was included in the LDAP message
+   *                    that was received.
+   * @param  controls   The set of controls included in the LDAP message.  It
+   *                    may be empty if there were no controls, but will not be
    *                    {@code null}.
    *
    * @return  The {@link LDAPMessage} containing the response to send to the
@@ -1127,7 +1650,8 @@ public final class InMemoryRequestHandler
                                         final BindRequestProtocolOp request,
                                         final List<Control> controls)
   {
-    synchronized (entryMap)
+    entryMap.beginRead();
+    try
     {
       // Sleep before processing, if appropriate.
       sleepBeforeProcessing();
@@ -1346,6 +1870,10 @@ public final class InMemoryRequestHandler
              null));
       }
     }
+    finally
+    {
+      entryMap.endRead();
+    }
   }
 
 
@@ -1376,7 +1904,8 @@ public final class InMemoryRequestHandler
                           final CompareRequestProtocolOp request,
                           final List<Control> controls)
   {
-    synchronized (entryMap)
+    entryMap.beginRead();
+    try
     {
       // Sleep before processing, if appropriate.
       sleepBeforeProcessing();
@@ -1465,7 +1994,7 @@ public final class InMemoryRequestHandler
       }
       else
       {
-        entry = entryMap.get(dn);
+        entry = getStoredEntry(dn);
       }
       if (entry == null)
       {
@@ -1503,6 +2032,10 @@ public final class InMemoryRequestHandler
            new CompareResponseProtocolOp(resultCode, null, null, null),
            responseControls);
     }
+    finally
+    {
+      entryMap.endRead();
+    }
   }
 
 
@@ -1537,7 +2070,8 @@ public final class InMemoryRequestHandler
                                           final DeleteRequestProtocolOp request,
                                           final List<Control> controls)
   {
-    synchronized (entryMap)
+    entryMap.beginWrite();
+    try
     {
       // Sleep before processing, if appropriate.
       sleepBeforeProcessing();
@@ -1582,6 +2116,17 @@ public final class InMemoryRequestHandler
       }
 
 
+      // If changes can no longer be recorded in the journal, then reject the
+      // operation rather than making a change that would be lost.
+      final String journalFailureMessage = getJournalFailureMessage();
+      if (journalFailureMessage != null)
+      {
+        return new LDAPMessage(messageID, new DeleteResponseProtocolOp(
+             ResultCode.UNAVAILABLE_INT_VALUE, null, journalFailureMessage,
+             null));
+      }
+
+
       // See if this delete request is part of a transaction.  If so, then
       // perform appropriate processing for it and return success immediately
       // without actually doing any further processing.
@@ -1671,14 +2216,8 @@ public final class InMemoryRequestHandler
       // Create a list with the DN of the target entry, and all the DNs of its
       // subordinates.  If the entry has subordinates and the subtree delete
       // control was not provided, then fail.
-      final ArrayList<DN> subordinateDNs = new ArrayList<DN>(entryMap.size());
-      for (final DN mapEntryDN : entryMap.keySet())
-      {
-        if (mapEntryDN.isDescendantOf(dn, false))
-        {
-          subordinateDNs.add(mapEntryDN);
-        }
-      }
+      final ArrayList<DN> subordinateDNs =
+           new ArrayList<DN>(entryMap.getSubtree(dn, false).keySet());
 
       if ((! subordinateDNs.isEmpty()) &&
            (! controlMap.containsKey(
@@ -1719,16 +2258,21 @@ public final class InMemoryRequestHandler
       for (int i=(subordinateDNs.size() - 1); i >= 0; i--)
       {
         final DN subordinateDN = subordinateDNs.get(i);
-        final Entry subEntry = entryMap.remove(subordinateDN);
+        final Entry subEntry = entryMap.get(subordinateDN);
         indexDelete(subEntry);
+        entryMap.remove(subordinateDN);
         addDeleteChangeLogEntry(subEntry, authzDN);
+        notifyPersistentSearches(PersistentSearchChangeType.DELETE, subEntry,
+             subEntry, false);
         handleReferentialIntegrityDelete(subordinateDN);
       }
 
       // Finally, remove the target entry and create a changelog entry for it.
-      entryMap.remove(dn);
       indexDelete(entry);
+      entryMap.remove(dn);
       addDeleteChangeLogEntry(entry, authzDN);
+      notifyPersistentSearches(PersistentSearchChangeType.DELETE, entry, entry,
+           false);
       handleReferentialIntegrityDelete(dn);
 
       return new LDAPMessage(messageID,
@@ -1736,6 +2280,10 @@ public final class InMemoryRequestHandler
                 null, null),
            responseControls);
     }
+    finally
+    {
+      entryMap.endWrite();
+    }
   }
 
 
@@ -1748,15 +2296,34 @@ public final class InMemoryRequestHandler
    */
   private void handleReferentialIntegrityDelete(final DN dn)
   {
-    if (referentialIntegrityAttributes.isEmpty())
+    if (referenceIndex == null)
     {
       return;
     }
 
-    final ArrayList<DN> entryDNs = new ArrayList<DN>(entryMap.keySet());
-    for (final DN mapDN : entryDNs)
+    // Only the entries that the reference index identifies as referencing the
+    // deleted entry need to be examined.  The set of IDs will not be affected
+    // by the updates made below.
+    final Iterator<Integer> iterator =
+         referenceIndex.getReferencingEntries(dn).iterator();
+    while (iterator.hasNext())
     {
-      final ReadOnlyEntry e = entryMap.get(mapDN);
+      final ReadOnlyEntry e = entryMap.getEntry(iterator.next());
+      if (e == null)
+      {
+        continue;
+      }
+
+      final DN mapDN;
+      try
+      {
+        mapDN = e.getParsedDN();
+      }
+      catch (final LDAPException le)
+      {
+        Debug.debugException(le);
+        continue;
+      }
 
       boolean referenceFound = false;
       final Schema schema = schemaRef.get();
@@ -1810,7 +2377,8 @@ public final class InMemoryRequestHandler
                           final ExtendedRequestProtocolOp request,
                           final List<Control> controls)
   {
-    synchronized (entryMap)
+    entryMap.beginWrite();
+    try
     {
       // Sleep before processing, if appropriate.
       sleepBeforeProcessing();
@@ -1891,6 +2459,22 @@ public final class InMemoryRequestHandler
              null, null, null));
       }
     }
+    finally
+    {
+      entryMap.endWrite();
+
+      // If the operation canceled a persistent search, then send its result
+      // now that the write lock has been released, since writing to the
+      // client may block.  It will still precede the response to the cancel
+      // request.
+      if (canceledPersistentSearch != null)
+      {
+        final InMemoryPersistentSearch s = canceledPersistentSearch;
+        canceledPersistentSearch = null;
+        s.sendSearchResultDone(ResultCode.CANCELED,
+             INFO_MEM_HANDLER_SEARCH_CANCELED.get());
+      }
+    }
   }
 
 
@@ -1926,7 +2510,8 @@ public final class InMemoryRequestHandler
                                           final ModifyRequestProtocolOp request,
                                           final List<Control> controls)
   {
-    synchronized (entryMap)
+    entryMap.beginWrite();
+    try
     {
       // Sleep before processing, if appropriate.
       sleepBeforeProcessing();
@@ -1971,6 +2556,17 @@ public final class InMemoryRequestHandler
       }
 
 
+      // If changes can no longer be recorded in the journal, then reject the
+      // operation rather than making a change that would be lost.
+      final String journalFailureMessage = getJournalFailureMessage();
+      if (journalFailureMessage != null)
+      {
+        return new LDAPMessage(messageID, new ModifyResponseProtocolOp(
+             ResultCode.UNAVAILABLE_INT_VALUE, null, journalFailureMessage,
+             null));
+      }
+
+
       // See if this modify request is part of a transaction.  If so, then
       // perform appropriate processing for it and return success immediately
       // without actually doing any further processing.
@@ -2183,11 +2779,25 @@ public final class InMemoryRequestHandler
         indexAdd(modifiedEntry);
       }
       addChangeLogEntry(request, authzDN);
+      if (dn.equals(subschemaSubentryDN))
+      {
+        notifyPersistentSearches(PersistentSearchChangeType.MODIFY,
+             subschemaSubentryRef.get(), entry, false);
+      }
+      else
+      {
+        notifyPersistentSearches(PersistentSearchChangeType.MODIFY,
+             entryMap.get(dn), entry, false);
+      }
       return new LDAPMessage(messageID,
            new ModifyResponseProtocolOp(ResultCode.SUCCESS_INT_VALUE, null,
                 null, null),
            responseControls);
     }
+    finally
+    {
+      entryMap.endWrite();
+    }
   }
 
 
@@ -2359,7 +2969,8 @@ public final class InMemoryRequestHandler
                           final ModifyDNRequestProtocolOp request,
                           final List<Control> controls)
   {
-    synchronized (entryMap)
+    entryMap.beginWrite();
+    try
     {
       // Sleep before processing, if appropriate.
       sleepBeforeProcessing();
@@ -2405,6 +3016,17 @@ public final class InMemoryRequestHandler
       }
 
 
+      // If changes can no longer be recorded in the journal, then reject the
+      // operation rather than making a change that would be lost.
+      final String journalFailureMessage = getJournalFailureMessage();
+      if (journalFailureMessage != null)
+      {
+        return new LDAPMessage(messageID, new ModifyDNResponseProtocolOp(
+             ResultCode.UNAVAILABLE_INT_VALUE, null, journalFailureMessage,
+             null));
+      }
+
+
       // See if this modify DN request is part of a transaction.  If so, then
       // perform appropriate processing for it and return success immediately
       // without actually doing any further processing.
@@ -2752,54 +3374,81 @@ public final class InMemoryRequestHandler
       }
 
       // Remove the old entry and add the new one.
+      indexDelete(originalEntry);
       entryMap.remove(dn);
       entryMap.put(newDN, new ReadOnlyEntry(updatedEntry));
-      indexDelete(originalEntry);
       indexAdd(updatedEntry);
 
       // If the target entry had any subordinates, then rename them as well.
       final RDN[] oldDNComps = dn.getRDNs();
       final RDN[] newDNComps = newDN.getRDNs();
-      final Set<DN> dnSet = new LinkedHashSet<DN>(entryMap.keySet());
+      final Set<DN> dnSet = entryMap.getSubtree(dn, false).keySet();
+      final List<ObjectPair<Entry,Entry>> renamedSubordinates;
+      if (changeEventBus.hasPersistentSearches())
+      {
+        renamedSubordinates =
+             new ArrayList<ObjectPair<Entry,Entry>>(dnSet.size());
+      }
+      else
+      {
+        renamedSubordinates = null;
+      }
       for (final DN mapEntryDN : dnSet)
       {
-        if (mapEntryDN.isDescendantOf(dn, false))
-        {
-          final Entry o = entryMap.remove(mapEntryDN);
-          final Entry e = o.duplicate();
+        final Entry o = entryMap.get(mapEntryDN);
+        indexDelete(o);
+        entryMap.remove(mapEntryDN);
+        final Entry e = o.duplicate();
 
-          final RDN[] oldMapEntryComps = mapEntryDN.getRDNs();
-          final int compsToSave = oldMapEntryComps.length - oldDNComps.length;
+        final RDN[] oldMapEntryComps = mapEntryDN.getRDNs();
+        final int compsToSave = oldMapEntryComps.length - oldDNComps.length;
 
-          final RDN[] newMapEntryComps =
-               new RDN[compsToSave + newDNComps.length];
-          System.arraycopy(oldMapEntryComps, 0, newMapEntryComps, 0,
-               compsToSave);
-          System.arraycopy(newDNComps, 0, newMapEntryComps, compsToSave,
-               newDNComps.length);
+        final RDN[] newMapEntryComps =
+             new RDN[compsToSave + newDNComps.length];
+        System.arraycopy(oldMapEntryComps, 0, newMapEntryComps, 0,
+             compsToSave);
+        System.arraycopy(newDNComps, 0, newMapEntryComps, compsToSave,
+             newDNComps.length);
 
-          final DN newMapEntryDN = new DN(newMapEntryComps);
-          e.setDN(newMapEntryDN);
-          if (generateOperationalAttributes)
-          {
-            e.setAttribute(new Attribute("entryDN",
-                 DistinguishedNameMatchingRule.getInstance(),
-                 newMapEntryDN.toNormalizedString()));
-          }
-          entryMap.put(newMapEntryDN, new ReadOnlyEntry(e));
-          indexDelete(o);
-          indexAdd(e);
-          handleReferentialIntegrityModifyDN(mapEntryDN, newMapEntryDN);
+        final DN newMapEntryDN = new DN(newMapEntryComps);
+        e.setDN(newMapEntryDN);
+        if (generateOperationalAttributes)
+        {
+          e.setAttribute(new Attribute("entryDN",
+               DistinguishedNameMatchingRule.getInstance(),
+               newMapEntryDN.toNormalizedString()));
+        }
+        final ReadOnlyEntry renamedEntry = new ReadOnlyEntry(e);
+        entryMap.put(newMapEntryDN, renamedEntry);
+        indexAdd(e);
+        handleReferentialIntegrityModifyDN(mapEntryDN, newMapEntryDN);
+        if (renamedSubordinates != null)
+        {
+          renamedSubordinates.add(new ObjectPair<Entry,Entry>(renamedEntry, o));
         }
       }
 
       addChangeLogEntry(request, authzDN);
+      notifyPersistentSearches(PersistentSearchChangeType.MODIFY_DN,
+           entryMap.get(newDN), originalEntry, false);
+      if (renamedSubordinates != null)
+      {
+        for (final ObjectPair<Entry,Entry> p : renamedSubordinates)
+        {
+          notifyPersistentSearches(PersistentSearchChangeType.MODIFY_DN,
+               p.getFirst(), p.getSecond(), true);
+        }
+      }
       handleReferentialIntegrityModifyDN(dn, newDN);
       return new LDAPMessage(messageID,
            new ModifyDNResponseProtocolOp(ResultCode.SUCCESS_INT_VALUE, null,
                 null, null),
            responseControls);
     }
+    finally
+    {
+      entryMap.endWrite();
+    }
   }
 
 
@@ -2814,15 +3463,34 @@ public final class InMemoryRequestHandler
   private void handleReferentialIntegrityModifyDN(final DN oldDN,
                                                   final DN newDN)
   {
-    if (referentialIntegrityAttributes.isEmpty())
+    if (referenceIndex == null)
     {
       return;
     }
 
-    final ArrayList<DN> entryDNs = new ArrayList<DN>(entryMap.keySet());
-    for (final DN mapDN : entryDNs)
+    // Only the entries that the reference index identifies as referencing the
+    // old DN need to be examined.  The set of IDs will not be affected by the
+    // updates made below.
+    final Iterator<Integer> iterator =
+         referenceIndex.getReferencingEntries(oldDN).iterator();
+    while (iterator.hasNext())
     {
-      final ReadOnlyEntry e = entryMap.get(mapDN);
+      final ReadOnlyEntry e = entryMap.getEntry(iterator.next());
+      if (e == null)
+      {
+        continue;
+      }
+
+      final DN mapDN;
+      try
+      {
+        mapDN = e.getParsedDN();
+      }
+      catch (final LDAPException le)
+      {
+        Debug.debugException(le);
+        continue;
+      }
 
       boolean referenceFound = false;
       final Schema schema = schemaRef.get();
@@ -2882,7 +3550,9 @@ public final class InMemoryRequestHandler
    *                    {@code null}.
    *
    * @return  The {@link LDAPMessage} containing the response to send to the
-   *          client.  The protocol op in the {@code LDAPMessage} must be an
+   *          client, or {@code null} if the client abandoned the search while
+   *          it was being processed.  The protocol op in the
+   *          {@code LDAPMessage} must be an
    *          {@code SearchResultDoneProtocolOp}.
    */
   @Override()
@@ -2890,55 +3560,8 @@ public final class InMemoryRequestHandler
                                           final SearchRequestProtocolOp request,
                                           final List<Control> controls)
   {
-    synchronized (entryMap)
-    {
-      final List<SearchResultEntry> entryList =
-           new ArrayList<SearchResultEntry>(entryMap.size());
-      final List<SearchResultReference> referenceList =
-           new ArrayList<SearchResultReference>(entryMap.size());
-
-      final LDAPMessage returnMessage = processSearchRequest(messageID, request,
-           controls, entryList, referenceList);
-
-      for (final SearchResultEntry e : entryList)
-      {
-        try
-        {
-          connection.sendSearchResultEntry(messageID, e, e.getControls());
-        }
-        catch (final LDAPException le)
-        {
-          Debug.debugException(le);
-          return new LDAPMessage(messageID,
-               new SearchResultDoneProtocolOp(le.getResultCode().intValue(),
-                    le.getMatchedDN(), le.getDiagnosticMessage(),
-                    StaticUtils.toList(le.getReferralURLs())),
-               le.getResponseControls());
-        }
-      }
-
-      for (final SearchResultReference r : referenceList)
-      {
-        try
-        {
-          connection.sendSearchResultReference(messageID,
-               new SearchResultReferenceProtocolOp(
-                    StaticUtils.toList(r.getReferralURLs())),
-               r.getControls());
-        }
-        catch (final LDAPException le)
-        {
-          Debug.debugException(le);
-          return new LDAPMessage(messageID,
-               new SearchResultDoneProtocolOp(le.getResultCode().intValue(),
-                    le.getMatchedDN(), le.getDiagnosticMessage(),
-                    StaticUtils.toList(le.getReferralURLs())),
-               le.getResponseControls());
-        }
-      }
-
-      return returnMessage;
-    }
+    return processSearchRequest(messageID, request, controls,
+         new InMemorySearchResultListener(connection, messageID));
   }
 
 
@@ -2982,7 +3605,64 @@ public final class InMemoryRequestHandler
                    final List<SearchResultEntry> entryList,
                    final List<SearchResultReference> referenceList)
   {
-    synchronized (entryMap)
+    return processSearchRequest(messageID, request, controls,
+         new InMemorySearchResultListener(entryList, referenceList));
+  }
+
+
+
+  /**
+   * Attempts to process the provided search request, providing each search
+   * result entry and reference to the given listener as soon as it is
+   * available.  Unless the request includes the server-side sort, virtual
+   * list view, or simple paged results request control, it will not be
+   * necessary to hold the complete set of matching entries in memory.
+   *
+   * @param  messageID  The message ID of the LDAP message containing the search
+   *                    request.
+   * @param  request    The search request that was included in the LDAP message
+   *                    that was received.
+   * @param  controls   The set of controls included in the LDAP message.  It
+   *                    may be empty if there were no controls, but will not be
+   *                    {@code null}.
+   * @param  listener   The listener that will be used to return search result
+   *                    entries and references.  It must not be {@code null}.
+   *
+   * @return  The {@link LDAPMessage} containing the response to send to the
+   *          client, or {@code null} if the client abandoned the search while
+   *          it was being processed.  The protocol op in the
+   *          {@code LDAPMessage} must be an
+   *          {@code SearchResultDoneProtocolOp}.
+   */
+  private LDAPMessage processSearchRequest(final int messageID,
+                           final SearchRequestProtocolOp request,
+                           final List<Control> controls,
+                           final InMemorySearchResultListener listener)
+  {
+    // Determine when processing must stop if the request includes a time limit.
+    final long deadline;
+    if (request.getTimeLimit() > 0)
+    {
+      deadline = System.currentTimeMillis() + (1000L * request.getTimeLimit());
+    }
+    else
+    {
+      deadline = Long.MAX_VALUE;
+    }
+
+    // Keep track of the search being processed for the client connection so
+    // that any abandon request received for it can be honored.
+    if (connection != null)
+    {
+      activeSearchMessageID = messageID;
+      activeSearchAbandoned = false;
+    }
+
+    InMemoryPersistentSearch persistentSearch = null;
+    boolean persistentSearchStarted = false;
+
+    entryMap.beginRead();
+    try
     {
       // Sleep before processing, if appropriate.
       sleepBeforeProcessing();
@@ -3044,9 +3724,79 @@ public final class InMemoryRequestHandler
              null));
       }
 
-      // See if the search base or one of its superiors is a smart referral.
       final boolean hasManageDsaIT = controlMap.containsKey(
            ManageDsaITRequestControl.MANAGE_DSA_IT_REQUEST_OID);
+      final Filter filter = request.getFilter();
+      final SearchScope scope = request.getScope();
+      final boolean includeSubEntries = ((scope == SearchScope.BASE) ||
+           controlMap.containsKey(
+                SubentriesRequestControl.SUBENTRIES_REQUEST_OID));
+
+      // Process the set of requested attributes so that we can pare down the
+      // entries as they are returned.
+      final AtomicBoolean allUserAttrs = new AtomicBoolean(false);
+      final AtomicBoolean allOpAttrs = new AtomicBoolean(false);
+      final Map<String,List<List<String>>> returnAttrs =
+           processRequestedAttributes(request.getAttributes(), allUserAttrs,
+                allOpAttrs);
+
+      // If the request included the persistent search control or the content
+      // synchronization request control in the refresh and persist mode, then
+      // register a persistent search so that it will be notified of any
+      // subsequent changes.  For a content synchronization search, also get
+      // the content synchronization generation and the number of the last
+      // change that will be reflected in the results.  In either case, make
+      // sure that the rest of the processing sees all of the changes that the
+      // persistent search will not be notified about.
+      final PersistentSearchRequestControl psearchControl =
+           (PersistentSearchRequestControl) controlMap.get(
+                PersistentSearchRequestControl.PERSISTENT_SEARCH_REQUEST_OID);
+      final ContentSyncRequestControl syncRequestControl =
+           (ContentSyncRequestControl) controlMap.get(
+                ContentSyncRequestControl.SYNC_REQUEST_OID);
+      String syncGeneration = null;
+      long syncChangeNumber = -1L;
+      if ((psearchControl != null) || (syncRequestControl != null))
+      {
+        final boolean persist = ((psearchControl != null) ||
+             (syncRequestControl.getMode() ==
+                  ContentSyncRequestMode.REFRESH_AND_PERSIST));
+        if (persist && (connection == null))
+        {
+          return new LDAPMessage(messageID, new SearchResultDoneProtocolOp(
+               ResultCode.UNWILLING_TO_PERFORM_INT_VALUE, null,
+               ERR_MEM_HANDLER_PSEARCH_REQUIRES_CONNECTION.get(), null));
+        }
+
+        entryMap.beginWrite();
+        try
+        {
+          if (syncRequestControl != null)
+          {
+            syncGeneration = contentSyncGeneration.get();
+          }
+
+          if (persist)
+          {
+            persistentSearch = new InMemoryPersistentSearch(changeEventBus,
+                 this, connection, messageID, baseDN, scope,
+                 CompiledFilter.compile(filter, schema), psearchControl,
+                 syncGeneration, includeSubEntries, hasManageDsaIT,
+                 allUserAttrs.get(), allOpAttrs.get(), returnAttrs,
+                 request.typesOnly());
+            changeEventBus.addPersistentSearch(persistentSearch);
+          }
+
+          syncChangeNumber = lastChangeNumber.get();
+        }
+        finally
+        {
+          entryMap.endWrite();
+        }
+        entryMap.refreshRead();
+      }
+
+      // See if the search base or one of its superiors is a smart referral.
       if (! hasManageDsaIT)
       {
         final Entry referralEntry = findNearestReferral(baseDN);
@@ -3074,7 +3824,7 @@ public final class InMemoryRequestHandler
       }
       else
       {
-        baseEntry = entryMap.get(baseDN);
+        baseEntry = getStoredEntry(baseDN);
       }
 
       if (baseEntry == null)
@@ -3100,166 +3850,144 @@ public final class InMemoryRequestHandler
              le.getResultCode().intValue(), null, le.getMessage(), null));
       }
 
-      // Create a temporary list to hold all of the entries to be returned.
-      // These entries will not have been pared down based on the requested
-      // attributes.
-      final List<Entry> fullEntryList = new ArrayList<Entry>(entryMap.size());
-
-findEntriesAndRefs:
+      // If the persistent search should only return changes, then there is
+      // nothing more to do until a change is made.
+      if ((psearchControl != null) && psearchControl.changesOnly())
       {
-        // Check the scope.  If it is a base-level search, then we only need to
-        // examine the base entry.  Otherwise, we'll have to scan the entire
-        // entry map.
-        final Filter filter = request.getFilter();
-        final SearchScope scope = request.getScope();
-        final boolean includeSubEntries = ((scope == SearchScope.BASE) ||
-             controlMap.containsKey(
-                  SubentriesRequestControl.SUBENTRIES_REQUEST_OID));
-        if (scope == SearchScope.BASE)
-        {
-          try
-          {
-            if (filter.matchesEntry(baseEntry, schema))
-            {
-              processSearchEntry(baseEntry, includeSubEntries, includeChangeLog,
-                   hasManageDsaIT, fullEntryList, referenceList);
-            }
-          }
-          catch (final Exception e)
-          {
-            Debug.debugException(e);
-          }
-
-          break findEntriesAndRefs;
-        }
+        persistentSearchStarted = true;
+        persistentSearch.startDelivery();
+        return null;
+      }
 
-        // If the search uses a single-level scope and the base DN is the root
-        // DSE, then we will only examine the defined base entries for the data
-        // set.
-        if ((scope == SearchScope.ONE) && baseDN.isNullDN())
-        {
-          for (final DN dn : baseDNs)
+      // If the request included the content synchronization request control
+      // with a cookie, then the client already has the results as of the
+      // change identified by the cookie.  If the changelog still holds all of
+      // the changes made since then, then only the entries affected by those
+      // changes need to be returned.  Otherwise, the complete set of results
+      // will be returned if the client has indicated that it is willing to
+      // accept them.
+      if ((syncRequestControl != null) &&
+          (syncRequestControl.getCookie() != null))
+      {
+        final List<ObjectPair<Entry,ContentSyncState>> syncChanges =
+             getContentSyncChanges(syncRequestControl.getCookie(),
+                  syncGeneration, syncChangeNumber, baseDN, scope,
+                  CompiledFilter.compile(filter, schema), includeSubEntries);
+        if (syncChanges != null)
+        {
+          int changeCount = 0;
+          for (final ObjectPair<Entry,ContentSyncState> c : syncChanges)
           {
-            final Entry e = entryMap.get(dn);
-            if (e != null)
+            if ((changeCount++ % SEARCH_INTERRUPTION_CHECK_INTERVAL) == 0)
             {
-              try
-              {
-                if (filter.matchesEntry(e, schema))
-                {
-                  processSearchEntry(e, includeSubEntries, includeChangeLog,
-                       hasManageDsaIT, fullEntryList, referenceList);
-                }
-              }
-              catch (final Exception ex)
+              final ResultCode interruptionResultCode =
+                   getSearchInterruptionResultCode(messageID, deadline);
+              if (interruptionResultCode != null)
               {
-                Debug.debugException(ex);
+                return createInterruptedSearchResultDoneMessage(messageID,
+                     interruptionResultCode, responseControls);
               }
             }
-          }
-
-          break findEntriesAndRefs;
-        }
-
 
-        // Try to use indexes to process the request.  If we can't use any
-        // indexes to get a candidate list, then just iterate over all the
-        // entries.  It's not necessary to consider the root DSE for non-base
-        // scopes.
-        final Set<DN> candidateDNs = indexSearch(filter);
-        if (candidateDNs == null)
-        {
-          for (final Map.Entry<DN,ReadOnlyEntry> me : entryMap.entrySet())
-          {
-            final DN dn = me.getKey();
-            final Entry entry = me.getValue();
-            try
+            // An entry that has been removed from the results will only be
+            // identified by its DN and entryUUID.
+            final Entry entry = c.getFirst();
+            final Control stateControl = new ContentSyncStateControl(
+                 c.getSecond(), getEntryUUID(entry), null);
+            if (c.getSecond() == ContentSyncState.DELETE)
             {
-              if (dn.matchesBaseAndScope(baseDN, scope) &&
-                   filter.matchesEntry(entry, schema))
-              {
-                processSearchEntry(entry, includeSubEntries, includeChangeLog,
-                     hasManageDsaIT, fullEntryList, referenceList);
-              }
+              listener.searchEntryReturned(new SearchResultEntry(
+                   new Entry(entry.getDN()), stateControl));
             }
-            catch (final Exception e)
+            else if (processSearchEntry(entry, includeSubEntries,
+                          includeChangeLog, hasManageDsaIT, listener))
             {
-              Debug.debugException(e);
+              listener.searchEntryReturned(createSearchResultEntry(entry,
+                   allUserAttrs.get(), allOpAttrs.get(), returnAttrs,
+                   request.typesOnly(), stateControl));
             }
-          }
-        }
-        else
-        {
-          for (final DN dn : candidateDNs)
-          {
-            try
-            {
-              if (! dn.matchesBaseAndScope(baseDN, scope))
-              {
-                continue;
-              }
 
-              final Entry entry = entryMap.get(dn);
-              if (filter.matchesEntry(entry, schema))
-              {
-                processSearchEntry(entry, includeSubEntries, includeChangeLog,
-                     hasManageDsaIT, fullEntryList, referenceList);
-              }
-            }
-            catch (final Exception e)
+            if (listener.getException() != null)
             {
-              Debug.debugException(e);
+              return createSearchResultDoneMessage(messageID,
+                   listener.getException());
             }
           }
+
+          final LDAPMessage syncDoneMessage = completeContentSyncRefresh(
+               messageID, syncRequestControl, syncGeneration,
+               syncChangeNumber, true, responseControls);
+          if (syncDoneMessage == null)
+          {
+            persistentSearchStarted = true;
+            persistentSearch.startDelivery();
+          }
+          return syncDoneMessage;
+        }
+        else if (! syncRequestControl.getReloadHint())
+        {
+          return new LDAPMessage(messageID, new SearchResultDoneProtocolOp(
+               ResultCode.E_SYNC_REFRESH_REQUIRED_INT_VALUE, null,
+               ERR_MEM_HANDLER_SYNC_REFRESH_REQUIRED.get(), null));
         }
       }
 
-
-      // If the request included the server-side sort request control, then sort
-      // the matching entries appropriately.
-      final ServerSideSortRequestControl sortRequestControl =
-           (ServerSideSortRequestControl) controlMap.get(
-                ServerSideSortRequestControl.SERVER_SIDE_SORT_REQUEST_OID);
-      if (sortRequestControl != null)
+      final int sizeLimit;
+      if (request.getSizeLimit() > 0)
       {
-        final EntrySorter entrySorter = new EntrySorter(false, schema,
-             sortRequestControl.getSortKeys());
-        final SortedSet<Entry> sortedEntrySet = entrySorter.sort(fullEntryList);
-        fullEntryList.clear();
-        fullEntryList.addAll(sortedEntrySet);
-
-        responseControls.add(new ServerSideSortResponseControl(
-             ResultCode.SUCCESS, null, false));
+        sizeLimit = Math.min(request.getSizeLimit(), maxSizeLimit);
+      }
+      else
+      {
+        sizeLimit = maxSizeLimit;
       }
 
 
-      // If the request included the simple paged results control, then handle
-      // it.
+      // If the request included the simple paged results control, then figure
+      // out which portion of the result set should be returned.
       final SimplePagedResultsControl pagedResultsControl =
            (SimplePagedResultsControl)
                 controlMap.get(SimplePagedResultsControl.PAGED_RESULTS_OID);
-      if (pagedResultsControl != null)
+      final int pageOffset;
+      final int pageSize;
+      final long pagedResultsCursorID;
+      if (pagedResultsControl == null)
       {
-        final int totalSize = fullEntryList.size();
-        final int pageSize = pagedResultsControl.getSize();
-        final ASN1OctetString cookie = pagedResultsControl.getCookie();
+        pageOffset           = 0;
+        pageSize             = Integer.MAX_VALUE;
+        pagedResultsCursorID = -1L;
+      }
+      else
+      {
+        pageSize = Math.max(0, pagedResultsControl.getSize());
 
-        final int offset;
+        final ASN1OctetString cookie = pagedResultsControl.getCookie();
         if ((cookie == null) || (cookie.getValueLength() == 0))
         {
           // This is the first request in the series, so start at the beginning
           // of the list.
-          offset = 0;
+          pageOffset           = 0;
+          pagedResultsCursorID = -1L;
         }
         else
         {
-          // The cookie value will simply be an integer representation of the
-          // offset within the result list at which to start the next batch.
+          // The cookie value will be a sequence containing the ID of the cursor
+          // that holds the result set (or -1 if there is none) and the offset
+          // within the result list at which to start the next batch.
           try
           {
-            final ASN1Integer offsetInteger =
-                 ASN1Integer.decodeAsInteger(cookie.getValue());
-            offset = offsetInteger.intValue();
+            final ASN1Element[] elements =
+                 ASN1Sequence.decodeAsSequence(cookie.getValue()).elements();
+            if (elements.length != 2)
+            {
+              throw new LDAPException(ResultCode.PROTOCOL_ERROR,
+                   ERR_MEM_HANDLER_MALFORMED_PAGED_RESULTS_COOKIE.get());
+            }
+
+            pagedResultsCursorID =
+                 ASN1Long.decodeAsLong(elements[0]).longValue();
+            pageOffset = Math.max(0,
+                 ASN1Integer.decodeAsInteger(elements[1]).intValue());
           }
           catch (final Exception e)
           {
@@ -3271,1927 +3999,4169 @@ findEntriesAndRefs:
                       null),
                  responseControls);
           }
-        }
-
-        // Create an iterator that will be used to remove entries from the
-        // result set that are outside of the requested page of results.
-        int pos = 0;
-        final Iterator<Entry> iterator = fullEntryList.iterator();
 
-        // First, remove entries at the beginning of the list until we hit the
-        // offset.
-        while (iterator.hasNext() && (pos < offset))
-        {
-          iterator.next();
-          iterator.remove();
-          pos++;
-        }
-
-        // Next, skip over the entries that should be returned.
-        int keptEntries = 0;
-        while (iterator.hasNext() && (keptEntries < pageSize))
-        {
-          iterator.next();
-          pos++;
-          keptEntries++;
-        }
-
-        // If there are still entries left, then remove them and create a cookie
-        // to include in the response.  Otherwise, use an empty cookie.
-        if (iterator.hasNext())
-        {
-          responseControls.add(new SimplePagedResultsControl(totalSize,
-               new ASN1OctetString(new ASN1Integer(pos).encode()), false));
-          while (iterator.hasNext())
+          // A page size of zero with a non-empty cookie indicates that the
+          // client is abandoning the paged search, so release its cursor.
+          if (pageSize == 0)
           {
-            iterator.next();
-            iterator.remove();
+            releasePagedResultsCursor(pagedResultsCursorID);
+            responseControls.add(new SimplePagedResultsControl(0,
+                 new ASN1OctetString(), false));
+            return new LDAPMessage(messageID,
+                 new SearchResultDoneProtocolOp(ResultCode.SUCCESS_INT_VALUE,
+                      null, null, null),
+                 responseControls);
           }
         }
-        else
-        {
-          responseControls.add(new SimplePagedResultsControl(totalSize,
-               new ASN1OctetString(), false));
-        }
       }
 
 
-      // If the request includes the virtual list view request control, then
-      // handle it.
+      // The server-side sort, virtual list view, and simple paged results
+      // controls require the complete set of matching entries before any of
+      // them can be returned.  Otherwise, matching entries will be returned to
+      // the client as soon as they are found, so that it is never necessary to
+      // hold the entire result set in memory.
+      final ServerSideSortRequestControl sortRequestControl =
+           (ServerSideSortRequestControl) controlMap.get(
+                ServerSideSortRequestControl.SERVER_SIDE_SORT_REQUEST_OID);
       final VirtualListViewRequestControl vlvRequest =
            (VirtualListViewRequestControl) controlMap.get(
                 VirtualListViewRequestControl.VIRTUAL_LIST_VIEW_REQUEST_OID);
-      if (vlvRequest != null)
+      final List<Entry> fullEntryList;
+      if ((sortRequestControl == null) && (vlvRequest == null) &&
+          (pagedResultsControl == null))
       {
-        final int totalEntries = fullEntryList.size();
-        final ASN1OctetString assertionValue = vlvRequest.getAssertionValue();
+        fullEntryList = null;
+      }
+      else
+      {
+        fullEntryList = new ArrayList<Entry>(10);
+      }
 
-        // Figure out the position of the target entry in the list.
-        int offset = vlvRequest.getTargetOffset();
-        if (assertionValue == null)
+
+      // Check the scope.  If it is a base-level search, then we only need to
+      // examine the base entry.  If it is a single-level search below the root
+      // DSE, then we will only examine the defined base entries for the data
+      // set.  If it is within the changelog, then the candidates will be taken
+      // from the changelog itself.  Otherwise, use the search planner to decide
+      // whether to use indexes to get a candidate list, and if not then just
+      // iterate over the children of the base entry or the entries in its
+      // subtree, as appropriate.  It's not necessary to consider the root DSE
+      // for non-base scopes.
+      final SortKey[] sortKeys;
+      if (sortRequestControl == null)
+      {
+        sortKeys = null;
+      }
+      else
+      {
+        sortKeys = sortRequestControl.getSortKeys();
+      }
+
+      // If the results are to be sorted and there is a VLV index for exactly
+      // the same criteria, then the requested portion of the sorted results can
+      // be obtained from the index without examining any other entries.
+      if (sortRequestControl != null)
+      {
+        final InMemoryDirectoryServerVLVIndex vlvIndex = getVLVIndex(baseDN,
+             scope, filter, sortKeys, includeSubEntries);
+        if (vlvIndex != null)
         {
-          // The offset is one-based, so we need to adjust it for the list's
-          // zero-based offset.  Also, make sure to put it within the bounds of
-          // the list.
-          offset--;
-          offset = Math.max(0, offset);
-          offset = Math.min(fullEntryList.size(), offset);
+          final List<Entry> entryList = getSortedEntriesFromVLVIndex(vlvIndex,
+               pagedResultsControl, pageOffset, pageSize, vlvRequest,
+               responseControls);
+          return returnSortedEntries(messageID, request, entryList, sizeLimit,
+               allUserAttrs.get(), allOpAttrs.get(), returnAttrs, listener,
+               responseControls, deadline);
         }
-        else
-        {
-          final SortKey primarySortKey = sortRequestControl.getSortKeys()[0];
-
-          final Entry testEntry = new Entry("cn=test", schema,
-               new Attribute(primarySortKey.getAttributeName(),
-                    assertionValue));
+      }
 
-          final EntrySorter entrySorter =
-               new EntrySorter(false, schema, primarySortKey);
+      // The filter is compiled once so that evaluating each candidate only
+      // needs to examine its attribute values.  The data store may also use it
+      // to skip over candidates that do not match without decoding them.
+      final CompiledFilter compiledFilter =
+           CompiledFilter.compile(filter, schema);
 
-          offset = fullEntryList.size();
-          for (int i=0; i < fullEntryList.size(); i++)
+      // If this is a subsequent request in a series of paged searches and the
+      // cursor created for the first request is still available, then the
+      // requested page can be obtained from it without processing the search
+      // again.
+      if ((pagedResultsControl != null) && (vlvRequest == null) &&
+          (pagedResultsCursorID >= 0L))
+      {
+        final InMemoryPagedResultsCursor cursor = getPagedResultsCursor(
+             pagedResultsCursorID, baseDN, scope, filter, sortKeys,
+             includeSubEntries, hasManageDsaIT);
+        if (cursor != null)
+        {
+          if (sortRequestControl != null)
           {
-            if (entrySorter.compare(fullEntryList.get(i), testEntry) >= 0)
-            {
-              offset = i;
-              break;
-            }
+            responseControls.add(new ServerSideSortResponseControl(
+                 ResultCode.SUCCESS, null, false));
           }
-        }
-
-        // Get the start and end positions based on the before and after counts.
-        final int beforeCount = Math.max(0, vlvRequest.getBeforeCount());
-        final int afterCount  = Math.max(0, vlvRequest.getAfterCount());
 
-        final int start = Math.max(0, (offset - beforeCount));
-        final int end =
-             Math.min(fullEntryList.size(), (offset + afterCount + 1));
-
-        // Create an iterator to use to alter the list so that it only contains
-        // the appropriate set of entries.
-        int pos = 0;
-        final Iterator<Entry> iterator = fullEntryList.iterator();
-        while (iterator.hasNext())
+          final List<Entry> entryList = getPageFromPagedResultsCursor(cursor,
+               pageOffset, pageSize, compiledFilter, responseControls);
+          return returnSortedEntries(messageID, request, entryList, sizeLimit,
+               allUserAttrs.get(), allOpAttrs.get(), returnAttrs, listener,
+               responseControls, deadline);
+        }
+      }
+      final Iterator<? extends Entry> candidateIterator;
+      final boolean checkScope;
+      if (scope == SearchScope.BASE)
+      {
+        candidateIterator = Collections.singletonList(baseEntry).iterator();
+        checkScope = false;
+      }
+      else if ((scope == SearchScope.ONE) && baseDN.isNullDN())
+      {
+        final ArrayList<Entry> baseEntries =
+             new ArrayList<Entry>(baseDNs.size());
+        for (final DN dn : baseDNs)
         {
-          iterator.next();
-          if ((pos < start) || (pos >= end))
+          final Entry e = entryMap.get(dn);
+          if (e != null)
           {
-            iterator.remove();
+            baseEntries.add(e);
           }
-          pos++;
         }
 
-        // Create the appropriate response control.
-        responseControls.add(new VirtualListViewResponseControl((offset+1),
-             totalEntries, ResultCode.SUCCESS, null));
+        candidateIterator = baseEntries.iterator();
+        checkScope = false;
       }
-
-
-      // Process the set of requested attributes so that we can pare down the
-      // entries.
-      final AtomicBoolean allUserAttrs = new AtomicBoolean(false);
-      final AtomicBoolean allOpAttrs = new AtomicBoolean(false);
-      final Map<String,List<List<String>>> returnAttrs =
-           processRequestedAttributes(request.getAttributes(), allUserAttrs,
-                allOpAttrs);
-
-      final int sizeLimit;
-      if (request.getSizeLimit() > 0)
+      else if ((changeLog != null) &&
+               baseDN.isDescendantOf(changeLogBaseDN, true))
       {
-        sizeLimit = Math.min(request.getSizeLimit(), maxSizeLimit);
+        candidateIterator = getChangeLogCandidates(baseDN, scope, filter);
+        checkScope = true;
       }
       else
       {
-        sizeLimit = maxSizeLimit;
-      }
-
-      int entryCount = 0;
-      for (final Entry e : fullEntryList)
-      {
-        entryCount++;
-        if (entryCount > sizeLimit)
+        // If matching entries will be returned as they are found, then
+        // processing will stop as soon as the size limit has been exceeded,
+        // which the search planner can take into account.
+        final int resultLimit;
+        if ((fullEntryList == null) && (sizeLimit < Integer.MAX_VALUE))
         {
-          return new LDAPMessage(messageID,
-               new SearchResultDoneProtocolOp(
-                    ResultCode.SIZE_LIMIT_EXCEEDED_INT_VALUE, null,
-                    ERR_MEM_HANDLER_SEARCH_SIZE_LIMIT_EXCEEDED.get(), null),
-               responseControls);
+          resultLimit = sizeLimit + 1;
+        }
+        else
+        {
+          resultLimit = Integer.MAX_VALUE;
         }
 
-        final Entry trimmedEntry = trimForRequestedAttributes(e,
-             allUserAttrs.get(), allOpAttrs.get(), returnAttrs);
-        if (request.typesOnly())
+        final Iterator<Integer> candidateIDs = searchPlanner.getCandidates(
+             filter, baseDN, scope, resultLimit);
+        if (candidateIDs == null)
         {
-          final Entry typesOnlyEntry = new Entry(trimmedEntry.getDN(), schema);
-          for (final Attribute a : trimmedEntry.getAttributes())
+          if (scope == SearchScope.ONE)
+          {
+            candidateIterator = entryMap.getCandidates(
+                 entryMap.getChildren(baseDN), compiledFilter);
+          }
+          else
           {
-            typesOnlyEntry.addAttribute(new Attribute(a.getName()));
+            candidateIterator = entryMap.getCandidates(
+                 entryMap.getSubtree(baseDN, (scope == SearchScope.SUB)),
+                 compiledFilter);
           }
-          entryList.add(new SearchResultEntry(typesOnlyEntry));
         }
         else
         {
-          entryList.add(new SearchResultEntry(trimmedEntry));
+          candidateIterator =
+               entryMap.getCandidates(candidateIDs, compiledFilter);
         }
+        checkScope = true;
       }
 
-      return new LDAPMessage(messageID,
-           new SearchResultDoneProtocolOp(ResultCode.SUCCESS_INT_VALUE, null,
-                null, null),
-           responseControls);
-    }
-  }
-
-
 
-  /**
-   * Performs any necessary index processing to add the provided entry.
-   *
-   * @param  entry  The entry that has been added.
-   */
-  private void indexAdd(final Entry entry)
-  {
-    for (final InMemoryDirectoryServerEqualityAttributeIndex i :
-         equalityIndexes.values())
-    {
-      try
+      // Examine each of the candidate entries.  Any search result references
+      // will be returned immediately, as will any matching entries unless the
+      // complete result set is needed.
+      int entryCount = 0;
+      int candidateCount = 0;
+      while (candidateIterator.hasNext())
       {
-        i.processAdd(entry);
-      }
-      catch (final LDAPException le)
-      {
-        Debug.debugException(le);
-      }
-    }
-  }
-
-
-
-  /**
-   * Performs any necessary index processing to delete the provided entry.
-   *
-   * @param  entry  The entry that has been deleted.
-   */
-  private void indexDelete(final Entry entry)
-  {
-    for (final InMemoryDirectoryServerEqualityAttributeIndex i :
-         equalityIndexes.values())
-    {
-      try
-      {
-        i.processDelete(entry);
-      }
-      catch (final LDAPException le)
-      {
-        Debug.debugException(le);
-      }
-    }
-  }
-
+        if ((candidateCount++ % SEARCH_INTERRUPTION_CHECK_INTERVAL) == 0)
+        {
+          final ResultCode interruptionResultCode =
+               getSearchInterruptionResultCode(messageID, deadline);
+          if (interruptionResultCode != null)
+          {
+            return createInterruptedSearchResultDoneMessage(messageID,
+                 interruptionResultCode, responseControls);
+          }
+        }
 
+        final Entry entry = candidateIterator.next();
+        try
+        {
+          if ((entry == null) ||
+              (checkScope &&
+               (! entry.getParsedDN().matchesBaseAndScope(baseDN, scope))) ||
+              (! compiledFilter.matchesEntry(entry)))
+          {
+            continue;
+          }
+        }
+        catch (final Exception e)
+        {
+          Debug.debugException(e);
+          continue;
+        }
 
-  /**
-   * Attempts to use indexes to obtain a candidate list for the provided filter.
-   *
-   * @param  filter  The filter to be processed.
-   *
-   * @return  The DNs of entries which may match the given filter, or
-   *          {@code null} if the filter is not indexed.
-   */
-  private Set<DN> indexSearch(final Filter filter)
-  {
-    switch (filter.getFilterType())
-    {
-      case Filter.FILTER_TYPE_AND:
-        Filter[] comps = filter.getComponents();
-        if (comps.length == 0)
+        final boolean returnEntry = processSearchEntry(entry,
+             includeSubEntries, includeChangeLog, hasManageDsaIT, listener);
+        if (listener.getException() != null)
         {
-          return null;
+          return createSearchResultDoneMessage(messageID,
+               listener.getException());
         }
-        else if (comps.length == 1)
+        else if (! returnEntry)
         {
-          return indexSearch(comps[0]);
+          continue;
         }
-        else
+        else if (fullEntryList != null)
         {
-          Set<DN> candidateSet = null;
-          for (final Filter f : comps)
-          {
-            final Set<DN> dnSet = indexSearch(f);
-            if (dnSet != null)
-            {
-              if (candidateSet == null)
-              {
-                candidateSet = new TreeSet<DN>(dnSet);
-              }
-              else
-              {
-                candidateSet.retainAll(dnSet);
-              }
-            }
-          }
-          return candidateSet;
+          fullEntryList.add(entry);
+          continue;
         }
 
-      case Filter.FILTER_TYPE_OR:
-        comps = filter.getComponents();
-        if (comps.length == 0)
+        // If the size limit has been exceeded, then we can stop now.
+        entryCount++;
+        if (entryCount > sizeLimit)
         {
-          return Collections.emptySet();
+          return new LDAPMessage(messageID,
+               new SearchResultDoneProtocolOp(
+                    ResultCode.SIZE_LIMIT_EXCEEDED_INT_VALUE, null,
+                    ERR_MEM_HANDLER_SEARCH_SIZE_LIMIT_EXCEEDED.get(), null),
+               responseControls);
         }
-        else if (comps.length == 1)
+
+        // Each entry returned for a content synchronization search will be
+        // added to the client's copy of the results.
+        if (syncRequestControl == null)
         {
-          return indexSearch(comps[0]);
+          listener.searchEntryReturned(createSearchResultEntry(entry,
+               allUserAttrs.get(), allOpAttrs.get(), returnAttrs,
+               request.typesOnly()));
         }
         else
         {
-          Set<DN> candidateSet = null;
-          for (final Filter f : comps)
-          {
-            final Set<DN> dnSet = indexSearch(f);
-            if (dnSet == null)
-            {
-              return null;
-            }
+          listener.searchEntryReturned(createSearchResultEntry(entry,
+               allUserAttrs.get(), allOpAttrs.get(), returnAttrs,
+               request.typesOnly(),
+               new ContentSyncStateControl(ContentSyncState.ADD,
+                    getEntryUUID(entry), null)));
+        }
 
-            if (candidateSet == null)
-            {
-              candidateSet = new TreeSet<DN>(dnSet);
-            }
-            else
-            {
-              candidateSet.addAll(dnSet);
-            }
-          }
-          return candidateSet;
+        if (listener.getException() != null)
+        {
+          return createSearchResultDoneMessage(messageID,
+               listener.getException());
         }
+      }
 
-      case Filter.FILTER_TYPE_EQUALITY:
-        final Schema schema = schemaRef.get();
-        if (schema == null)
+
+      // If we didn't need to collect the complete set of matching entries, then
+      // all of the entries have already been returned.  If this is a persistent
+      // search, then it will remain active without returning a result.
+      if ((fullEntryList == null) && (syncRequestControl != null))
+      {
+        final LDAPMessage syncDoneMessage = completeContentSyncRefresh(
+             messageID, syncRequestControl, syncGeneration, syncChangeNumber,
+             false, responseControls);
+        if (syncDoneMessage == null)
         {
-          return null;
+          persistentSearchStarted = true;
+          persistentSearch.startDelivery();
         }
-        final AttributeTypeDefinition at =
-             schema.getAttributeType(filter.getAttributeName());
-        if (at == null)
+        return syncDoneMessage;
+      }
+      else if ((fullEntryList == null) && (persistentSearch != null))
+      {
+        persistentSearchStarted = true;
+        persistentSearch.startDelivery();
+        return null;
+      }
+      else if (fullEntryList == null)
+      {
+        return new LDAPMessage(messageID,
+             new SearchResultDoneProtocolOp(ResultCode.SUCCESS_INT_VALUE,
+                  null, null, null),
+             responseControls);
+      }
+
+
+      // If the request included the server-side sort request control, then sort
+      // the matching entries appropriately.
+      if (sortRequestControl != null)
+      {
+        final EntrySorter entrySorter =
+             new EntrySorter(false, schema, sortKeys);
+        final SortedSet<Entry> sortedEntrySet = entrySorter.sort(fullEntryList);
+        fullEntryList.clear();
+        fullEntryList.addAll(sortedEntrySet);
+
+        responseControls.add(new ServerSideSortResponseControl(
+             ResultCode.SUCCESS, null, false));
+      }
+
+
+      // If the request included the simple paged results control, then handle
+      // it.  Unless the virtual list view control was also included, or this
+      // is the last page, the DNs of the complete result set will be retained
+      // in a cursor so that subsequent pages can be returned without
+      // processing the search again.
+      if (pagedResultsControl != null)
+      {
+        final int totalSize = fullEntryList.size();
+        final int start = Math.min(totalSize, pageOffset);
+        final int end =
+             (int) Math.min(totalSize, ((long) pageOffset + pageSize));
+        if (vlvRequest == null)
         {
-          return null;
+          long cursorID = -1L;
+          if (end < totalSize)
+          {
+            cursorID = createPagedResultsCursor(baseDN, scope, filter,
+                 sortKeys, includeSubEntries, hasManageDsaIT,
+                 fullEntryList).getCursorID();
+          }
+
+          addPagedResultsResponseControl(responseControls, cursorID,
+               totalSize, pageOffset, pageSize);
+          return returnSortedEntries(messageID, request,
+               fullEntryList.subList(start, end), sizeLimit,
+               allUserAttrs.get(), allOpAttrs.get(), returnAttrs, listener,
+               responseControls, deadline);
         }
-        final InMemoryDirectoryServerEqualityAttributeIndex i =
-             equalityIndexes.get(at);
-        if (i == null)
+
+        final ArrayList<Entry> pageEntries =
+             new ArrayList<Entry>(fullEntryList.subList(start, end));
+        fullEntryList.clear();
+        fullEntryList.addAll(pageEntries);
+
+        addPagedResultsResponseControl(responseControls, -1L, totalSize,
+             pageOffset, pageSize);
+      }
+
+
+      // If the request includes the virtual list view request control, then
+      // handle it.
+      if (vlvRequest != null)
+      {
+        final int totalEntries = fullEntryList.size();
+        final ASN1OctetString assertionValue = vlvRequest.getAssertionValue();
+
+        // Figure out the position of the target entry in the list.
+        int offset = vlvRequest.getTargetOffset();
+        if (assertionValue == null)
         {
-          return null;
+          // The offset is one-based, so we need to adjust it for the list's
+          // zero-based offset.  Also, make sure to put it within the bounds of
+          // the list.
+          offset--;
+          offset = Math.max(0, offset);
+          offset = Math.min(fullEntryList.size(), offset);
         }
-        try
+        else
         {
-          return i.getMatchingEntries(filter.getRawAssertionValue());
+          final SortKey primarySortKey = sortRequestControl.getSortKeys()[0];
+
+          // Using the null DN for the test entry ensures that it will be
+          // ordered before any entry with the same primary sort key value.
+          final Entry testEntry = new Entry(DN.NULL_DN, schema,
+               new Attribute(primarySortKey.getAttributeName(),
+                    assertionValue));
+
+          final EntrySorter entrySorter =
+               new EntrySorter(false, schema, primarySortKey);
+
+          offset = fullEntryList.size();
+          for (int i=0; i < fullEntryList.size(); i++)
+          {
+            if (entrySorter.compare(fullEntryList.get(i), testEntry) >= 0)
+            {
+              offset = i;
+              break;
+            }
+          }
         }
-        catch (final Exception e)
+
+        // Get the start and end positions based on the before and after counts.
+        final int beforeCount = Math.max(0, vlvRequest.getBeforeCount());
+        final int afterCount  = Math.max(0, vlvRequest.getAfterCount());
+
+        final int start = Math.max(0, (offset - beforeCount));
+        final int end =
+             Math.min(fullEntryList.size(), (offset + afterCount + 1));
+
+        // Create an iterator to use to alter the list so that it only contains
+        // the appropriate set of entries.
+        int pos = 0;
+        final Iterator<Entry> iterator = fullEntryList.iterator();
+        while (iterator.hasNext())
         {
-          Debug.debugException(e);
-          return null;
+          iterator.next();
+          if ((pos < start) || (pos >= end))
+          {
+            iterator.remove();
+          }
+          pos++;
         }
 
-      default:
-        return null;
+        // Create the appropriate response control.
+        responseControls.add(new VirtualListViewResponseControl((offset+1),
+             totalEntries, ResultCode.SUCCESS, null));
+      }
+
+
+      // Return the remaining entries to the client.
+      return returnSortedEntries(messageID, request, fullEntryList, sizeLimit,
+           allUserAttrs.get(), allOpAttrs.get(), returnAttrs, listener,
+           responseControls, deadline);
+    }
+    finally
+    {
+      entryMap.endRead();
+
+      if (connection != null)
+      {
+        activeSearchMessageID = -1;
+        activeSearchAbandoned = false;
+      }
+
+      // A persistent search that did not complete its initial processing must
+      // not remain registered.
+      if ((persistentSearch != null) && (! persistentSearchStarted))
+      {
+        changeEventBus.removePersistentSearch(persistentSearch);
+      }
     }
   }
 
 
 
   /**
-   * Determines whether the provided set of controls includes a transaction
-   * specification request control.  If so, then it will verify that it
-   * references a valid transaction for the client.  If the request is part of a
-   * valid transaction, then the transaction specification request control will
-   * be removed and the request will be stashed in the client connection state
-   * so that it can be retrieved and processed when the transaction is
-   * committed.
-   *
-   * @param  messageID  The message ID for the request to be processed.
-   * @param  request    The protocol op for the request to be processed.
-   * @param  controls   The set of controls for the request to be processed.
-   *
-   * @return  The transaction ID for the associated transaction, or {@code null}
-   *          if the request is not part of any transaction.
+   * Retrieves the VLV index that may be used to obtain the sorted results for
+   * a search with the provided criteria, if there is one.  VLV indexes will
+   * not be used for searches based at the root DSE or within the changelog.
+   *
+   * @param  baseDN             The base DN for the search.
+   * @param  scope              The scope for the search.
+   * @param  filter             The filter for the search.
+   * @param  sortKeys           The sort keys from the server-side sort request
+   *                            control.
+   * @param  includeSubEntries  Indicates whether LDAP subentries should be
+   *                            included in the search results.
    *
-   * @throws  LDAPException  If the transaction specification request control is
-   *                         present but does not refer to a valid transaction
-   *                         for the associated client connection.
+   * @return  The VLV index that may be used to obtain the sorted results for
+   *          the search, or {@code null} if there is no such index.
    */
-  @SuppressWarnings("unchecked")
-  private ASN1OctetString processTransactionRequest(final int messageID,
-                               final ProtocolOp request,
-                               final Map<String,Control> controls)
-          throws LDAPException
+  private InMemoryDirectoryServerVLVIndex getVLVIndex(final DN baseDN,
+               final SearchScope scope, final Filter filter,
+               final SortKey[] sortKeys, final boolean includeSubEntries)
   {
-    final TransactionSpecificationRequestControl txnControl =
-         (TransactionSpecificationRequestControl)
-         controls.remove(TransactionSpecificationRequestControl.
-              TRANSACTION_SPECIFICATION_REQUEST_OID);
-    if (txnControl == null)
+    if (baseDN.isNullDN() || baseDN.isDescendantOf(changeLogBaseDN, true))
     {
       return null;
     }
 
-    // See if the client has an active transaction.  If not, then fail.
-    final ASN1OctetString txnID = txnControl.getTransactionID();
-    final ObjectPair<ASN1OctetString,List<LDAPMessage>> txnInfo =
-         (ObjectPair<ASN1OctetString,List<LDAPMessage>>) connectionState.get(
-              TransactionExtendedOperationHandler.STATE_VARIABLE_TXN_INFO);
-    if (txnInfo == null)
+    for (final InMemoryDirectoryServerVLVIndex i : vlvIndexes)
     {
-      throw new LDAPException(ResultCode.UNAVAILABLE_CRITICAL_EXTENSION,
-           ERR_MEM_HANDLER_TXN_CONTROL_WITHOUT_TXN.get(txnID.stringValue()));
+      if (i.isUsableFor(baseDN, scope, filter, sortKeys, includeSubEntries))
+      {
+        if (Debug.debugEnabled(DebugType.LDAP))
+        {
+          Debug.debug(Level.INFO, DebugType.LDAP,
+               "Using " + i + " to process a sorted search.");
+        }
+
+        return i;
+      }
     }
 
+    return null;
+  }
+
 
-    // Make sure that the active transaction has a transaction ID that matches
-    // the transaction ID from the control.  If not, then abort the existing
-    // transaction and fail.
-    final ASN1OctetString existingTxnID = txnInfo.getFirst();
-    if (! txnID.stringValue().equals(existingTxnID.stringValue()))
+
+  /**
+   * Retrieves the portion of the sorted results for a search that should be
+   * returned to the client from the provided VLV index, and adds the
+   * appropriate response controls to the given list.  Only the entries that
+   * will actually be returned are retrieved from the index.
+   *
+   * @param  vlvIndex             The VLV index to use.
+   * @param  pagedResultsControl  The simple paged results request control from
+   *                              the search request, if any.
+   * @param  pageOffset           The offset of the first entry in the
+   *                              requested page of results.
+   * @param  pageSize             The maximum number of entries in the
+   *                              requested page of results.
+   * @param  vlvRequest           The virtual list view request control from the
+   *                              search request, if any.
+   * @param  responseControls     The list to which any response controls
+   *                              should be added.
+   *
+   * @return  The entries that should be returned to the client, in order.
+   */
+  private static List<Entry> getSortedEntriesFromVLVIndex(
+                   final InMemoryDirectoryServerVLVIndex vlvIndex,
+                   final SimplePagedResultsControl pagedResultsControl,
+                   final int pageOffset, final int pageSize,
+                   final VirtualListViewRequestControl vlvRequest,
+                   final List<Control> responseControls)
+  {
+    responseControls.add(new ServerSideSortResponseControl(
+         ResultCode.SUCCESS, null, false));
+
+    final int totalEntries = vlvIndex.size();
+    if (vlvRequest != null)
     {
-      connectionState.remove(
-           TransactionExtendedOperationHandler.STATE_VARIABLE_TXN_INFO);
-      connection.sendUnsolicitedNotification(
-           new AbortedTransactionExtendedResult(existingTxnID,
-                ResultCode.CONSTRAINT_VIOLATION,
-                ERR_MEM_HANDLER_TXN_ABORTED_BY_CONTROL_TXN_ID_MISMATCH.get(
-                     existingTxnID.stringValue(), txnID.stringValue()),
-                null, null, null));
-      throw new LDAPException(ResultCode.UNAVAILABLE_CRITICAL_EXTENSION,
-           ERR_MEM_HANDLER_TXN_CONTROL_ID_MISMATCH.get(txnID.stringValue(),
-                existingTxnID.stringValue()));
-    }
+      // Figure out the position of the target entry in the list.  The offset
+      // is one-based, so it needs to be adjusted for the zero-based position.
+      final ASN1OctetString assertionValue = vlvRequest.getAssertionValue();
+      int offset;
+      if (assertionValue == null)
+      {
+        offset = vlvRequest.getTargetOffset() - 1;
+        offset = Math.max(0, offset);
+        offset = Math.min(totalEntries, offset);
+      }
+      else
+      {
+        offset = vlvIndex.getTargetPosition(assertionValue);
+      }
 
+      final int beforeCount = Math.max(0, vlvRequest.getBeforeCount());
+      final int afterCount  = Math.max(0, vlvRequest.getAfterCount());
 
-    // Stash the request in the transaction state information so that it will
-    // be processed when the transaction is committed.
-    txnInfo.getSecond().add(new LDAPMessage(messageID, request,
-         new ArrayList<Control>(controls.values())));
+      final int start = Math.max(0, (offset - beforeCount));
+      final int end = Math.min(totalEntries, (offset + afterCount + 1));
 
-    return txnID;
+      responseControls.add(new VirtualListViewResponseControl((offset+1),
+           totalEntries, ResultCode.SUCCESS, null));
+      return vlvIndex.getEntries(start, end);
+    }
+    else if (pagedResultsControl != null)
+    {
+      addPagedResultsResponseControl(responseControls, -1L, totalEntries,
+           pageOffset, pageSize);
+      return vlvIndex.getEntries(pageOffset,
+           (int) Math.min(totalEntries, ((long) pageOffset + pageSize)));
+    }
+    else
+    {
+      return vlvIndex.getEntries(0, totalEntries);
+    }
   }
 
 
 
   /**
-   * Sleeps for a period of time (if appropriate) before beginning processing
-   * for an operation.
+   * Returns the provided list of entries to the client, in order, and creates
+   * the search result done message that should be returned.
+   *
+   * @param  messageID         The message ID for the search request.
+   * @param  request           The search request being processed.
+   * @param  entries           The entries to return to the client.
+   * @param  sizeLimit         The maximum number of entries to return.
+   * @param  allUserAttrs      Indicates whether to return all user attributes.
+   * @param  allOpAttrs        Indicates whether to return all operational
+   *                           attributes.
+   * @param  returnAttrs       A map with information about the specific
+   *                           attribute types to return.
+   * @param  listener          The listener to which the entries should be
+   *                           returned.
+   * @param  responseControls  The controls to include in the search result
+   *                           done message.
+   * @param  deadline          The time by which processing must be completed,
+   *                           or {@code Long.MAX_VALUE} if there is no time
+   *                           limit.
+   *
+   * @return  The search result done message that should be returned, or
+   *          {@code null} if the search was abandoned.
    */
-  private void sleepBeforeProcessing()
+  private LDAPMessage returnSortedEntries(final int messageID,
+                           final SearchRequestProtocolOp request,
+                           final List<Entry> entries, final int sizeLimit,
+                           final boolean allUserAttrs,
+                           final boolean allOpAttrs,
+                           final Map<String,List<List<String>>> returnAttrs,
+                           final InMemorySearchResultListener listener,
+                           final List<Control> responseControls,
+                           final long deadline)
   {
-    final long delay = processingDelayMillis.get();
-    if (delay > 0)
+    int entryCount = 0;
+    for (final Entry e : entries)
     {
-      try
+      if ((entryCount % SEARCH_INTERRUPTION_CHECK_INTERVAL) == 0)
       {
-        Thread.sleep(delay);
+        final ResultCode interruptionResultCode =
+             getSearchInterruptionResultCode(messageID, deadline);
+        if (interruptionResultCode != null)
+        {
+          return createInterruptedSearchResultDoneMessage(messageID,
+               interruptionResultCode, responseControls);
+        }
       }
-      catch (final Exception e)
+
+      entryCount++;
+      if (entryCount > sizeLimit)
       {
-        Debug.debugException(e);
+        return new LDAPMessage(messageID,
+             new SearchResultDoneProtocolOp(
+                  ResultCode.SIZE_LIMIT_EXCEEDED_INT_VALUE, null,
+                  ERR_MEM_HANDLER_SEARCH_SIZE_LIMIT_EXCEEDED.get(), null),
+             responseControls);
+      }
+
+      listener.searchEntryReturned(createSearchResultEntry(e, allUserAttrs,
+           allOpAttrs, returnAttrs, request.typesOnly()));
+      if (listener.getException() != null)
+      {
+        return createSearchResultDoneMessage(messageID,
+             listener.getException());
       }
     }
+
+    return new LDAPMessage(messageID,
+         new SearchResultDoneProtocolOp(ResultCode.SUCCESS_INT_VALUE, null,
+              null, null),
+         responseControls);
   }
 
 
 
   /**
-   * Retrieves the number of entries currently held in the server.
-   *
-   * @param  includeChangeLog  Indicates whether to include entries that are
-   *                           part of the changelog in the count.
-   *
-   * @return  The number of entries currently held in the server.
+   * Determines whether processing for the specified search should stop
+   * because its time limit has been exceeded or because the client has asked
+   * for it to be abandoned or canceled.  Any requests that the client has sent
+   * since the search started will be read (but not processed) to make the
+   * determination.
+   *
+   * @param  messageID  The message ID for the search request.
+   * @param  deadline   The time by which processing must be completed, or
+   *                    {@code Long.MAX_VALUE} if there is no time limit.
+   *
+   * @return  The result code that should be used for the interrupted search
+   *          ({@code TIME_LIMIT_EXCEEDED} or {@code CANCELED}, or
+   *          {@code USER_CANCELED} if the search was abandoned and no response
+   *          should be returned), or {@code null} if processing should
+   *          continue.
    */
-  public int countEntries(final boolean includeChangeLog)
+  private ResultCode getSearchInterruptionResultCode(final int messageID,
+                                                     final long deadline)
   {
-    synchronized (entryMap)
+    if (System.currentTimeMillis() >= deadline)
+    {
+      return ResultCode.TIME_LIMIT_EXCEEDED;
+    }
+
+    if (connection == null)
+    {
+      return null;
+    }
+
+    final List<LDAPMessage> pendingRequests = connection.readPendingRequests();
+    if (activeSearchAbandoned)
     {
-      if (includeChangeLog || (maxChangelogEntries == 0))
+      return ResultCode.USER_CANCELED;
+    }
+
+    // A cancel request can only be honored if the cancel extended operation
+    // handler is available to send the response for it once the search has
+    // completed.
+    if (pendingRequests.isEmpty() || (! extendedRequestHandlers.containsKey(
+         CancelExtendedRequest.CANCEL_REQUEST_OID)))
+    {
+      return null;
+    }
+
+    for (final LDAPMessage m : pendingRequests)
+    {
+      if (m.getProtocolOpType() !=
+          LDAPMessage.PROTOCOL_OP_TYPE_EXTENDED_REQUEST)
       {
-        return entryMap.size();
+        continue;
       }
-      else
+
+      final ExtendedRequestProtocolOp op = m.getExtendedRequestProtocolOp();
+      if (! op.getOID().equals(CancelExtendedRequest.CANCEL_REQUEST_OID))
       {
-        int count = 0;
+        continue;
+      }
 
-        for (final DN dn : entryMap.keySet())
+      try
+      {
+        final CancelExtendedRequest cancelRequest = new CancelExtendedRequest(
+             new ExtendedRequest(op.getOID(), op.getValue()));
+        if (cancelRequest.getTargetMessageID() == messageID)
         {
-          if (! dn.isDescendantOf(changeLogBaseDN, true))
-          {
-            count++;
-          }
+          connectionState.put(
+               CancelExtendedOperationHandler.STATE_VARIABLE_CANCELED_MSG_ID,
+               messageID);
+          return ResultCode.CANCELED;
         }
-
-        return count;
+      }
+      catch (final LDAPException le)
+      {
+        // The cancel extended operation handler will reject the malformed
+        // request when it is processed.
+        Debug.debugException(le);
       }
     }
+
+    return null;
   }
 
 
 
   /**
-   * Retrieves the number of entries currently held in the server whose DN
-   * matches or is subordinate to the provided base DN.
-   *
-   * @param  baseDN  The base DN to use for the determination.
+   * Creates the search result done message for a search whose processing was
+   * interrupted.
    *
-   * @return  The number of entries currently held in the server whose DN
-   *          matches or is subordinate to the provided base DN.
+   * @param  messageID         The message ID for the search request.
+   * @param  resultCode        The result code obtained from the
+   *                           {@code getSearchInterruptionResultCode} method.
+   * @param  responseControls  The controls to include in the search result
+   *                           done message.
    *
-   * @throws  LDAPException  If the provided string cannot be parsed as a valid
-   *                         DN.
+   * @return  The search result done message that was created, or {@code null}
+   *          if the search was abandoned and no response should be returned.
    */
-  public int countEntriesBelow(final String baseDN)
-         throws LDAPException
+  private static LDAPMessage createInterruptedSearchResultDoneMessage(
+                                  final int messageID,
+                                  final ResultCode resultCode,
+                                  final List<Control> responseControls)
   {
-    synchronized (entryMap)
+    if (resultCode == ResultCode.USER_CANCELED)
     {
-      final DN parsedBaseDN = new DN(baseDN, schemaRef.get());
-
-      int count = 0;
-      for (final DN dn : entryMap.keySet())
-      {
-        if (dn.isDescendantOf(parsedBaseDN, true))
-        {
-          count++;
-        }
-      }
+      return null;
+    }
 
-      return count;
+    final String diagnosticMessage;
+    if (resultCode == ResultCode.TIME_LIMIT_EXCEEDED)
+    {
+      diagnosticMessage = ERR_MEM_HANDLER_SEARCH_TIME_LIMIT_EXCEEDED.get();
+    }
+    else
+    {
+      diagnosticMessage = INFO_MEM_HANDLER_SEARCH_CANCELED.get();
     }
+
+    return new LDAPMessage(messageID,
+         new SearchResultDoneProtocolOp(resultCode.intValue(), null,
+              diagnosticMessage, null),
+         responseControls);
   }
 
 
 
   /**
-   * Removes all entries currently held in the server.  If a changelog is
-   * enabled, then all changelog entries will also be cleared but the base
-   * "cn=changelog" entry will be retained.
+   * Creates a search result done message for a search that could not be
+   * completed because of a problem encountered while trying to return a result
+   * to the client.
+   *
+   * @param  messageID  The message ID for the search request.
+   * @param  le         The exception encountered while trying to return a
+   *                    result to the client.
+   *
+   * @return  The search result done message that was created.
    */
-  public void clear()
+  private static LDAPMessage createSearchResultDoneMessage(
+                                  final int messageID, final LDAPException le)
+  {
+    return new LDAPMessage(messageID,
+         new SearchResultDoneProtocolOp(le.getResultCode().intValue(),
+              le.getMatchedDN(), le.getDiagnosticMessage(),
+              StaticUtils.toList(le.getReferralURLs())),
+         le.getResponseControls());
+  }
+
+
+
+  /**
+   * Adds an appropriate simple paged results response control to the provided
+   * list.
+   *
+   * @param  responseControls  The list to which the control should be added.
+   * @param  cursorID          The ID of the cursor that holds the result set,
+   *                           or -1 if the result set is not held in a cursor.
+   * @param  totalSize         The total number of entries that matched the
+   *                           search criteria.
+   * @param  pageOffset        The offset of the first entry in the page of
+   *                           results that was returned.
+   * @param  pageSize          The maximum number of entries in the page of
+   *                           results that was returned.
+   */
+  private static void addPagedResultsResponseControl(
+                           final List<Control> responseControls,
+                           final long cursorID, final int totalSize,
+                           final int pageOffset, final int pageSize)
   {
-    synchronized (entryMap)
+    // If there are still entries left, then create a cookie that holds the
+    // cursor ID and the offset of the next page of results.  Otherwise, use an
+    // empty cookie.
+    if ((totalSize - pageOffset) > pageSize)
     {
-      restoreSnapshot(initialSnapshot);
+      final ASN1Sequence cookieSequence = new ASN1Sequence(
+           new ASN1Long(cursorID),
+           new ASN1Integer(pageOffset + pageSize));
+      responseControls.add(new SimplePagedResultsControl(totalSize,
+           new ASN1OctetString(cookieSequence.encode()), false));
+    }
+    else
+    {
+      responseControls.add(new SimplePagedResultsControl(totalSize,
+           new ASN1OctetString(), false));
     }
   }
 
 
 
   /**
-   * Reads entries from the provided LDIF reader and adds them to the server,
-   * optionally clearing any existing entries before beginning to add the new
-   * entries.  If an error is encountered while adding entries from LDIF then
-   * the server will remain populated with the data it held before the import
-   * attempt (even if the {@code clear} is given with a value of {@code true}).
-   *
-   * @param  clear       Indicates whether to remove all existing entries prior
-   *                     to adding entries read from LDIF.
-   * @param  ldifReader  The LDIF reader to use to obtain the entries to be
-   *                     imported.
-   *
-   * @return  The number of entries read from LDIF and added to the server.
-   *
-   * @throws  LDAPException  If a problem occurs while reading entries or adding
-   *                         them to the server.
+   * Creates a new paged results cursor to hold the DNs of the provided result
+   * set, and retains it so that it may be used to process subsequent requests
+   * in the series.  Any cursors that have been idle for too long will be
+   * discarded.  If this would cause the maximum number of cursors to be
+   * exceeded for the connection or for the server, then the least recently
+   * used cursors will be discarded.
+   *
+   * @param  baseDN             The base DN for the search.
+   * @param  scope              The scope for the search.
+   * @param  filter             The filter for the search.
+   * @param  sortKeys           The sort keys for the search, or {@code null}
+   *                            if the results are not sorted.
+   * @param  includeSubEntries  Indicates whether the search included LDAP
+   *                            subentries.
+   * @param  manageDsaIT        Indicates whether the search included the
+   *                            ManageDsaIT control.
+   * @param  entries            The entries that matched the search, in the
+   *                            order that they should be returned.
+   *
+   * @return  The paged results cursor that was created.
    */
-  public int importFromLDIF(final boolean clear, final LDIFReader ldifReader)
-         throws LDAPException
+  private InMemoryPagedResultsCursor createPagedResultsCursor(final DN baseDN,
+               final SearchScope scope, final Filter filter,
+               final SortKey[] sortKeys, final boolean includeSubEntries,
+               final boolean manageDsaIT, final List<Entry> entries)
   {
-    synchronized (entryMap)
+    final ArrayList<DN> dns = new ArrayList<DN>(entries.size());
+    for (final Entry e : entries)
     {
-      final InMemoryDirectoryServerSnapshot snapshot = createSnapshot();
-      boolean restoreSnapshot = true;
-
       try
       {
-        if (clear)
-        {
-          restoreSnapshot(initialSnapshot);
-        }
+        dns.add(e.getParsedDN());
+      }
+      catch (final LDAPException le)
+      {
+        // This should never happen for an entry held in the server.
+        Debug.debugException(le);
+      }
+    }
 
-        int entriesAdded = 0;
-        while (true)
-        {
-          final Entry entry;
-          try
-          {
-            entry = ldifReader.readEntry();
-            if (entry == null)
-            {
-              restoreSnapshot = false;
-              return entriesAdded;
-            }
-          }
-          catch (final LDIFException le)
-          {
-            Debug.debugException(le);
-            throw new LDAPException(ResultCode.LOCAL_ERROR,
-                 ERR_MEM_HANDLER_INIT_FROM_LDIF_READ_ERROR.get(le.getMessage()),
-                 le);
-          }
-          catch (final Exception e)
-          {
-            Debug.debugException(e);
-            throw new LDAPException(ResultCode.LOCAL_ERROR,
-                 ERR_MEM_HANDLER_INIT_FROM_LDIF_READ_ERROR.get(
-                      StaticUtils.getExceptionMessage(e)),
-                 e);
-          }
+    final InMemoryPagedResultsCursor cursor = new InMemoryPagedResultsCursor(
+         nextPagedResultsCursorID.getAndIncrement(), this, baseDN, scope,
+         filter, sortKeys, includeSubEntries, manageDsaIT, dns);
 
-          addEntry(entry, true);
-          entriesAdded++;
-        }
-      }
-      finally
+    synchronized (pagedResultsCursors)
+    {
+      purgeIdlePagedResultsCursors();
+      pagedResultsCursors.put(cursor.getCursorID(), cursor);
+
+      // The map is kept in access order, so the least recently used cursors
+      // will be encountered first.
+      int connectionCursors = 0;
+      for (final InMemoryPagedResultsCursor c : pagedResultsCursors.values())
       {
-        try
-        {
-          ldifReader.close();
-        }
-        catch (final Exception e)
+        if (c.getRequestHandler() == this)
         {
-          Debug.debugException(e);
+          connectionCursors++;
         }
+      }
 
-        if (restoreSnapshot)
+      final Iterator<InMemoryPagedResultsCursor> iterator =
+           pagedResultsCursors.values().iterator();
+      while ((connectionCursors > MAX_PAGED_RESULTS_CURSORS) &&
+             iterator.hasNext())
+      {
+        if (iterator.next().getRequestHandler() == this)
         {
-          restoreSnapshot(snapshot);
+          iterator.remove();
+          connectionCursors--;
         }
       }
+
+      while (pagedResultsCursors.size() > MAX_TOTAL_PAGED_RESULTS_CURSORS)
+      {
+        final Iterator<Long> keyIterator =
+             pagedResultsCursors.keySet().iterator();
+        keyIterator.next();
+        keyIterator.remove();
+      }
     }
+
+    return cursor;
   }
 
 
 
   /**
-   * Writes all entries contained in the server to LDIF using the provided
-   * writer.
-   *
-   * @param  ldifWriter             The LDIF writer to use when writing the
-   *                                entries.  It must not be {@code null}.
-   * @param  excludeGeneratedAttrs  Indicates whether to exclude automatically
-   *                                generated operational attributes like
-   *                                entryUUID, entryDN, creatorsName, etc.
-   * @param  excludeChangeLog       Indicates whether to exclude entries
-   *                                contained in the changelog.
-   * @param  closeWriter            Indicates whether the LDIF writer should be
-   *                                closed after all entries have been written.
-   *
-   * @return  The number of entries written to LDIF.
-   *
-   * @throws  LDAPException  If a problem is encountered while attempting to
-   *                         write an entry to LDIF.
+   * Discards any paged results cursors that have not been used within the
+   * idle timeout.  The caller must hold the lock on the cursor map.
    */
-  public int exportToLDIF(final LDIFWriter ldifWriter,
-                          final boolean excludeGeneratedAttrs,
-                          final boolean excludeChangeLog,
-                          final boolean closeWriter)
-         throws LDAPException
+  private void purgeIdlePagedResultsCursors()
   {
-    synchronized (entryMap)
+    final long now = System.nanoTime();
+    final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(
+         PAGED_RESULTS_CURSOR_IDLE_TIMEOUT_MILLIS);
+
+    // The map is kept in access order, so we can stop at the first cursor
+    // that has been used recently enough.
+    final Iterator<InMemoryPagedResultsCursor> iterator =
+         pagedResultsCursors.values().iterator();
+    while (iterator.hasNext())
     {
-      boolean exceptionThrown = false;
-
-      try
+      if ((now - iterator.next().getLastUsedTime()) > timeoutNanos)
       {
-        int entriesWritten = 0;
-
-        for (final Map.Entry<DN,ReadOnlyEntry> me : entryMap.entrySet())
-        {
-          final DN dn = me.getKey();
-          if (excludeChangeLog && dn.isDescendantOf(changeLogBaseDN, true))
-          {
-            continue;
-          }
+        iterator.remove();
+      }
+      else
+      {
+        break;
+      }
+    }
+  }
 
-          final Entry entry;
-          if (excludeGeneratedAttrs)
-          {
-            entry = me.getValue().duplicate();
-            entry.removeAttribute("entryDN");
-            entry.removeAttribute("entryUUID");
-            entry.removeAttribute("subschemaSubentry");
-            entry.removeAttribute("creatorsName");
-            entry.removeAttribute("createTimestamp");
-            entry.removeAttribute("modifiersName");
-            entry.removeAttribute("modifyTimestamp");
-          }
-          else
-          {
-            entry = me.getValue();
-          }
 
-          try
-          {
-            ldifWriter.writeEntry(entry);
-            entriesWritten++;
-          }
-          catch (final Exception e)
-          {
-            Debug.debugException(e);
-            exceptionThrown = true;
-            throw new LDAPException(ResultCode.LOCAL_ERROR,
-                 ERR_MEM_HANDLER_LDIF_WRITE_ERROR.get(entry.getDN(),
-                      StaticUtils.getExceptionMessage(e)),
-                 e);
-          }
-        }
+
+  /**
+   * Retrieves the paged results cursor with the specified ID, if it is still
+   * available and was created on this connection for a search with the
+   * provided criteria.
+   *
+   * @param  cursorID           The ID of the cursor to retrieve.
+   * @param  baseDN             The base DN for the search.
+   * @param  scope              The scope for the search.
+   * @param  filter             The filter for the search.
+   * @param  sortKeys           The sort keys for the search, or {@code null}
+   *                            if the results are not to be sorted.
+   * @param  includeSubEntries  Indicates whether the search includes LDAP
+   *                            subentries.
+   * @param  manageDsaIT        Indicates whether the search includes the
+   *                            ManageDsaIT control.
+   *
+   * @return  The requested paged results cursor, or {@code null} if it is not
+   *          available.
+   */
+  private InMemoryPagedResultsCursor getPagedResultsCursor(final long cursorID,
+               final DN baseDN, final SearchScope scope, final Filter filter,
+               final SortKey[] sortKeys, final boolean includeSubEntries,
+               final boolean manageDsaIT)
+  {
+    final InMemoryPagedResultsCursor cursor;
+    synchronized (pagedResultsCursors)
+    {
+      purgeIdlePagedResultsCursors();
+      cursor = pagedResultsCursors.get(cursorID);
+    }
+
+    if ((cursor != null) && (cursor.getRequestHandler() == this) &&
+        cursor.isFor(baseDN, scope, filter, sortKeys, includeSubEntries,
+             manageDsaIT))
+    {
+      cursor.markUsed();
+      return cursor;
+    }
+    else
+    {
+      return null;
+    }
+  }
+
+
+
+  /**
+   * Retrieves the requested page of results from the provided paged results
+   * cursor and adds the appropriate simple paged results response control to
+   * the given list.  The entries are retrieved again from the server, so any
+   * that have since been removed or no longer match the search filter will be
+   * skipped, and the page will be filled with entries from later in the
+   * result set instead.  The cookie in the response control will indicate
+   * where the next page should start, and the result set size in it will
+   * remain the number of entries that matched when the first page was
+   * requested.  If this is the last page of results, then the cursor will be
+   * released.
+   *
+   * @param  cursor            The paged results cursor that holds the results.
+   * @param  pageOffset        The offset of the first entry in the requested
+   *                           page of results.
+   * @param  pageSize          The maximum number of entries in the requested
+   *                           page of results.
+   * @param  compiledFilter    The compiled filter for the search.
+   * @param  responseControls  The list to which the response control should be
+   *                           added.
+   *
+   * @return  The entries in the requested page of results.
+   */
+  private List<Entry> getPageFromPagedResultsCursor(
+               final InMemoryPagedResultsCursor cursor, final int pageOffset,
+               final int pageSize, final CompiledFilter compiledFilter,
+               final List<Control> responseControls)
+  {
+    final int totalSize = cursor.size();
+    final ArrayList<Entry> entryList =
+         new ArrayList<Entry>(Math.min(pageSize, totalSize));
+
+    int position = Math.max(0, pageOffset);
+    while ((position < totalSize) && (entryList.size() < pageSize))
+    {
+      final Entry entry = getStoredEntry(cursor.getDN(position++));
+      try
+      {
+        if ((entry != null) && compiledFilter.matchesEntry(entry))
+        {
+          entryList.add(entry);
+        }
+      }
+      catch (final LDAPException le)
+      {
+        Debug.debugException(le);
+      }
+    }
+
+    if (position >= totalSize)
+    {
+      releasePagedResultsCursor(cursor.getCursorID());
+    }
+
+    // The page covers every position up to the one at which the next page
+    // should start, regardless of how many of them were skipped.
+    addPagedResultsResponseControl(responseControls, cursor.getCursorID(),
+         totalSize, pageOffset, (position - pageOffset));
+    return entryList;
+  }
+
+
+
+  /**
+   * Releases the paged results cursor with the specified ID, if it is still
+   * available and was created on this connection.
+   *
+   * @param  cursorID  The ID of the cursor to release.
+   */
+  private void releasePagedResultsCursor(final long cursorID)
+  {
+    synchronized (pagedResultsCursors)
+    {
+      final InMemoryPagedResultsCursor cursor =
+           pagedResultsCursors.get(cursorID);
+      if ((cursor != null) && (cursor.getRequestHandler() == this))
+      {
+        pagedResultsCursors.remove(cursorID);
+      }
+    }
+  }
+
+
+
+  /**
+   * Creates the search result entry that should be returned to the client for
+   * the provided entry.
+   *
+   * @param  entry         The entry to be returned.
+   * @param  allUserAttrs  Indicates whether to return all user attributes.
+   * @param  allOpAttrs    Indicates whether to return all operational
+   *                       attributes.
+   * @param  returnAttrs   A map with information about the specific attribute
+   *                       types to return.
+   * @param  typesOnly     Indicates whether to return only attribute types
+   *                       without values.
+   * @param  controls      The controls to include in the search result entry.
+   *
+   * @return  The search result entry that should be returned to the client.
+   */
+  SearchResultEntry createSearchResultEntry(final Entry entry,
+               final boolean allUserAttrs, final boolean allOpAttrs,
+               final Map<String,List<List<String>>> returnAttrs,
+               final boolean typesOnly, final Control... controls)
+  {
+    final Entry trimmedEntry = trimForRequestedAttributes(entry, allUserAttrs,
+         allOpAttrs, returnAttrs);
+    if (! typesOnly)
+    {
+      return new SearchResultEntry(trimmedEntry, controls);
+    }
+
+    final Entry typesOnlyEntry =
+         new Entry(trimmedEntry.getDN(), schemaRef.get());
+    for (final Attribute a : trimmedEntry.getAttributes())
+    {
+      typesOnlyEntry.addAttribute(new Attribute(a.getName()));
+    }
+    return new SearchResultEntry(typesOnlyEntry, controls);
+  }
+
+
+
+  /**
+   * Loads the checkpoint (if any), replays the changes recorded in the journal,
+   * rebuilds the indexes to reflect the restored entries, and arranges for all
+   * subsequent changes to be recorded in the journal.  If the journal has
+   * grown larger than the checkpoint, then a new checkpoint will be written so
+   * that the journal does not need to be replayed again.  The changelog base
+   * entry is added or removed as appropriate for the current configuration,
+   * since the journal may have been written by a server with a different
+   * changelog configuration.  The last change number will be restored so that
+   * change numbers are not reused, but the changelog will be empty (even if
+   * the checkpoint holds changelog entries), so content synchronization
+   * cookies issued before the restart will not be accepted because the content
+   * synchronization generation is chosen anew whenever the server is started.
+   *
+   * @throws  LDAPException  If a problem is encountered while loading the
+   *                         checkpoint or replaying the journal.
+   */
+  private void restoreFromJournal()
+          throws LDAPException
+  {
+    entryMap.beginWrite();
+    try
+    {
+      final File checkpointFile = journal.getCheckpointFile();
+      final long checkpointLength = checkpointFile.length();
+      Set<InMemoryDirectoryServerSnapshotIndex> loadedIndexes =
+           Collections.emptySet();
+      if (checkpointFile.exists())
+      {
+        final InMemoryDirectoryServerSnapshotFile content =
+             InMemoryDirectoryServerSnapshotFile.read(checkpointFile,
+                  schemaRef.get(), snapshotIndexes,
+                  entryMap.getIndexSlotCount());
+        entryMap.load(content.getDNs(), content.getEntries(),
+             content.getEntryIDs(), content.getParentPositions(),
+             content.getNextEntryID(), content.getIndexRoots());
+        lastChangeNumber.set(content.getLastChangeNumber());
+        loadedIndexes = content.getLoadedIndexes();
+      }
+
+      // The index data loaded from the checkpoint can only be kept if no
+      // changes were replayed on top of it.
+      final int numTransactions = journal.replay(entryMap, schemaRef.get());
+      if (numTransactions > 0)
+      {
+        loadedIndexes = Collections.emptySet();
+      }
+
+      if (changeLog == null)
+      {
+        entryMap.remove(changeLogBaseDN);
+      }
+      else if (entryMap.get(changeLogBaseDN) == null)
+      {
+        entryMap.put(changeLogBaseDN,
+             initialSnapshot.getDataVersion().getEntryMap().get(
+                  changeLogBaseDN));
+      }
+
+      rebuildIndexes(Runtime.getRuntime().availableProcessors(),
+           loadedIndexes);
+      entryMap.setJournal(journal);
+
+      // A failure to write the checkpoint should not prevent the server from
+      // starting, since the journal still holds all of the changes.
+      if ((numTransactions > 0) && (journal.getLength() > checkpointLength))
+      {
+        try
+        {
+          journal.checkpoint(createSnapshot());
+        }
+        catch (final LDAPException le)
+        {
+          Debug.debugException(le);
+        }
+      }
+    }
+    finally
+    {
+      entryMap.endWrite();
+    }
+  }
+
+
+
+  /**
+   * Writes a snapshot of the current content of the server to the data
+   * directory as a checkpoint, and truncates the journal so that it only needs
+   * to hold subsequent changes.  This prevents the journal from growing
+   * without bound, and reduces the time needed to restore the entries when the
+   * server is restarted.  Write operations will wait until the checkpoint is
+   * complete.  A checkpoint is also written automatically when the server
+   * starts, if the journal has grown larger than the previous checkpoint.
+   * This will have no effect if the server does not have a data directory.
+   *
+   * @throws  LDAPException  If a problem occurs while writing the checkpoint or
+   *                         truncating the journal.
+   */
+  public void checkpointJournal()
+         throws LDAPException
+  {
+    if (journal == null)
+    {
+      return;
+    }
+
+    entryMap.beginWrite();
+    try
+    {
+      ensureJournalWritable();
+      journal.checkpoint(createSnapshot());
+    }
+    finally
+    {
+      entryMap.endWrite();
+    }
+  }
+
+
+
+  /**
+   * Retrieves a message describing the problem encountered while writing to
+   * the journal, if any.  Once a problem has been encountered, changes can no
+   * longer be recorded in the journal, so write operations will be rejected.
+   *
+   * @return  A message describing the problem encountered while writing to
+   *          the journal, or {@code null} if the server does not have a data
+   *          directory or no problem has been encountered.
+   */
+  private String getJournalFailureMessage()
+  {
+    if (journal == null)
+    {
+      return null;
+    }
+
+    return journal.getFailureMessage();
+  }
+
+
+
+  /**
+   * Ensures that changes can still be recorded in the journal, if the server
+   * has a data directory.
+   *
+   * @throws  LDAPException  If a problem has been encountered while writing to
+   *                         the journal.
+   */
+  private void ensureJournalWritable()
+          throws LDAPException
+  {
+    final String journalFailureMessage = getJournalFailureMessage();
+    if (journalFailureMessage != null)
+    {
+      throw new LDAPException(ResultCode.UNAVAILABLE, journalFailureMessage);
+    }
+  }
+
+
+
+  /**
+   * Forces all changes recorded in the journal to disk, regardless of the
+   * configured journal sync policy.  This will have no effect if the server
+   * does not have a data directory.
+   */
+  void syncJournal()
+  {
+    if (journal != null)
+    {
+      journal.syncAll();
+    }
+  }
+
+
+
+  /**
+   * Stops the threads used to deliver persistent search notifications to
+   * clients.  They will be created again if any further notifications need to
+   * be delivered.
+   */
+  void stopPersistentSearchDelivery()
+  {
+    changeEventBus.shutDown();
+  }
+
+
+
+  /**
+   * Rebuilds all of the indexes from the entries currently held in the entry
+   * map, discarding any data that they currently contain.  This must only be
+   * called while processing a write operation.
+   *
+   * @param  numThreads  The maximum number of threads to use to build the
+   *                     indexes.  If this is greater than one and there is
+   *                     more than one index, then the indexes will be built
+   *                     concurrently, with each index built by a single
+   *                     thread.
+   */
+  private void rebuildIndexes(final int numThreads)
+  {
+    rebuildIndexes(numThreads,
+         Collections.<InMemoryDirectoryServerSnapshotIndex>emptySet());
+  }
+
+
+
+  /**
+   * Rebuilds all of the indexes except those in the provided set from the
+   * entries currently held in the entry map, discarding any data that they
+   * currently contain.  This must only be called while processing a write
+   * operation.
+   *
+   * @param  numThreads       The maximum number of threads to use to build the
+   *                          indexes.
+   * @param  excludedIndexes  The indexes whose data is already up to date and
+   *                          should not be rebuilt.
+   */
+  private void rebuildIndexes(final int numThreads,
+               final Set<InMemoryDirectoryServerSnapshotIndex> excludedIndexes)
+  {
+    final ArrayList<InMemoryDirectoryServerIndexBuilder> builders =
+         new ArrayList<InMemoryDirectoryServerIndexBuilder>(10);
+    for (final InMemoryDirectoryServerEqualityAttributeIndex i :
+         equalityIndexes.values())
+    {
+      if (! excludedIndexes.contains(i))
+      {
+        builders.add(i.createBuilder());
+      }
+    }
+
+    for (final InMemoryDirectoryServerSubstringAttributeIndex i :
+         substringIndexes.values())
+    {
+      if (! excludedIndexes.contains(i))
+      {
+        builders.add(i.createBuilder());
+      }
+    }
+
+    for (final InMemoryDirectoryServerOrderingAttributeIndex i :
+         orderingIndexes.values())
+    {
+      if (! excludedIndexes.contains(i))
+      {
+        builders.add(i.createBuilder());
+      }
+    }
+
+    for (final InMemoryDirectoryServerPresenceAttributeIndex i :
+         presenceIndexes.values())
+    {
+      if (! excludedIndexes.contains(i))
+      {
+        builders.add(i.createBuilder());
+      }
+    }
+
+    for (final InMemoryDirectoryServerVLVIndex i : vlvIndexes)
+    {
+      builders.add(i.createBuilder());
+    }
+
+    if ((referenceIndex != null) &&
+        (! excludedIndexes.contains(referenceIndex)))
+    {
+      builders.add(referenceIndex.createBuilder());
+    }
+
+    if (builders.isEmpty())
+    {
+      return;
+    }
+
+    // The entries are obtained up front because worker threads are not able
+    // to see the version of the data store that is being written.  Because
+    // the builders never access the data store, they can safely run in
+    // separate threads.
+    final PersistentSortedMap<Integer,Object> entries =
+         entryMap.getEntriesByID();
+    final int poolSize = Math.min(numThreads, builders.size());
+    if (poolSize <= 1)
+    {
+      for (final InMemoryDirectoryServerIndexBuilder b : builders)
+      {
+        buildIndex(b, entries);
+      }
+    }
+    else
+    {
+      final ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize,
+           poolSize, 0L, TimeUnit.MILLISECONDS,
+           new ArrayBlockingQueue<Runnable>(builders.size()),
+           new LDAPSDKThreadFactory("In-Memory Directory Server Index Builder",
+                true));
+
+      try
+      {
+        final ArrayList<Future<?>> results =
+             new ArrayList<Future<?>>(builders.size());
+        for (final InMemoryDirectoryServerIndexBuilder b : builders)
+        {
+          results.add(executor.submit(new Runnable()
+          {
+            public void run()
+            {
+              buildIndex(b, entries);
+            }
+          }));
+        }
+
+        boolean interrupted = false;
+        for (final Future<?> f : results)
+        {
+          while (true)
+          {
+            try
+            {
+              f.get();
+              break;
+            }
+            catch (final InterruptedException ie)
+            {
+              // The indexes must be complete before the operation finishes,
+              // so keep waiting and restore the interrupt status afterward.
+              Debug.debugException(ie);
+              interrupted = true;
+            }
+            catch (final ExecutionException ee)
+            {
+              Debug.debugException(ee);
+              final Throwable cause = ee.getCause();
+              if (cause instanceof RuntimeException)
+              {
+                throw (RuntimeException) cause;
+              }
+              else if (cause instanceof Error)
+              {
+                throw (Error) cause;
+              }
+              else
+              {
+                throw new RuntimeException(cause);
+              }
+            }
+          }
+        }
+
+        if (interrupted)
+        {
+          Thread.currentThread().interrupt();
+        }
+      }
+      finally
+      {
+        executor.shutdownNow();
+      }
+    }
+
+    for (final InMemoryDirectoryServerIndexBuilder b : builders)
+    {
+      b.install();
+    }
+  }
+
+
+
+  /**
+   * Uses the provided builder to create index data for the given entries.
+   *
+   * @param  builder  The builder to use.
+   * @param  entries  The entries to be indexed, mapped from their IDs, in
+   *                  the form in which they are held in the data store.
+   */
+  private static void buildIndex(
+               final InMemoryDirectoryServerIndexBuilder builder,
+               final PersistentSortedMap<Integer,Object> entries)
+  {
+    final Iterator<Map.Entry<Integer,Object>> iterator = entries.iterator();
+    while (iterator.hasNext())
+    {
+      final Map.Entry<Integer,Object> e = iterator.next();
+      builder.processAdd(
+           InMemoryDirectoryServerDataStore.decode(e.getValue()), e.getKey());
+    }
+
+    builder.build();
+  }
+
+
+
+  /**
+   * Performs any necessary index processing to add the provided entry.  This
+   * must be called after the entry has been added to the entry map, since the
+   * indexes refer to the entry by the ID that the entry map assigned to it.
+   *
+   * @param  entry  The entry that has been added.
+   */
+  private void indexAdd(final Entry entry)
+  {
+    final int entryID = getEntryID(entry);
+    if (entryID < 0)
+    {
+      return;
+    }
+
+    for (final InMemoryDirectoryServerEqualityAttributeIndex i :
+         equalityIndexes.values())
+    {
+      try
+      {
+        i.processAdd(entry, entryID);
+      }
+      catch (final LDAPException le)
+      {
+        Debug.debugException(le);
+      }
+    }
+
+    for (final InMemoryDirectoryServerSubstringAttributeIndex i :
+         substringIndexes.values())
+    {
+      try
+      {
+        i.processAdd(entry, entryID);
+      }
+      catch (final LDAPException le)
+      {
+        Debug.debugException(le);
+      }
+    }
+
+    for (final InMemoryDirectoryServerOrderingAttributeIndex i :
+         orderingIndexes.values())
+    {
+      try
+      {
+        i.processAdd(entry, entryID);
+      }
+      catch (final LDAPException le)
+      {
+        Debug.debugException(le);
+      }
+    }
+
+    for (final InMemoryDirectoryServerPresenceAttributeIndex i :
+         presenceIndexes.values())
+    {
+      i.processAdd(entry, entryID);
+    }
+
+    for (final InMemoryDirectoryServerVLVIndex i : vlvIndexes)
+    {
+      i.processAdd(entry, entryID);
+    }
+
+    if (referenceIndex != null)
+    {
+      referenceIndex.processAdd(entry, entryID);
+    }
+  }
+
+
+
+  /**
+   * Performs any necessary index processing to delete the provided entry.  This
+   * must be called before the entry is removed from the entry map, since the
+   * indexes refer to the entry by the ID that the entry map assigned to it.
+   *
+   * @param  entry  The entry that is being deleted.
+   */
+  private void indexDelete(final Entry entry)
+  {
+    final int entryID = getEntryID(entry);
+    if (entryID < 0)
+    {
+      return;
+    }
+
+    for (final InMemoryDirectoryServerEqualityAttributeIndex i :
+         equalityIndexes.values())
+    {
+      try
+      {
+        i.processDelete(entry, entryID);
+      }
+      catch (final LDAPException le)
+      {
+        Debug.debugException(le);
+      }
+    }
+
+    for (final InMemoryDirectoryServerSubstringAttributeIndex i :
+         substringIndexes.values())
+    {
+      try
+      {
+        i.processDelete(entry, entryID);
+      }
+      catch (final LDAPException le)
+      {
+        Debug.debugException(le);
+      }
+    }
+
+    for (final InMemoryDirectoryServerOrderingAttributeIndex i :
+         orderingIndexes.values())
+    {
+      try
+      {
+        i.processDelete(entry, entryID);
+      }
+      catch (final LDAPException le)
+      {
+        Debug.debugException(le);
+      }
+    }
+
+    for (final InMemoryDirectoryServerPresenceAttributeIndex i :
+         presenceIndexes.values())
+    {
+      i.processDelete(entry, entryID);
+    }
+
+    for (final InMemoryDirectoryServerVLVIndex i : vlvIndexes)
+    {
+      i.processDelete(entry, entryID);
+    }
+
+    if (referenceIndex != null)
+    {
+      referenceIndex.processDelete(entry, entryID);
+    }
+  }
+
+
+
+  /**
+   * Retrieves the ID that the entry map has assigned to the provided entry.
+   *
+   * @param  entry  The entry for which to retrieve the ID.
+   *
+   * @return  The ID assigned to the provided entry, or -1 if the entry is not
+   *          in the entry map.
+   */
+  private int getEntryID(final Entry entry)
+  {
+    try
+    {
+      return entryMap.getEntryID(entry.getParsedDN());
+    }
+    catch (final LDAPException le)
+    {
+      Debug.debugException(le);
+      return -1;
+    }
+  }
+
+
+
+  /**
+   * Determines whether the provided set of controls includes a transaction
+   * specification request control.  If so, then it will verify that it
+   * references a valid transaction for the client.  If the request is part of a
+   * valid transaction, then the transaction specification request control will
+   * be removed and the request will be stashed in the client connection state
+   * so that it can be retrieved and processed when the transaction is
+   * committed.
+   *
+   * @param  messageID  The message ID for the request to be processed.
+   * @param  request    The protocol op for the request to be processed.
+   * @param  controls   The set of controls for the request to be processed.
+   *
+   * @return  The transaction ID for the associated transaction, or {@code null}
+   *          if the request is not part of any transaction.
+   *
+   * @throws  LDAPException  If the transaction specification request control is
+   *                         present but does not refer to a valid transaction
+   *                         for the associated client connection.
+   */
+  @SuppressWarnings("unchecked")
+  private ASN1OctetString processTransactionRequest(final int messageID,
+                               final ProtocolOp request,
+                               final Map<String,Control> controls)
+          throws LDAPException
+  {
+    final TransactionSpecificationRequestControl txnControl =
+         (TransactionSpecificationRequestControl)
+         controls.remove(TransactionSpecificationRequestControl.
+              TRANSACTION_SPECIFICATION_REQUEST_OID);
+    if (txnControl == null)
+    {
+      return null;
+    }
+
+    // See if the client has an active transaction.  If not, then fail.
+    final ASN1OctetString txnID = txnControl.getTransactionID();
+    final ObjectPair<ASN1OctetString,List<LDAPMessage>> txnInfo =
+         (ObjectPair<ASN1OctetString,List<LDAPMessage>>) connectionState.get(
+              TransactionExtendedOperationHandler.STATE_VARIABLE_TXN_INFO);
+    if (txnInfo == null)
+    {
+      throw new LDAPException(ResultCode.UNAVAILABLE_CRITICAL_EXTENSION,
+           ERR_MEM_HANDLER_TXN_CONTROL_WITHOUT_TXN.get(txnID.stringValue()));
+    }
+
+
+    // Make sure that the active transaction has a transaction ID that matches
+    // the transaction ID from the control.  If not, then abort the existing
+    // transaction and fail.
+    final ASN1OctetString existingTxnID = txnInfo.getFirst();
+    if (! txnID.stringValue().equals(existingTxnID.stringValue()))
+    {
+      connectionState.remove(
+           TransactionExtendedOperationHandler.STATE_VARIABLE_TXN_INFO);
+      connection.sendUnsolicitedNotification(
+           new AbortedTransactionExtendedResult(existingTxnID,
+                ResultCode.CONSTRAINT_VIOLATION,
+                ERR_MEM_HANDLER_TXN_ABORTED_BY_CONTROL_TXN_ID_MISMATCH.get(
+                     existingTxnID.stringValue(), txnID.stringValue()),
+                null, null, null));
+      throw new LDAPException(ResultCode.UNAVAILABLE_CRITICAL_EXTENSION,
+           ERR_MEM_HANDLER_TXN_CONTROL_ID_MISMATCH.get(txnID.stringValue(),
+                existingTxnID.stringValue()));
+    }
+
+
+    // Stash the request in the transaction state information so that it will
+    // be processed when the transaction is committed.
+    txnInfo.getSecond().add(new LDAPMessage(messageID, request,
+         new ArrayList<Control>(controls.values())));
+
+    return txnID;
+  }
+
+
+
+  /**
+   * Sleeps for a period of time (if appropriate) before beginning processing
+   * for an operation.
+   */
+  private void sleepBeforeProcessing()
+  {
+    final long delay = processingDelayMillis.get();
+    if (delay > 0)
+    {
+      try
+      {
+        Thread.sleep(delay);
+      }
+      catch (final Exception e)
+      {
+        Debug.debugException(e);
+      }
+    }
+  }
+
+
+
+  /**
+   * Retrieves the number of entries currently held in the server.
+   *
+   * @param  includeChangeLog  Indicates whether to include entries that are
+   *                           part of the changelog in the count.
+   *
+   * @return  The number of entries currently held in the server.
+   */
+  public int countEntries(final boolean includeChangeLog)
+  {
+    entryMap.beginRead();
+    try
+    {
+      if (maxChangelogEntries == 0)
+      {
+        return entryMap.size();
+      }
+      else if (includeChangeLog)
+      {
+        return (entryMap.size() + changeLog.size());
+      }
+      else
+      {
+        return (entryMap.size() -
+             entryMap.getSubtree(changeLogBaseDN, true).size());
+      }
+    }
+    finally
+    {
+      entryMap.endRead();
+    }
+  }
+
+
+
+  /**
+   * Retrieves the number of entries currently held in the server whose DN
+   * matches or is subordinate to the provided base DN.
+   *
+   * @param  baseDN  The base DN to use for the determination.
+   *
+   * @return  The number of entries currently held in the server whose DN
+   *          matches or is subordinate to the provided base DN.
+   *
+   * @throws  LDAPException  If the provided string cannot be parsed as a valid
+   *                         DN.
+   */
+  public int countEntriesBelow(final String baseDN)
+         throws LDAPException
+  {
+    entryMap.beginRead();
+    try
+    {
+      final DN parsedBaseDN = new DN(baseDN, schemaRef.get());
+
+      int numEntries = entryMap.getSubtree(parsedBaseDN, true).size();
+      if (changeLog != null)
+      {
+        if (changeLogBaseDN.isDescendantOf(parsedBaseDN, true))
+        {
+          numEntries += changeLog.size();
+        }
+        else if (changeLog.getEntry(parsedBaseDN) != null)
+        {
+          numEntries++;
+        }
+      }
+
+      return numEntries;
+    }
+    finally
+    {
+      entryMap.endRead();
+    }
+  }
+
+
+
+  /**
+   * Removes all entries currently held in the server.  If a changelog is
+   * enabled, then all changelog entries will also be cleared but the base
+   * "cn=changelog" entry will be retained.
+   */
+  public void clear()
+  {
+    entryMap.beginWrite();
+    try
+    {
+      restoreSnapshot(initialSnapshot);
+    }
+    finally
+    {
+      entryMap.endWrite();
+    }
+  }
+
+
+
+  /**
+   * Reads entries from the provided LDIF reader and adds them to the server,
+   * optionally clearing any existing entries before beginning to add the new
+   * entries.  If an error is encountered while adding entries from LDIF then
+   * the server will remain populated with the data it held before the import
+   * attempt (even if the {@code clear} is given with a value of {@code true}).
+   *
+   * @param  clear       Indicates whether to remove all existing entries prior
+   *                     to adding entries read from LDIF.
+   * @param  ldifReader  The LDIF reader to use to obtain the entries to be
+   *                     imported.
+   *
+   * @return  The number of entries read from LDIF and added to the server.
+   *
+   * @throws  LDAPException  If a problem occurs while reading entries or adding
+   *                         them to the server.
+   */
+  public int importFromLDIF(final boolean clear, final LDIFReader ldifReader)
+         throws LDAPException
+  {
+    entryMap.beginWrite();
+    try
+    {
+      ensureJournalWritable();
+
+      final InMemoryDirectoryServerSnapshot snapshot = createSnapshot();
+      boolean restoreSnapshot = true;
+
+      try
+      {
+        if (clear)
+        {
+          restoreSnapshot(initialSnapshot);
+        }
+
+        int entriesAdded = 0;
+        while (true)
+        {
+          final Entry entry;
+          try
+          {
+            entry = ldifReader.readEntry();
+            if (entry == null)
+            {
+              restoreSnapshot = false;
+              return entriesAdded;
+            }
+          }
+          catch (final LDIFException le)
+          {
+            Debug.debugException(le);
+            throw new LDAPException(ResultCode.LOCAL_ERROR,
+                 ERR_MEM_HANDLER_INIT_FROM_LDIF_READ_ERROR.get(le.getMessage()),
+                 le);
+          }
+          catch (final Exception e)
+          {
+            Debug.debugException(e);
+            throw new LDAPException(ResultCode.LOCAL_ERROR,
+                 ERR_MEM_HANDLER_INIT_FROM_LDIF_READ_ERROR.get(
+                      StaticUtils.getExceptionMessage(e)),
+                 e);
+          }
+
+          addEntry(entry, true);
+          entriesAdded++;
+        }
+      }
+      finally
+      {
+        try
+        {
+          ldifReader.close();
+        }
+        catch (final Exception e)
+        {
+          Debug.debugException(e);
+        }
+
+        if (restoreSnapshot)
+        {
+          restoreSnapshot(snapshot);
+        }
+      }
+    }
+    finally
+    {
+      entryMap.endWrite();
+    }
+  }
+
+
+
+  /**
+   * Reads entries from the provided input stream and adds them to the server
+   * using a bulk import mode that is considerably faster than
+   * {@link #importFromLDIF} for large data sets, optionally clearing any
+   * existing entries before beginning to add the new entries.  The entries
+   * will be parsed, validated, and prepared in parallel by the specified
+   * number of threads, and the indexes will not be updated as each entry is
+   * added but will instead be built from scratch (with each index built
+   * concurrently) once all of the entries have been added.  The entries are
+   * subject to the same constraints as entries added using
+   * {@link #importFromLDIF}.  If an error is encountered while adding entries
+   * from LDIF then the server will remain populated with the data it held
+   * before the import attempt (even if the {@code clear} is given with a value
+   * of {@code true}).
+   *
+   * @param  clear        Indicates whether to remove all existing entries
+   *                      prior to adding entries read from LDIF.
+   * @param  inputStream  The input stream from which to read the LDIF data.  It
+   *                      must not be {@code null}, and it will be closed when
+   *                      the import has completed.
+   * @param  numThreads   The number of threads to use to parse entries and to
+   *                      build indexes.  It must be greater than zero.
+   * @param  listener     The listener that should be notified about the
+   *                      progress of the import.  It may be {@code null} if no
+   *                      notification is required.
+   *
+   * @return  The number of entries read from LDIF and added to the server.
+   *
+   * @throws  LDAPException  If a problem occurs while reading entries or adding
+   *                         them to the server.
+   */
+  public int bulkImportFromLDIF(final boolean clear,
+                                final InputStream inputStream,
+                                final int numThreads,
+                                final InMemoryImportListener listener)
+         throws LDAPException
+  {
+    Validator.ensureNotNull(inputStream);
+    Validator.ensureTrue(numThreads > 0,
+         "InMemoryRequestHandler.bulkImportFromLDIF.numThreads must be " +
+              "greater than zero.");
+
+    entryMap.beginWrite();
+    try
+    {
+      ensureJournalWritable();
+
+      final InMemoryDirectoryServerSnapshot snapshot = createSnapshot();
+      boolean restoreSnapshot = true;
+
+      final LDIFReader ldifReader = new LDIFReader(inputStream, numThreads,
+           new BulkImportEntryTranslator(authenticatedDN));
+      try
+      {
+        if (clear)
+        {
+          restoreSnapshot(initialSnapshot);
+        }
+
+        final long startTime = System.nanoTime();
+        int entriesAdded = 0;
+        while (true)
+        {
+          final Entry entry;
+          try
+          {
+            entry = ldifReader.readEntry();
+            if (entry == null)
+            {
+              break;
+            }
+          }
+          catch (final LDIFException le)
+          {
+            Debug.debugException(le);
+            if (le.getCause() instanceof LDAPException)
+            {
+              throw (LDAPException) le.getCause();
+            }
+
+            throw new LDAPException(ResultCode.LOCAL_ERROR,
+                 ERR_MEM_HANDLER_INIT_FROM_LDIF_READ_ERROR.get(le.getMessage()),
+                 le);
+          }
+          catch (final Exception e)
+          {
+            Debug.debugException(e);
+            throw new LDAPException(ResultCode.LOCAL_ERROR,
+                 ERR_MEM_HANDLER_INIT_FROM_LDIF_READ_ERROR.get(
+                      StaticUtils.getExceptionMessage(e)),
+                 e);
+          }
+
+          bulkAddEntry((ReadOnlyEntry) entry);
+          entriesAdded++;
+
+          if ((listener != null) &&
+              ((entriesAdded % BULK_IMPORT_PROGRESS_INTERVAL) == 0))
+          {
+            listener.importProgress(entriesAdded,
+                 (System.nanoTime() - startTime) / 1000000L);
+          }
+        }
+
+        final long indexStartTime = System.nanoTime();
+        rebuildIndexes(numThreads);
+        restoreSnapshot = false;
+
+        // The imported entries were not recorded in the changelog, so content
+        // synchronization clients will need to refresh their content.
+        startContentSyncGeneration();
+
+        if (listener != null)
+        {
+          final long endTime = System.nanoTime();
+          listener.importCompleted(entriesAdded,
+               (indexStartTime - startTime) / 1000000L,
+               (endTime - indexStartTime) / 1000000L);
+        }
+
+        return entriesAdded;
+      }
+      finally
+      {
+        try
+        {
+          ldifReader.close();
+        }
+        catch (final Exception e)
+        {
+          Debug.debugException(e);
+        }
+
+        if (restoreSnapshot)
+        {
+          restoreSnapshot(snapshot);
+        }
+      }
+    }
+    finally
+    {
+      entryMap.endWrite();
+    }
+  }
+
+
+
+  /**
+   * Adds the provided entry, which has already been prepared by a
+   * {@link BulkImportEntryTranslator}, to the entry map without updating any
+   * of the indexes.  This must only be called by the
+   * {@link #bulkImportFromLDIF} method.
+   *
+   * @param  entry  The entry to be added.
+   *
+   * @throws  LDAPException  If the entry cannot be added.
+   */
+  private void bulkAddEntry(final ReadOnlyEntry entry)
+          throws LDAPException
+  {
+    final DN dn = entry.getParsedDN();
+
+    // See if there is a referral at or above the target entry.
+    final Entry referralEntry = findNearestReferral(dn);
+    if (referralEntry != null)
+    {
+      throw new LDAPException(ResultCode.REFERRAL,
+           INFO_MEM_HANDLER_REFERRAL_ENCOUNTERED.get(), referralEntry.getDN(),
+           stringListToArray(getReferralURLs(dn, referralEntry)));
+    }
+
+    // See if another entry exists with the same DN.
+    if (entryMap.containsKey(dn))
+    {
+      throw new LDAPException(ResultCode.ENTRY_ALREADY_EXISTS,
+           ERR_MEM_HANDLER_ADD_ALREADY_EXISTS.get(entry.getDN()));
+    }
+
+    // The entry may only be added if it is one of the base DNs or if its
+    // parent entry exists.
+    if (! baseDNs.contains(dn))
+    {
+      final DN parentDN = dn.getParent();
+      if ((parentDN == null) || (! entryMap.containsKey(parentDN)))
+      {
+        throw new LDAPException(ResultCode.NO_SUCH_OBJECT,
+             ERR_MEM_HANDLER_ADD_MISSING_PARENT.get(entry.getDN(),
+                  dn.getParentString()),
+             getMatchedDNString(dn), null);
+      }
+    }
+
+    entryMap.put(dn, entry);
+    if (maxChangelogEntries > 0)
+    {
+      addChangeLogEntry(new AddRequestProtocolOp(entry.getDN(),
+           new ArrayList<Attribute>(entry.getAttributes())), authenticatedDN);
+    }
+    notifyPersistentSearches(PersistentSearchChangeType.ADD, entry, null,
+         false);
+  }
+
+
+
+  /**
+   * Writes all entries contained in the server to LDIF using the provided
+   * writer.
+   *
+   * @param  ldifWriter             The LDIF writer to use when writing the
+   *                                entries.  It must not be {@code null}.
+   * @param  excludeGeneratedAttrs  Indicates whether to exclude automatically
+   *                                generated operational attributes like
+   *                                entryUUID, entryDN, creatorsName, etc.
+   * @param  excludeChangeLog       Indicates whether to exclude entries
+   *                                contained in the changelog.
+   * @param  closeWriter            Indicates whether the LDIF writer should be
+   *                                closed after all entries have been written.
+   *
+   * @return  The number of entries written to LDIF.
+   *
+   * @throws  LDAPException  If a problem is encountered while attempting to
+   *                         write an entry to LDIF.
+   */
+  public int exportToLDIF(final LDIFWriter ldifWriter,
+                          final boolean excludeGeneratedAttrs,
+                          final boolean excludeChangeLog,
+                          final boolean closeWriter)
+         throws LDAPException
+  {
+    entryMap.beginRead();
+    try
+    {
+      boolean exceptionThrown = false;
+
+      try
+      {
+        int entriesWritten = 0;
+
+        try
+        {
+          for (final Map.Entry<DN,ReadOnlyEntry> me : entryMap.entrySet())
+          {
+            final DN dn = me.getKey();
+            if (excludeChangeLog && dn.isDescendantOf(changeLogBaseDN, true))
+            {
+              continue;
+            }
+
+            writeLDIFEntry(ldifWriter, me.getValue(), excludeGeneratedAttrs);
+            entriesWritten++;
+
+            // Changelog entries are not held in the entry map, so write them
+            // immediately after the changelog base entry.
+            if ((changeLog != null) && dn.equals(changeLogBaseDN))
+            {
+              for (final ReadOnlyEntry e : changeLog.getEntryMap().values())
+              {
+                writeLDIFEntry(ldifWriter, e, excludeGeneratedAttrs);
+                entriesWritten++;
+              }
+            }
+          }
+        }
+        catch (final LDAPException le)
+        {
+          Debug.debugException(le);
+          exceptionThrown = true;
+          throw le;
+        }
 
         return entriesWritten;
       }
-      finally
+      finally
+      {
+        if (closeWriter)
+        {
+          try
+          {
+            ldifWriter.close();
+          }
+          catch (final Exception e)
+          {
+            Debug.debugException(e);
+            if (! exceptionThrown)
+            {
+              throw new LDAPException(ResultCode.LOCAL_ERROR,
+                   ERR_MEM_HANDLER_LDIF_WRITE_CLOSE_ERROR.get(
+                        StaticUtils.getExceptionMessage(e)),
+                   e);
+            }
+          }
+        }
+      }
+    }
+    finally
+    {
+      entryMap.endRead();
+    }
+  }
+
+
+
+  /**
+   * Writes the provided entry to the given LDIF writer.
+   *
+   * @param  ldifWriter             The LDIF writer to use for the export.
+   * @param  entry                  The entry to be written.
+   * @param  excludeGeneratedAttrs  Indicates whether to exclude automatically
+   *                                generated operational attributes like
+   *                                entryUUID, entryDN, creatorsName, etc.
+   *
+   * @throws  LDAPException  If a problem is encountered while writing the
+   *                         entry.
+   */
+  private static void writeLDIFEntry(final LDIFWriter ldifWriter,
+                                     final ReadOnlyEntry entry,
+                                     final boolean excludeGeneratedAttrs)
+          throws LDAPException
+  {
+    final Entry e;
+    if (excludeGeneratedAttrs)
+    {
+      e = entry.duplicate();
+      e.removeAttribute("entryDN");
+      e.removeAttribute("entryUUID");
+      e.removeAttribute("subschemaSubentry");
+      e.removeAttribute("creatorsName");
+      e.removeAttribute("createTimestamp");
+      e.removeAttribute("modifiersName");
+      e.removeAttribute("modifyTimestamp");
+    }
+    else
+    {
+      e = entry;
+    }
+
+    try
+    {
+      ldifWriter.writeEntry(e);
+    }
+    catch (final Exception ex)
+    {
+      Debug.debugException(ex);
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           ERR_MEM_HANDLER_LDIF_WRITE_ERROR.get(e.getDN(),
+                StaticUtils.getExceptionMessage(ex)),
+           ex);
+    }
+  }
+
+
+
+  /**
+   * Attempts to add the provided entry to the in-memory data set.  The attempt
+   * will fail if any of the following conditions is true:
+   * <UL>
+   *   <LI>The provided entry has a malformed DN.</LI>
+   *   <LI>The provided entry has the null DN.</LI>
+   *   <LI>The provided entry has a DN that is the same as or subordinate to the
+   *       subschema subentry.</LI>
+   *   <LI>An entry already exists with the same DN as the entry in the provided
+   *       request.</LI>
+   *   <LI>The entry is outside the set of base DNs for the server.</LI>
+   *   <LI>The entry is below one of the defined base DNs but the immediate
+   *       parent entry does not exist.</LI>
+   *   <LI>If a schema was provided, and the entry is not valid according to the
+   *       constraints of that schema.</LI>
+   * </UL>
+   *
+   * @param  entry                     The entry to be added.  It must not be
+   *                                   {@code null}.
+   * @param  ignoreNoUserModification  Indicates whether to ignore constraints
+   *                                   normally imposed by the
+   *                                   NO-USER-MODIFICATION element in attribute
+   *                                   type definitions.
+   *
+   * @throws  LDAPException  If a problem occurs while attempting to add the
+   *                         provided entry.
+   */
+  public void addEntry(final Entry entry,
+                       final boolean ignoreNoUserModification)
+         throws LDAPException
+  {
+    final List<Control> controls;
+    if (ignoreNoUserModification)
+    {
+      controls = new ArrayList<Control>(1);
+      controls.add(new Control(OID_INTERNAL_OPERATION_REQUEST_CONTROL, false));
+    }
+    else
+    {
+      controls = Collections.emptyList();
+    }
+
+    final AddRequestProtocolOp addRequest = new AddRequestProtocolOp(
+         entry.getDN(), new ArrayList<Attribute>(entry.getAttributes()));
+
+    final LDAPMessage resultMessage =
+         processAddRequest(-1, addRequest, controls);
+
+    final AddResponseProtocolOp addResponse =
+         resultMessage.getAddResponseProtocolOp();
+    if (addResponse.getResultCode() != ResultCode.SUCCESS_INT_VALUE)
+    {
+      throw new LDAPException(ResultCode.valueOf(addResponse.getResultCode()),
+           addResponse.getDiagnosticMessage(), addResponse.getMatchedDN(),
+           stringListToArray(addResponse.getReferralURLs()));
+    }
+  }
+
+
+
+  /**
+   * Attempts to add all of the provided entries to the server.  If an error is
+   * encountered during processing, then the contents of the server will be the
+   * same as they were before this method was called.
+   *
+   * @param  entries  The collection of entries to be added.
+   *
+   * @throws  LDAPException  If a problem was encountered while attempting to
+   *                         add any of the entries to the server.
+   */
+  public void addEntries(final List<? extends Entry> entries)
+         throws LDAPException
+  {
+    entryMap.beginWrite();
+    try
+    {
+      final InMemoryDirectoryServerSnapshot snapshot = createSnapshot();
+      boolean restoreSnapshot = true;
+
+      try
+      {
+        for (final Entry e : entries)
+        {
+          addEntry(e, false);
+        }
+        restoreSnapshot = false;
+      }
+      finally
+      {
+        if (restoreSnapshot)
+        {
+          restoreSnapshot(snapshot);
+        }
+      }
+    }
+    finally
+    {
+      entryMap.endWrite();
+    }
+  }
+
+
+
+  /**
+   * Removes the entry with the specified DN and any subordinate entries it may
+   * have.
+   *
+   * @param  baseDN  The DN of the entry to be deleted.  It must not be
+   *                 {@code null} or represent the null DN.
+   *
+   * @return  The number of entries actually removed, or zero if the specified
+   *          base DN does not represent an entry in the server.
+   *
+   * @throws  LDAPException  If the provided base DN is not a valid DN, or is
+   *                         the DN of an entry that cannot be deleted (e.g.,
+   *                         the null DN).
+   */
+  public int deleteSubtree(final String baseDN)
+         throws LDAPException
+  {
+    entryMap.beginWrite();
+    try
+    {
+      ensureJournalWritable();
+
+      final DN dn = new DN(baseDN, schemaRef.get());
+      if (dn.isNullDN())
+      {
+        throw new LDAPException(ResultCode.UNWILLING_TO_PERFORM,
+             ERR_MEM_HANDLER_DELETE_ROOT_DSE.get());
+      }
+
+      int numDeleted = 0;
+
+      for (final DN entryDN : entryMap.getSubtree(dn, true).keySet())
+      {
+        indexDelete(entryMap.get(entryDN));
+        entryMap.remove(entryDN);
+        numDeleted++;
+      }
+
+      if (changeLog != null)
+      {
+        if (changeLogBaseDN.isDescendantOf(dn, true))
+        {
+          numDeleted += changeLog.size();
+          changeLog.clear();
+        }
+        else if (changeLog.remove(dn))
+        {
+          numDeleted++;
+        }
+      }
+
+      // The entries were removed without being recorded in the changelog, so
+      // content synchronization clients will need to refresh their content.
+      if (numDeleted > 0)
+      {
+        startContentSyncGeneration();
+      }
+
+      return numDeleted;
+    }
+    finally
+    {
+      entryMap.endWrite();
+    }
+  }
+
+
+
+  /**
+   * Attempts to apply the provided set of modifications to the specified entry.
+   * The attempt will fail if any of the following conditions is true:
+   * <UL>
+   *   <LI>The target DN is malformed.</LI>
+   *   <LI>The target entry is the root DSE.</LI>
+   *   <LI>The target entry is the subschema subentry.</LI>
+   *   <LI>The target entry does not exist.</LI>
+   *   <LI>Any of the modifications cannot be applied to the entry.</LI>
+   *   <LI>If a schema was provided, and the entry violates any of the
+   *       constraints of that schema.</LI>
+   * </UL>
+   *
+   * @param  dn    The DN of the entry to be modified.
+   * @param  mods  The set of modifications to be applied to the entry.
+   *
+   * @throws  LDAPException  If a problem is encountered while attempting to
+   *                         update the specified entry.
+   */
+  public void modifyEntry(final String dn, final List<Modification> mods)
+         throws LDAPException
+  {
+    final ModifyRequestProtocolOp modifyRequest =
+         new ModifyRequestProtocolOp(dn, mods);
+
+    final LDAPMessage resultMessage = processModifyRequest(-1, modifyRequest,
+         Collections.<Control>emptyList());
+
+    final ModifyResponseProtocolOp modifyResponse =
+         resultMessage.getModifyResponseProtocolOp();
+    if (modifyResponse.getResultCode() != ResultCode.SUCCESS_INT_VALUE)
+    {
+      throw new LDAPException(
+           ResultCode.valueOf(modifyResponse.getResultCode()),
+           modifyResponse.getDiagnosticMessage(), modifyResponse.getMatchedDN(),
+           stringListToArray(modifyResponse.getReferralURLs()));
+    }
+  }
+
+
+
+  /**
+   * Retrieves a read-only representation the entry with the specified DN, if
+   * it exists.
+   *
+   * @param  dn  The DN of the entry to retrieve.
+   *
+   * @return  The requested entry, or {@code null} if no entry exists with the
+   *          given DN.
+   *
+   * @throws  LDAPException  If the provided DN is malformed.
+   */
+  public ReadOnlyEntry getEntry(final String dn)
+         throws LDAPException
+  {
+    return getEntry(new DN(dn, schemaRef.get()));
+  }
+
+
+
+  /**
+   * Retrieves a read-only representation the entry with the specified DN, if
+   * it exists.
+   *
+   * @param  dn  The DN of the entry to retrieve.
+   *
+   * @return  The requested entry, or {@code null} if no entry exists with the
+   *          given DN.
+   */
+  public ReadOnlyEntry getEntry(final DN dn)
+  {
+    entryMap.beginRead();
+    try
+    {
+      if (dn.isNullDN())
+      {
+        return generateRootDSE();
+      }
+      else if (dn.equals(subschemaSubentryDN))
+      {
+        return subschemaSubentryRef.get();
+      }
+      else
+      {
+        final Entry e = getStoredEntry(dn);
+        if (e == null)
+        {
+          return null;
+        }
+        else
+        {
+          return new ReadOnlyEntry(e);
+        }
+      }
+    }
+    finally
+    {
+      entryMap.endRead();
+    }
+  }
+
+
+
+  /**
+   * Retrieves a list of all entries in the server which match the given
+   * search criteria.
+   *
+   * @param  baseDN  The base DN to use for the search.  It must not be
+   *                 {@code null}.
+   * @param  scope   The scope to use for the search.  It must not be
+   *                 {@code null}.
+   * @param  filter  The filter to use for the search.  It must not be
+   *                 {@code null}.
+   *
+   * @return  A list of the entries that matched the provided search criteria.
+   *
+   * @throws  LDAPException  If a problem is encountered while performing the
+   *                         search.
+   */
+  public List<ReadOnlyEntry> search(final String baseDN,
+                                    final SearchScope scope,
+                                    final Filter filter)
+         throws LDAPException
+  {
+    entryMap.beginRead();
+    try
+    {
+      final DN parsedDN;
+      final Schema schema = schemaRef.get();
+      try
+      {
+        parsedDN = new DN(baseDN, schema);
+      }
+      catch (final LDAPException le)
       {
-        if (closeWriter)
+        Debug.debugException(le);
+        throw new LDAPException(ResultCode.INVALID_DN_SYNTAX,
+             ERR_MEM_HANDLER_SEARCH_MALFORMED_BASE.get(baseDN, le.getMessage()),
+             le);
+      }
+
+      final ReadOnlyEntry baseEntry;
+      if (parsedDN.isNullDN())
+      {
+        baseEntry = generateRootDSE();
+      }
+      else if (parsedDN.equals(subschemaSubentryDN))
+      {
+        baseEntry = subschemaSubentryRef.get();
+      }
+      else
+      {
+        final Entry e = getStoredEntry(parsedDN);
+        if (e == null)
         {
-          try
+          throw new LDAPException(ResultCode.NO_SUCH_OBJECT,
+               ERR_MEM_HANDLER_SEARCH_BASE_DOES_NOT_EXIST.get(baseDN),
+               getMatchedDNString(parsedDN), null);
+        }
+
+        baseEntry = new ReadOnlyEntry(e);
+      }
+
+      if (scope == SearchScope.BASE)
+      {
+        final List<ReadOnlyEntry> entryList = new ArrayList<ReadOnlyEntry>(1);
+
+        try
+        {
+          if (filter.matchesEntry(baseEntry, schema))
           {
-            ldifWriter.close();
+            entryList.add(baseEntry);
           }
-          catch (final Exception e)
+        }
+        catch (final LDAPException le)
+        {
+          Debug.debugException(le);
+        }
+
+        return Collections.unmodifiableList(entryList);
+      }
+
+      if ((scope == SearchScope.ONE) && parsedDN.isNullDN())
+      {
+        final List<ReadOnlyEntry> entryList =
+             new ArrayList<ReadOnlyEntry>(baseDNs.size());
+
+        try
+        {
+          for (final DN dn : baseDNs)
           {
-            Debug.debugException(e);
-            if (! exceptionThrown)
+            final Entry e = entryMap.get(dn);
+            if ((e != null) && filter.matchesEntry(e, schema))
             {
-              throw new LDAPException(ResultCode.LOCAL_ERROR,
-                   ERR_MEM_HANDLER_LDIF_WRITE_CLOSE_ERROR.get(
-                        StaticUtils.getExceptionMessage(e)),
-                   e);
+              entryList.add(new ReadOnlyEntry(e));
+            }
+          }
+        }
+        catch (final LDAPException le)
+        {
+          Debug.debugException(le);
+        }
+
+        return Collections.unmodifiableList(entryList);
+      }
+
+      final CompiledFilter compiledFilter =
+           CompiledFilter.compile(filter, schema);
+      final Iterator<ReadOnlyEntry> candidateIterator;
+      if ((changeLog != null) &&
+          parsedDN.isDescendantOf(changeLogBaseDN, true))
+      {
+        candidateIterator = getChangeLogCandidates(parsedDN, scope, filter);
+      }
+      else if (scope == SearchScope.ONE)
+      {
+        candidateIterator = entryMap.getCandidates(
+             entryMap.getChildren(parsedDN), compiledFilter);
+      }
+      else
+      {
+        candidateIterator = entryMap.getCandidates(
+             entryMap.getSubtree(parsedDN, true), compiledFilter);
+      }
+
+      final List<ReadOnlyEntry> entryList = new ArrayList<ReadOnlyEntry>(10);
+      while (candidateIterator.hasNext())
+      {
+        final Entry entry = candidateIterator.next();
+        if (entry == null)
+        {
+          continue;
+        }
+
+        try
+        {
+          final DN dn = entry.getParsedDN();
+          if (dn.matchesBaseAndScope(parsedDN, scope))
+          {
+            // We don't want to return changelog entries searches based at the
+            // root DSE.
+            if (parsedDN.isNullDN() &&
+                dn.isDescendantOf(changeLogBaseDN, true))
+            {
+              continue;
+            }
+
+            if (compiledFilter.matchesEntry(entry))
+            {
+              entryList.add(new ReadOnlyEntry(entry));
             }
           }
         }
+        catch (final LDAPException le)
+        {
+          Debug.debugException(le);
+        }
       }
+
+      return Collections.unmodifiableList(entryList);
+    }
+    finally
+    {
+      entryMap.endRead();
     }
   }
 
 
 
   /**
-   * Attempts to add the provided entry to the in-memory data set.  The attempt
-   * will fail if any of the following conditions is true:
-   * <UL>
-   *   <LI>The provided entry has a malformed DN.</LI>
-   *   <LI>The provided entry has the null DN.</LI>
-   *   <LI>The provided entry has a DN that is the same as or subordinate to the
-   *       subschema subentry.</LI>
-   *   <LI>An entry already exists with the same DN as the entry in the provided
-   *       request.</LI>
-   *   <LI>The entry is outside the set of base DNs for the server.</LI>
-   *   <LI>The entry is below one of the defined base DNs but the immediate
-   *       parent entry does not exist.</LI>
-   *   <LI>If a schema was provided, and the entry is not valid according to the
-   *       constraints of that schema.</LI>
-   * </UL>
-   *
-   * @param  entry                     The entry to be added.  It must not be
-   *                                   {@code null}.
-   * @param  ignoreNoUserModification  Indicates whether to ignore constraints
-   *                                   normally imposed by the
-   *                                   NO-USER-MODIFICATION element in attribute
-   *                                   type definitions.
+   * Generates an entry to use as the server root DSE.
    *
-   * @throws  LDAPException  If a problem occurs while attempting to add the
-   *                         provided entry.
+   * @return  The generated root DSE entry.
    */
-  public void addEntry(final Entry entry,
-                       final boolean ignoreNoUserModification)
-         throws LDAPException
+  private ReadOnlyEntry generateRootDSE()
+  {
+    final Entry rootDSEEntry = new Entry(DN.NULL_DN, schemaRef.get());
+    rootDSEEntry.addAttribute("objectClass", "top", "ds-root-dse");
+    rootDSEEntry.addAttribute(new Attribute("supportedLDAPVersion",
+         IntegerMatchingRule.getInstance(), "3"));
+
+    final String vendorName = config.getVendorName();
+    if (vendorName != null)
+    {
+      rootDSEEntry.addAttribute("vendorName", vendorName);
+    }
+
+    final String vendorVersion = config.getVendorVersion();
+    if (vendorVersion != null)
+    {
+      rootDSEEntry.addAttribute("vendorVersion", vendorVersion);
+    }
+
+    rootDSEEntry.addAttribute(new Attribute("subschemaSubentry",
+         DistinguishedNameMatchingRule.getInstance(),
+         subschemaSubentryDN.toString()));
+    rootDSEEntry.addAttribute(new Attribute("entryDN",
+         DistinguishedNameMatchingRule.getInstance(), ""));
+    rootDSEEntry.addAttribute("entryUUID", UUID.randomUUID().toString());
+
+    rootDSEEntry.addAttribute("supportedFeatures",
+         "1.3.6.1.4.1.4203.1.5.1",  // All operational attributes
+         "1.3.6.1.4.1.4203.1.5.2",  // Request attributes by object class
+         "1.3.6.1.4.1.4203.1.5.3",  // LDAP absolute true and false filters
+         "1.3.6.1.1.14");           // Increment modification type
+
+    final TreeSet<String> ctlSet = new TreeSet<String>();
+
+    ctlSet.add(AssertionRequestControl.ASSERTION_REQUEST_OID);
+    ctlSet.add(AuthorizationIdentityRequestControl.
+         AUTHORIZATION_IDENTITY_REQUEST_OID);
+    ctlSet.add(ContentSyncRequestControl.SYNC_REQUEST_OID);
+    ctlSet.add(DontUseCopyRequestControl.DONT_USE_COPY_REQUEST_OID);
+    ctlSet.add(ManageDsaITRequestControl.MANAGE_DSA_IT_REQUEST_OID);
+    ctlSet.add(PermissiveModifyRequestControl.PERMISSIVE_MODIFY_REQUEST_OID);
+    ctlSet.add(PersistentSearchRequestControl.PERSISTENT_SEARCH_REQUEST_OID);
+    ctlSet.add(PostReadRequestControl.POST_READ_REQUEST_OID);
+    ctlSet.add(PreReadRequestControl.PRE_READ_REQUEST_OID);
+    ctlSet.add(ProxiedAuthorizationV1RequestControl.
+         PROXIED_AUTHORIZATION_V1_REQUEST_OID);
+    ctlSet.add(ProxiedAuthorizationV2RequestControl.
+         PROXIED_AUTHORIZATION_V2_REQUEST_OID);
+    ctlSet.add(ServerSideSortRequestControl.SERVER_SIDE_SORT_REQUEST_OID);
+    ctlSet.add(SimplePagedResultsControl.PAGED_RESULTS_OID);
+    ctlSet.add(SubentriesRequestControl.SUBENTRIES_REQUEST_OID);
+    ctlSet.add(SubtreeDeleteRequestControl.SUBTREE_DELETE_REQUEST_OID);
+    ctlSet.add(TransactionSpecificationRequestControl.
+         TRANSACTION_SPECIFICATION_REQUEST_OID);
+    ctlSet.add(VirtualListViewRequestControl.VIRTUAL_LIST_VIEW_REQUEST_OID);
+
+    final String[] controlOIDs = new String[ctlSet.size()];
+    rootDSEEntry.addAttribute("supportedControl", ctlSet.toArray(controlOIDs));
+
+
+    if (! extendedRequestHandlers.isEmpty())
+    {
+      final String[] oidArray = new String[extendedRequestHandlers.size()];
+      rootDSEEntry.addAttribute("supportedExtension",
+           extendedRequestHandlers.keySet().toArray(oidArray));
+
+      for (final InMemoryListenerConfig c : config.getListenerConfigs())
+      {
+        if (c.getStartTLSSocketFactory() != null)
+        {
+          rootDSEEntry.addAttribute("supportedExtension",
+               StartTLSExtendedRequest.STARTTLS_REQUEST_OID);
+          break;
+        }
+      }
+    }
+
+    if (! saslBindHandlers.isEmpty())
+    {
+      final String[] mechanismArray = new String[saslBindHandlers.size()];
+      rootDSEEntry.addAttribute("supportedSASLMechanisms",
+           saslBindHandlers.keySet().toArray(mechanismArray));
+    }
+
+    int pos = 0;
+    final String[] baseDNStrings = new String[baseDNs.size()];
+    for (final DN baseDN : baseDNs)
+    {
+      baseDNStrings[pos++] = baseDN.toString();
+    }
+    rootDSEEntry.addAttribute(new Attribute("namingContexts",
+         DistinguishedNameMatchingRule.getInstance(), baseDNStrings));
+
+    if (maxChangelogEntries > 0)
+    {
+      rootDSEEntry.addAttribute(new Attribute("changeLog",
+           DistinguishedNameMatchingRule.getInstance(),
+           changeLogBaseDN.toString()));
+      rootDSEEntry.addAttribute(new Attribute("firstChangeNumber",
+           IntegerMatchingRule.getInstance(), firstChangeNumber.toString()));
+      rootDSEEntry.addAttribute(new Attribute("lastChangeNumber",
+           IntegerMatchingRule.getInstance(), lastChangeNumber.toString()));
+    }
+
+    return new ReadOnlyEntry(rootDSEEntry);
+  }
+
+
+
+  /**
+   * Generates a subschema subentry from the provided schema object.
+   *
+   * @param  schema  The schema to use to generate the subschema subentry.  It
+   *                 may be {@code null} if a minimal default entry should be
+   *                 generated.
+   *
+   * @return  The generated subschema subentry.
+   */
+  private static ReadOnlyEntry generateSubschemaSubentry(final Schema schema)
   {
-    final List<Control> controls;
-    if (ignoreNoUserModification)
+    final Entry e;
+
+    if (schema == null)
     {
-      controls = new ArrayList<Control>(1);
-      controls.add(new Control(OID_INTERNAL_OPERATION_REQUEST_CONTROL, false));
+      e = new Entry("cn=schema", schema);
+
+      e.addAttribute("objectClass", "namedObject", "ldapSubEntry",
+           "subschema");
+      e.addAttribute("cn", "schema");
     }
     else
     {
-      controls = Collections.emptyList();
+      e = schema.getSchemaEntry().duplicate();
     }
 
-    final AddRequestProtocolOp addRequest = new AddRequestProtocolOp(
-         entry.getDN(), new ArrayList<Attribute>(entry.getAttributes()));
-
-    final LDAPMessage resultMessage =
-         processAddRequest(-1, addRequest, controls);
-
-    final AddResponseProtocolOp addResponse =
-         resultMessage.getAddResponseProtocolOp();
-    if (addResponse.getResultCode() != ResultCode.SUCCESS_INT_VALUE)
+    try
     {
-      throw new LDAPException(ResultCode.valueOf(addResponse.getResultCode()),
-           addResponse.getDiagnosticMessage(), addResponse.getMatchedDN(),
-           stringListToArray(addResponse.getReferralURLs()));
+      e.addAttribute("entryDN", DN.normalize(e.getDN(), schema));
+    }
+    catch (final LDAPException le)
+    {
+      // This should never happen.
+      Debug.debugException(le);
+      e.setAttribute("entryDN", StaticUtils.toLowerCase(e.getDN()));
     }
+
+
+    e.addAttribute("entryUUID", UUID.randomUUID().toString());
+    return new ReadOnlyEntry(e);
   }
 
 
 
   /**
-   * Attempts to add all of the provided entries to the server.  If an error is
-   * encountered during processing, then the contents of the server will be the
-   * same as they were before this method was called.
+   * Processes the set of requested attributes from the given search request.
    *
-   * @param  entries  The collection of entries to be added.
+   * @param  attrList      The list of requested attributes to examine.
+   * @param  allUserAttrs  Indicates whether to return all user attributes.  It
+   *                       should have an initial value of {@code false}.
+   * @param  allOpAttrs    Indicates whether to return all operational
+   *                       attributes.  It should have an initial value of
+   *                       {@code false}.
    *
-   * @throws  LDAPException  If a problem was encountered while attempting to
-   *                         add any of the entries to the server.
+   * @return  A map of specific attribute types to be returned.  The keys of the
+   *          map will be the lowercase OID and names of the attribute types,
+   *          and the values will be a list of option sets for the associated
+   *          attribute type.
    */
-  public void addEntries(final List<? extends Entry> entries)
-         throws LDAPException
+  private Map<String,List<List<String>>> processRequestedAttributes(
+               final List<String> attrList, final AtomicBoolean allUserAttrs,
+               final AtomicBoolean allOpAttrs)
   {
-    synchronized (entryMap)
+    if (attrList.isEmpty())
     {
-      final InMemoryDirectoryServerSnapshot snapshot = createSnapshot();
-      boolean restoreSnapshot = true;
+      allUserAttrs.set(true);
+      return Collections.emptyMap();
+    }
 
-      try
+    final Schema schema = schemaRef.get();
+    final HashMap<String,List<List<String>>> m =
+         new HashMap<String,List<List<String>>>(attrList.size() * 2);
+    for (final String s : attrList)
+    {
+      if (s.equals("*"))
       {
-        for (final Entry e : entries)
+        // All user attributes.
+        allUserAttrs.set(true);
+      }
+      else if (s.equals("+"))
+      {
+        // All operational attributes.
+        allOpAttrs.set(true);
+      }
+      else if (s.startsWith("@"))
+      {
+        // Return attributes by object class.  This can only be supported if a
+        // schema has been defined.
+        if (schema != null)
         {
-          addEntry(e, false);
+          final String ocName = s.substring(1);
+          final ObjectClassDefinition oc = schema.getObjectClass(ocName);
+          if (oc != null)
+          {
+            for (final AttributeTypeDefinition at :
+                 oc.getRequiredAttributes(schema, true))
+            {
+              addAttributeOIDAndNames(at, m, Collections.<String>emptyList());
+            }
+            for (final AttributeTypeDefinition at :
+                 oc.getOptionalAttributes(schema, true))
+            {
+              addAttributeOIDAndNames(at, m, Collections.<String>emptyList());
+            }
+          }
         }
-        restoreSnapshot = false;
       }
-      finally
+      else
       {
-        if (restoreSnapshot)
+        final ObjectPair<String,List<String>> nameWithOptions =
+             getNameWithOptions(s);
+        if (nameWithOptions == null)
         {
-          restoreSnapshot(snapshot);
+          continue;
+        }
+
+        final String name = nameWithOptions.getFirst();
+        final List<String> options = nameWithOptions.getSecond();
+
+        if (schema == null)
+        {
+          // Just use the name as provided.
+          List<List<String>> optionLists = m.get(name);
+          if (optionLists == null)
+          {
+            optionLists = new ArrayList<List<String>>(1);
+            m.put(name, optionLists);
+          }
+          optionLists.add(options);
+        }
+        else
+        {
+          // If the attribute type is defined in the schema, then use it to get
+          // all names and the OID.  Otherwise, just use the name as provided.
+          final AttributeTypeDefinition at = schema.getAttributeType(name);
+          if (at == null)
+          {
+            List<List<String>> optionLists = m.get(name);
+            if (optionLists == null)
+            {
+              optionLists = new ArrayList<List<String>>(1);
+              m.put(name, optionLists);
+            }
+            optionLists.add(options);
+          }
+          else
+          {
+            addAttributeOIDAndNames(at, m, options);
+          }
         }
       }
     }
+
+    return m;
   }
 
 
 
   /**
-   * Removes the entry with the specified DN and any subordinate entries it may
-   * have.
-   *
-   * @param  baseDN  The DN of the entry to be deleted.  It must not be
-   *                 {@code null} or represent the null DN.
+   * Parses the provided string into an attribute type and set of options.
    *
-   * @return  The number of entries actually removed, or zero if the specified
-   *          base DN does not represent an entry in the server.
+   * @param  s  The string to be parsed.
    *
-   * @throws  LDAPException  If the provided base DN is not a valid DN, or is
-   *                         the DN of an entry that cannot be deleted (e.g.,
-   *                         the null DN).
+   * @return  An {@code ObjectPair} in which the first element is the attribute
+   *          type name and the second is the list of options (or an empty
+   *          list if there are no options).  Alternately, a value of
+   *          {@code null} may be returned if the provided string does not
+   *          represent a valid attribute type description.
    */
-  public int deleteSubtree(final String baseDN)
-         throws LDAPException
+  private static ObjectPair<String,List<String>> getNameWithOptions(
+                                                      final String s)
   {
-    synchronized (entryMap)
+    if (! Attribute.nameIsValid(s, true))
     {
-      final DN dn = new DN(baseDN, schemaRef.get());
-      if (dn.isNullDN())
-      {
-        throw new LDAPException(ResultCode.UNWILLING_TO_PERFORM,
-             ERR_MEM_HANDLER_DELETE_ROOT_DSE.get());
-      }
+      return null;
+    }
 
-      int numDeleted = 0;
+    final String l = StaticUtils.toLowerCase(s);
 
-      final Iterator<Map.Entry<DN,ReadOnlyEntry>> iterator =
-           entryMap.entrySet().iterator();
-      while (iterator.hasNext())
+    int semicolonPos = l.indexOf(';');
+    if (semicolonPos < 0)
+    {
+      return new ObjectPair<String,List<String>>(l,
+           Collections.<String>emptyList());
+    }
+
+    final String name = l.substring(0, semicolonPos);
+    final ArrayList<String> optionList = new ArrayList<String>(1);
+    while (true)
+    {
+      final int nextSemicolonPos = l.indexOf(';', semicolonPos+1);
+      if (nextSemicolonPos < 0)
       {
-        final Map.Entry<DN,ReadOnlyEntry> e = iterator.next();
-        if (e.getKey().isDescendantOf(dn, true))
-        {
-          iterator.remove();
-          numDeleted++;
-        }
+        optionList.add(l.substring(semicolonPos+1));
+        break;
+      }
+      else
+      {
+        optionList.add(l.substring(semicolonPos+1, nextSemicolonPos));
+        semicolonPos = nextSemicolonPos;
       }
-
-      return numDeleted;
     }
+
+    return new ObjectPair<String,List<String>>(name, optionList);
   }
 
 
 
   /**
-   * Attempts to apply the provided set of modifications to the specified entry.
-   * The attempt will fail if any of the following conditions is true:
-   * <UL>
-   *   <LI>The target DN is malformed.</LI>
-   *   <LI>The target entry is the root DSE.</LI>
-   *   <LI>The target entry is the subschema subentry.</LI>
-   *   <LI>The target entry does not exist.</LI>
-   *   <LI>Any of the modifications cannot be applied to the entry.</LI>
-   *   <LI>If a schema was provided, and the entry violates any of the
-   *       constraints of that schema.</LI>
-   * </UL>
-   *
-   * @param  dn    The DN of the entry to be modified.
-   * @param  mods  The set of modifications to be applied to the entry.
+   * Adds all-lowercase versions of the OID and all names for the provided
+   * attribute type definition to the given map with the given options.
    *
-   * @throws  LDAPException  If a problem is encountered while attempting to
-   *                         update the specified entry.
+   * @param  d  The attribute type definition to process.
+   * @param  m  The map to which the OID and names should be added.
+   * @param  o  The array of attribute options to use in the map.  It should be
+   *            empty if no options are needed, and must not be {@code null}.
    */
-  public void modifyEntry(final String dn, final List<Modification> mods)
-         throws LDAPException
+  private void addAttributeOIDAndNames(final AttributeTypeDefinition d,
+                                       final Map<String,List<List<String>>> m,
+                                       final List<String> o)
   {
-    final ModifyRequestProtocolOp modifyRequest =
-         new ModifyRequestProtocolOp(dn, mods);
+    if (d == null)
+    {
+      return;
+    }
 
-    final LDAPMessage resultMessage = processModifyRequest(-1, modifyRequest,
-         Collections.<Control>emptyList());
+    final String lowerOID = StaticUtils.toLowerCase(d.getOID());
+    if (lowerOID != null)
+    {
+      List<List<String>> l = m.get(lowerOID);
+      if (l == null)
+      {
+        l = new ArrayList<List<String>>(1);
+        m.put(lowerOID, l);
+      }
 
-    final ModifyResponseProtocolOp modifyResponse =
-         resultMessage.getModifyResponseProtocolOp();
-    if (modifyResponse.getResultCode() != ResultCode.SUCCESS_INT_VALUE)
-    {
-      throw new LDAPException(
-           ResultCode.valueOf(modifyResponse.getResultCode()),
-           modifyResponse.getDiagnosticMessage(), modifyResponse.getMatchedDN(),
-           stringListToArray(modifyResponse.getReferralURLs()));
+      l.add(o);
     }
-  }
 
+    for (final String name : d.getNames())
+    {
+      final String lowerName = StaticUtils.toLowerCase(name);
+      List<List<String>> l = m.get(lowerName);
+      if (l == null)
+      {
+        l = new ArrayList<List<String>>(1);
+        m.put(lowerName, l);
+      }
 
+      l.add(o);
+    }
 
-  /**
-   * Retrieves a read-only representation the entry with the specified DN, if
-   * it exists.
-   *
-   * @param  dn  The DN of the entry to retrieve.
-   *
-   * @return  The requested entry, or {@code null} if no entry exists with the
-   *          given DN.
-   *
-   * @throws  LDAPException  If the provided DN is malformed.
-   */
-  public ReadOnlyEntry getEntry(final String dn)
-         throws LDAPException
-  {
-    return getEntry(new DN(dn, schemaRef.get()));
+    // If a schema is available, then see if the attribute type has any
+    // subordinate types.  If so, then add them.
+    final Schema schema = schemaRef.get();
+    if (schema != null)
+    {
+      for (final AttributeTypeDefinition subordinateType :
+           schema.getSubordinateAttributeTypes(d))
+      {
+        addAttributeOIDAndNames(subordinateType, m, o);
+      }
+    }
   }
 
 
 
   /**
-   * Retrieves a read-only representation the entry with the specified DN, if
-   * it exists.
+   * Performs the necessary processing to determine whether the given entry
+   * should be returned as a search result entry or reference, or if it should
+   * not be returned at all.
    *
-   * @param  dn  The DN of the entry to retrieve.
+   * @param  entry              The entry to be processed.
+   * @param  includeSubEntries  Indicates whether LDAP subentries should be
+   *                            returned to the client.
+   * @param  includeChangeLog   Indicates whether entries within the changelog
+   *                            should be returned to the client.
+   * @param  hasManageDsaIT     Indicates whether the request includes the
+   *                            ManageDsaIT control, which can change how smart
+   *                            referrals should be handled.
+   * @param  listener           The listener that should be notified if the
+   *                            provided entry represents a smart referral that
+   *                            should be returned as a search result reference.
    *
-   * @return  The requested entry, or {@code null} if no entry exists with the
-   *          given DN.
+   * @return  {@code true} if the entry should be returned to the client as a
+   *          search result entry, or {@code false} if not.
    */
-  public ReadOnlyEntry getEntry(final DN dn)
+  private boolean processSearchEntry(final Entry entry,
+                    final boolean includeSubEntries,
+                    final boolean includeChangeLog,
+                    final boolean hasManageDsaIT,
+                    final SearchResultListener listener)
   {
-    synchronized (entryMap)
+    // See if the entry should be suppressed as an LDAP subentry.
+    if ((! includeSubEntries) &&
+        (entry.hasObjectClass("ldapSubEntry") ||
+         entry.hasObjectClass("inheritableLDAPSubEntry")))
     {
-      if (dn.isNullDN())
-      {
-        return generateRootDSE();
-      }
-      else if (dn.equals(subschemaSubentryDN))
-      {
-        return subschemaSubentryRef.get();
-      }
-      else
+      return false;
+    }
+
+    // See if the entry should be suppressed as a changelog entry.
+    try
+    {
+      if ((! includeChangeLog) &&
+           (entry.getParsedDN().isDescendantOf(changeLogBaseDN, true)))
       {
-        final Entry e = entryMap.get(dn);
-        if (e == null)
-        {
-          return null;
-        }
-        else
-        {
-          return new ReadOnlyEntry(e);
-        }
+        return false;
       }
     }
+    catch (final Exception e)
+    {
+      // This should never happen.
+      Debug.debugException(e);
+    }
+
+    // See if the entry is a referral and should result in a reference rather
+    // than an entry.
+    if ((! hasManageDsaIT) && entry.hasObjectClass("referral") &&
+        entry.hasAttribute("ref"))
+    {
+      listener.searchReferenceReturned(new SearchResultReference(
+           entry.getAttributeValues("ref"), NO_CONTROLS));
+      return false;
+    }
+
+    return true;
   }
 
 
 
   /**
-   * Retrieves a list of all entries in the server which match the given
-   * search criteria.
-   *
-   * @param  baseDN  The base DN to use for the search.  It must not be
-   *                 {@code null}.
-   * @param  scope   The scope to use for the search.  It must not be
-   *                 {@code null}.
-   * @param  filter  The filter to use for the search.  It must not be
-   *                 {@code null}.
+   * Retrieves a copy of the provided entry that includes only the appropriate
+   * set of requested attributes.
    *
-   * @return  A list of the entries that matched the provided search criteria.
+   * @param  entry         The entry to be returned.
+   * @param  allUserAttrs  Indicates whether to return all user attributes.
+   * @param  allOpAttrs    Indicates whether to return all operational
+   *                       attributes.
+   * @param  returnAttrs   A map with information about the specific attribute
+   *                       types to return.
    *
-   * @throws  LDAPException  If a problem is encountered while performing the
-   *                         search.
+   * @return  A copy of the provided entry that includes only the appropriate
+   *          set of requested attributes.
    */
-  public List<ReadOnlyEntry> search(final String baseDN,
-                                    final SearchScope scope,
-                                    final Filter filter)
-         throws LDAPException
+  private Entry trimForRequestedAttributes(final Entry entry,
+                     final boolean allUserAttrs, final boolean allOpAttrs,
+                     final Map<String,List<List<String>>> returnAttrs)
   {
-    synchronized (entryMap)
+    // See if we can return the entry without paring it down.
+    final Schema schema = schemaRef.get();
+    if (allUserAttrs)
     {
-      final DN parsedDN;
-      final Schema schema = schemaRef.get();
-      try
-      {
-        parsedDN = new DN(baseDN, schema);
-      }
-      catch (final LDAPException le)
+      if (allOpAttrs || (schema == null))
       {
-        Debug.debugException(le);
-        throw new LDAPException(ResultCode.INVALID_DN_SYNTAX,
-             ERR_MEM_HANDLER_SEARCH_MALFORMED_BASE.get(baseDN, le.getMessage()),
-             le);
+        return entry;
       }
+    }
 
-      final ReadOnlyEntry baseEntry;
-      if (parsedDN.isNullDN())
-      {
-        baseEntry = generateRootDSE();
-      }
-      else if (parsedDN.equals(subschemaSubentryDN))
-      {
-        baseEntry = subschemaSubentryRef.get();
-      }
-      else
-      {
-        final Entry e = entryMap.get(parsedDN);
-        if (e == null)
-        {
-          throw new LDAPException(ResultCode.NO_SUCH_OBJECT,
-               ERR_MEM_HANDLER_SEARCH_BASE_DOES_NOT_EXIST.get(baseDN),
-               getMatchedDNString(parsedDN), null);
-        }
 
-        baseEntry = new ReadOnlyEntry(e);
-      }
+    // If we've gotten here, then we may only need to return a partial entry.
+    final Entry copy = new Entry(entry.getDN(), schema);
 
-      if (scope == SearchScope.BASE)
-      {
-        final List<ReadOnlyEntry> entryList = new ArrayList<ReadOnlyEntry>(1);
+    for (final Attribute a : entry.getAttributes())
+    {
+      final ObjectPair<String,List<String>> nameWithOptions =
+           getNameWithOptions(a.getName());
+      final String name = nameWithOptions.getFirst();
+      final List<String> options = nameWithOptions.getSecond();
 
-        try
+      // If there is a schema, then see if it is an operational attribute, since
+      // that needs to be handled in a manner different from user attributes
+      if (schema != null)
+      {
+        final AttributeTypeDefinition at = schema.getAttributeType(name);
+        if ((at != null) && at.isOperational())
         {
-          if (filter.matchesEntry(baseEntry, schema))
+          if (allOpAttrs)
           {
-            entryList.add(baseEntry);
+            copy.addAttribute(a);
+            continue;
           }
-        }
-        catch (final LDAPException le)
-        {
-          Debug.debugException(le);
-        }
-
-        return Collections.unmodifiableList(entryList);
-      }
 
-      if ((scope == SearchScope.ONE) && parsedDN.isNullDN())
-      {
-        final List<ReadOnlyEntry> entryList =
-             new ArrayList<ReadOnlyEntry>(baseDNs.size());
+          final List<List<String>> optionLists = returnAttrs.get(name);
+          if (optionLists == null)
+          {
+            continue;
+          }
 
-        try
-        {
-          for (final DN dn : baseDNs)
+          for (final List<String> optionList : optionLists)
           {
-            final Entry e = entryMap.get(dn);
-            if ((e != null) && filter.matchesEntry(e, schema))
+            boolean matchAll = true;
+            for (final String option : optionList)
             {
-              entryList.add(new ReadOnlyEntry(e));
+              if (! options.contains(option))
+              {
+                matchAll = false;
+                break;
+              }
+            }
+
+            if (matchAll)
+            {
+              copy.addAttribute(a);
+              break;
             }
           }
+          continue;
         }
-        catch (final LDAPException le)
-        {
-          Debug.debugException(le);
-        }
+      }
 
-        return Collections.unmodifiableList(entryList);
+      // We'll assume that it's a user attribute, and we'll look for an exact
+      // match on the base name.
+      if (allUserAttrs)
+      {
+        copy.addAttribute(a);
+        continue;
       }
 
-      final List<ReadOnlyEntry> entryList = new ArrayList<ReadOnlyEntry>(10);
-      for (final Map.Entry<DN,ReadOnlyEntry> me : entryMap.entrySet())
+      final List<List<String>> optionLists = returnAttrs.get(name);
+      if (optionLists == null)
+      {
+        continue;
+      }
+
+      for (final List<String> optionList : optionLists)
       {
-        final DN dn = me.getKey();
-        if (dn.matchesBaseAndScope(parsedDN, scope))
+        boolean matchAll = true;
+        for (final String option : optionList)
         {
-          // We don't want to return changelog entries searches based at the
-          // root DSE.
-          if (parsedDN.isNullDN() && dn.isDescendantOf(changeLogBaseDN, true))
+          if (! options.contains(option))
           {
-            continue;
+            matchAll = false;
+            break;
           }
+        }
 
-          try
-          {
-            final Entry entry = me.getValue();
-            if (filter.matchesEntry(entry, schema))
-            {
-              entryList.add(new ReadOnlyEntry(entry));
-            }
-          }
-          catch (final LDAPException le)
-          {
-            Debug.debugException(le);
-          }
+        if (matchAll)
+        {
+          copy.addAttribute(a);
+          break;
         }
       }
-
-      return Collections.unmodifiableList(entryList);
     }
+
+    return copy;
   }
 
 
 
   /**
-   * Generates an entry to use as the server root DSE.
+   * Retrieves the DN of the existing entry which is the closest hierarchical
+   * match to the provided DN.
    *
-   * @return  The generated root DSE entry.
+   * @param  dn  The DN for which to retrieve the appropriate matched DN.
+   *
+   * @return  The appropriate matched DN value, or {@code null} if there is
+   *          none.
    */
-  private ReadOnlyEntry generateRootDSE()
+  private String getMatchedDNString(final DN dn)
   {
-    final Entry rootDSEEntry = new Entry(DN.NULL_DN, schemaRef.get());
-    rootDSEEntry.addAttribute("objectClass", "top", "ds-root-dse");
-    rootDSEEntry.addAttribute(new Attribute("supportedLDAPVersion",
-         IntegerMatchingRule.getInstance(), "3"));
-
-    final String vendorName = config.getVendorName();
-    if (vendorName != null)
+    DN parentDN = dn.getParent();
+    while (parentDN != null)
     {
-      rootDSEEntry.addAttribute("vendorName", vendorName);
+      if (entryMap.containsKey(parentDN))
+      {
+        return parentDN.toString();
+      }
+
+      parentDN = parentDN.getParent();
     }
 
-    final String vendorVersion = config.getVendorVersion();
-    if (vendorVersion != null)
+    return null;
+  }
+
+
+
+  /**
+   * Converts the provided string list to an array.
+   *
+   * @param  l  The possibly null list to be converted.
+   *
+   * @return  The string array with the same elements as the given list in the
+   *          same order, or {@code null} if the given list was null.
+   */
+  private static String[] stringListToArray(final List<String> l)
+  {
+    if (l == null)
     {
-      rootDSEEntry.addAttribute("vendorVersion", vendorVersion);
+      return null;
+    }
+    else
+    {
+      final String[] a = new String[l.size()];
+      return l.toArray(a);
     }
+  }
 
-    rootDSEEntry.addAttribute(new Attribute("subschemaSubentry",
-         DistinguishedNameMatchingRule.getInstance(),
-         subschemaSubentryDN.toString()));
-    rootDSEEntry.addAttribute(new Attribute("entryDN",
-         DistinguishedNameMatchingRule.getInstance(), ""));
-    rootDSEEntry.addAttribute("entryUUID", UUID.randomUUID().toString());
 
-    rootDSEEntry.addAttribute("supportedFeatures",
-         "1.3.6.1.4.1.4203.1.5.1",  // All operational attributes
-         "1.3.6.1.4.1.4203.1.5.2",  // Request attributes by object class
-         "1.3.6.1.4.1.4203.1.5.3",  // LDAP absolute true and false filters
-         "1.3.6.1.1.14");           // Increment modification type
 
-    final TreeSet<String> ctlSet = new TreeSet<String>();
+  /**
+   * Creates a changelog entry from the information in the provided add request
+   * and adds it to the server changelog.
+   *
+   * @param  addRequest  The add request to use to construct the changelog
+   *                     entry.
+   * @param  authzDN     The authorization DN for the change.
+   */
+  private void addChangeLogEntry(final AddRequestProtocolOp addRequest,
+                                 final DN authzDN)
+  {
+    // If the changelog is disabled, then don't do anything.
+    if (maxChangelogEntries <= 0)
+    {
+      return;
+    }
 
-    ctlSet.add(AssertionRequestControl.ASSERTION_REQUEST_OID);
-    ctlSet.add(AuthorizationIdentityRequestControl.
-         AUTHORIZATION_IDENTITY_REQUEST_OID);
-    ctlSet.add(DontUseCopyRequestControl.DONT_USE_COPY_REQUEST_OID);
-    ctlSet.add(ManageDsaITRequestControl.MANAGE_DSA_IT_REQUEST_OID);
-    ctlSet.add(PermissiveModifyRequestControl.PERMISSIVE_MODIFY_REQUEST_OID);
-    ctlSet.add(PostReadRequestControl.POST_READ_REQUEST_OID);
-    ctlSet.add(PreReadRequestControl.PRE_READ_REQUEST_OID);
-    ctlSet.add(ProxiedAuthorizationV1RequestControl.
-         PROXIED_AUTHORIZATION_V1_REQUEST_OID);
-    ctlSet.add(ProxiedAuthorizationV2RequestControl.
-         PROXIED_AUTHORIZATION_V2_REQUEST_OID);
-    ctlSet.add(ServerSideSortRequestControl.SERVER_SIDE_SORT_REQUEST_OID);
-    ctlSet.add(SimplePagedResultsControl.PAGED_RESULTS_OID);
-    ctlSet.add(SubentriesRequestControl.SUBENTRIES_REQUEST_OID);
-    ctlSet.add(SubtreeDeleteRequestControl.SUBTREE_DELETE_REQUEST_OID);
-    ctlSet.add(TransactionSpecificationRequestControl.
-         TRANSACTION_SPECIFICATION_REQUEST_OID);
-    ctlSet.add(VirtualListViewRequestControl.VIRTUAL_LIST_VIEW_REQUEST_OID);
+    final long changeNumber = lastChangeNumber.incrementAndGet();
+    final LDIFAddChangeRecord changeRecord = new LDIFAddChangeRecord(
+         addRequest.getDN(), addRequest.getAttributes());
+    try
+    {
+      addChangeLogEntry(
+           ChangeLogEntry.constructChangeLogEntry(changeNumber, changeRecord),
+           authzDN);
+    }
+    catch (final LDAPException le)
+    {
+      // This should not happen.
+      Debug.debugException(le);
+    }
+  }
 
-    final String[] controlOIDs = new String[ctlSet.size()];
-    rootDSEEntry.addAttribute("supportedControl", ctlSet.toArray(controlOIDs));
 
 
-    if (! extendedRequestHandlers.isEmpty())
+  /**
+   * Creates a changelog entry from the information in the provided delete
+   * request and adds it to the server changelog.
+   *
+   * @param  e        The entry to be deleted.
+   * @param  authzDN  The authorization DN for the change.
+   */
+  private void addDeleteChangeLogEntry(final Entry e, final DN authzDN)
+  {
+    // If the changelog is disabled, then don't do anything.
+    if (maxChangelogEntries <= 0)
     {
-      final String[] oidArray = new String[extendedRequestHandlers.size()];
-      rootDSEEntry.addAttribute("supportedExtension",
-           extendedRequestHandlers.keySet().toArray(oidArray));
+      return;
+    }
 
-      for (final InMemoryListenerConfig c : config.getListenerConfigs())
+    final long changeNumber = lastChangeNumber.incrementAndGet();
+    final LDIFDeleteChangeRecord changeRecord =
+         new LDIFDeleteChangeRecord(e.getDN());
+
+    // Create the changelog entry.
+    try
+    {
+      final ChangeLogEntry cle = ChangeLogEntry.constructChangeLogEntry(
+           changeNumber, changeRecord);
+
+      // Add a set of deleted entry attributes, which is simply an LDIF-encoded
+      // representation of the entry, excluding the first line since it contains
+      // the DN.
+      final StringBuilder deletedEntryAttrsBuffer = new StringBuilder();
+      final String[] ldifLines = e.toLDIF(0);
+      for (int i=1; i < ldifLines.length; i++)
       {
-        if (c.getStartTLSSocketFactory() != null)
-        {
-          rootDSEEntry.addAttribute("supportedExtension",
-               StartTLSExtendedRequest.STARTTLS_REQUEST_OID);
-          break;
-        }
+        deletedEntryAttrsBuffer.append(ldifLines[i]);
+        deletedEntryAttrsBuffer.append(StaticUtils.EOL);
       }
-    }
 
-    if (! saslBindHandlers.isEmpty())
+      final Entry copy = cle.duplicate();
+      copy.addAttribute(ChangeLogEntry.ATTR_DELETED_ENTRY_ATTRS,
+           deletedEntryAttrsBuffer.toString());
+      addChangeLogEntry(new ChangeLogEntry(copy), authzDN);
+    }
+    catch (final LDAPException le)
     {
-      final String[] mechanismArray = new String[saslBindHandlers.size()];
-      rootDSEEntry.addAttribute("supportedSASLMechanisms",
-           saslBindHandlers.keySet().toArray(mechanismArray));
+      // This should never happen.
+      Debug.debugException(le);
     }
+  }
 
-    int pos = 0;
-    final String[] baseDNStrings = new String[baseDNs.size()];
-    for (final DN baseDN : baseDNs)
+
+
+  /**
+   * Creates a changelog entry from the information in the provided modify
+   * request and adds it to the server changelog.
+   *
+   * @param  modifyRequest  The modify request to use to construct the changelog
+   *                        entry.
+   * @param  authzDN        The authorization DN for the change.
+   */
+  private void addChangeLogEntry(final ModifyRequestProtocolOp modifyRequest,
+                                 final DN authzDN)
+  {
+    // If the changelog is disabled, then don't do anything.
+    if (maxChangelogEntries <= 0)
     {
-      baseDNStrings[pos++] = baseDN.toString();
+      return;
     }
-    rootDSEEntry.addAttribute(new Attribute("namingContexts",
-         DistinguishedNameMatchingRule.getInstance(), baseDNStrings));
 
-    if (maxChangelogEntries > 0)
+    final long changeNumber = lastChangeNumber.incrementAndGet();
+    final LDIFModifyChangeRecord changeRecord =
+         new LDIFModifyChangeRecord(modifyRequest.getDN(),
+              modifyRequest.getModifications());
+    try
     {
-      rootDSEEntry.addAttribute(new Attribute("changeLog",
-           DistinguishedNameMatchingRule.getInstance(),
-           changeLogBaseDN.toString()));
-      rootDSEEntry.addAttribute(new Attribute("firstChangeNumber",
-           IntegerMatchingRule.getInstance(), firstChangeNumber.toString()));
-      rootDSEEntry.addAttribute(new Attribute("lastChangeNumber",
-           IntegerMatchingRule.getInstance(), lastChangeNumber.toString()));
+      addChangeLogEntry(
+           ChangeLogEntry.constructChangeLogEntry(changeNumber, changeRecord),
+           authzDN);
+    }
+    catch (final LDAPException le)
+    {
+      // This should not happen.
+      Debug.debugException(le);
     }
-
-    return new ReadOnlyEntry(rootDSEEntry);
   }
 
 
 
   /**
-   * Generates a subschema subentry from the provided schema object.
-   *
-   * @param  schema  The schema to use to generate the subschema subentry.  It
-   *                 may be {@code null} if a minimal default entry should be
-   *                 generated.
+   * Creates a changelog entry from the information in the provided modify DN
+   * request and adds it to the server changelog.
    *
-   * @return  The generated subschema subentry.
+   * @param  modifyDNRequest  The modify DN request to use to construct the
+   *                          changelog entry.
+   * @param  authzDN          The authorization DN for the change.
    */
-  private static ReadOnlyEntry generateSubschemaSubentry(final Schema schema)
+  private void addChangeLogEntry(
+                    final ModifyDNRequestProtocolOp modifyDNRequest,
+                    final DN authzDN)
   {
-    final Entry e;
-
-    if (schema == null)
-    {
-      e = new Entry("cn=schema", schema);
-
-      e.addAttribute("objectClass", "namedObject", "ldapSubEntry",
-           "subschema");
-      e.addAttribute("cn", "schema");
-    }
-    else
+    // If the changelog is disabled, then don't do anything.
+    if (maxChangelogEntries <= 0)
     {
-      e = schema.getSchemaEntry().duplicate();
+      return;
     }
 
+    final long changeNumber = lastChangeNumber.incrementAndGet();
+    final LDIFModifyDNChangeRecord changeRecord =
+         new LDIFModifyDNChangeRecord(modifyDNRequest.getDN(),
+              modifyDNRequest.getNewRDN(), modifyDNRequest.deleteOldRDN(),
+              modifyDNRequest.getNewSuperiorDN());
     try
     {
-      e.addAttribute("entryDN", DN.normalize(e.getDN(), schema));
+      addChangeLogEntry(
+           ChangeLogEntry.constructChangeLogEntry(changeNumber, changeRecord),
+           authzDN);
     }
     catch (final LDAPException le)
     {
-      // This should never happen.
+      // This should not happen.
       Debug.debugException(le);
-      e.setAttribute("entryDN", StaticUtils.toLowerCase(e.getDN()));
     }
-
-
-    e.addAttribute("entryUUID", UUID.randomUUID().toString());
-    return new ReadOnlyEntry(e);
   }
 
 
 
   /**
-   * Processes the set of requested attributes from the given search request.
-   *
-   * @param  attrList      The list of requested attributes to examine.
-   * @param  allUserAttrs  Indicates whether to return all user attributes.  It
-   *                       should have an initial value of {@code false}.
-   * @param  allOpAttrs    Indicates whether to return all operational
-   *                       attributes.  It should have an initial value of
-   *                       {@code false}.
+   * Adds the provided changelog entry to the data set, removing an old entry if
+   * necessary to remain within the maximum allowed number of changes.  This
+   * must only be called from a synchronized method, and the change number for
+   * the changelog entry must have been obtained by calling
+   * {@code lastChangeNumber.incrementAndGet()}.
    *
-   * @return  A map of specific attribute types to be returned.  The keys of the
-   *          map will be the lowercase OID and names of the attribute types,
-   *          and the values will be a list of option sets for the associated
-   *          attribute type.
+   * @param  e        The changelog entry to add to the data set.
+   * @param  authzDN  The authorization DN for the change.
    */
-  private Map<String,List<List<String>>> processRequestedAttributes(
-               final List<String> attrList, final AtomicBoolean allUserAttrs,
-               final AtomicBoolean allOpAttrs)
+  private void addChangeLogEntry(final ChangeLogEntry e, final DN authzDN)
   {
-    if (attrList.isEmpty())
-    {
-      allUserAttrs.set(true);
-      return Collections.emptyMap();
-    }
-
+    // Construct the DN object to use for the entry and put it in the map.
+    final long changeNumber = e.getChangeNumber();
     final Schema schema = schemaRef.get();
-    final HashMap<String,List<List<String>>> m =
-         new HashMap<String,List<List<String>>>(attrList.size() * 2);
-    for (final String s : attrList)
-    {
-      if (s.equals("*"))
-      {
-        // All user attributes.
-        allUserAttrs.set(true);
-      }
-      else if (s.equals("+"))
-      {
-        // All operational attributes.
-        allOpAttrs.set(true);
-      }
-      else if (s.startsWith("@"))
-      {
-        // Return attributes by object class.  This can only be supported if a
-        // schema has been defined.
-        if (schema != null)
-        {
-          final String ocName = s.substring(1);
-          final ObjectClassDefinition oc = schema.getObjectClass(ocName);
-          if (oc != null)
-          {
-            for (final AttributeTypeDefinition at :
-                 oc.getRequiredAttributes(schema, true))
-            {
-              addAttributeOIDAndNames(at, m, Collections.<String>emptyList());
-            }
-            for (final AttributeTypeDefinition at :
-                 oc.getOptionalAttributes(schema, true))
-            {
-              addAttributeOIDAndNames(at, m, Collections.<String>emptyList());
-            }
-          }
-        }
-      }
-      else
-      {
-        final ObjectPair<String,List<String>> nameWithOptions =
-             getNameWithOptions(s);
-        if (nameWithOptions == null)
-        {
-          continue;
-        }
-
-        final String name = nameWithOptions.getFirst();
-        final List<String> options = nameWithOptions.getSecond();
+    final DN dn = new DN(
+         new RDN("changeNumber", String.valueOf(changeNumber), schema),
+         changeLogBaseDN);
 
-        if (schema == null)
-        {
-          // Just use the name as provided.
-          List<List<String>> optionLists = m.get(name);
-          if (optionLists == null)
-          {
-            optionLists = new ArrayList<List<String>>(1);
-            m.put(name, optionLists);
-          }
-          optionLists.add(options);
-        }
-        else
-        {
-          // If the attribute type is defined in the schema, then use it to get
-          // all names and the OID.  Otherwise, just use the name as provided.
-          final AttributeTypeDefinition at = schema.getAttributeType(name);
-          if (at == null)
-          {
-            List<List<String>> optionLists = m.get(name);
-            if (optionLists == null)
-            {
-              optionLists = new ArrayList<List<String>>(1);
-              m.put(name, optionLists);
-            }
-            optionLists.add(options);
-          }
-          else
-          {
-            addAttributeOIDAndNames(at, m, options);
-          }
-        }
-      }
+    final Entry entry = e.duplicate();
+    if (generateOperationalAttributes)
+    {
+      final Date d = new Date();
+      entry.addAttribute(new Attribute("entryDN",
+           DistinguishedNameMatchingRule.getInstance(),
+           dn.toNormalizedString()));
+      entry.addAttribute(new Attribute("entryUUID",
+           UUID.randomUUID().toString()));
+      entry.addAttribute(new Attribute("subschemaSubentry",
+           DistinguishedNameMatchingRule.getInstance(),
+           subschemaSubentryDN.toString()));
+      entry.addAttribute(new Attribute("creatorsName",
+           DistinguishedNameMatchingRule.getInstance(),
+           authzDN.toString()));
+      entry.addAttribute(new Attribute("createTimestamp",
+           GeneralizedTimeMatchingRule.getInstance(),
+           StaticUtils.encodeGeneralizedTime(d)));
+      entry.addAttribute(new Attribute("modifiersName",
+           DistinguishedNameMatchingRule.getInstance(),
+           authzDN.toString()));
+      entry.addAttribute(new Attribute("modifyTimestamp",
+           GeneralizedTimeMatchingRule.getInstance(),
+           StaticUtils.encodeGeneralizedTime(d)));
     }
 
-    return m;
+    // Add the entry to the changelog, which will discard the oldest entry if
+    // the changelog is full, and update the first change number to match.
+    changeLog.add(changeNumber,
+         new ReadOnlyEntry(dn, schema, entry.getAttributes()));
+    firstChangeNumber.set(changeLog.getFirstChangeNumber());
   }
 
 
 
   /**
-   * Parses the provided string into an attribute type and set of options.
+   * Stops the persistent search with the given message ID that is active on
+   * the associated client connection, if there is one.  The search result
+   * done message for it will be sent with a result code of
+   * {@link ResultCode#CANCELED} once processing for the extended operation in
+   * progress has completed, but before its response is returned.
    *
-   * @param  s  The string to be parsed.
+   * @param  messageID  The message ID of the persistent search to cancel.
    *
-   * @return  An {@code ObjectPair} in which the first element is the attribute
-   *          type name and the second is the list of options (or an empty
-   *          list if there are no options).  Alternately, a value of
-   *          {@code null} may be returned if the provided string does not
-   *          represent a valid attribute type description.
+   * @return  {@code true} if the persistent search was canceled, or
+   *          {@code false} if there is no such persistent search.
    */
-  private static ObjectPair<String,List<String>> getNameWithOptions(
-                                                      final String s)
+  boolean cancelPersistentSearch(final int messageID)
   {
-    if (! Attribute.nameIsValid(s, true))
-    {
-      return null;
-    }
-
-    final String l = StaticUtils.toLowerCase(s);
-
-    int semicolonPos = l.indexOf(';');
-    if (semicolonPos < 0)
-    {
-      return new ObjectPair<String,List<String>>(l,
-           Collections.<String>emptyList());
-    }
-
-    final String name = l.substring(0, semicolonPos);
-    final ArrayList<String> optionList = new ArrayList<String>(1);
-    while (true)
+    final InMemoryPersistentSearch persistentSearch =
+         changeEventBus.removePersistentSearch(this, messageID);
+    if (persistentSearch == null)
     {
-      final int nextSemicolonPos = l.indexOf(';', semicolonPos+1);
-      if (nextSemicolonPos < 0)
-      {
-        optionList.add(l.substring(semicolonPos+1));
-        break;
-      }
-      else
-      {
-        optionList.add(l.substring(semicolonPos+1, nextSemicolonPos));
-        semicolonPos = nextSemicolonPos;
-      }
+      return false;
     }
 
-    return new ObjectPair<String,List<String>>(name, optionList);
+    canceledPersistentSearch = persistentSearch;
+    return true;
   }
 
 
 
   /**
-   * Adds all-lowercase versions of the OID and all names for the provided
-   * attribute type definition to the given map with the given options.
-   *
-   * @param  d  The attribute type definition to process.
-   * @param  m  The map to which the OID and names should be added.
-   * @param  o  The array of attribute options to use in the map.  It should be
-   *            empty if no options are needed, and must not be {@code null}.
+   * Reports a change made by the write operation in progress so that any
+   * interested persistent searches will be notified once it has been
+   * published.  This must be called after any corresponding changelog entry
+   * has been added.
+   *
+   * @param  changeType         The type of change that was made.
+   * @param  entry              The entry as it appears after the change, or as
+   *                            it appeared before it was removed for a delete.
+   * @param  previousEntry      The entry as it appeared before the change, or
+   *                            {@code null} for an add.
+   * @param  subordinateChange  Indicates whether the entry was not the target
+   *                            of the operation, but was renamed because it is
+   *                            subordinate to the target of a modify DN
+   *                            operation.
    */
-  private void addAttributeOIDAndNames(final AttributeTypeDefinition d,
-                                       final Map<String,List<List<String>>> m,
-                                       final List<String> o)
+  private void notifyPersistentSearches(
+                    final PersistentSearchChangeType changeType,
+                    final Entry entry, final Entry previousEntry,
+                    final boolean subordinateChange)
   {
-    if (d == null)
+    if ((entry == null) || (! changeEventBus.hasPersistentSearches()))
     {
       return;
     }
 
-    final String lowerOID = StaticUtils.toLowerCase(d.getOID());
-    if (lowerOID != null)
-    {
-      List<List<String>> l = m.get(lowerOID);
-      if (l == null)
-      {
-        l = new ArrayList<List<String>>(1);
-        m.put(lowerOID, l);
-      }
-
-      l.add(o);
-    }
-
-    for (final String name : d.getNames())
+    final long changeNumber;
+    if (maxChangelogEntries > 0)
     {
-      final String lowerName = StaticUtils.toLowerCase(name);
-      List<List<String>> l = m.get(lowerName);
-      if (l == null)
-      {
-        l = new ArrayList<List<String>>(1);
-        m.put(lowerName, l);
-      }
-
-      l.add(o);
+      changeNumber = lastChangeNumber.get();
     }
-
-    // If a schema is available, then see if the attribute type has any
-    // subordinate types.  If so, then add them.
-    final Schema schema = schemaRef.get();
-    if (schema != null)
-    {
-      for (final AttributeTypeDefinition subordinateType :
-           schema.getSubordinateAttributeTypes(d))
-      {
-        addAttributeOIDAndNames(subordinateType, m, o);
-      }
+    else
+    {
+      changeNumber = -1L;
     }
+
+    changeEventBus.changeCompleted(changeType, entry, previousEntry,
+         subordinateChange, changeNumber);
   }
 
 
 
   /**
-   * Performs the necessary processing to determine whether the given entry
-   * should be returned as a search result entry or reference, or if it should
-   * not be returned at all.
-   *
-   * @param  entry              The entry to be processed.
-   * @param  includeSubEntries  Indicates whether LDAP subentries should be
-   *                            returned to the client.
-   * @param  includeChangeLog   Indicates whether entries within the changelog
-   *                            should be returned to the client.
-   * @param  hasManageDsaIT     Indicates whether the request includes the
-   *                            ManageDsaIT control, which can change how smart
-   *                            referrals should be handled.
-   * @param  entryList          The list to which the entry should be added if
-   *                            it should be returned to the client as a search
-   *                            result entry.
-   * @param  referenceList      The list that should be updated if the provided
-   *                            entry represents a smart referral that should be
-   *                            returned as a search result reference.
-   */
-  private void processSearchEntry(final Entry entry,
-                    final boolean includeSubEntries,
-                    final boolean includeChangeLog,
-                    final boolean hasManageDsaIT,
-                    final List<Entry> entryList,
-                    final List<SearchResultReference> referenceList)
+   * Completes the refresh phase of a content synchronization search.  For a
+   * search in the refresh only mode, this will create the search result done
+   * message, including a content synchronization done control.  For a search
+   * in the refresh and persist mode, this will send a sync info intermediate
+   * response to indicate that the refresh phase is done.
+   *
+   * @param  messageID           The message ID for the search request.
+   * @param  syncRequestControl  The content synchronization request control.
+   * @param  syncGeneration      The content synchronization generation in
+   *                             which the search was processed.
+   * @param  syncChangeNumber    The number of the last change reflected in the
+   *                             results of the refresh phase.
+   * @param  refreshDeletes      Indicates whether the refresh phase only
+   *                             returned the changes since the client's last
+   *                             synchronization, rather than the complete set
+   *                             of results.
+   * @param  responseControls    The response controls for the search.
+   *
+   * @return  The search result done message to return to the client, or
+   *          {@code null} if the search will remain active to return
+   *          subsequent changes.
+   */
+  private LDAPMessage completeContentSyncRefresh(final int messageID,
+               final ContentSyncRequestControl syncRequestControl,
+               final String syncGeneration, final long syncChangeNumber,
+               final boolean refreshDeletes,
+               final List<Control> responseControls)
   {
-    // See if the entry should be suppressed as an LDAP subentry.
-    if ((! includeSubEntries) &&
-        (entry.hasObjectClass("ldapSubEntry") ||
-         entry.hasObjectClass("inheritableLDAPSubEntry")))
+    final ASN1OctetString cookie;
+    if (changeLog == null)
     {
-      return;
+      cookie = null;
     }
-
-    // See if the entry should be suppressed as a changelog entry.
-    try
+    else
     {
-      if ((! includeChangeLog) &&
-           (entry.getParsedDN().isDescendantOf(changeLogBaseDN, true)))
-      {
-        return;
-      }
+      cookie = createContentSyncCookie(syncGeneration, syncChangeNumber);
     }
-    catch (final Exception e)
+
+    if (syncRequestControl.getMode() == ContentSyncRequestMode.REFRESH_ONLY)
     {
-      // This should never happen.
-      Debug.debugException(e);
+      responseControls.add(new ContentSyncDoneControl(cookie, refreshDeletes));
+      return new LDAPMessage(messageID,
+           new SearchResultDoneProtocolOp(ResultCode.SUCCESS_INT_VALUE, null,
+                null, null),
+           responseControls);
     }
 
-    // See if the entry is a referral and should result in a reference rather
-    // than an entry.
-    if ((! hasManageDsaIT) && entry.hasObjectClass("referral") &&
-        entry.hasAttribute("ref"))
+    final ContentSyncInfoIntermediateResponse syncInfo;
+    if (refreshDeletes)
     {
-      referenceList.add(new SearchResultReference(
-           entry.getAttributeValues("ref"), NO_CONTROLS));
-      return;
+      syncInfo = ContentSyncInfoIntermediateResponse.
+           createRefreshDeleteResponse(cookie, true);
+    }
+    else
+    {
+      syncInfo = ContentSyncInfoIntermediateResponse.
+           createRefreshPresentResponse(cookie, true);
     }
 
-    entryList.add(entry);
+    try
+    {
+      connection.sendIntermediateResponse(messageID,
+           new IntermediateResponseProtocolOp(syncInfo));
+      return null;
+    }
+    catch (final LDAPException le)
+    {
+      Debug.debugException(le);
+      return new LDAPMessage(messageID, new SearchResultDoneProtocolOp(
+           le.getResultCode().intValue(), null, le.getMessage(), null));
+    }
   }
 
 
 
   /**
-   * Retrieves a copy of the provided entry that includes only the appropriate
-   * set of requested attributes.
-   *
-   * @param  entry         The entry to be returned.
-   * @param  allUserAttrs  Indicates whether to return all user attributes.
-   * @param  allOpAttrs    Indicates whether to return all operational
-   *                       attributes.
-   * @param  returnAttrs   A map with information about the specific attribute
-   *                       types to return.
-   *
-   * @return  A copy of the provided entry that includes only the appropriate
-   *          set of requested attributes.
+   * Uses the changelog to determine which entries must be returned to bring a
+   * content synchronization client's copy of the search results up to date.
+   * Each entry that now matches the search criteria and that may have been
+   * changed since the client's last synchronization will be returned with a
+   * state of {@link ContentSyncState#ADD}, and each entry that may have been
+   * removed from the results in that time will be returned with a state of
+   * {@link ContentSyncState#DELETE}.  It is not necessary to determine whether
+   * the client actually holds an entry that has been removed, since clients
+   * ignore deletes for entries that they do not have.
+   *
+   * @param  cookie             The cookie provided by the client.
+   * @param  syncGeneration     The content synchronization generation in
+   *                            which the search is being processed.
+   * @param  syncChangeNumber   The number of the last change that will be
+   *                            reflected in the results.
+   * @param  baseDN             The base DN for the search.
+   * @param  scope              The scope for the search.
+   * @param  filter             The compiled filter for the search.
+   * @param  includeSubEntries  Indicates whether the search includes LDAP
+   *                            subentries.
+   *
+   * @return  The entries to be returned, along with their states, or
+   *          {@code null} if the cookie is not valid, if it was issued in a
+   *          different content synchronization generation, or if the
+   *          changelog no longer holds all of the changes made since it was
+   *          issued.
    */
-  private Entry trimForRequestedAttributes(final Entry entry,
-                     final boolean allUserAttrs, final boolean allOpAttrs,
-                     final Map<String,List<List<String>>> returnAttrs)
+  private List<ObjectPair<Entry,ContentSyncState>> getContentSyncChanges(
+               final ASN1OctetString cookie, final String syncGeneration,
+               final long syncChangeNumber, final DN baseDN,
+               final SearchScope scope, final CompiledFilter filter,
+               final boolean includeSubEntries)
   {
-    // See if we can return the entry without paring it down.
-    final Schema schema = schemaRef.get();
-    if (allUserAttrs)
+    final long cookieChangeNumber =
+         decodeContentSyncCookie(cookie, syncGeneration);
+    if ((changeLog == null) || (cookieChangeNumber < 0L) ||
+        (cookieChangeNumber > syncChangeNumber))
     {
-      if (allOpAttrs || (schema == null))
-      {
-        return entry;
-      }
+      return null;
     }
 
+    final List<ReadOnlyEntry> changeLogEntries =
+         changeLog.getEntriesAfter(cookieChangeNumber);
+    if ((changeLogEntries == null) ||
+        (changeLogEntries.isEmpty() &&
+         (cookieChangeNumber < syncChangeNumber)))
+    {
+      return null;
+    }
 
-    // If we've gotten here, then we may only need to return a partial entry.
-    final Entry copy = new Entry(entry.getDN(), schema);
-
-    for (final Attribute a : entry.getAttributes())
+    // Go through the changes in order to find the current DNs of the entries
+    // that may have been changed, along with an indication of whether their
+    // subordinates may also have been renamed.  Also keep track of which of
+    // those entries have been at or below the search base at some point, since
+    // only they may have been removed from the results.  Deleted entries can
+    // be identified immediately from the changelog, since they will not
+    // change any further.
+    final Schema schema = schemaRef.get();
+    final ArrayList<ObjectPair<Entry,ContentSyncState>> syncChanges =
+         new ArrayList<ObjectPair<Entry,ContentSyncState>>();
+    LinkedHashMap<DN,Boolean> changedDNs = new LinkedHashMap<DN,Boolean>();
+    HashSet<DN> inBaseDNs = new HashSet<DN>();
+    for (final ReadOnlyEntry changeLogEntry : changeLogEntries)
     {
-      final ObjectPair<String,List<String>> nameWithOptions =
-           getNameWithOptions(a.getName());
-      final String name = nameWithOptions.getFirst();
-      final List<String> options = nameWithOptions.getSecond();
+      final ChangeLogEntry change;
+      final DN targetDN;
+      try
+      {
+        change = new ChangeLogEntry(changeLogEntry);
+        targetDN = new DN(change.getTargetDN(), schema);
+      }
+      catch (final LDAPException le)
+      {
+        Debug.debugException(le);
+        return null;
+      }
 
-      // If there is a schema, then see if it is an operational attribute, since
-      // that needs to be handled in a manner different from user attributes
-      if (schema != null)
+      switch (change.getChangeType())
       {
-        final AttributeTypeDefinition at = schema.getAttributeType(name);
-        if ((at != null) && at.isOperational())
-        {
-          if (allOpAttrs)
+        case ADD:
+        case MODIFY:
+          if (! changedDNs.containsKey(targetDN))
           {
-            copy.addAttribute(a);
-            continue;
+            changedDNs.put(targetDN, Boolean.FALSE);
           }
-
-          final List<List<String>> optionLists = returnAttrs.get(name);
-          if (optionLists == null)
+          if (targetDN.isDescendantOf(baseDN, true))
           {
-            continue;
+            inBaseDNs.add(targetDN);
           }
+          break;
 
-          for (final List<String> optionList : optionLists)
+        case DELETE:
+          if (wasInBase(targetDN, baseDN, changedDNs, inBaseDNs))
           {
-            boolean matchAll = true;
-            for (final String option : optionList)
+            final List<Attribute> attrs = change.getDeletedEntryAttributes();
+            if (attrs == null)
             {
-              if (! options.contains(option))
-              {
-                matchAll = false;
-                break;
-              }
+              syncChanges.add(new ObjectPair<Entry,ContentSyncState>(
+                   new Entry(targetDN), ContentSyncState.DELETE));
+            }
+            else
+            {
+              syncChanges.add(new ObjectPair<Entry,ContentSyncState>(
+                   new Entry(targetDN, attrs), ContentSyncState.DELETE));
             }
+          }
+          changedDNs.remove(targetDN);
+          inBaseDNs.remove(targetDN);
+          break;
 
-            if (matchAll)
+        case MODIFY_DN:
+          final DN newDN;
+          try
+          {
+            newDN = new DN(change.getNewDN(), schema);
+          }
+          catch (final LDAPException le)
+          {
+            Debug.debugException(le);
+            return null;
+          }
+
+          final boolean inBase =
+               (wasInBase(targetDN, baseDN, changedDNs, inBaseDNs) ||
+                newDN.isDescendantOf(baseDN, true));
+
+          // Any entries already known to have changed that were at or below
+          // the target entry have been renamed along with it.
+          final LinkedHashMap<DN,Boolean> renamedDNs =
+               new LinkedHashMap<DN,Boolean>(changedDNs.size() + 1);
+          final HashSet<DN> renamedInBaseDNs =
+               new HashSet<DN>(inBaseDNs.size() + 1);
+          for (final Map.Entry<DN,Boolean> e : changedDNs.entrySet())
+          {
+            final DN dn = rebaseDN(e.getKey(), targetDN, newDN);
+            renamedDNs.put(dn, e.getValue());
+            if (inBaseDNs.contains(e.getKey()))
             {
-              copy.addAttribute(a);
-              break;
+              renamedInBaseDNs.add(dn);
             }
           }
-          continue;
-        }
-      }
+          renamedDNs.put(newDN, Boolean.TRUE);
+          if (inBase)
+          {
+            renamedInBaseDNs.add(newDN);
+          }
 
-      // We'll assume that it's a user attribute, and we'll look for an exact
-      // match on the base name.
-      if (allUserAttrs)
-      {
-        copy.addAttribute(a);
-        continue;
+          changedDNs = renamedDNs;
+          inBaseDNs = renamedInBaseDNs;
+          break;
       }
+    }
 
-      final List<List<String>> optionLists = returnAttrs.get(name);
-      if (optionLists == null)
+    // Examine the current version of each entry that may have changed to
+    // determine whether it should be added to or removed from the results.
+    final HashSet<DN> examinedDNs = new HashSet<DN>();
+    for (final Map.Entry<DN,Boolean> e : changedDNs.entrySet())
+    {
+      final DN changedDN = e.getKey();
+      final boolean inBase = inBaseDNs.contains(changedDN);
+
+      final ArrayList<DN> dnsToExamine = new ArrayList<DN>(1);
+      dnsToExamine.add(changedDN);
+      if (e.getValue())
       {
-        continue;
+        dnsToExamine.addAll(entryMap.getSubtree(changedDN, false).keySet());
       }
 
-      for (final List<String> optionList : optionLists)
+      for (final DN dn : dnsToExamine)
       {
-        boolean matchAll = true;
-        for (final String option : optionList)
+        final Entry entry = entryMap.get(dn);
+        if ((entry == null) || (! examinedDNs.add(dn)))
         {
-          if (! options.contains(option))
+          continue;
+        }
+
+        boolean matches = (includeSubEntries ||
+             (! (entry.hasObjectClass("ldapSubEntry") ||
+                 entry.hasObjectClass("inheritableLDAPSubEntry"))));
+        if (matches)
+        {
+          try
           {
-            matchAll = false;
-            break;
+            matches = (dn.matchesBaseAndScope(baseDN, scope) &&
+                 filter.matchesEntry(entry));
+          }
+          catch (final LDAPException le)
+          {
+            Debug.debugException(le);
+            matches = false;
           }
         }
 
-        if (matchAll)
+        if (matches)
         {
-          copy.addAttribute(a);
-          break;
+          syncChanges.add(new ObjectPair<Entry,ContentSyncState>(entry,
+               ContentSyncState.ADD));
+        }
+        else if (inBase)
+        {
+          syncChanges.add(new ObjectPair<Entry,ContentSyncState>(entry,
+               ContentSyncState.DELETE));
         }
       }
     }
 
-    return copy;
+    return syncChanges;
   }
 
 
 
   /**
-   * Retrieves the DN of the existing entry which is the closest hierarchical
-   * match to the provided DN.
-   *
-   * @param  dn  The DN for which to retrieve the appropriate matched DN.
-   *
-   * @return  The appropriate matched DN value, or {@code null} if there is
-   *          none.
+   * Indicates whether the entry with the provided DN may have been at or below
+   * the search base at some point since a content synchronization client's
+   * last synchronization, either because it is at or below the base now, or
+   * because it or an ancestor that it was renamed along with was there before.
+   *
+   * @param  dn          The DN of the entry to examine.
+   * @param  baseDN      The base DN for the search.
+   * @param  changedDNs  The DNs of the entries known to have been changed,
+   *                     mapped to whether their subordinates may also have
+   *                     been renamed.
+   * @param  inBaseDNs   The DNs of the changed entries that have been at or
+   *                     below the search base.
+   *
+   * @return  {@code true} if the entry may have been at or below the search
+   *          base, or {@code false} if not.
    */
-  private String getMatchedDNString(final DN dn)
+  private static boolean wasInBase(final DN dn, final DN baseDN,
+                                   final Map<DN,Boolean> changedDNs,
+                                   final Set<DN> inBaseDNs)
   {
+    if (dn.isDescendantOf(baseDN, true) || inBaseDNs.contains(dn))
+    {
+      return true;
+    }
+
     DN parentDN = dn.getParent();
     while (parentDN != null)
     {
-      if (entryMap.containsKey(parentDN))
+      if (Boolean.TRUE.equals(changedDNs.get(parentDN)) &&
+          inBaseDNs.contains(parentDN))
       {
-        return parentDN.toString();
+        return true;
       }
-
       parentDN = parentDN.getParent();
     }
 
-    return null;
-  }
-
-
-
-  /**
-   * Converts the provided string list to an array.
-   *
-   * @param  l  The possibly null list to be converted.
-   *
-   * @return  The string array with the same elements as the given list in the
-   *          same order, or {@code null} if the given list was null.
-   */
-  private static String[] stringListToArray(final List<String> l)
-  {
-    if (l == null)
-    {
-      return null;
-    }
-    else
-    {
-      final String[] a = new String[l.size()];
-      return l.toArray(a);
-    }
+    return false;
   }
 
 
 
   /**
-   * Creates a changelog entry from the information in the provided add request
-   * and adds it to the server changelog.
+   * Retrieves the DN that the provided DN will have after the entry with the
+   * specified old DN, and all of its subordinates, have been renamed.
    *
-   * @param  addRequest  The add request to use to construct the changelog
-   *                     entry.
-   * @param  authzDN     The authorization DN for the change.
-   */
-  private void addChangeLogEntry(final AddRequestProtocolOp addRequest,
-                                 final DN authzDN)
-  {
-    // If the changelog is disabled, then don't do anything.
-    if (maxChangelogEntries <= 0)
-    {
-      return;
-    }
-
-    final long changeNumber = lastChangeNumber.incrementAndGet();
-    final LDIFAddChangeRecord changeRecord = new LDIFAddChangeRecord(
-         addRequest.getDN(), addRequest.getAttributes());
-    try
-    {
-      addChangeLogEntry(
-           ChangeLogEntry.constructChangeLogEntry(changeNumber, changeRecord),
-           authzDN);
-    }
-    catch (final LDAPException le)
-    {
-      // This should not happen.
-      Debug.debugException(le);
-    }
-  }
-
-
-
-  /**
-   * Creates a changelog entry from the information in the provided delete
-   * request and adds it to the server changelog.
+   * @param  dn     The DN to rebase.
+   * @param  oldDN  The DN of the renamed entry before the change.
+   * @param  newDN  The DN of the renamed entry after the change.
    *
-   * @param  e        The entry to be deleted.
-   * @param  authzDN  The authorization DN for the change.
+   * @return  The rebased DN, or the provided DN if it is not at or below the
+   *          old DN.
    */
-  private void addDeleteChangeLogEntry(final Entry e, final DN authzDN)
+  private static DN rebaseDN(final DN dn, final DN oldDN, final DN newDN)
   {
-    // If the changelog is disabled, then don't do anything.
-    if (maxChangelogEntries <= 0)
+    if (! dn.isDescendantOf(oldDN, true))
     {
-      return;
+      return dn;
     }
 
-    final long changeNumber = lastChangeNumber.incrementAndGet();
-    final LDIFDeleteChangeRecord changeRecord =
-         new LDIFDeleteChangeRecord(e.getDN());
+    final RDN[] rdns = dn.getRDNs();
+    final RDN[] oldRDNs = oldDN.getRDNs();
+    final RDN[] newRDNs = newDN.getRDNs();
+    final int compsToSave = rdns.length - oldRDNs.length;
 
-    // Create the changelog entry.
-    try
-    {
-      final ChangeLogEntry cle = ChangeLogEntry.constructChangeLogEntry(
-           changeNumber, changeRecord);
+    final RDN[] rebasedRDNs = new RDN[compsToSave + newRDNs.length];
+    System.arraycopy(rdns, 0, rebasedRDNs, 0, compsToSave);
+    System.arraycopy(newRDNs, 0, rebasedRDNs, compsToSave, newRDNs.length);
+    return new DN(rebasedRDNs);
+  }
 
-      // Add a set of deleted entry attributes, which is simply an LDIF-encoded
-      // representation of the entry, excluding the first line since it contains
-      // the DN.
-      final StringBuilder deletedEntryAttrsBuffer = new StringBuilder();
-      final String[] ldifLines = e.toLDIF(0);
-      for (int i=1; i < ldifLines.length; i++)
-      {
-        deletedEntryAttrsBuffer.append(ldifLines[i]);
-        deletedEntryAttrsBuffer.append(StaticUtils.EOL);
-      }
 
-      final Entry copy = cle.duplicate();
-      copy.addAttribute(ChangeLogEntry.ATTR_DELETED_ENTRY_ATTRS,
-           deletedEntryAttrsBuffer.toString());
-      addChangeLogEntry(new ChangeLogEntry(copy), authzDN);
-    }
-    catch (final LDAPException le)
+
+  /**
+   * Creates a content synchronization cookie that identifies the specified
+   * change.  The cookie is the content synchronization generation followed by
+   * a colon and the string representation of the change number, but clients
+   * must treat it as opaque.
+   *
+   * @param  generation    The content synchronization generation in which
+   *                       the change was made.
+   * @param  changeNumber  The number of the last change reflected in the
+   *                       client's copy of the search results.
+   *
+   * @return  The cookie, or {@code null} if the change number is negative
+   *          because there is no changelog.
+   */
+  static ASN1OctetString createContentSyncCookie(final String generation,
+                                                 final long changeNumber)
+  {
+    if (changeNumber < 0L)
     {
-      // This should never happen.
-      Debug.debugException(le);
+      return null;
     }
+
+    return new ASN1OctetString(generation + ':' + changeNumber);
   }
 
 
 
   /**
-   * Creates a changelog entry from the information in the provided modify
-   * request and adds it to the server changelog.
+   * Decodes the provided content synchronization cookie to obtain the number
+   * of the last change reflected in the client's copy of the search results.
    *
-   * @param  modifyRequest  The modify request to use to construct the changelog
-   *                        entry.
-   * @param  authzDN        The authorization DN for the change.
+   * @param  cookie      The cookie to decode.
+   * @param  generation  The current content synchronization generation.
+   *
+   * @return  The decoded change number, or -1 if the cookie is not valid or
+   *          was issued in a different content synchronization generation.
    */
-  private void addChangeLogEntry(final ModifyRequestProtocolOp modifyRequest,
-                                 final DN authzDN)
+  private static long decodeContentSyncCookie(final ASN1OctetString cookie,
+                                              final String generation)
   {
-    // If the changelog is disabled, then don't do anything.
-    if (maxChangelogEntries <= 0)
+    final String cookieString = cookie.stringValue();
+    final int colonPos = cookieString.lastIndexOf(':');
+    if ((colonPos < 0) ||
+        (! cookieString.substring(0, colonPos).equals(generation)))
     {
-      return;
+      return -1L;
     }
 
-    final long changeNumber = lastChangeNumber.incrementAndGet();
-    final LDIFModifyChangeRecord changeRecord =
-         new LDIFModifyChangeRecord(modifyRequest.getDN(),
-              modifyRequest.getModifications());
     try
     {
-      addChangeLogEntry(
-           ChangeLogEntry.constructChangeLogEntry(changeNumber, changeRecord),
-           authzDN);
+      return Math.max(-1L,
+           Long.parseLong(cookieString.substring(colonPos+1)));
     }
-    catch (final LDAPException le)
+    catch (final NumberFormatException nfe)
     {
-      // This should not happen.
-      Debug.debugException(le);
+      Debug.debugException(nfe);
+      return -1L;
     }
   }
 
 
 
   /**
-   * Creates a changelog entry from the information in the provided modify DN
-   * request and adds it to the server changelog.
+   * Retrieves the UUID that identifies the provided entry to content
+   * synchronization clients.  This will be the value of its entryUUID
+   * attribute if it has one, or otherwise a name-based UUID generated from its
+   * normalized DN.
    *
-   * @param  modifyDNRequest  The modify DN request to use to construct the
-   *                          changelog entry.
-   * @param  authzDN          The authorization DN for the change.
+   * @param  entry  The entry for which to retrieve the UUID.
+   *
+   * @return  The UUID that identifies the provided entry.
    */
-  private void addChangeLogEntry(
-                    final ModifyDNRequestProtocolOp modifyDNRequest,
-                    final DN authzDN)
+  static UUID getEntryUUID(final Entry entry)
   {
-    // If the changelog is disabled, then don't do anything.
-    if (maxChangelogEntries <= 0)
+    final String uuidString = entry.getAttributeValue("entryUUID");
+    if (uuidString != null)
     {
-      return;
+      try
+      {
+        return UUID.fromString(uuidString);
+      }
+      catch (final IllegalArgumentException iae)
+      {
+        Debug.debugException(iae);
+      }
     }
 
-    final long changeNumber = lastChangeNumber.incrementAndGet();
-    final LDIFModifyDNChangeRecord changeRecord =
-         new LDIFModifyDNChangeRecord(modifyDNRequest.getDN(),
-              modifyDNRequest.getNewRDN(), modifyDNRequest.deleteOldRDN(),
-              modifyDNRequest.getNewSuperiorDN());
+    String normalizedDN;
     try
     {
-      addChangeLogEntry(
-           ChangeLogEntry.constructChangeLogEntry(changeNumber, changeRecord),
-           authzDN);
+      normalizedDN = entry.getParsedDN().toNormalizedString();
     }
     catch (final LDAPException le)
     {
-      // This should not happen.
       Debug.debugException(le);
+      normalizedDN = StaticUtils.toLowerCase(entry.getDN());
     }
+    return UUID.nameUUIDFromBytes(StaticUtils.getBytes(normalizedDN));
   }
 
 
 
   /**
-   * Adds the provided changelog entry to the data set, removing an old entry if
-   * necessary to remain within the maximum allowed number of changes.  This
-   * must only be called from a synchronized method, and the change number for
-   * the changelog entry must have been obtained by calling
-   * {@code lastChangeNumber.incrementAndGet()}.
+   * Retrieves the entry with the specified DN from the entry map or, if it is
+   * a changelog entry, from the changelog.  This will not consider the root
+   * DSE or the subschema subentry.
    *
-   * @param  e        The changelog entry to add to the data set.
-   * @param  authzDN  The authorization DN for the change.
+   * @param  dn  The DN of the entry to retrieve.
+   *
+   * @return  The requested entry, or {@code null} if no such entry exists.
    */
-  private void addChangeLogEntry(final ChangeLogEntry e, final DN authzDN)
+  private ReadOnlyEntry getStoredEntry(final DN dn)
   {
-    // Construct the DN object to use for the entry and put it in the map.
-    final long changeNumber = e.getChangeNumber();
-    final Schema schema = schemaRef.get();
-    final DN dn = new DN(
-         new RDN("changeNumber", String.valueOf(changeNumber), schema),
-         changeLogBaseDN);
-
-    final Entry entry = e.duplicate();
-    if (generateOperationalAttributes)
+    final ReadOnlyEntry e = entryMap.get(dn);
+    if ((e == null) && (changeLog != null))
     {
-      final Date d = new Date();
-      entry.addAttribute(new Attribute("entryDN",
-           DistinguishedNameMatchingRule.getInstance(),
-           dn.toNormalizedString()));
-      entry.addAttribute(new Attribute("entryUUID",
-           UUID.randomUUID().toString()));
-      entry.addAttribute(new Attribute("subschemaSubentry",
-           DistinguishedNameMatchingRule.getInstance(),
-           subschemaSubentryDN.toString()));
-      entry.addAttribute(new Attribute("creatorsName",
-           DistinguishedNameMatchingRule.getInstance(),
-           authzDN.toString()));
-      entry.addAttribute(new Attribute("createTimestamp",
-           GeneralizedTimeMatchingRule.getInstance(),
-           StaticUtils.encodeGeneralizedTime(d)));
-      entry.addAttribute(new Attribute("modifiersName",
-           DistinguishedNameMatchingRule.getInstance(),
-           authzDN.toString()));
-      entry.addAttribute(new Attribute("modifyTimestamp",
-           GeneralizedTimeMatchingRule.getInstance(),
-           StaticUtils.encodeGeneralizedTime(d)));
+      return changeLog.getEntry(dn);
+    }
+    else
+    {
+      return e;
     }
+  }
+
 
-    entryMap.put(dn, new ReadOnlyEntry(entry));
-    indexAdd(entry);
 
-    // Update the first change number and/or trim the changelog if necessary.
-    final long firstNumber = firstChangeNumber.get();
-    if (changeNumber == 1L)
+  /**
+   * Retrieves an iterator over the candidate entries for a search based at or
+   * below the changelog base entry.  Changelog entries are not held in the
+   * entry map, so they will be obtained directly from the changelog, limited
+   * to any range of change numbers targeted by the filter.  The caller is
+   * responsible for checking whether each candidate is within the scope of the
+   * search and matches the filter.
+   *
+   * @param  baseDN  The base DN for the search.  It must be at or below the
+   *                 changelog base DN, and the changelog must be enabled.
+   * @param  scope   The scope for the search.
+   * @param  filter  The filter for the search.
+   *
+   * @return  An iterator over the candidate entries.
+   */
+  private Iterator<ReadOnlyEntry> getChangeLogCandidates(final DN baseDN,
+               final SearchScope scope, final Filter filter)
+  {
+    final ReadOnlyEntry changeLogBaseEntry;
+    if ((scope == SearchScope.SUB) && baseDN.equals(changeLogBaseDN))
     {
-      // It's the first change, so we need to set the first change number.
-      firstChangeNumber.set(1);
+      changeLogBaseEntry = entryMap.get(changeLogBaseDN);
     }
     else
     {
-      // See if we need to trim an entry.
-      final long numChangeLogEntries = changeNumber - firstNumber + 1;
-      if (numChangeLogEntries > maxChangelogEntries)
-      {
-        // We need to delete the first changelog entry and increment the
-        // first change number.
-        firstChangeNumber.incrementAndGet();
-        final Entry deletedEntry = entryMap.remove(new DN(
-             new RDN("changeNumber", String.valueOf(firstNumber), schema),
-             changeLogBaseDN));
-        indexDelete(deletedEntry);
-      }
+      changeLogBaseEntry = null;
     }
+
+    return changeLog.getCandidateEntries(changeLogBaseEntry, filter);
   }
 
 
@@ -5264,7 +8234,8 @@ findEntriesAndRefs:
   public DN getDNForAuthzID(final String authzID)
          throws LDAPException
   {
-    synchronized (entryMap)
+    entryMap.beginRead();
+    try
     {
       final String lowerAuthzID = StaticUtils.toLowerCase(authzID);
       if (lowerAuthzID.startsWith("dn:"))
@@ -5309,6 +8280,10 @@ findEntriesAndRefs:
              ERR_MEM_HANDLER_NO_SUCH_IDENTITY.get(authzID));
       }
     }
+    finally
+    {
+      entryMap.endRead();
+    }
   }
 
 
@@ -5566,7 +8541,8 @@ findEntriesAndRefs:
   public boolean entryExists(final String dn, final String filter)
          throws LDAPException
   {
-    synchronized (entryMap)
+    entryMap.beginRead();
+    try
     {
       final Entry e = getEntry(dn);
       if (e == null)
@@ -5585,6 +8561,10 @@ findEntriesAndRefs:
         return false;
       }
     }
+    finally
+    {
+      entryMap.endRead();
+    }
   }
 
 
@@ -5606,7 +8586,8 @@ findEntriesAndRefs:
   public boolean entryExists(final Entry entry)
          throws LDAPException
   {
-    synchronized (entryMap)
+    entryMap.beginRead();
+    try
     {
       final Entry e = getEntry(entry.getDN());
       if (e == null)
@@ -5627,6 +8608,10 @@ findEntriesAndRefs:
 
       return true;
     }
+    finally
+    {
+      entryMap.endRead();
+    }
   }
 
 
@@ -5668,7 +8653,8 @@ findEntriesAndRefs:
   public void assertEntryExists(final String dn, final String filter)
          throws LDAPException, AssertionError
   {
-    synchronized (entryMap)
+    entryMap.beginRead();
+    try
     {
       final Entry e = getEntry(dn);
       if (e == null)
@@ -5693,6 +8679,10 @@ findEntriesAndRefs:
              ERR_MEM_HANDLER_TEST_ENTRY_DOES_NOT_MATCH_FILTER.get(dn, filter));
       }
     }
+    finally
+    {
+      entryMap.endRead();
+    }
   }
 
 
@@ -5714,7 +8704,8 @@ findEntriesAndRefs:
   public void assertEntryExists(final Entry entry)
          throws LDAPException, AssertionError
   {
-    synchronized (entryMap)
+    entryMap.beginRead();
+    try
     {
       final Entry e = getEntry(entry.getDN());
       if (e == null)
@@ -5755,6 +8746,10 @@ findEntriesAndRefs:
         throw new AssertionError(StaticUtils.concatenateStrings(messages));
       }
     }
+    finally
+    {
+      entryMap.endRead();
+    }
   }
 
 
@@ -5774,7 +8769,8 @@ findEntriesAndRefs:
   public List<String> getMissingEntryDNs(final Collection<String> dns)
          throws LDAPException
   {
-    synchronized (entryMap)
+    entryMap.beginRead();
+    try
     {
       final List<String> missingDNs = new ArrayList<String>(dns.size());
       for (final String dn : dns)
@@ -5788,6 +8784,10 @@ findEntriesAndRefs:
 
       return missingDNs;
     }
+    finally
+    {
+      entryMap.endRead();
+    }
   }
 
 
@@ -5806,7 +8806,8 @@ findEntriesAndRefs:
   public void assertEntriesExist(final Collection<String> dns)
          throws LDAPException, AssertionError
   {
-    synchronized (entryMap)
+    entryMap.beginRead();
+    try
     {
       final List<String> missingDNs = getMissingEntryDNs(dns);
       if (missingDNs.isEmpty())
@@ -5822,6 +8823,10 @@ findEntriesAndRefs:
 
       throw new AssertionError(StaticUtils.concatenateStrings(messages));
     }
+    finally
+    {
+      entryMap.endRead();
+    }
   }
 
 
@@ -5846,7 +8851,8 @@ findEntriesAndRefs:
                            final Collection<String> attributeNames)
          throws LDAPException
   {
-    synchronized (entryMap)
+    entryMap.beginRead();
+    try
     {
       final Entry e = getEntry(dn);
       if (e == null)
@@ -5868,6 +8874,10 @@ findEntriesAndRefs:
 
       return missingAttrs;
     }
+    finally
+    {
+      entryMap.endRead();
+    }
   }
 
 
@@ -5890,7 +8900,8 @@ findEntriesAndRefs:
                                     final Collection<String> attributeNames)
         throws LDAPException, AssertionError
   {
-    synchronized (entryMap)
+    entryMap.beginRead();
+    try
     {
       final List<String> missingAttrs =
            getMissingAttributeNames(dn, attributeNames);
@@ -5911,6 +8922,10 @@ findEntriesAndRefs:
 
       throw new AssertionError(StaticUtils.concatenateStrings(messages));
     }
+    finally
+    {
+      entryMap.endRead();
+    }
   }
 
 
@@ -5938,7 +8953,8 @@ findEntriesAndRefs:
                            final Collection<String> attributeValues)
        throws LDAPException
   {
-    synchronized (entryMap)
+    entryMap.beginRead();
+    try
     {
       final Entry e = getEntry(dn);
       if (e == null)
@@ -5960,6 +8976,10 @@ findEntriesAndRefs:
 
       return missingValues;
     }
+    finally
+    {
+      entryMap.endRead();
+    }
   }
 
 
@@ -5986,7 +9006,8 @@ findEntriesAndRefs:
                                 final Collection<String> attributeValues)
         throws LDAPException, AssertionError
   {
-    synchronized (entryMap)
+    entryMap.beginRead();
+    try
     {
       final List<String> missingValues =
            getMissingAttributeValues(dn, attributeName, attributeValues);
@@ -6017,6 +9038,10 @@ findEntriesAndRefs:
 
       throw new AssertionError(StaticUtils.concatenateStrings(messages));
     }
+    finally
+    {
+      entryMap.endRead();
+    }
   }
 
 
@@ -6061,7 +9086,8 @@ findEntriesAndRefs:
                                      final Collection<String> attributeNames)
          throws LDAPException, AssertionError
   {
-    synchronized (entryMap)
+    entryMap.beginRead();
+    try
     {
       final Entry e = getEntry(dn);
       if (e == null)
@@ -6086,6 +9112,10 @@ findEntriesAndRefs:
         throw new AssertionError(StaticUtils.concatenateStrings(messages));
       }
     }
+    finally
+    {
+      entryMap.endRead();
+    }
   }
 
 
@@ -6110,7 +9140,8 @@ findEntriesAndRefs:
                                  final Collection<String> attributeValues)
          throws LDAPException, AssertionError
   {
-    synchronized (entryMap)
+    entryMap.beginRead();
+    try
     {
       final Entry e = getEntry(dn);
       if (e == null)
@@ -6136,5 +9167,161 @@ findEntriesAndRefs:
         throw new AssertionError(StaticUtils.concatenateStrings(messages));
       }
     }
+    finally
+    {
+      entryMap.endRead();
+    }
+  }
+
+
+
+  /**
+   * This class provides an LDIF reader entry translator that is used by the
+   * {@link #bulkImportFromLDIF} method to perform as much of the processing
+   * for each entry as possible in the LDIF reader's parse threads.  It
+   * performs the same validation and preparation that would be performed for
+   * an add operation processed with the internal operation control, aside
+   * from the checks that depend on the other entries held in the server.  The
+   * entries that it returns will be {@code ReadOnlyEntry} objects whose
+   * attributes already have their normalized values available.
+   */
+  private final class BulkImportEntryTranslator
+          implements LDIFReaderEntryTranslator
+  {
+    // The authorization DN to use for generated operational attributes.
+    private final DN authzDN;
+
+    // The entry validator to use to validate entries, if any.
+    private final EntryValidator entryValidator;
+
+    // The schema to use for entries, if any.
+    private final Schema schema;
+
+
+
+    /**
+     * Creates a new bulk import entry translator.
+     *
+     * @param  authzDN  The authorization DN to use for generated operational
+     *                  attributes.
+     */
+    private BulkImportEntryTranslator(final DN authzDN)
+    {
+      this.authzDN = authzDN;
+
+      entryValidator = entryValidatorRef.get();
+      schema         = schemaRef.get();
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Entry translate(final Entry original, final long firstLineNumber)
+           throws LDIFException
+    {
+      try
+      {
+        return prepareEntry(original);
+      }
+      catch (final LDAPException le)
+      {
+        Debug.debugException(le);
+        throw new LDIFException(le.getMessage(), firstLineNumber, false, le);
+      }
+    }
+
+
+
+    /**
+     * Creates the entry that should be added to the server from the provided
+     * entry read from LDIF.
+     *
+     * @param  original  The entry read from LDIF.
+     *
+     * @return  The entry that should be added to the server.
+     *
+     * @throws  LDAPException  If the entry is not acceptable for the server.
+     */
+    private ReadOnlyEntry prepareEntry(final Entry original)
+            throws LDAPException
+    {
+      final Entry entry =
+           createEntryForAdd(original.getDN(), original.getAttributes(),
+                schema);
+
+      // Make sure that the DN is valid.
+      final DN dn;
+      try
+      {
+        dn = entry.getParsedDN();
+      }
+      catch (final LDAPException le)
+      {
+        Debug.debugException(le);
+        throw new LDAPException(ResultCode.INVALID_DN_SYNTAX,
+             ERR_MEM_HANDLER_ADD_MALFORMED_DN.get(original.getDN(),
+                  le.getMessage()),
+             le);
+      }
+
+      // See if the DN is the null DN, the schema entry DN, or a changelog
+      // entry.
+      if (dn.isNullDN())
+      {
+        throw new LDAPException(ResultCode.ENTRY_ALREADY_EXISTS,
+             ERR_MEM_HANDLER_ADD_ROOT_DSE.get());
+      }
+      else if (dn.isDescendantOf(subschemaSubentryDN, true))
+      {
+        throw new LDAPException(ResultCode.ENTRY_ALREADY_EXISTS,
+             ERR_MEM_HANDLER_ADD_SCHEMA.get(subschemaSubentryDN.toString()));
+      }
+      else if (dn.isDescendantOf(changeLogBaseDN, true))
+      {
+        throw new LDAPException(ResultCode.UNWILLING_TO_PERFORM,
+             ERR_MEM_HANDLER_ADD_CHANGELOG.get(changeLogBaseDN.toString()));
+      }
+
+      addRDNValuesAndSuperiorClasses(entry, dn, schema);
+
+      // If a schema was provided, then make sure the entry complies with it.
+      if (entryValidator != null)
+      {
+        final ArrayList<String> invalidReasons = new ArrayList<String>(1);
+        if (! entryValidator.entryIsValid(entry, invalidReasons))
+        {
+          throw new LDAPException(ResultCode.OBJECT_CLASS_VIOLATION,
+               ERR_MEM_HANDLER_ADD_VIOLATES_SCHEMA.get(original.getDN(),
+                    StaticUtils.concatenateStrings(invalidReasons)));
+        }
+      }
+
+      if (generateOperationalAttributes)
+      {
+        addGeneratedOperationalAttributes(entry, dn, authzDN);
+      }
+
+      // Normalize the RDNs and attribute values now so that it will not need
+      // to be done by the thread adding the entry to the server.  The parsed
+      // DN is provided to the new entry so that it will not be parsed again.
+      for (final RDN rdn : dn.getRDNs())
+      {
+        rdn.toNormalizedString();
+      }
+
+      final ReadOnlyEntry readOnlyEntry =
+           new ReadOnlyEntry(dn, schema, entry.getAttributes());
+      for (final Attribute a : readOnlyEntry.getAttributes())
+      {
+        a.getNormalizedValues();
+      }
+
+      return readOnlyEntry;
+    }
   }
+
+
+
 }
@@ -0,0 +1,1102 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.schema.AttributeTypeDefinition;
+import com.unboundid.ldap.sdk.schema.Schema;
+import com.unboundid.util.Debug;
+import com.unboundid.util.DebugType;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a mechanism for deciding how the in-memory directory
+ * server should use its indexes to process a search filter.  It estimates the
+ * number of entries that will match each indexed filter component using
+ * statistics obtained from the indexes (e.g., the sizes of the sets of entry
+ * IDs and the number of distinct keys that may match), and uses those
+ * estimates to:
+ * <UL>
+ *   <LI>Decide whether it is better to use the indexes or to simply examine
+ *       every entry in the scope of the search.</LI>
+ *   <LI>Process the components of an AND filter in order of increasing
+ *       estimated size.</LI>
+ *   <LI>Stop intersecting the results of AND components once the set of
+ *       candidate entries is small enough that it is cheaper to evaluate the
+ *       remaining components against the entries themselves.</LI>
+ *   <LI>Obtain candidates incrementally, rather than building the complete
+ *       candidate set, for searches that will stop once a limited number of
+ *       matching entries have been found.</LI>
+ * </UL>
+ * If debugging is enabled for the {@link DebugType#LDAP} debug type, then a
+ * description of the plan selected for each search will be written to the
+ * debug logger.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+final class InMemorySearchPlanner
+{
+  /**
+   * The candidate set size at or below which no further AND components will be
+   * processed using indexes.
+   */
+  static final int INTERSECTION_THRESHOLD = 16;
+
+
+
+  /**
+   * The maximum percentage of the entries in the scope of a search that an
+   * index-based candidate list may be estimated to contain.  If the estimate is
+   * larger than this, then every entry in scope will be examined instead.
+   */
+  static final int MAX_CANDIDATE_PERCENT = 50;
+
+
+
+  // The reference to the schema for the server.
+  private final AtomicReference<Schema> schemaRef;
+
+  // The data store with the entries and index data.
+  private final InMemoryDirectoryServerDataStore entryMap;
+
+  // The equality indexes defined for the server.
+  private final Map<AttributeTypeDefinition,
+     InMemoryDirectoryServerEqualityAttributeIndex> equalityIndexes;
+
+  // The substring indexes defined for the server.
+  private final Map<AttributeTypeDefinition,
+     InMemoryDirectoryServerSubstringAttributeIndex> substringIndexes;
+
+  // The ordering indexes defined for the server.
+  private final Map<AttributeTypeDefinition,
+     InMemoryDirectoryServerOrderingAttributeIndex> orderingIndexes;
+
+  // The presence indexes defined for the server.
+  private final Map<AttributeTypeDefinition,
+     InMemoryDirectoryServerPresenceAttributeIndex> presenceIndexes;
+
+
+
+  /**
+   * Creates a new search planner with the provided information.
+   *
+   * @param  entryMap          The data store with the entries and index data.
+   * @param  schemaRef         The reference to the schema for the server.
+   * @param  equalityIndexes   The equality indexes defined for the server.
+   * @param  substringIndexes  The substring indexes defined for the server.
+   * @param  orderingIndexes   The ordering indexes defined for the server.
+   * @param  presenceIndexes   The presence indexes defined for the server.
+   */
+  InMemorySearchPlanner(final InMemoryDirectoryServerDataStore entryMap,
+       final AtomicReference<Schema> schemaRef,
+       final Map<AttributeTypeDefinition,
+            InMemoryDirectoryServerEqualityAttributeIndex> equalityIndexes,
+       final Map<AttributeTypeDefinition,
+            InMemoryDirectoryServerSubstringAttributeIndex> substringIndexes,
+       final Map<AttributeTypeDefinition,
+            InMemoryDirectoryServerOrderingAttributeIndex> orderingIndexes,
+       final Map<AttributeTypeDefinition,
+            InMemoryDirectoryServerPresenceAttributeIndex> presenceIndexes)
+  {
+    this.entryMap         = entryMap;
+    this.schemaRef        = schemaRef;
+    this.equalityIndexes  = equalityIndexes;
+    this.substringIndexes = substringIndexes;
+    this.orderingIndexes  = orderingIndexes;
+    this.presenceIndexes  = presenceIndexes;
+  }
+
+
+
+  /**
+   * Attempts to use indexes to obtain a candidate list for a search with the
+   * provided filter, base DN, and scope.  The candidate list may include
+   * entries that do not match the filter or are not within the scope of the
+   * search, so each candidate must still be checked against them.
+   * <BR><BR>
+   * If processing for the search will stop once a given number of matching
+   * entries have been found (e.g., because of a size limit), and that is fewer
+   * than the estimated number of candidates, then the candidates will be
+   * obtained from the indexes as they are needed, so that the cost of the
+   * search does not depend on the total number of candidates.
+   *
+   * @param  filter       The filter for the search.
+   * @param  baseDN       The base DN for the search.
+   * @param  scope        The scope for the search.  It should be one of
+   *                      {@code ONE}, {@code SUB}, or
+   *                      {@code SUBORDINATE_SUBTREE}.
+   * @param  resultLimit  The number of matching entries after which processing
+   *                      for the search will stop, or
+   *                      {@code Integer.MAX_VALUE} if all matching entries are
+   *                      needed.
+   *
+   * @return  An iterator over the IDs of the entries that may match the
+   *          search, or {@code null} if every entry within the scope of the
+   *          search should be examined instead.
+   */
+  Iterator<Integer> getCandidates(final Filter filter, final DN baseDN,
+                                  final SearchScope scope,
+                                  final int resultLimit)
+  {
+    final StringBuilder plan;
+    if (Debug.debugEnabled(DebugType.LDAP))
+    {
+      plan = new StringBuilder();
+      plan.append("Search plan for filter ");
+      filter.toString(plan);
+      plan.append(" with base DN '");
+      plan.append(baseDN);
+      plan.append("' and scope ");
+      plan.append(scope.getName());
+      plan.append(':');
+    }
+    else
+    {
+      plan = null;
+    }
+
+    final long estimate = estimate(filter);
+    if (estimate < 0L)
+    {
+      if (plan != null)
+      {
+        plan.append(" full scan because the filter is not indexed.");
+        Debug.debug(Level.INFO, DebugType.LDAP, plan.toString());
+      }
+      return null;
+    }
+
+    // Determining the exact number of entries in a subtree would require
+    // iterating through it, so use the total number of entries as an upper
+    // bound for anything other than a single-level search.
+    final long scopeSize;
+    if (scope == SearchScope.ONE)
+    {
+      scopeSize = entryMap.getChildren(baseDN).size();
+    }
+    else
+    {
+      scopeSize = entryMap.size();
+    }
+
+    if ((estimate > INTERSECTION_THRESHOLD) &&
+        ((estimate * 100L) > (scopeSize * MAX_CANDIDATE_PERCENT)))
+    {
+      if (plan != null)
+      {
+        plan.append(" full scan of up to ");
+        plan.append(scopeSize);
+        plan.append(" entries because the index estimate of ");
+        plan.append(estimate);
+        plan.append(" candidates is too large.");
+        Debug.debug(Level.INFO, DebugType.LDAP, plan.toString());
+      }
+      return null;
+    }
+
+    if (resultLimit < estimate)
+    {
+      if (plan != null)
+      {
+        plan.append(" incremental index scan stopping after ");
+        plan.append(resultLimit);
+        plan.append(" matches with an estimate of ");
+        plan.append(estimate);
+        plan.append(" candidates:");
+      }
+
+      final Iterator<Integer> iterator = evaluateIncrementally(filter, plan);
+      if (plan != null)
+      {
+        if (iterator == null)
+        {
+          plan.append(" falling back to a full scan.");
+        }
+        Debug.debug(Level.INFO, DebugType.LDAP, plan.toString());
+      }
+
+      return iterator;
+    }
+
+    if (plan != null)
+    {
+      plan.append(" index scan with an estimate of ");
+      plan.append(estimate);
+      plan.append(" candidates:");
+    }
+
+    final EntryIDSet candidates = evaluate(filter, plan);
+    if (plan != null)
+    {
+      if (candidates == null)
+      {
+        plan.append(" falling back to a full scan.");
+      }
+      else
+      {
+        plan.append(" produced ");
+        plan.append(candidates.size());
+        plan.append(" candidates.");
+      }
+      Debug.debug(Level.INFO, DebugType.LDAP, plan.toString());
+    }
+
+    if (candidates == null)
+    {
+      return null;
+    }
+    else
+    {
+      return candidates.iterator();
+    }
+  }
+
+
+
+  /**
+   * Estimates the number of entries that the indexes would identify as
+   * candidates for the provided filter.
+   *
+   * @param  filter  The filter for which to make the estimate.
+   *
+   * @return  The estimated number of candidate entries, or -1 if the indexes
+   *          cannot be used to narrow down the set of entries that may match
+   *          the filter.
+   */
+  private long estimate(final Filter filter)
+  {
+    switch (filter.getFilterType())
+    {
+      case Filter.FILTER_TYPE_AND:
+        long andEstimate = -1L;
+        for (final Filter f : filter.getComponents())
+        {
+          final long e = estimate(f);
+          if ((e >= 0L) && ((andEstimate < 0L) || (e < andEstimate)))
+          {
+            andEstimate = e;
+          }
+        }
+        return andEstimate;
+
+      case Filter.FILTER_TYPE_OR:
+        long orEstimate = 0L;
+        for (final Filter f : filter.getComponents())
+        {
+          final long e = estimate(f);
+          if (e < 0L)
+          {
+            return -1L;
+          }
+          orEstimate += e;
+        }
+        return orEstimate;
+
+      case Filter.FILTER_TYPE_EQUALITY:
+        final InMemoryDirectoryServerEqualityAttributeIndex eqIndex =
+             getIndex(equalityIndexes, filter);
+        if (eqIndex == null)
+        {
+          return -1L;
+        }
+        try
+        {
+          return eqIndex.estimateMatchingEntries(filter.getRawAssertionValue());
+        }
+        catch (final Exception e)
+        {
+          Debug.debugException(e);
+          return -1L;
+        }
+
+      case Filter.FILTER_TYPE_SUBSTRING:
+        final InMemoryDirectoryServerSubstringAttributeIndex subIndex =
+             getIndex(substringIndexes, filter);
+        if (subIndex == null)
+        {
+          return -1L;
+        }
+        try
+        {
+          return subIndex.estimateCandidateEntries(
+               filter.getRawSubInitialValue(), filter.getRawSubAnyValues(),
+               filter.getRawSubFinalValue());
+        }
+        catch (final Exception e)
+        {
+          Debug.debugException(e);
+          return -1L;
+        }
+
+      case Filter.FILTER_TYPE_GREATER_OR_EQUAL:
+      case Filter.FILTER_TYPE_LESS_OR_EQUAL:
+        final InMemoryDirectoryServerOrderingAttributeIndex ordIndex =
+             getIndex(orderingIndexes, filter);
+        if (ordIndex == null)
+        {
+          return -1L;
+        }
+        try
+        {
+          if (filter.getFilterType() == Filter.FILTER_TYPE_GREATER_OR_EQUAL)
+          {
+            return ordIndex.estimateGreaterOrEqual(
+                 filter.getRawAssertionValue());
+          }
+          else
+          {
+            return ordIndex.estimateLessOrEqual(filter.getRawAssertionValue());
+          }
+        }
+        catch (final Exception e)
+        {
+          Debug.debugException(e);
+          return -1L;
+        }
+
+      case Filter.FILTER_TYPE_PRESENCE:
+        final InMemoryDirectoryServerPresenceAttributeIndex presIndex =
+             getIndex(presenceIndexes, filter);
+        if (presIndex == null)
+        {
+          return -1L;
+        }
+        return presIndex.estimateMatchingEntries();
+
+      default:
+        return -1L;
+    }
+  }
+
+
+
+  /**
+   * Uses the indexes to obtain the IDs of the entries that may match the
+   * provided filter.
+   *
+   * @param  filter  The filter to be processed.
+   * @param  plan    The buffer to which a description of the processing should
+   *                 be appended, or {@code null} if no description is needed.
+   *
+   * @return  The IDs of the entries that may match the given filter, or
+   *          {@code null} if the filter is not indexed.
+   */
+  private EntryIDSet evaluate(final Filter filter, final StringBuilder plan)
+  {
+    switch (filter.getFilterType())
+    {
+      case Filter.FILTER_TYPE_AND:
+        return evaluateAND(filter.getComponents(), plan);
+
+      case Filter.FILTER_TYPE_OR:
+        final Filter[] orComps = filter.getComponents();
+        if (orComps.length == 1)
+        {
+          return evaluate(orComps[0], plan);
+        }
+
+        for (final Filter f : orComps)
+        {
+          if (estimate(f) < 0L)
+          {
+            return null;
+          }
+        }
+
+        if (plan != null)
+        {
+          plan.append(" union of {");
+        }
+        final ArrayList<EntryIDSet> idSets =
+             new ArrayList<EntryIDSet>(orComps.length);
+        for (final Filter f : orComps)
+        {
+          final EntryIDSet idSet = evaluate(f, plan);
+          if (idSet == null)
+          {
+            return null;
+          }
+          idSets.add(idSet);
+        }
+        if (plan != null)
+        {
+          plan.append(" }");
+        }
+        return EntryIDSet.union(idSets);
+
+      case Filter.FILTER_TYPE_EQUALITY:
+        final InMemoryDirectoryServerEqualityAttributeIndex eqIndex =
+             getIndex(equalityIndexes, filter);
+        if (eqIndex == null)
+        {
+          return null;
+        }
+        try
+        {
+          return appendStep(plan, filter,
+               eqIndex.getMatchingEntries(filter.getRawAssertionValue()));
+        }
+        catch (final Exception e)
+        {
+          Debug.debugException(e);
+          return null;
+        }
+
+      case Filter.FILTER_TYPE_SUBSTRING:
+        final InMemoryDirectoryServerSubstringAttributeIndex subIndex =
+             getIndex(substringIndexes, filter);
+        if (subIndex == null)
+        {
+          return null;
+        }
+        try
+        {
+          return appendStep(plan, filter, subIndex.getCandidateEntries(
+               filter.getRawSubInitialValue(), filter.getRawSubAnyValues(),
+               filter.getRawSubFinalValue()));
+        }
+        catch (final Exception e)
+        {
+          Debug.debugException(e);
+          return null;
+        }
+
+      case Filter.FILTER_TYPE_GREATER_OR_EQUAL:
+      case Filter.FILTER_TYPE_LESS_OR_EQUAL:
+        final InMemoryDirectoryServerOrderingAttributeIndex ordIndex =
+             getIndex(orderingIndexes, filter);
+        if (ordIndex == null)
+        {
+          return null;
+        }
+        try
+        {
+          if (filter.getFilterType() == Filter.FILTER_TYPE_GREATER_OR_EQUAL)
+          {
+            return appendStep(plan, filter, ordIndex.getEntriesGreaterOrEqual(
+                 filter.getRawAssertionValue()));
+          }
+          else
+          {
+            return appendStep(plan, filter, ordIndex.getEntriesLessOrEqual(
+                 filter.getRawAssertionValue()));
+          }
+        }
+        catch (final Exception e)
+        {
+          Debug.debugException(e);
+          return null;
+        }
+
+      case Filter.FILTER_TYPE_PRESENCE:
+        final InMemoryDirectoryServerPresenceAttributeIndex presIndex =
+             getIndex(presenceIndexes, filter);
+        if (presIndex == null)
+        {
+          return null;
+        }
+        return appendStep(plan, filter, presIndex.getMatchingEntries());
+
+      default:
+        return null;
+    }
+  }
+
+
+
+  /**
+   * Uses the indexes to obtain the IDs of the entries that may match an AND
+   * filter with the provided components.  The indexed components will be
+   * processed in order of increasing estimated size, and processing will stop
+   * once the candidate set is small enough.
+   *
+   * @param  comps  The components of the AND filter.
+   * @param  plan   The buffer to which a description of the processing should
+   *                be appended, or {@code null} if no description is needed.
+   *
+   * @return  The IDs of the entries that may match the AND filter, or
+   *          {@code null} if none of its components are indexed.
+   */
+  private EntryIDSet evaluateAND(final Filter[] comps,
+                                 final StringBuilder plan)
+  {
+    final ArrayList<ComponentEstimate> estimates =
+         new ArrayList<ComponentEstimate>(comps.length);
+    for (final Filter f : comps)
+    {
+      final long e = estimate(f);
+      if (e >= 0L)
+      {
+        estimates.add(new ComponentEstimate(f, e));
+      }
+    }
+
+    if (estimates.isEmpty())
+    {
+      return null;
+    }
+
+    final ComponentEstimate[] sorted =
+         estimates.toArray(new ComponentEstimate[estimates.size()]);
+    Arrays.sort(sorted);
+
+    if (plan != null)
+    {
+      plan.append(" intersection of {");
+    }
+
+    EntryIDSet candidateSet = null;
+    for (final ComponentEstimate c : sorted)
+    {
+      if ((candidateSet != null) &&
+          (candidateSet.size() <= INTERSECTION_THRESHOLD))
+      {
+        if (plan != null)
+        {
+          plan.append(" skipped ");
+          c.filter.toString(plan);
+        }
+        continue;
+      }
+
+      final EntryIDSet idSet = evaluate(c.filter, plan);
+      if (idSet != null)
+      {
+        if (candidateSet == null)
+        {
+          candidateSet = idSet;
+        }
+        else
+        {
+          candidateSet = candidateSet.and(idSet);
+        }
+      }
+    }
+
+    if (plan != null)
+    {
+      plan.append(" }");
+    }
+
+    return candidateSet;
+  }
+
+
+
+  /**
+   * Uses the indexes to obtain an iterator over the IDs of the entries that may
+   * match the provided filter, in which the IDs are obtained from the indexes
+   * only as they are needed.
+   *
+   * @param  filter  The filter to be processed.
+   * @param  plan    The buffer to which a description of the processing should
+   *                 be appended, or {@code null} if no description is needed.
+   *
+   * @return  An iterator over the IDs of the entries that may match the given
+   *          filter, or {@code null} if the filter is not indexed.
+   */
+  private Iterator<Integer> evaluateIncrementally(final Filter filter,
+                                                  final StringBuilder plan)
+  {
+    switch (filter.getFilterType())
+    {
+      case Filter.FILTER_TYPE_AND:
+        // Iterate through the candidates for the component with the smallest
+        // estimate, and skip any that are not in the candidate sets of the
+        // equality and presence components, since those sets are held in the
+        // indexes and can be checked without building them.
+        final ArrayList<ComponentEstimate> estimates =
+             new ArrayList<ComponentEstimate>(filter.getComponents().length);
+        for (final Filter f : filter.getComponents())
+        {
+          final long e = estimate(f);
+          if (e >= 0L)
+          {
+            estimates.add(new ComponentEstimate(f, e));
+          }
+        }
+
+        if (estimates.isEmpty())
+        {
+          return null;
+        }
+
+        final ComponentEstimate[] sorted =
+             estimates.toArray(new ComponentEstimate[estimates.size()]);
+        Arrays.sort(sorted);
+
+        if (plan != null)
+        {
+          plan.append(" {");
+        }
+
+        final Iterator<Integer> andIterator =
+             evaluateIncrementally(sorted[0].filter, plan);
+        if (andIterator == null)
+        {
+          return null;
+        }
+
+        final ArrayList<EntryIDSet> requiredSets =
+             new ArrayList<EntryIDSet>(sorted.length - 1);
+        for (int i=1; i < sorted.length; i++)
+        {
+          final byte filterType = sorted[i].filter.getFilterType();
+          if ((filterType == Filter.FILTER_TYPE_EQUALITY) ||
+              (filterType == Filter.FILTER_TYPE_PRESENCE))
+          {
+            if (plan != null)
+            {
+              plan.append(" filtered by");
+            }
+
+            final EntryIDSet idSet = evaluate(sorted[i].filter, plan);
+            if (idSet != null)
+            {
+              requiredSets.add(idSet);
+            }
+          }
+        }
+
+        if (plan != null)
+        {
+          plan.append(" }");
+        }
+
+        if (requiredSets.isEmpty())
+        {
+          return andIterator;
+        }
+        else
+        {
+          return new FilteredIterator(andIterator, requiredSets);
+        }
+
+      case Filter.FILTER_TYPE_OR:
+        final Filter[] orComps = filter.getComponents();
+        for (final Filter f : orComps)
+        {
+          if (estimate(f) < 0L)
+          {
+            return null;
+          }
+        }
+
+        if (plan != null)
+        {
+          plan.append(" union of {");
+        }
+        final ArrayList<Iterator<Integer>> iterators =
+             new ArrayList<Iterator<Integer>>(orComps.length);
+        for (final Filter f : orComps)
+        {
+          final Iterator<Integer> iterator = evaluateIncrementally(f, plan);
+          if (iterator == null)
+          {
+            return null;
+          }
+          iterators.add(iterator);
+        }
+        if (plan != null)
+        {
+          plan.append(" }");
+        }
+        return new ConcatenatedIterator(iterators.iterator(), null);
+
+      case Filter.FILTER_TYPE_GREATER_OR_EQUAL:
+      case Filter.FILTER_TYPE_LESS_OR_EQUAL:
+        final InMemoryDirectoryServerOrderingAttributeIndex ordIndex =
+             getIndex(orderingIndexes, filter);
+        if (ordIndex == null)
+        {
+          return null;
+        }
+
+        if (plan != null)
+        {
+          plan.append(' ');
+          filter.toString(plan);
+        }
+
+        try
+        {
+          if (filter.getFilterType() == Filter.FILTER_TYPE_GREATER_OR_EQUAL)
+          {
+            return new ConcatenatedIterator(null,
+                 ordIndex.iterateGreaterOrEqual(filter.getRawAssertionValue()));
+          }
+          else
+          {
+            return new ConcatenatedIterator(null,
+                 ordIndex.iterateLessOrEqual(filter.getRawAssertionValue()));
+          }
+        }
+        catch (final Exception e)
+        {
+          Debug.debugException(e);
+          return null;
+        }
+
+      default:
+        // The sets of IDs for equality and presence components are held in
+        // the indexes, and substring components require an intersection of
+        // the sets for their keys, so these are obtained in full.
+        final EntryIDSet idSet = evaluate(filter, plan);
+        if (idSet == null)
+        {
+          return null;
+        }
+        else
+        {
+          return idSet.iterator();
+        }
+    }
+  }
+
+
+
+  /**
+   * Retrieves the index of the given type for the attribute targeted by the
+   * provided filter.
+   *
+   * @param  <T>      The type of index to retrieve.
+   * @param  indexes  The map of indexes of the appropriate type.
+   * @param  filter   The filter for which to retrieve the index.
+   *
+   * @return  The index for the attribute targeted by the filter, or
+   *          {@code null} if there is no such index.
+   */
+  private <T> T getIndex(final Map<AttributeTypeDefinition,T> indexes,
+                         final Filter filter)
+  {
+    if (indexes.isEmpty())
+    {
+      return null;
+    }
+
+    final Schema schema = schemaRef.get();
+    if (schema == null)
+    {
+      return null;
+    }
+
+    final AttributeTypeDefinition at =
+         schema.getAttributeType(filter.getAttributeName());
+    if (at == null)
+    {
+      return null;
+    }
+
+    return indexes.get(at);
+  }
+
+
+
+  /**
+   * Appends a description of an index lookup to the provided plan buffer, if
+   * appropriate.
+   *
+   * @param  plan    The buffer to which the description should be appended, or
+   *                 {@code null} if no description is needed.
+   * @param  filter  The filter processed by the index lookup.
+   * @param  idSet   The IDs obtained from the index lookup.
+   *
+   * @return  The provided set of IDs.
+   */
+  private static EntryIDSet appendStep(final StringBuilder plan,
+                                       final Filter filter,
+                                       final EntryIDSet idSet)
+  {
+    if (plan != null)
+    {
+      plan.append(' ');
+      filter.toString(plan);
+      plan.append('=');
+      plan.append(idSet.size());
+    }
+
+    return idSet;
+  }
+
+
+
+  /**
+   * This class provides a data structure that associates a filter component
+   * with its estimated number of candidate entries, and orders components by
+   * increasing estimate.
+   */
+  private static final class ComponentEstimate
+          implements Comparable<ComponentEstimate>
+  {
+    // The filter component.
+    private final Filter filter;
+
+    // The estimated number of candidate entries.
+    private final long estimate;
+
+
+
+    /**
+     * Creates a new component estimate with the provided information.
+     *
+     * @param  filter    The filter component.
+     * @param  estimate  The estimated number of candidate entries.
+     */
+    private ComponentEstimate(final Filter filter, final long estimate)
+    {
+      this.filter   = filter;
+      this.estimate = estimate;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public int compareTo(final ComponentEstimate e)
+    {
+      if (estimate < e.estimate)
+      {
+        return -1;
+      }
+      else if (estimate > e.estimate)
+      {
+        return 1;
+      }
+      else
+      {
+        return 0;
+      }
+    }
+  }
+
+
+
+  /**
+   * This class provides an iterator that returns the IDs from a sequence of
+   * ID iterators or sets of entry IDs, in turn.  It skips any ID that it has
+   * already returned, but only keeps track of the IDs that it has actually
+   * returned, so that it is inexpensive if only a few IDs are needed.
+   */
+  private static final class ConcatenatedIterator
+          implements Iterator<Integer>
+  {
+    // The IDs that have already been returned.
+    private final HashSet<Integer> returnedIDs;
+
+    // The iterator over the ID iterators to process, if any.
+    private final Iterator<Iterator<Integer>> iterators;
+
+    // The iterator over the sets of IDs to process, if any.
+    private final Iterator<EntryIDSet> idSets;
+
+    // The iterator for the IDs currently being processed.
+    private Iterator<Integer> current;
+
+    // The next ID to return, or null if it has not yet been found.
+    private Integer nextID;
+
+
+
+    /**
+     * Creates a new concatenated iterator with the provided information.
+     * Exactly one of the arguments must be non-{@code null}.
+     *
+     * @param  iterators  The iterator over the ID iterators to process.
+     * @param  idSets     The iterator over the sets of IDs to process.
+     */
+    private ConcatenatedIterator(final Iterator<Iterator<Integer>> iterators,
+                                 final Iterator<EntryIDSet> idSets)
+    {
+      this.iterators = iterators;
+      this.idSets    = idSets;
+
+      returnedIDs = new HashSet<Integer>(16);
+      current     = null;
+      nextID      = null;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean hasNext()
+    {
+      while (nextID == null)
+      {
+        if ((current != null) && current.hasNext())
+        {
+          final Integer id = current.next();
+          if (returnedIDs.add(id))
+          {
+            nextID = id;
+          }
+        }
+        else if ((iterators != null) && iterators.hasNext())
+        {
+          current = iterators.next();
+        }
+        else if ((idSets != null) && idSets.hasNext())
+        {
+          current = idSets.next().iterator();
+        }
+        else
+        {
+          return false;
+        }
+      }
+
+      return true;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Integer next()
+    {
+      if (! hasNext())
+      {
+        throw new NoSuchElementException();
+      }
+
+      final Integer id = nextID;
+      nextID = null;
+      return id;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void remove()
+    {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+
+
+  /**
+   * This class provides an iterator that returns only those IDs from another
+   * iterator that are contained in each of a given set of sets of entry IDs.
+   */
+  private static final class FilteredIterator
+          implements Iterator<Integer>
+  {
+    // The iterator that provides the IDs to examine.
+    private final Iterator<Integer> iterator;
+
+    // The sets that must contain each ID to be returned.
+    private final List<EntryIDSet> requiredSets;
+
+    // The next ID to return, or null if it has not yet been found.
+    private Integer nextID;
+
+
+
+    /**
+     * Creates a new filtered iterator with the provided information.
+     *
+     * @param  iterator      The iterator that provides the IDs to examine.
+     * @param  requiredSets  The sets that must contain each ID to be returned.
+     */
+    private FilteredIterator(final Iterator<Integer> iterator,
+                             final List<EntryIDSet> requiredSets)
+    {
+      this.iterator     = iterator;
+      this.requiredSets = requiredSets;
+
+      nextID = null;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean hasNext()
+    {
+candidateLoop:
+      while ((nextID == null) && iterator.hasNext())
+      {
+        final Integer id = iterator.next();
+        for (final EntryIDSet s : requiredSets)
+        {
+          if (! s.contains(id))
+          {
+            continue candidateLoop;
+          }
+        }
+
+        nextID = id;
+      }
+
+      return (nextID != null);
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Integer next()
+    {
+      if (! hasNext())
+      {
+        throw new NoSuchElementException();
+      }
+
+      final Integer id = nextID;
+      nextID = null;
+      return id;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void remove()
+    {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import java.util.List;
+
+import com.unboundid.ldap.protocol.SearchResultReferenceProtocolOp;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultListener;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.util.Debug;
+import com.unboundid.util.StaticUtils;
+
+
+
+/**
+ * This class provides an implementation of a search result listener that will
+ * be used by the {@link InMemoryRequestHandler} class in the course of
+ * returning entries to the client.  It may either write each entry and
+ * reference to the client connection as soon as it is returned, or it may
+ * collect them in lists for use by internal searches.  If a problem is
+ * encountered while writing to the client connection, then the first exception
+ * will be retained so that the in-memory request handler can stop processing
+ * the search.
+ */
+final class InMemorySearchResultListener
+      implements SearchResultListener
+{
+  /**
+   * The serial version UID for this serializable class.
+   */
+  private static final long serialVersionUID = 3384853870513867924L;
+
+
+
+  // The message ID for the associated search request.
+  private final int messageID;
+
+  // The client connection that will be used to return the results, if they
+  // should be written to the client as they are returned.
+  private final LDAPListenerClientConnection clientConnection;
+
+  // The first exception encountered while trying to return a result to the
+  // client.
+  private LDAPException exception;
+
+  // The list to which search result entries should be added, if they should be
+  // collected rather than written to the client.
+  private final List<SearchResultEntry> entryList;
+
+  // The list to which search result references should be added, if they should
+  // be collected rather than written to the client.
+  private final List<SearchResultReference> referenceList;
+
+
+
+  /**
+   * Creates a new in-memory search result listener that will write each entry
+   * and reference to the provided client connection as soon as it is returned.
+   *
+   * @param  clientConnection  The client connection to which the results will
+   *                           be sent.
+   * @param  messageID         The message ID that will be used for any response
+   *                           messages returned to the client.
+   */
+  InMemorySearchResultListener(
+       final LDAPListenerClientConnection clientConnection,
+       final int messageID)
+  {
+    this.clientConnection = clientConnection;
+    this.messageID        = messageID;
+
+    entryList     = null;
+    referenceList = null;
+    exception     = null;
+  }
+
+
+
+  /**
+   * Creates a new in-memory search result listener that will add each entry
+   * and reference to the appropriate list.
+   *
+   * @param  entryList      The list to which search result entries should be
+   *                        added.  It must not be {@code null}.
+   * @param  referenceList  The list to which search result references should
+   *                        be added.  It must not be {@code null}.
+   */
+  InMemorySearchResultListener(final List<SearchResultEntry> entryList,
+                               final List<SearchResultReference> referenceList)
+  {
+    this.entryList     = entryList;
+    this.referenceList = referenceList;
+
+    clientConnection = null;
+    messageID        = -1;
+    exception        = null;
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  public void searchEntryReturned(final SearchResultEntry searchEntry)
+  {
+    if (exception != null)
+    {
+      return;
+    }
+
+    if (clientConnection == null)
+    {
+      entryList.add(searchEntry);
+      return;
+    }
+
+    try
+    {
+      clientConnection.sendSearchResultEntry(messageID, searchEntry,
+           searchEntry.getControls());
+    }
+    catch (final LDAPException le)
+    {
+      Debug.debugException(le);
+      exception = le;
+    }
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  public void searchReferenceReturned(
+                   final SearchResultReference searchReference)
+  {
+    if (exception != null)
+    {
+      return;
+    }
+
+    if (clientConnection == null)
+    {
+      referenceList.add(searchReference);
+      return;
+    }
+
+    try
+    {
+      clientConnection.sendSearchResultReference(messageID,
+           new SearchResultReferenceProtocolOp(
+                StaticUtils.toList(searchReference.getReferralURLs())),
+           searchReference.getControls());
+    }
+    catch (final LDAPException le)
+    {
+      Debug.debugException(le);
+      exception = le;
+    }
+  }
+
+
+
+  /**
+   * Retrieves the first exception encountered while attempting to return a
+   * search result entry or reference to the client, if any.  Once a problem
+   * has been encountered, no further results will be returned.
+   *
+   * @return  The first exception encountered while attempting to return a
+   *          search result to the client, or {@code null} if no problem has
+   *          been encountered.
+   */
+  LDAPException getException()
+  {
+    return exception;
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.controls.SortKey;
+import com.unboundid.util.NotMutable;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+import com.unboundid.util.Validator;
+
+
+
+/**
+ * This class provides a data structure that can be used to configure a virtual
+ * list view (VLV) index for use in the in-memory directory server.  A VLV index
+ * is defined by a base DN, scope, and filter, which identify the set of entries
+ * that it contains, and a set of sort keys, which identify the order in which
+ * those entries are held.  The server keeps the index up to date as entries
+ * are added, modified, renamed, and deleted, so that a search with exactly the
+ * same base DN, scope, and filter that includes a server-side sort request
+ * control with the same sort keys (and optionally a virtual list view or
+ * simple paged results control) can retrieve the requested portion of the
+ * sorted result set without examining or sorting any other entries.
+ */
+@NotMutable()
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public final class InMemoryVLVIndexConfig
+{
+  // The base DN for the index.
+  private final DN baseDN;
+
+  // The filter for the index.
+  private final Filter filter;
+
+  // The scope for the index.
+  private final SearchScope scope;
+
+  // The sort keys for the index.
+  private final SortKey[] sortKeys;
+
+
+
+  /**
+   * Creates a new VLV index configuration with the provided information.
+   *
+   * @param  baseDN    The base DN for the index.  It must not be {@code null}.
+   * @param  scope     The scope for the index.  It must not be {@code null}.
+   * @param  filter    The filter for the index.  It must not be {@code null}.
+   * @param  sortKeys  The sort keys for the index.  It must not be
+   *                   {@code null} or empty.
+   */
+  public InMemoryVLVIndexConfig(final DN baseDN, final SearchScope scope,
+                                final Filter filter,
+                                final SortKey... sortKeys)
+  {
+    Validator.ensureNotNull(baseDN, scope, filter, sortKeys);
+    Validator.ensureTrue(sortKeys.length > 0,
+         "InMemoryVLVIndexConfig.sortKeys must not be empty.");
+
+    this.baseDN   = baseDN;
+    this.scope    = scope;
+    this.filter   = filter;
+    this.sortKeys = sortKeys;
+  }
+
+
+
+  /**
+   * Creates a new VLV index configuration with the provided information.
+   *
+   * @param  baseDN    The base DN for the index.  It must not be {@code null}.
+   * @param  scope     The scope for the index.  It must not be {@code null}.
+   * @param  filter    The string representation of the filter for the index.
+   *                   It must not be {@code null}.
+   * @param  sortKeys  The sort keys for the index.  It must not be
+   *                   {@code null} or empty.
+   *
+   * @throws  LDAPException  If the provided base DN or filter cannot be
+   *                         parsed.
+   */
+  public InMemoryVLVIndexConfig(final String baseDN, final SearchScope scope,
+                                final String filter,
+                                final SortKey... sortKeys)
+         throws LDAPException
+  {
+    this(new DN(baseDN), scope, Filter.create(filter), sortKeys);
+  }
+
+
+
+  /**
+   * Retrieves the base DN for the index.
+   *
+   * @return  The base DN for the index.
+   */
+  public DN getBaseDN()
+  {
+    return baseDN;
+  }
+
+
+
+  /**
+   * Retrieves the scope for the index.
+   *
+   * @return  The scope for the index.
+   */
+  public SearchScope getScope()
+  {
+    return scope;
+  }
+
+
+
+  /**
+   * Retrieves the filter for the index.
+   *
+   * @return  The filter for the index.
+   */
+  public Filter getFilter()
+  {
+    return filter;
+  }
+
+
+
+  /**
+   * Retrieves the sort keys for the index.
+   *
+   * @return  The sort keys for the index.
+   */
+  public SortKey[] getSortKeys()
+  {
+    return sortKeys;
+  }
+
+
+
+  /**
+   * Retrieves a string representation of this VLV index configuration.
+   *
+   * @return  A string representation of this VLV index configuration.
+   */
+  @Override()
+  public String toString()
+  {
+    final StringBuilder buffer = new StringBuilder();
+    toString(buffer);
+    return buffer.toString();
+  }
+
+
+
+  /**
+   * Appends a string representation of this VLV index configuration to the
+   * provided buffer.
+   *
+   * @param  buffer  The buffer to which the information should be appended.
+   */
+  public void toString(final StringBuilder buffer)
+  {
+    buffer.append("InMemoryVLVIndexConfig(baseDN='");
+    baseDN.toString(buffer);
+    buffer.append("', scope=");
+    buffer.append(scope.getName());
+    buffer.append(", filter='");
+    filter.toString(buffer);
+    buffer.append("', sortKeys={");
+
+    for (int i=0; i < sortKeys.length; i++)
+    {
+      if (i > 0)
+      {
+        buffer.append(", ");
+      }
+
+      sortKeys[i].toString(buffer);
+    }
+
+    buffer.append("})");
+  }
+}
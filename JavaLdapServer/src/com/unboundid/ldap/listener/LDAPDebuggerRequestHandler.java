@@ -628,6 +628,13 @@ public final class LDAPDebuggerRequestHandler
     final LDAPMessage responseMessage = requestHandler.processSearchRequest(
          messageID, request, controls);
 
+    // There will not be a response for a search that was abandoned or that
+    // remains active as a persistent search.
+    if (responseMessage == null)
+    {
+      return null;
+    }
+
     b.setLength(0);
     appendHeader(b, responseMessage.getMessageID());
     b.append("     Search Result Done Protocol Op:").append(EOL);
@@ -26,6 +26,9 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -85,6 +88,14 @@ public final class LDAPListenerClientConnection
 
 
 
+  /**
+   * The maximum number of requests that will be read ahead of the request
+   * currently being processed.
+   */
+  private static final int MAX_PENDING_REQUESTS = 100;
+
+
+
   // The buffer used to hold responses to be sent to the client.
   private final ASN1Buffer asn1Buffer;
 
@@ -119,6 +130,18 @@ public final class LDAPListenerClientConnection
   // The connection ID assigned to this connection.
   private final long connectionID;
 
+  // Requests that have been read from the client but not yet processed.  This
+  // will only be accessed by the thread reading requests for this connection.
+  private final LinkedList<LDAPMessage> pendingRequests;
+
+  // Indicates whether the end of the input stream was reached while reading
+  // pending requests.
+  private boolean pendingEndOfInput;
+
+  // An exception caught while reading pending requests, which should be
+  // handled once all earlier requests have been processed.
+  private LDAPException pendingReadException;
+
   // The output stream used to write responses to the client.
   private volatile OutputStream outputStream;
 
@@ -301,6 +324,9 @@ public final class LDAPListenerClientConnection
 
     asn1Buffer           = new ASN1Buffer();
     suppressNextResponse = new AtomicBoolean(false);
+    pendingRequests      = new LinkedList<LDAPMessage>();
+    pendingEndOfInput    = false;
+    pendingReadException = null;
   }
 
 
@@ -399,7 +425,23 @@ public final class LDAPListenerClientConnection
         final LDAPMessage requestMessage;
         try
         {
-          requestMessage = LDAPMessage.readFrom(asn1Reader, false);
+          if (! pendingRequests.isEmpty())
+          {
+            requestMessage = pendingRequests.removeFirst();
+          }
+          else if (pendingReadException != null)
+          {
+            throw pendingReadException;
+          }
+          else if (pendingEndOfInput)
+          {
+            requestMessage = null;
+          }
+          else
+          {
+            requestMessage = LDAPMessage.readFrom(asn1Reader, false);
+          }
+
           if (requestMessage == null)
           {
             // This indicates that the client has closed the connection without
@@ -633,6 +675,112 @@ public final class LDAPListenerClientConnection
 
 
 
+  /**
+   * Reads any requests that the client has already sent in their entirety but
+   * that have not yet been processed, without waiting for more data to arrive.
+   * A request that has only been partially received will be left to be read
+   * once the current operation has completed.  This may be invoked by a
+   * request handler while it is processing a long-running operation so that
+   * it can detect whether that operation should be interrupted (e.g., because
+   * the client has requested that it be canceled).
+   * <BR><BR>
+   * Any abandon request that is read will be passed to the request handler's
+   * {@link LDAPListenerRequestHandler#processAbandonRequest} method
+   * immediately, and any pending request with the targeted message ID will be
+   * discarded without being processed.  All other requests will be held and
+   * processed in the order in which they were received once the current
+   * operation has completed.
+   * <BR><BR>
+   * This method should only be called by the thread that is processing
+   * requests for this connection.  If it is invoked by any other thread, then
+   * no attempt will be made to read from the client.
+   *
+   * @return  An unmodifiable view of the requests that have been read from the
+   *          client but not yet processed, in the order in which they were
+   *          received.  It may be empty but will not be {@code null}.
+   */
+  public List<LDAPMessage> readPendingRequests()
+  {
+    if (Thread.currentThread() != this)
+    {
+      return Collections.emptyList();
+    }
+
+    while ((! pendingEndOfInput) && (pendingReadException == null) &&
+           (pendingRequests.size() < MAX_PENDING_REQUESTS))
+    {
+      // Only read a request that has been received in its entirety, since
+      // waiting for the rest of a partially-received request would delay the
+      // operation in progress.
+      try
+      {
+        if (! asn1Reader.isCompleteElementAvailable())
+        {
+          break;
+        }
+      }
+      catch (final IOException ioe)
+      {
+        // Any problem with the connection will be detected by the next
+        // blocking read.
+        Debug.debugException(ioe);
+        break;
+      }
+
+      final LDAPMessage message;
+      try
+      {
+        message = LDAPMessage.readFrom(asn1Reader, false);
+      }
+      catch (final LDAPException le)
+      {
+        Debug.debugException(le);
+        pendingReadException = le;
+        break;
+      }
+
+      if (message == null)
+      {
+        pendingEndOfInput = true;
+        break;
+      }
+
+      switch (message.getProtocolOpType())
+      {
+        case LDAPMessage.PROTOCOL_OP_TYPE_ABANDON_REQUEST:
+          final int idToAbandon =
+               message.getAbandonRequestProtocolOp().getIDToAbandon();
+          final Iterator<LDAPMessage> iterator = pendingRequests.iterator();
+          while (iterator.hasNext())
+          {
+            if (iterator.next().getMessageID() == idToAbandon)
+            {
+              iterator.remove();
+              break;
+            }
+          }
+
+          requestHandler.processAbandonRequest(message.getMessageID(),
+               message.getAbandonRequestProtocolOp(), message.getControls());
+          break;
+
+        case LDAPMessage.PROTOCOL_OP_TYPE_UNBIND_REQUEST:
+          // Nothing after an unbind request will be processed.
+          pendingRequests.add(message);
+          pendingEndOfInput = true;
+          break;
+
+        default:
+          pendingRequests.add(message);
+          break;
+      }
+    }
+
+    return Collections.unmodifiableList(pendingRequests);
+  }
+
+
+
   /**
    * Sends the provided message to the client.
    *
@@ -863,6 +1011,36 @@ public final class LDAPListenerClientConnection
 
 
 
+  /**
+   * Sends a search result done message to the client with the provided
+   * information.  This should only be used for a search whose result is not
+   * returned by the request handler, such as a persistent search that remains
+   * active after its request has been processed.
+   *
+   * @param  messageID   The message ID for the LDAP message to send to the
+   *                     client.  It must match the message ID of the associated
+   *                     search request.
+   * @param  protocolOp  The search result done protocol op to include in the
+   *                     LDAP message to send to the client.
+   * @param  controls    The set of controls to include in the response message.
+   *                     It may be empty or {@code null} if no controls should
+   *                     be included.
+   *
+   * @throws  LDAPException  If a problem occurs while attempting to send the
+   *                         provided response message.  If an exception is
+   *                         thrown, then the client connection will have been
+   *                         terminated.
+   */
+  public void sendSearchResultDone(final int messageID,
+                   final SearchResultDoneProtocolOp protocolOp,
+                   final Control... controls)
+         throws LDAPException
+  {
+    sendMessage(new LDAPMessage(messageID, protocolOp, controls));
+  }
+
+
+
   /**
    * Sends an intermediate response message to the client with the provided
    * information.
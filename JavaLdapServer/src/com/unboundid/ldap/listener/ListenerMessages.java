@@ -38,6 +38,20 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 enum ListenerMessages
 {
+  /**
+   * Unable to cancel the operation with message ID {0,number,0} because there is no search with that message ID in progress on the connection.
+   */
+  ERR_CANCEL_EXTOP_NO_SUCH_OPERATION("Unable to cancel the operation with message ID {0,number,0} because there is no search with that message ID in progress on the connection."),
+
+
+
+  /**
+   * The cancel extended operation handler does not support critical control with OID ''{0}''.
+   */
+  ERR_CANCEL_EXTOP_UNSUPPORTED_CONTROL("The cancel extended operation handler does not support critical control with OID ''{0}''."),
+
+
+
   /**
    * An error occurred while attempting to convert the connection to use TLS encryption:  {0}
    */
@@ -115,6 +129,20 @@ enum ListenerMessages
 
 
 
+  /**
+   * The persistent search request control may not be used in conjunction with the server-side sort, simple paged results, or virtual list view request controls.
+   */
+  ERR_CONTROL_PROCESSOR_PSEARCH_WITH_RESULT_SET_CONTROL("The persistent search request control may not be used in conjunction with the server-side sort, simple paged results, or virtual list view request controls."),
+
+
+
+  /**
+   * The content synchronization request control may not be used in conjunction with the persistent search, server-side sort, simple paged results, or virtual list view request controls.
+   */
+  ERR_CONTROL_PROCESSOR_SYNC_WITH_RESULT_SET_CONTROL("The content synchronization request control may not be used in conjunction with the persistent search, server-side sort, simple paged results, or virtual list view request controls."),
+
+
+
   /**
    * The control with OID ''{0}'' is not supported by the in-memory request processor.
    */
@@ -157,6 +185,48 @@ enum ListenerMessages
 
 
 
+  /**
+   * Unable to configure an ordering index for attribute ''{0}'' because the server is not configured with schema.
+   */
+  ERR_DS_ORDERING_INDEX_NO_SCHEMA("Unable to configure an ordering index for attribute ''{0}'' because the server is not configured with schema."),
+
+
+
+  /**
+   * Unable to configure an ordering index for attribute ''{0}'' because that attribute type is not defined in the server schema.
+   */
+  ERR_DS_ORDERING_INDEX_UNDEFINED_ATTRIBUTE_TYPE("Unable to configure an ordering index for attribute ''{0}'' because that attribute type is not defined in the server schema."),
+
+
+
+  /**
+   * Unable to configure a presence index for attribute ''{0}'' because the server is not configured with schema.
+   */
+  ERR_DS_PRESENCE_INDEX_NO_SCHEMA("Unable to configure a presence index for attribute ''{0}'' because the server is not configured with schema."),
+
+
+
+  /**
+   * Unable to configure a presence index for attribute ''{0}'' because that attribute type is not defined in the server schema.
+   */
+  ERR_DS_PRESENCE_INDEX_UNDEFINED_ATTRIBUTE_TYPE("Unable to configure a presence index for attribute ''{0}'' because that attribute type is not defined in the server schema."),
+
+
+
+  /**
+   * Unable to configure a substring index for attribute ''{0}'' because the server is not configured with schema.
+   */
+  ERR_DS_SUBSTRING_INDEX_NO_SCHEMA("Unable to configure a substring index for attribute ''{0}'' because the server is not configured with schema."),
+
+
+
+  /**
+   * Unable to configure a substring index for attribute ''{0}'' because that attribute type is not defined in the server schema.
+   */
+  ERR_DS_SUBSTRING_INDEX_UNDEFINED_ATTRIBUTE_TYPE("Unable to configure a substring index for attribute ''{0}'' because that attribute type is not defined in the server schema."),
+
+
+
   /**
    * An error occurred while attempting to create an SSL client socket factory:  {0}
    */
@@ -374,6 +444,13 @@ enum ListenerMessages
 
 
 
+  /**
+   * Unable to decode the attributes of entry '{0}' held outside of the Java heap:  {1}
+   */
+  ERR_MEM_ENCODED_ENTRY_CANNOT_DECODE("Unable to decode the attributes of entry ''{0}'' held outside of the Java heap:  {1}"),
+
+
+
   /**
    * An entry with DN ''{0}'' already exists in the server.
    */
@@ -626,6 +703,55 @@ enum ListenerMessages
 
 
 
+  /**
+   * Unable to replace checkpoint file '{0}', so journal file '{1}' was not truncated.
+   */
+  ERR_MEM_HANDLER_JOURNAL_CANNOT_CHECKPOINT("Unable to replace checkpoint file ''{0}'', so journal file ''{1}'' was not truncated."),
+
+
+
+  /**
+   * Unable to create data directory '{0}'.
+   */
+  ERR_MEM_HANDLER_JOURNAL_CANNOT_CREATE_DIRECTORY("Unable to create data directory ''{0}''."),
+
+
+
+  /**
+   * Unable to open journal file '{0}':  {1}
+   */
+  ERR_MEM_HANDLER_JOURNAL_CANNOT_OPEN("Unable to open journal file ''{0}'':  {1}"),
+
+
+
+  /**
+   * An error occurred while attempting to replay the changes in journal file '{0}':  {1}
+   */
+  ERR_MEM_HANDLER_JOURNAL_CANNOT_REPLAY("An error occurred while attempting to replay the changes in journal file ''{0}'':  {1}"),
+
+
+
+  /**
+   * The journal contains a change record that cannot be decoded.
+   */
+  ERR_MEM_HANDLER_JOURNAL_INVALID_CHANGE("The journal contains a change record that cannot be decoded."),
+
+
+
+  /**
+   * File '{0}' is not a valid in-memory directory server journal file.
+   */
+  ERR_MEM_HANDLER_JOURNAL_INVALID_HEADER("File ''{0}'' is not a valid in-memory directory server journal file."),
+
+
+
+  /**
+   * Unable to write to journal file '{0}', so no further changes will be accepted until the server is restarted:  {1}
+   */
+  ERR_MEM_HANDLER_JOURNAL_WRITE_FAILED("Unable to write to journal file ''{0}'', so no further changes will be accepted until the server is restarted:  {1}"),
+
+
+
   /**
    * An error occurred while attempting to close the LDIF writer:  {0}
    */
@@ -871,6 +997,13 @@ enum ListenerMessages
 
 
 
+  /**
+   * Persistent searches may only be requested by clients communicating with the server over a network connection.
+   */
+  ERR_MEM_HANDLER_PSEARCH_REQUIRES_CONNECTION("Persistent searches may only be requested by clients communicating with the server over a network connection."),
+
+
+
   /**
    * An unexpected error occurred while attempting to process the requested SASL bind operation:  {1}
    */
@@ -934,6 +1067,20 @@ enum ListenerMessages
 
 
 
+  /**
+   * The search time limit has been exceeded.
+   */
+  ERR_MEM_HANDLER_SEARCH_TIME_LIMIT_EXCEEDED("The search time limit has been exceeded."),
+
+
+
+  /**
+   * The content synchronization cookie provided by the client cannot be used to determine the changes made since its last synchronization, so a full refresh is required.
+   */
+  ERR_MEM_HANDLER_SYNC_REFRESH_REQUIRED("The content synchronization cookie provided by the client cannot be used to determine the changes made since its last synchronization, so a full refresh is required."),
+
+
+
   /**
    * Entry ''{0}'' was found to contain attribute ''{1}'' when that attribute was expected to be missing.
    */
@@ -1004,6 +1151,48 @@ enum ListenerMessages
 
 
 
+  /**
+   * Terminating the connection on which persistent search {0} was requested (connection ID {1}) because more than {2} change notifications were waiting to be sent to the client.
+   */
+  ERR_MEM_PSEARCH_QUEUE_FULL("Terminating the connection on which persistent search {0} was requested (connection ID {1}) because more than {2} change notifications were waiting to be sent to the client."),
+
+
+
+  /**
+   * The server content has been replaced in a way that cannot be described by content synchronization updates, so a full refresh is required.
+   */
+  ERR_MEM_PSEARCH_SYNC_REFRESH_REQUIRED("The server content has been replaced in a way that cannot be described by content synchronization updates, so a full refresh is required."),
+
+
+
+  /**
+   * Unable to read the in-memory directory server snapshot from file '{0}':  {1}
+   */
+  ERR_MEM_SNAPSHOT_CANNOT_READ("Unable to read the in-memory directory server snapshot from file ''{0}'':  {1}"),
+
+
+
+  /**
+   * Unable to write the in-memory directory server snapshot to file '{0}':  {1}
+   */
+  ERR_MEM_SNAPSHOT_CANNOT_WRITE("Unable to write the in-memory directory server snapshot to file ''{0}'':  {1}"),
+
+
+
+  /**
+   * File '{0}' is not an in-memory directory server snapshot file.
+   */
+  ERR_MEM_SNAPSHOT_INVALID_HEADER("File ''{0}'' is not an in-memory directory server snapshot file."),
+
+
+
+  /**
+   * The snapshot file is malformed.
+   */
+  ERR_MEM_SNAPSHOT_MALFORMED("The snapshot file is malformed."),
+
+
+
   /**
    * The SASL bind request cannot be processed because the credentials are not properly formatted for the SASL PLAIN mechanism.
    */
@@ -1138,9 +1327,9 @@ enum ListenerMessages
 
 
   /**
-   * Added {0,number,0} entries from LDIF file {1}
+   * Added {0,number,0} entries from LDIF file {1} in {2,number,0} milliseconds ({3,number,0} entries per second)
    */
-  INFO_MEM_DS_TOOL_ADDED_ENTRIES_FROM_LDIF("Added {0,number,0} entries from LDIF file {1}"),
+  INFO_MEM_DS_TOOL_ADDED_ENTRIES_FROM_LDIF_WITH_RATE("Added {0,number,0} entries from LDIF file {1} in {2,number,0} milliseconds ({3,number,0} entries per second)"),
 
 
 
@@ -1172,6 +1361,13 @@ enum ListenerMessages
 
 
 
+  /**
+   * Allow search, compare, and bind operations to be processed concurrently with other operations, each using the data as it appeared when that operation started.  Write operations will always be processed one at a time.
+   */
+  INFO_MEM_DS_TOOL_ARG_DESC_ALLOW_CONCURRENT_READS("Allow search, compare, and bind operations to be processed concurrently with other operations, each using the data as it appeared when that operation started.  Write operations will always be processed one at a time."),
+
+
+
   /**
    * The base DN to use for the server.  Only entries at or below one of the defined base DNs may be created in the server.  At least one base DN must be defined, but multiple base DNs may be specified as separate arguments.
    */
@@ -1179,6 +1375,13 @@ enum ListenerMessages
 
 
 
+  /**
+   * The path to a directory in which the server should keep a journal of all changes made to its data, so that the data will be retained when the server is restarted.  If the directory already contains a journal, then the data will be restored from it, and any LDIF file provided with the '--ldifFile' argument will only be imported if the journal does not contain any entries.  If this is not provided, then the data will only be held in memory.
+   */
+  INFO_MEM_DS_TOOL_ARG_DESC_DATA_DIRECTORY("The path to a directory in which the server should keep a journal of all changes made to its data, so that the data will be retained when the server is restarted.  If the directory already contains a journal, then the data will be restored from it, and any LDIF file provided with the ''--ldifFile'' argument will only be imported if the journal does not contain any entries.  If this is not provided, then the data will only be held in memory."),
+
+
+
   /**
    * Indicates that the server should not be started.  This is only intended for internal testing purposes, since a command-line server that can't be started isn't very useful.
    */
@@ -1186,6 +1389,13 @@ enum ListenerMessages
 
 
 
+  /**
+   * Specifies how the server should store its entries.  A value of 'heap' indicates that each entry will be held as an object in the Java heap, and 'offHeap' indicates that the attributes of each entry will be held in an encoded form in memory allocated outside of the Java heap, which reduces the heap memory needed for large data sets at the cost of decoding entries as they are accessed.  If this is not provided, then a value of 'heap' will be used.
+   */
+  INFO_MEM_DS_TOOL_ARG_DESC_ENTRY_STORAGE_MODE("Specifies how the server should store its entries.  A value of ''heap'' indicates that each entry will be held as an object in the Java heap, and ''offHeap'' indicates that the attributes of each entry will be held in an encoded form in memory allocated outside of the Java heap, which reduces the heap memory needed for large data sets at the cost of decoding entries as they are accessed.  If this is not provided, then a value of ''heap'' will be used."),
+
+
+
   /**
    * Maintain an equality index for the specified attribute.  The server must be configured to use a schema (which may optionally be the default standard schema), and the specified attribute type must be defined in the schema.
    */
@@ -1193,6 +1403,20 @@ enum ListenerMessages
 
 
 
+  /**
+   * The interval in milliseconds at which changes written to the journal will be forced to disk if the 'periodic' journal sync policy is used.  This may only be provided if the '--journalSyncPolicy' argument is also given.  If this is not provided, then a value of 1000 will be used.
+   */
+  INFO_MEM_DS_TOOL_ARG_DESC_JOURNAL_SYNC_INTERVAL("The interval in milliseconds at which changes written to the journal will be forced to disk if the ''periodic'' journal sync policy is used.  This may only be provided if the ''--journalSyncPolicy'' argument is also given.  If this is not provided, then a value of 1000 will be used."),
+
+
+
+  /**
+   * The policy that controls when changes written to the journal are forced to disk.  A value of 'everyOperation' indicates that the result of each write operation will not be returned until the change is on disk, 'periodic' indicates that changes will be forced to disk at the interval given by the '--journalSyncIntervalMillis' argument, and 'none' indicates that changes will only be written to disk when the operating system chooses.  This may only be provided if the '--dataDirectory' argument is also given.  If this is not provided, then a value of 'everyOperation' will be used.
+   */
+  INFO_MEM_DS_TOOL_ARG_DESC_JOURNAL_SYNC_POLICY("The policy that controls when changes written to the journal are forced to disk.  A value of ''everyOperation'' indicates that the result of each write operation will not be returned until the change is on disk, ''periodic'' indicates that changes will be forced to disk at the interval given by the ''--journalSyncIntervalMillis'' argument, and ''none'' indicates that changes will only be written to disk when the operating system chooses.  This may only be provided if the ''--dataDirectory'' argument is also given.  If this is not provided, then a value of ''everyOperation'' will be used."),
+
+
+
   /**
    * The path to the Java key store file that will be used to obtain the certificate to use for SSL communication.  This may only be provided if either the "--useSSL" or "--useStartTLS" argument is also given.
    */
@@ -1235,6 +1459,13 @@ enum ListenerMessages
 
 
 
+  /**
+   * Maintain an ordering index for the specified attribute.  The server must be configured to use a schema (which may optionally be the default standard schema), and the specified attribute type must be defined in the schema.
+   */
+  INFO_MEM_DS_TOOL_ARG_DESC_ORDERING_INDEX("Maintain an ordering index for the specified attribute.  The server must be configured to use a schema (which may optionally be the default standard schema), and the specified attribute type must be defined in the schema."),
+
+
+
   /**
    * The port on which the server should listen for client requests.  If a value is specified, then it must be an integer between 1 and 65535.  If no port is specified, then the server will automatically select a free port to use.
    */
@@ -1242,6 +1473,20 @@ enum ListenerMessages
 
 
 
+  /**
+   * Maintain a presence index for the specified attribute.  The server must be configured to use a schema (which may optionally be the default standard schema), and the specified attribute type must be defined in the schema.
+   */
+  INFO_MEM_DS_TOOL_ARG_DESC_PRESENCE_INDEX("Maintain a presence index for the specified attribute.  The server must be configured to use a schema (which may optionally be the default standard schema), and the specified attribute type must be defined in the schema."),
+
+
+
+  /**
+   * Maintain a substring index for the specified attribute.  The server must be configured to use a schema (which may optionally be the default standard schema), and the specified attribute type must be defined in the schema.
+   */
+  INFO_MEM_DS_TOOL_ARG_DESC_SUBSTRING_INDEX("Maintain a substring index for the specified attribute.  The server must be configured to use a schema (which may optionally be the default standard schema), and the specified attribute type must be defined in the schema."),
+
+
+
   /**
    * The path to the Java trust store file that will be used to determine whether to trust any client certificates presented to the server.  This may only be provided if either the "--useSSL" or "--useStartTLS" argument is given, but if SSL or StartTLS is to be used and no trust store path is specified, then the server will automatically trust any client certificate presented to it.
    */
@@ -1326,6 +1571,20 @@ enum ListenerMessages
 
 
 
+  /**
+   * {millis}
+   */
+  INFO_MEM_DS_TOOL_ARG_PLACEHOLDER_MILLIS("{millis}"),
+
+
+
+  /**
+   * {mode}
+   */
+  INFO_MEM_DS_TOOL_ARG_PLACEHOLDER_MODE("{mode}"),
+
+
+
   /**
    * {password}
    */
@@ -1340,6 +1599,13 @@ enum ListenerMessages
 
 
 
+  /**
+   * {policy}
+   */
+  INFO_MEM_DS_TOOL_ARG_PLACEHOLDER_POLICY("{policy}"),
+
+
+
   /**
    * {port} 
    */
@@ -1382,6 +1648,13 @@ enum ListenerMessages
 
 
 
+  /**
+   * Restored {0,number,0} entries from the journal in data directory {1}, so the LDIF file will not be imported.
+   */
+  INFO_MEM_DS_TOOL_RECOVERED_ENTRIES_FROM_JOURNAL("Restored {0,number,0} entries from the journal in data directory {1}, so the LDIF file will not be imported."),
+
+
+
   /**
    * This operation will be processed as part of transaction {0}.  No changes will be made unless that transaction is successfully committed.
    */
@@ -1396,6 +1669,13 @@ enum ListenerMessages
 
 
 
+  /**
+   * The search was canceled at the request of the client.
+   */
+  INFO_MEM_HANDLER_SEARCH_CANCELED("The search was canceled at the request of the client."),
+
+
+
   /**
    * Successfully committed transaction {0}.
    */
@@ -0,0 +1,1199 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.listener;
+
+
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.unboundid.util.Debug;
+import com.unboundid.util.NotMutable;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides an immutable sorted map implementation that is backed by
+ * a weight-balanced binary tree.  Methods that alter the map do not change the
+ * map on which they are invoked, but instead return a new map that shares all
+ * unchanged portions of the tree with the original.  This makes it possible to
+ * retain any number of earlier versions of a map at a cost proportional only to
+ * the differences between them, and it makes it safe for any number of threads
+ * to read a map without any synchronization.
+ * <BR><BR>
+ * Because every node in the tree knows the number of entries in the subtree
+ * below it, this map can also efficiently find the position of a given key
+ * and the key at a given position.
+ *
+ * @param  <K>  The type of key used in the map.
+ * @param  <V>  The type of value used in the map.
+ */
+@NotMutable()
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+final class PersistentSortedMap<K,V>
+      implements Serializable
+{
+  /**
+   * The factor by which the size of one subtree may exceed the size of its
+   * sibling before the tree will be rebalanced.
+   */
+  private static final int DELTA = 3;
+
+
+
+  /**
+   * The factor used to determine whether a single or double rotation should be
+   * used when rebalancing the tree.
+   */
+  private static final int RATIO = 2;
+
+
+
+  /**
+   * The serial version UID for this serializable class.
+   */
+  private static final long serialVersionUID = -3318047719006271356L;
+
+
+
+  // The comparator used to order keys, or null if keys should be ordered using
+  // their natural ordering.
+  private final Comparator<? super K> comparator;
+
+  // The root of the tree, or null if the map is empty.
+  private final Node<K,V> root;
+
+
+
+  /**
+   * Creates a new empty map that will order its keys using their natural
+   * ordering.  All keys that will be used with the map must implement the
+   * {@code Comparable} interface.
+   */
+  PersistentSortedMap()
+  {
+    this(null, null);
+  }
+
+
+
+  /**
+   * Creates a new empty map that will order its keys using the provided
+   * comparator.
+   *
+   * @param  comparator  The comparator to use to order keys.  It may be
+   *                     {@code null} if the natural ordering should be used.
+   */
+  PersistentSortedMap(final Comparator<? super K> comparator)
+  {
+    this(comparator, null);
+  }
+
+
+
+  /**
+   * Creates a new map with the provided comparator and tree.
+   *
+   * @param  comparator  The comparator to use to order keys.  It may be
+   *                     {@code null} if the natural ordering should be used.
+   * @param  root        The root of the tree for the map.  It may be
+   *                     {@code null} if the map is empty.
+   */
+  private PersistentSortedMap(final Comparator<? super K> comparator,
+                              final Node<K,V> root)
+  {
+    this.comparator = comparator;
+    this.root       = root;
+  }
+
+
+
+  /**
+   * Creates a new map containing the provided keys and values.  The keys must
+   * already be in ascending order according to the provided comparator, and
+   * there must not be any duplicates.  The tree is built directly in a
+   * perfectly balanced form, without comparing any keys, so this is much
+   * faster than adding the entries one at a time.
+   *
+   * @param  <K>         The type of key used in the map.
+   * @param  <V>         The type of value used in the map.
+   * @param  comparator  The comparator to use to order keys.  It may be
+   *                     {@code null} if the natural ordering should be used.
+   * @param  keys        The keys to include in the map, in ascending order.
+   * @param  values      The values to include in the map, in the same order as
+   *                     the keys.
+   *
+   * @return  The map that was created.
+   */
+  static <K,V> PersistentSortedMap<K,V> createFromSorted(
+              final Comparator<? super K> comparator,
+              final List<? extends K> keys, final List<? extends V> values)
+  {
+    return new PersistentSortedMap<K,V>(comparator,
+         PersistentSortedMap.<K,V>createTree(keys, values, 0, keys.size()));
+  }
+
+
+
+  /**
+   * Creates a perfectly balanced tree containing the specified range of the
+   * provided keys and values.
+   *
+   * @param  <K>     The type of key used in the map.
+   * @param  <V>     The type of value used in the map.
+   * @param  keys    The keys to include in the tree, in ascending order.
+   * @param  values  The values to include in the tree.
+   * @param  start   The position of the first key to include.
+   * @param  end     The position after the last key to include.
+   *
+   * @return  The root of the tree that was created, or {@code null} if the
+   *          range is empty.
+   */
+  private static <K,V> Node<K,V> createTree(final List<? extends K> keys,
+                                            final List<? extends V> values,
+                                            final int start, final int end)
+  {
+    if (start >= end)
+    {
+      return null;
+    }
+
+    final int middle = (start + end) >>> 1;
+    return new Node<K,V>(keys.get(middle), values.get(middle),
+         PersistentSortedMap.<K,V>createTree(keys, values, start, middle),
+         PersistentSortedMap.<K,V>createTree(keys, values, middle+1, end));
+  }
+
+
+
+  /**
+   * Retrieves the comparator used to order keys in this map.
+   *
+   * @return  The comparator used to order keys in this map, or {@code null} if
+   *          keys are ordered using their natural ordering.
+   */
+  Comparator<? super K> getComparator()
+  {
+    return comparator;
+  }
+
+
+
+  /**
+   * Retrieves the number of entries in this map.
+   *
+   * @return  The number of entries in this map.
+   */
+  int size()
+  {
+    return size(root);
+  }
+
+
+
+  /**
+   * Indicates whether this map is empty.
+   *
+   * @return  {@code true} if this map is empty, or {@code false} if not.
+   */
+  boolean isEmpty()
+  {
+    return (root == null);
+  }
+
+
+
+  /**
+   * Retrieves the value associated with the provided key.
+   *
+   * @param  key  The key for which to retrieve the associated value.
+   *
+   * @return  The value associated with the provided key, or {@code null} if
+   *          there is no such key in this map.
+   */
+  V get(final K key)
+  {
+    final Node<K,V> n = getNode(key);
+    if (n == null)
+    {
+      return null;
+    }
+    else
+    {
+      return n.value;
+    }
+  }
+
+
+
+  /**
+   * Indicates whether this map contains the provided key.
+   *
+   * @param  key  The key for which to make the determination.
+   *
+   * @return  {@code true} if this map contains the provided key, or
+   *          {@code false} if not.
+   */
+  boolean containsKey(final K key)
+  {
+    return (getNode(key) != null);
+  }
+
+
+
+  /**
+   * Retrieves the map entry with the provided key.
+   *
+   * @param  key  The key for which to retrieve the map entry.
+   *
+   * @return  The map entry with the provided key, or {@code null} if there is
+   *          no such key in this map.  The entry may not be altered.
+   */
+  Map.Entry<K,V> getEntry(final K key)
+  {
+    return getNode(key);
+  }
+
+
+
+  /**
+   * Retrieves the tree node with the provided key.
+   *
+   * @param  key  The key for which to retrieve the node.
+   *
+   * @return  The tree node with the provided key, or {@code null} if there is
+   *          no such key in this map.
+   */
+  private Node<K,V> getNode(final K key)
+  {
+    Node<K,V> n = root;
+    while (n != null)
+    {
+      final int c = compare(key, n.key);
+      if (c < 0)
+      {
+        n = n.left;
+      }
+      else if (c > 0)
+      {
+        n = n.right;
+      }
+      else
+      {
+        return n;
+      }
+    }
+
+    return null;
+  }
+
+
+
+  /**
+   * Retrieves a map that contains all of the entries in this map, along with
+   * the provided key and value.  If this map already contains the provided
+   * key, then its value will be replaced.
+   *
+   * @param  key    The key to include in the map.  It must not be
+   *                {@code null}.
+   * @param  value  The value to associate with the key.
+   *
+   * @return  A map with the provided key and value.
+   */
+  PersistentSortedMap<K,V> put(final K key, final V value)
+  {
+    return new PersistentSortedMap<K,V>(comparator, put(root, key, value));
+  }
+
+
+
+  /**
+   * Retrieves a map that contains all of the entries in this map except the
+   * entry with the provided key.
+   *
+   * @param  key  The key of the entry to exclude from the map.
+   *
+   * @return  A map without the provided key, or this map if it does not
+   *          contain the provided key.
+   */
+  PersistentSortedMap<K,V> remove(final K key)
+  {
+    final Node<K,V> newRoot = remove(root, key);
+    if (newRoot == root)
+    {
+      return this;
+    }
+    else
+    {
+      return new PersistentSortedMap<K,V>(comparator, newRoot);
+    }
+  }
+
+
+
+  /**
+   * Retrieves an empty map that uses the same ordering as this map.
+   *
+   * @return  An empty map that uses the same ordering as this map.
+   */
+  PersistentSortedMap<K,V> clear()
+  {
+    if (root == null)
+    {
+      return this;
+    }
+    else
+    {
+      return new PersistentSortedMap<K,V>(comparator, null);
+    }
+  }
+
+
+
+  /**
+   * Retrieves the smallest key in this map.
+   *
+   * @return  The smallest key in this map, or {@code null} if the map is empty.
+   */
+  K firstKey()
+  {
+    Node<K,V> n = root;
+    if (n == null)
+    {
+      return null;
+    }
+
+    while (n.left != null)
+    {
+      n = n.left;
+    }
+
+    return n.key;
+  }
+
+
+
+  /**
+   * Retrieves the largest key in this map.
+   *
+   * @return  The largest key in this map, or {@code null} if the map is empty.
+   */
+  K lastKey()
+  {
+    Node<K,V> n = root;
+    if (n == null)
+    {
+      return null;
+    }
+
+    while (n.right != null)
+    {
+      n = n.right;
+    }
+
+    return n.key;
+  }
+
+
+
+  /**
+   * Retrieves the position of the provided key in this map, in which the
+   * smallest key has a position of zero.
+   *
+   * @param  key  The key for which to retrieve the position.
+   *
+   * @return  The position of the provided key if it is contained in this map,
+   *          or otherwise {@code (-(insertionPoint) - 1)}, in which the
+   *          insertion point is the position that the key would have if it
+   *          were added to the map.
+   */
+  int indexOf(final K key)
+  {
+    int index = 0;
+    Node<K,V> n = root;
+    while (n != null)
+    {
+      final int c = compare(key, n.key);
+      if (c < 0)
+      {
+        n = n.left;
+      }
+      else if (c > 0)
+      {
+        index += (size(n.left) + 1);
+        n = n.right;
+      }
+      else
+      {
+        return index + size(n.left);
+      }
+    }
+
+    return -(index + 1);
+  }
+
+
+
+  /**
+   * Retrieves the number of keys in this map that are less than the provided
+   * key according to the given comparator.  The comparator does not need to
+   * impose the same ordering as this map, but every key that it considers to
+   * be less than the provided key must come before every key that it does
+   * not, so that the result is the position of the first key that is greater
+   * than or equal to the provided key.
+   *
+   * @param  key         The key to which the keys in this map should be
+   *                     compared.
+   * @param  comparator  The comparator to use to compare keys.
+   *
+   * @return  The number of keys in this map that are less than the provided
+   *          key according to the given comparator.
+   */
+  int countLessThan(final K key, final Comparator<? super K> comparator)
+  {
+    int count = 0;
+    Node<K,V> n = root;
+    while (n != null)
+    {
+      if (comparator.compare(n.key, key) < 0)
+      {
+        count += (size(n.left) + 1);
+        n = n.right;
+      }
+      else
+      {
+        n = n.left;
+      }
+    }
+
+    return count;
+  }
+
+
+
+  /**
+   * Retrieves the entry at the specified position in this map, in which the
+   * entry with the smallest key has a position of zero.
+   *
+   * @param  index  The position of the entry to retrieve.
+   *
+   * @return  The entry at the specified position, or {@code null} if the
+   *          position is outside the bounds of the map.
+   */
+  Map.Entry<K,V> entryAt(final int index)
+  {
+    if ((index < 0) || (index >= size(root)))
+    {
+      return null;
+    }
+
+    int i = index;
+    Node<K,V> n = root;
+    while (true)
+    {
+      final int leftSize = size(n.left);
+      if (i < leftSize)
+      {
+        n = n.left;
+      }
+      else if (i > leftSize)
+      {
+        i -= (leftSize + 1);
+        n = n.right;
+      }
+      else
+      {
+        return n;
+      }
+    }
+  }
+
+
+
+  /**
+   * Retrieves an iterator that may be used to access all entries in this map
+   * in ascending order by key.  The entries returned may not be altered.
+   *
+   * @return  An iterator that may be used to access all entries in this map.
+   */
+  Iterator<Map.Entry<K,V>> iterator()
+  {
+    return new EntryIterator<K,V>(this, null, false, false);
+  }
+
+
+
+  /**
+   * Retrieves an iterator that may be used to access the entries in this map
+   * whose keys are greater than (or optionally equal to) the provided key, in
+   * ascending order by key.  The entries returned may not be altered.
+   *
+   * @param  fromKey    The key at which to start iterating.
+   * @param  inclusive  Indicates whether an entry with a key equal to the
+   *                    provided key should be included.
+   *
+   * @return  An iterator that may be used to access the requested entries.
+   */
+  Iterator<Map.Entry<K,V>> iterator(final K fromKey, final boolean inclusive)
+  {
+    return new EntryIterator<K,V>(this, fromKey, inclusive, true);
+  }
+
+
+
+  /**
+   * Retrieves a read-only {@code Map} view of this map.  Because this map can
+   * never be altered, the contents of the view will never change.
+   *
+   * @return  A read-only {@code Map} view of this map.
+   */
+  Map<K,V> asMap()
+  {
+    return new MapView<K,V>(this);
+  }
+
+
+
+  /**
+   * Compares the provided keys using the ordering for this map.
+   *
+   * @param  k1  The first key to compare.
+   * @param  k2  The second key to compare.
+   *
+   * @return  A negative value if the first key should be ordered before the
+   *          second, a positive value if the first key should be ordered
+   *          after the second, or zero if they are equal.
+   */
+  @SuppressWarnings("unchecked")
+  int compare(final K k1, final K k2)
+  {
+    if (comparator == null)
+    {
+      return ((Comparable<? super K>) k1).compareTo(k2);
+    }
+    else
+    {
+      return comparator.compare(k1, k2);
+    }
+  }
+
+
+
+  /**
+   * Retrieves the number of entries in the subtree rooted at the provided node.
+   *
+   * @param  n  The node for which to make the determination.  It may be
+   *            {@code null}.
+   *
+   * @return  The number of entries in the subtree rooted at the provided node.
+   */
+  private static int size(final Node<?,?> n)
+  {
+    if (n == null)
+    {
+      return 0;
+    }
+    else
+    {
+      return n.size;
+    }
+  }
+
+
+
+  /**
+   * Retrieves the root of a tree that contains all of the entries in the
+   * provided tree, along with the given key and value.
+   *
+   * @param  n      The root of the tree to update.
+   * @param  key    The key to include.
+   * @param  value  The value to associate with the key.
+   *
+   * @return  The root of the updated tree.
+   */
+  private Node<K,V> put(final Node<K,V> n, final K key, final V value)
+  {
+    if (n == null)
+    {
+      return new Node<K,V>(key, value, null, null);
+    }
+
+    final int c = compare(key, n.key);
+    if (c < 0)
+    {
+      return balance(n.key, n.value, put(n.left, key, value), n.right);
+    }
+    else if (c > 0)
+    {
+      return balance(n.key, n.value, n.left, put(n.right, key, value));
+    }
+    else
+    {
+      return new Node<K,V>(key, value, n.left, n.right);
+    }
+  }
+
+
+
+  /**
+   * Retrieves the root of a tree that contains all of the entries in the
+   * provided tree except the one with the given key.
+   *
+   * @param  n    The root of the tree to update.
+   * @param  key  The key to exclude.
+   *
+   * @return  The root of the updated tree, or the provided node if the tree did
+   *          not contain the given key.
+   */
+  private Node<K,V> remove(final Node<K,V> n, final K key)
+  {
+    if (n == null)
+    {
+      return null;
+    }
+
+    final int c = compare(key, n.key);
+    if (c < 0)
+    {
+      final Node<K,V> newLeft = remove(n.left, key);
+      if (newLeft == n.left)
+      {
+        return n;
+      }
+      return balance(n.key, n.value, newLeft, n.right);
+    }
+    else if (c > 0)
+    {
+      final Node<K,V> newRight = remove(n.right, key);
+      if (newRight == n.right)
+      {
+        return n;
+      }
+      return balance(n.key, n.value, n.left, newRight);
+    }
+    else
+    {
+      return glue(n.left, n.right);
+    }
+  }
+
+
+
+  /**
+   * Combines the provided subtrees, in which every key in the left subtree is
+   * less than every key in the right subtree and the sizes of the subtrees are
+   * already balanced with respect to each other.
+   *
+   * @param  l  The left subtree.
+   * @param  r  The right subtree.
+   *
+   * @return  The root of the combined tree.
+   */
+  private static <K,V> Node<K,V> glue(final Node<K,V> l, final Node<K,V> r)
+  {
+    if (l == null)
+    {
+      return r;
+    }
+    else if (r == null)
+    {
+      return l;
+    }
+    else if (l.size > r.size)
+    {
+      Node<K,V> max = l;
+      while (max.right != null)
+      {
+        max = max.right;
+      }
+      return balance(max.key, max.value, removeMax(l), r);
+    }
+    else
+    {
+      Node<K,V> min = r;
+      while (min.left != null)
+      {
+        min = min.left;
+      }
+      return balance(min.key, min.value, l, removeMin(r));
+    }
+  }
+
+
+
+  /**
+   * Retrieves the root of a tree that contains all of the entries in the
+   * provided tree except the one with the smallest key.
+   *
+   * @param  n  The root of the tree to update.  It must not be {@code null}.
+   *
+   * @return  The root of the updated tree.
+   */
+  private static <K,V> Node<K,V> removeMin(final Node<K,V> n)
+  {
+    if (n.left == null)
+    {
+      return n.right;
+    }
+    else
+    {
+      return balance(n.key, n.value, removeMin(n.left), n.right);
+    }
+  }
+
+
+
+  /**
+   * Retrieves the root of a tree that contains all of the entries in the
+   * provided tree except the one with the largest key.
+   *
+   * @param  n  The root of the tree to update.  It must not be {@code null}.
+   *
+   * @return  The root of the updated tree.
+   */
+  private static <K,V> Node<K,V> removeMax(final Node<K,V> n)
+  {
+    if (n.right == null)
+    {
+      return n.left;
+    }
+    else
+    {
+      return balance(n.key, n.value, n.left, removeMax(n.right));
+    }
+  }
+
+
+
+  /**
+   * Creates a new node with the provided key, value, and subtrees, performing
+   * any rotation needed to keep the tree balanced.  The provided subtrees must
+   * have been balanced before the most recent single insertion or removal.
+   *
+   * @param  key    The key for the node.
+   * @param  value  The value for the node.
+   * @param  l      The left subtree for the node.
+   * @param  r      The right subtree for the node.
+   *
+   * @return  The root of the balanced tree.
+   */
+  private static <K,V> Node<K,V> balance(final K key, final V value,
+                                         final Node<K,V> l, final Node<K,V> r)
+  {
+    final int ls = size(l);
+    final int rs = size(r);
+    if ((ls + rs) <= 1)
+    {
+      return new Node<K,V>(key, value, l, r);
+    }
+    else if (rs > (DELTA * ls))
+    {
+      if (size(r.left) < (RATIO * size(r.right)))
+      {
+        return new Node<K,V>(r.key, r.value,
+             new Node<K,V>(key, value, l, r.left), r.right);
+      }
+      else
+      {
+        final Node<K,V> rl = r.left;
+        return new Node<K,V>(rl.key, rl.value,
+             new Node<K,V>(key, value, l, rl.left),
+             new Node<K,V>(r.key, r.value, rl.right, r.right));
+      }
+    }
+    else if (ls > (DELTA * rs))
+    {
+      if (size(l.right) < (RATIO * size(l.left)))
+      {
+        return new Node<K,V>(l.key, l.value, l.left,
+             new Node<K,V>(key, value, l.right, r));
+      }
+      else
+      {
+        final Node<K,V> lr = l.right;
+        return new Node<K,V>(lr.key, lr.value,
+             new Node<K,V>(l.key, l.value, l.left, lr.left),
+             new Node<K,V>(key, value, lr.right, r));
+      }
+    }
+    else
+    {
+      return new Node<K,V>(key, value, l, r);
+    }
+  }
+
+
+
+  /**
+   * This class provides a node in the tree backing a persistent sorted map.
+   *
+   * @param  <K>  The type of key used in the map.
+   * @param  <V>  The type of value used in the map.
+   */
+  private static final class Node<K,V>
+          implements Map.Entry<K,V>, Serializable
+  {
+    /**
+     * The serial version UID for this serializable class.
+     */
+    private static final long serialVersionUID = 5203947718735216614L;
+
+
+
+    // The number of entries in the subtree rooted at this node.
+    private final int size;
+
+    // The key for this node.
+    private final K key;
+
+    // The left subtree for this node.
+    private final Node<K,V> left;
+
+    // The right subtree for this node.
+    private final Node<K,V> right;
+
+    // The value for this node.
+    private final V value;
+
+
+
+    /**
+     * Creates a new node with the provided information.
+     *
+     * @param  key    The key for this node.
+     * @param  value  The value for this node.
+     * @param  left   The left subtree for this node.
+     * @param  right  The right subtree for this node.
+     */
+    private Node(final K key, final V value, final Node<K,V> left,
+                 final Node<K,V> right)
+    {
+      this.key   = key;
+      this.value = value;
+      this.left  = left;
+      this.right = right;
+
+      size = size(left) + size(right) + 1;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public K getKey()
+    {
+      return key;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public V getValue()
+    {
+      return value;
+    }
+
+
+
+    /**
+     * {@inheritDoc}  This method will always throw an
+     * {@code UnsupportedOperationException}.
+     */
+    @Override()
+    public V setValue(final V value)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public int hashCode()
+    {
+      return ((key == null) ? 0 : key.hashCode()) ^
+           ((value == null) ? 0 : value.hashCode());
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public boolean equals(final Object o)
+    {
+      if (! (o instanceof Map.Entry))
+      {
+        return false;
+      }
+
+      final Map.Entry<?,?> e = (Map.Entry<?,?>) o;
+      return ((key == null) ? (e.getKey() == null) : key.equals(e.getKey())) &&
+           ((value == null)
+                ? (e.getValue() == null)
+                : value.equals(e.getValue()));
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public String toString()
+    {
+      return key + "=" + value;
+    }
+  }
+
+
+
+  /**
+   * This class provides an iterator over the entries in a persistent sorted
+   * map.
+   *
+   * @param  <K>  The type of key used in the map.
+   * @param  <V>  The type of value used in the map.
+   */
+  private static final class EntryIterator<K,V>
+          implements Iterator<Map.Entry<K,V>>
+  {
+    // The nodes whose entries have not yet been returned, along with their
+    // right subtrees.  The next node to return is at the end of the list.
+    private final ArrayList<Node<K,V>> stack;
+
+
+
+    /**
+     * Creates a new iterator for the provided map.
+     *
+     * @param  map        The map over which to iterate.
+     * @param  fromKey    The key at which to start iterating, if appropriate.
+     * @param  inclusive  Indicates whether the entry with the provided key
+     *                    should be included.
+     * @param  useFromKey Indicates whether iteration should start at the
+     *                    provided key rather than at the smallest key.
+     */
+    private EntryIterator(final PersistentSortedMap<K,V> map, final K fromKey,
+                          final boolean inclusive, final boolean useFromKey)
+    {
+      stack = new ArrayList<Node<K,V>>(32);
+
+      Node<K,V> n = map.root;
+      while (n != null)
+      {
+        if (! useFromKey)
+        {
+          stack.add(n);
+          n = n.left;
+          continue;
+        }
+
+        final int c = map.compare(n.key, fromKey);
+        if ((c > 0) || ((c == 0) && inclusive))
+        {
+          stack.add(n);
+          n = n.left;
+        }
+        else
+        {
+          n = n.right;
+        }
+      }
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public boolean hasNext()
+    {
+      return (! stack.isEmpty());
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public Map.Entry<K,V> next()
+    {
+      if (stack.isEmpty())
+      {
+        throw new NoSuchElementException();
+      }
+
+      final Node<K,V> n = stack.remove(stack.size() - 1);
+      Node<K,V> c = n.right;
+      while (c != null)
+      {
+        stack.add(c);
+        c = c.left;
+      }
+
+      return n;
+    }
+
+
+
+    /**
+     * {@inheritDoc}  This method will always throw an
+     * {@code UnsupportedOperationException}.
+     */
+    @Override()
+    public void remove()
+    {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+
+
+  /**
+   * This class provides a read-only {@code Map} view of a persistent sorted
+   * map.
+   *
+   * @param  <K>  The type of key used in the map.
+   * @param  <V>  The type of value used in the map.
+   */
+  private static final class MapView<K,V>
+          extends AbstractMap<K,V>
+          implements Serializable
+  {
+    /**
+     * The serial version UID for this serializable class.
+     */
+    private static final long serialVersionUID = -7751496616383409127L;
+
+
+
+    // The map for which this view is provided.
+    private final PersistentSortedMap<K,V> map;
+
+
+
+    /**
+     * Creates a new view of the provided map.
+     *
+     * @param  map  The map for which to provide the view.
+     */
+    private MapView(final PersistentSortedMap<K,V> map)
+    {
+      this.map = map;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public int size()
+    {
+      return map.size();
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    @SuppressWarnings("unchecked")
+    public boolean containsKey(final Object key)
+    {
+      try
+      {
+        return map.containsKey((K) key);
+      }
+      catch (final ClassCastException cce)
+      {
+        Debug.debugException(cce);
+        return false;
+      }
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    @SuppressWarnings("unchecked")
+    public V get(final Object key)
+    {
+      try
+      {
+        return map.get((K) key);
+      }
+      catch (final ClassCastException cce)
+      {
+        Debug.debugException(cce);
+        return null;
+      }
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public Set<Map.Entry<K,V>> entrySet()
+    {
+      return new AbstractSet<Map.Entry<K,V>>()
+      {
+        @Override()
+        public Iterator<Map.Entry<K,V>> iterator()
+        {
+          return map.iterator();
+        }
+
+        @Override()
+        public int size()
+        {
+          return map.size();
+        }
+      };
+    }
+  }
+}
@@ -22,6 +22,7 @@ package com.unboundid.ldap.listener;
 
 
 
+import java.io.File;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -456,6 +457,22 @@ public final class ReadOnlyInMemoryDirectoryServerConfig
 
 
 
+  /**
+   * {@inheritDoc}  This method will always throw an
+   * {@code UnsupportedOperationException}.
+   *
+   * @throws  UnsupportedOperationException  To indicate that this object cannot
+   *                                         be altered.
+   */
+  @Override()
+  public void setAllowConcurrentReads(final boolean allowConcurrentReads)
+         throws UnsupportedOperationException
+  {
+    throw new UnsupportedOperationException();
+  }
+
+
+
   /**
    * {@inheritDoc}  This method will always throw an
    * {@code UnsupportedOperationException}.
@@ -472,6 +489,72 @@ public final class ReadOnlyInMemoryDirectoryServerConfig
 
 
 
+  /**
+   * {@inheritDoc}  This method will always throw an
+   * {@code UnsupportedOperationException}.
+   *
+   * @throws  UnsupportedOperationException  To indicate that this object cannot
+   *                                         be altered.
+   */
+  @Override()
+  public void setDataDirectory(final File dataDirectory)
+         throws UnsupportedOperationException
+  {
+    throw new UnsupportedOperationException();
+  }
+
+
+
+  /**
+   * {@inheritDoc}  This method will always throw an
+   * {@code UnsupportedOperationException}.
+   *
+   * @throws  UnsupportedOperationException  To indicate that this object cannot
+   *                                         be altered.
+   */
+  @Override()
+  public void setJournalSyncPolicy(
+                   final InMemoryJournalSyncPolicy journalSyncPolicy)
+         throws UnsupportedOperationException
+  {
+    throw new UnsupportedOperationException();
+  }
+
+
+
+  /**
+   * {@inheritDoc}  This method will always throw an
+   * {@code UnsupportedOperationException}.
+   *
+   * @throws  UnsupportedOperationException  To indicate that this object cannot
+   *                                         be altered.
+   */
+  @Override()
+  public void setEntryStorageMode(
+                   final InMemoryEntryStorageMode entryStorageMode)
+         throws UnsupportedOperationException
+  {
+    throw new UnsupportedOperationException();
+  }
+
+
+
+  /**
+   * {@inheritDoc}  This method will always throw an
+   * {@code UnsupportedOperationException}.
+   *
+   * @throws  UnsupportedOperationException  To indicate that this object cannot
+   *                                         be altered.
+   */
+  @Override()
+  public void setJournalSyncIntervalMillis(final long journalSyncIntervalMillis)
+         throws UnsupportedOperationException
+  {
+    throw new UnsupportedOperationException();
+  }
+
+
+
   /**
    * {@inheritDoc}  The returned list will not be modifiable.
    */
@@ -517,6 +600,168 @@ public final class ReadOnlyInMemoryDirectoryServerConfig
 
 
 
+  /**
+   * {@inheritDoc}  The returned list will not be modifiable.
+   */
+  @Override()
+  public List<String> getSubstringIndexAttributes()
+  {
+    return Collections.unmodifiableList(super.getSubstringIndexAttributes());
+  }
+
+
+
+  /**
+   * {@inheritDoc}  This method will always throw an
+   * {@code UnsupportedOperationException}.
+   *
+   * @throws  UnsupportedOperationException  To indicate that this object cannot
+   *                                         be altered.
+   */
+  @Override()
+  public void setSubstringIndexAttributes(
+                   final String... substringIndexAttributes)
+         throws UnsupportedOperationException
+  {
+    throw new UnsupportedOperationException();
+  }
+
+
+
+  /**
+   * {@inheritDoc}  This method will always throw an
+   * {@code UnsupportedOperationException}.
+   *
+   * @throws  UnsupportedOperationException  To indicate that this object cannot
+   *                                         be altered.
+   */
+  @Override()
+  public void setSubstringIndexAttributes(
+                   final Collection<String> substringIndexAttributes)
+         throws UnsupportedOperationException
+  {
+    throw new UnsupportedOperationException();
+  }
+
+
+
+  /**
+   * {@inheritDoc}  The returned list will not be modifiable.
+   */
+  @Override()
+  public List<String> getOrderingIndexAttributes()
+  {
+    return Collections.unmodifiableList(super.getOrderingIndexAttributes());
+  }
+
+
+
+  /**
+   * {@inheritDoc}  This method will always throw an
+   * {@code UnsupportedOperationException}.
+   *
+   * @throws  UnsupportedOperationException  To indicate that this object cannot
+   *                                         be altered.
+   */
+  @Override()
+  public void setOrderingIndexAttributes(
+                   final String... orderingIndexAttributes)
+         throws UnsupportedOperationException
+  {
+    throw new UnsupportedOperationException();
+  }
+
+
+
+  /**
+   * {@inheritDoc}  This method will always throw an
+   * {@code UnsupportedOperationException}.
+   *
+   * @throws  UnsupportedOperationException  To indicate that this object cannot
+   *                                         be altered.
+   */
+  @Override()
+  public void setOrderingIndexAttributes(
+                   final Collection<String> orderingIndexAttributes)
+         throws UnsupportedOperationException
+  {
+    throw new UnsupportedOperationException();
+  }
+
+
+
+  /**
+   * {@inheritDoc}  The returned list will not be modifiable.
+   */
+  @Override()
+  public List<String> getPresenceIndexAttributes()
+  {
+    return Collections.unmodifiableList(super.getPresenceIndexAttributes());
+  }
+
+
+
+  /**
+   * {@inheritDoc}  This method will always throw an
+   * {@code UnsupportedOperationException}.
+   *
+   * @throws  UnsupportedOperationException  To indicate that this object cannot
+   *                                         be altered.
+   */
+  @Override()
+  public void setPresenceIndexAttributes(
+                   final String... presenceIndexAttributes)
+         throws UnsupportedOperationException
+  {
+    throw new UnsupportedOperationException();
+  }
+
+
+
+  /**
+   * {@inheritDoc}  This method will always throw an
+   * {@code UnsupportedOperationException}.
+   *
+   * @throws  UnsupportedOperationException  To indicate that this object cannot
+   *                                         be altered.
+   */
+  @Override()
+  public void setPresenceIndexAttributes(
+                   final Collection<String> presenceIndexAttributes)
+         throws UnsupportedOperationException
+  {
+    throw new UnsupportedOperationException();
+  }
+
+
+
+  /**
+   * {@inheritDoc}  The returned list will not be modifiable.
+   */
+  @Override()
+  public List<InMemoryVLVIndexConfig> getVLVIndexes()
+  {
+    return Collections.unmodifiableList(super.getVLVIndexes());
+  }
+
+
+
+  /**
+   * {@inheritDoc}  This method will always throw an
+   * {@code UnsupportedOperationException}.
+   *
+   * @throws  UnsupportedOperationException  To indicate that this object cannot
+   *                                         be altered.
+   */
+  @Override()
+  public void addVLVIndex(final InMemoryVLVIndexConfig vlvIndex)
+         throws UnsupportedOperationException
+  {
+    throw new UnsupportedOperationException();
+  }
+
+
+
   /**
    * {@inheritDoc}  The returned set will not be modifiable.
    */
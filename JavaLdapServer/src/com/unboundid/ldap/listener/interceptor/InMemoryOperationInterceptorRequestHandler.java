@@ -822,6 +822,13 @@ public final class InMemoryOperationInterceptorRequestHandler
            messageID,
            new SearchRequestProtocolOp((SearchRequest) op.getRequest()),
            op.getRequest().getControlList());
+      if (resultMessage == null)
+      {
+        // The search was abandoned or remains active as a persistent search,
+        // so there is no result to intercept.
+        return null;
+      }
+
       op.setResult(resultMessage.getSearchResultDoneProtocolOp().toLDAPResult(
            toArray(resultMessage.getControls())));
       for (final InMemoryOperationInterceptor i : interceptors)
@@ -128,6 +128,10 @@ public final class Attribute
   // The set of values for this attribute.
   private final ASN1OctetString[] values;
 
+  // The normalized representations of the values for this attribute, if they
+  // have been requested.
+  private transient volatile ASN1OctetString[] normalizedValues;
+
   // The hash code for this attribute.
   private int hashCode = -1;
 
@@ -447,6 +451,30 @@ public final class Attribute
 
 
 
+  /**
+   * Creates a new LDAP attribute with the specified name and set of values,
+   * along with the normalized representations of those values.
+   *
+   * @param  name              The name for this attribute.
+   * @param  matchingRule      The matching rule for this attribute.
+   * @param  values            The set of values for this attribute.
+   * @param  normalizedValues  The normalized representations of the values,
+   *                           as would be returned by the
+   *                           {@link #getNormalizedValues()} method.  Each of
+   *                           them must have been fully materialized.
+   */
+  Attribute(final String name, final MatchingRule matchingRule,
+            final ASN1OctetString[] values,
+            final ASN1OctetString[] normalizedValues)
+  {
+    this.name             = name;
+    this.matchingRule     = matchingRule;
+    this.values           = values;
+    this.normalizedValues = normalizedValues;
+  }
+
+
+
   /**
    * Creates a new LDAP attribute with the specified name and set of values.
    *
@@ -1227,6 +1255,67 @@ public final class Attribute
 
 
 
+  /**
+   * Retrieves the normalized representations of the values for this attribute,
+   * as determined by its matching rule.  They will be computed the first time
+   * this method is invoked and retained for the life of this attribute, so that
+   * subsequent attempts to determine whether this attribute has a given value
+   * (including evaluating a {@link CompiledFilter} against an entry containing
+   * this attribute) can compare normalized values directly rather than
+   * normalizing each value again.  This is primarily intended for attributes
+   * that will be held and examined many times, as it increases the amount of
+   * memory required for the attribute.  The returned array must not be altered
+   * by the caller.
+   *
+   * @return  The normalized representations of the values for this attribute,
+   *          in the same order as the values returned by
+   *          {@link #getRawValues()}.  Any element that corresponds to a value
+   *          that cannot be normalized will be {@code null}.
+   */
+  public ASN1OctetString[] getNormalizedValues()
+  {
+    ASN1OctetString[] normValues = normalizedValues;
+    if (normValues == null)
+    {
+      normValues = new ASN1OctetString[values.length];
+      for (int i=0; i < values.length; i++)
+      {
+        try
+        {
+          // Make sure that the bytes of each normalized value have been fully
+          // materialized, since they may be accessed by multiple threads.
+          normValues[i] = new ASN1OctetString(
+               matchingRule.normalize(values[i]).getValue());
+        }
+        catch (final LDAPException le)
+        {
+          debugException(le);
+          normValues[i] = null;
+        }
+      }
+
+      normalizedValues = normValues;
+    }
+
+    return normValues;
+  }
+
+
+
+  /**
+   * Retrieves the normalized representations of the values for this attribute
+   * if they have already been computed by {@link #getNormalizedValues()}.
+   *
+   * @return  The normalized representations of the values for this attribute,
+   *          or {@code null} if they have not been computed.
+   */
+  ASN1OctetString[] getCachedNormalizedValues()
+  {
+    return normalizedValues;
+  }
+
+
+
   /**
    * Indicates whether this attribute contains at least one value.
    *
@@ -1344,6 +1433,43 @@ public final class Attribute
    */
   boolean hasValue(final ASN1OctetString value, final MatchingRule matchingRule)
   {
+    final ASN1OctetString[] normValues = normalizedValues;
+    if ((normValues != null) && (matchingRule == this.matchingRule))
+    {
+      ASN1OctetString normValue;
+      try
+      {
+        normValue = matchingRule.normalize(value);
+      }
+      catch (final LDAPException le)
+      {
+        debugException(le);
+        normValue = null;
+      }
+
+      if (normValue != null)
+      {
+        for (int i=0; i < values.length; i++)
+        {
+          if (normValues[i] == null)
+          {
+            // The existing value cannot be normalized, but we'll still
+            // consider it a match if the values are exactly the same.
+            if (values[i].equals(value))
+            {
+              return true;
+            }
+          }
+          else if (normValues[i].equalsIgnoreType(normValue))
+          {
+            return true;
+          }
+        }
+
+        return false;
+      }
+    }
+
     for (final ASN1OctetString existingValue : values)
     {
       try
@@ -1650,16 +1776,24 @@ public final class Attribute
     {
       int c = toLowerCase(name).hashCode();
 
-      for (final ASN1OctetString value : values)
+      final ASN1OctetString[] normValues = normalizedValues;
+      for (int i=0; i < values.length; i++)
       {
-        try
+        if ((normValues != null) && (normValues[i] != null))
         {
-          c += matchingRule.normalize(value).hashCode();
+          c += normValues[i].hashCode();
         }
-        catch (LDAPException le)
+        else
         {
-          debugException(le);
-          c += value.hashCode();
+          try
+          {
+            c += matchingRule.normalize(values[i]).hashCode();
+          }
+          catch (LDAPException le)
+          {
+            debugException(le);
+            c += values[i].hashCode();
+          }
         }
       }
 
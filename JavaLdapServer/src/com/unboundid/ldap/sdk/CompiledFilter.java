@@ -0,0 +1,679 @@
+/*
+ * Copyright 2014 UnboundID Corp.
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2014 UnboundID Corp.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+package com.unboundid.ldap.sdk;
+
+
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.matchingrules.MatchingRule;
+import com.unboundid.ldap.sdk.schema.AttributeTypeDefinition;
+import com.unboundid.ldap.sdk.schema.Schema;
+import com.unboundid.util.NotMutable;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+import static com.unboundid.ldap.sdk.LDAPMessages.*;
+import static com.unboundid.util.Debug.*;
+import static com.unboundid.util.StaticUtils.*;
+import static com.unboundid.util.Validator.*;
+
+
+
+/**
+ * This class provides a form of a search filter that has been prepared for
+ * evaluating against a large number of entries.  The
+ * {@link Filter#matchesEntry(Entry,Schema)} method needs to look up the
+ * attribute type for each filter component in the schema, select the
+ * appropriate matching rule, and normalize the assertion value every time it
+ * is invoked.  A compiled filter does all of that once when it is created, so
+ * that determining whether an entry matches only requires examining the values
+ * of the targeted attributes in that entry.
+ * <BR><BR>
+ * A compiled filter will yield exactly the same results as the filter from
+ * which it was created when used with the same schema, including the cases in
+ * which an exception would be thrown.  It is not tied to any particular entry
+ * and may be safely used by multiple threads at once.
+ * <BR><BR>
+ * <H2>Example</H2>
+ * The following example demonstrates the process for using a compiled filter
+ * to identify the entries in a collection that match a given filter:
+ * <PRE>
+ *   CompiledFilter compiledFilter = CompiledFilter.compile(
+ *        Filter.create("(&amp;(objectClass=person)(sn=Doe))"), schema);
+ *
+ *   List&lt;Entry&gt; matchingEntries = new ArrayList&lt;Entry&gt;();
+ *   for (Entry e : entries)
+ *   {
+ *     if (compiledFilter.matchesEntry(e))
+ *     {
+ *       matchingEntries.add(e);
+ *     }
+ *   }
+ * </PRE>
+ */
+@NotMutable()
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public final class CompiledFilter
+{
+  /**
+   * An empty array of compiled filters.
+   */
+  private static final CompiledFilter[] NO_COMPONENTS = new CompiledFilter[0];
+
+
+
+  // The normalized assertion value for this filter, if appropriate.
+  private final ASN1OctetString assertionValue;
+
+  // The normalized subFinal component for this filter, if appropriate.
+  private final ASN1OctetString subFinal;
+
+  // The normalized subInitial component for this filter, if appropriate.
+  private final ASN1OctetString subInitial;
+
+  // The normalized subAny components for this filter, if appropriate.
+  private final ASN1OctetString[] subAny;
+
+  // The attribute type definition for the targeted attribute, if available.
+  private final AttributeTypeDefinition attributeType;
+
+  // The compiled NOT component for this filter, if appropriate.
+  private final CompiledFilter notComp;
+
+  // The compiled AND or OR components for this filter, if appropriate.
+  private final CompiledFilter[] filterComps;
+
+  // The filter from which this compiled filter was created.
+  private final Filter filter;
+
+  // An exception encountered while preparing the assertion value, if any.  It
+  // will be thrown when evaluating an entry that has the targeted attribute,
+  // which is when the original filter would have encountered it.
+  private final LDAPException assertionException;
+
+  // The matching rule to use for this filter, if appropriate.
+  private final MatchingRule matchingRule;
+
+  // The schema used to compile this filter.
+  private final Schema schema;
+
+  // The keys that may be used to retrieve the targeted attribute from an entry,
+  // in the order in which they should be tried.
+  private final String[] attributeKeys;
+
+  // The keys for all attributes that may be examined by this filter or any of
+  // its components.
+  private final Set<String> targetedAttributeKeys;
+
+
+
+  /**
+   * Creates a new compiled filter from the provided filter.
+   *
+   * @param  filter  The filter to compile.  It must not be {@code null}.
+   * @param  schema  The schema to use when compiling the filter.  It may be
+   *                 {@code null} if no schema is available.
+   */
+  private CompiledFilter(final Filter filter, final Schema schema)
+  {
+    this.filter = filter;
+    this.schema = schema;
+
+    final byte filterType = filter.getFilterType();
+    switch (filterType)
+    {
+      case Filter.FILTER_TYPE_AND:
+      case Filter.FILTER_TYPE_OR:
+        final Filter[] comps = filter.getComponents();
+        filterComps = new CompiledFilter[comps.length];
+        for (int i=0; i < comps.length; i++)
+        {
+          filterComps[i] = new CompiledFilter(comps[i], schema);
+        }
+        notComp = null;
+        break;
+
+      case Filter.FILTER_TYPE_NOT:
+        filterComps = NO_COMPONENTS;
+        notComp = new CompiledFilter(filter.getNOTComponent(), schema);
+        break;
+
+      default:
+        filterComps = NO_COMPONENTS;
+        notComp = null;
+        break;
+    }
+
+    switch (filterType)
+    {
+      case Filter.FILTER_TYPE_EQUALITY:
+      case Filter.FILTER_TYPE_SUBSTRING:
+      case Filter.FILTER_TYPE_GREATER_OR_EQUAL:
+      case Filter.FILTER_TYPE_LESS_OR_EQUAL:
+      case Filter.FILTER_TYPE_PRESENCE:
+        final String attrName = filter.getAttributeName();
+        attributeType = getAttributeType(attrName, schema);
+        attributeKeys = getAttributeKeys(attrName, attributeType);
+        break;
+
+      default:
+        attributeType = null;
+        attributeKeys = null;
+        break;
+    }
+
+    switch (filterType)
+    {
+      case Filter.FILTER_TYPE_EQUALITY:
+        matchingRule = MatchingRule.selectEqualityMatchingRule(
+             filter.getAttributeName(), schema);
+        break;
+
+      case Filter.FILTER_TYPE_SUBSTRING:
+        matchingRule = MatchingRule.selectSubstringMatchingRule(
+             filter.getAttributeName(), schema);
+        break;
+
+      case Filter.FILTER_TYPE_GREATER_OR_EQUAL:
+      case Filter.FILTER_TYPE_LESS_OR_EQUAL:
+        matchingRule = MatchingRule.selectOrderingMatchingRule(
+             filter.getAttributeName(), schema);
+        break;
+
+      default:
+        matchingRule = null;
+        break;
+    }
+
+    // Normalizing a value that has already been normalized does not alter it,
+    // so the matching rule will treat the normalized forms of the assertion
+    // components in the same way as the original forms.
+    ASN1OctetString normAssertionValue = null;
+    ASN1OctetString normSubInitial = null;
+    ASN1OctetString[] normSubAny = null;
+    ASN1OctetString normSubFinal = null;
+    LDAPException exception = null;
+    try
+    {
+      switch (filterType)
+      {
+        case Filter.FILTER_TYPE_EQUALITY:
+        case Filter.FILTER_TYPE_GREATER_OR_EQUAL:
+        case Filter.FILTER_TYPE_LESS_OR_EQUAL:
+          normAssertionValue =
+               matchingRule.normalize(filter.getRawAssertionValue());
+          break;
+
+        case Filter.FILTER_TYPE_SUBSTRING:
+          final ASN1OctetString rawSubInitial = filter.getRawSubInitialValue();
+          if (rawSubInitial != null)
+          {
+            normSubInitial = matchingRule.normalizeSubstring(rawSubInitial,
+                 MatchingRule.SUBSTRING_TYPE_SUBINITIAL);
+          }
+
+          final ASN1OctetString[] rawSubAny = filter.getRawSubAnyValues();
+          normSubAny = new ASN1OctetString[rawSubAny.length];
+          for (int i=0; i < rawSubAny.length; i++)
+          {
+            normSubAny[i] = matchingRule.normalizeSubstring(rawSubAny[i],
+                 MatchingRule.SUBSTRING_TYPE_SUBANY);
+          }
+
+          final ASN1OctetString rawSubFinal = filter.getRawSubFinalValue();
+          if (rawSubFinal != null)
+          {
+            normSubFinal = matchingRule.normalizeSubstring(rawSubFinal,
+                 MatchingRule.SUBSTRING_TYPE_SUBFINAL);
+          }
+          break;
+      }
+    }
+    catch (final LDAPException le)
+    {
+      debugException(le);
+      exception = le;
+    }
+
+    assertionValue     = normAssertionValue;
+    subInitial         = normSubInitial;
+    subAny             = normSubAny;
+    subFinal           = normSubFinal;
+    assertionException = exception;
+
+    final LinkedHashSet<String> keySet = new LinkedHashSet<String>(10);
+    if (attributeKeys != null)
+    {
+      for (final String key : attributeKeys)
+      {
+        keySet.add(key);
+      }
+    }
+
+    for (final CompiledFilter f : filterComps)
+    {
+      keySet.addAll(f.targetedAttributeKeys);
+    }
+
+    if (notComp != null)
+    {
+      keySet.addAll(notComp.targetedAttributeKeys);
+    }
+
+    targetedAttributeKeys = Collections.unmodifiableSet(keySet);
+  }
+
+
+
+  /**
+   * Creates a compiled form of the provided filter.
+   *
+   * @param  filter  The filter to compile.  It must not be {@code null}.
+   * @param  schema  The schema to use to determine the attribute types and
+   *                 matching rules for the filter.  It may be {@code null} if
+   *                 no schema is available, in which case all matching will be
+   *                 performed using a case-ignore matching rule.
+   *
+   * @return  The compiled form of the provided filter.
+   */
+  public static CompiledFilter compile(final Filter filter,
+                                       final Schema schema)
+  {
+    ensureNotNull(filter);
+
+    return new CompiledFilter(filter, schema);
+  }
+
+
+
+  /**
+   * Retrieves the attribute type definition for the specified attribute.
+   *
+   * @param  attrName  The name of the attribute, optionally including
+   *                   attribute options.
+   * @param  schema    The schema to examine.  It may be {@code null}.
+   *
+   * @return  The attribute type definition for the specified attribute, or
+   *          {@code null} if it is not available.
+   */
+  private static AttributeTypeDefinition getAttributeType(
+                                              final String attrName,
+                                              final Schema schema)
+  {
+    if (schema == null)
+    {
+      return null;
+    }
+
+    final int semicolonPos = attrName.indexOf(';');
+    if (semicolonPos > 0)
+    {
+      return schema.getAttributeType(attrName.substring(0, semicolonPos));
+    }
+    else
+    {
+      return schema.getAttributeType(attrName);
+    }
+  }
+
+
+
+  /**
+   * Retrieves the keys that may be used to retrieve the specified attribute
+   * from an entry, in the order that {@link Entry#getAttribute(String,Schema)}
+   * would try them.
+   *
+   * @param  attrName       The name of the attribute, optionally including
+   *                        attribute options.
+   * @param  attributeType  The attribute type definition for the attribute, or
+   *                        {@code null} if it is not available.
+   *
+   * @return  The keys that may be used to retrieve the specified attribute.
+   */
+  private static String[] getAttributeKeys(final String attrName,
+                               final AttributeTypeDefinition attributeType)
+  {
+    if (attributeType == null)
+    {
+      return new String[] { toLowerCase(attrName) };
+    }
+
+    final String options;
+    final int semicolonPos = attrName.indexOf(';');
+    if (semicolonPos > 0)
+    {
+      options = toLowerCase(attrName.substring(semicolonPos));
+    }
+    else
+    {
+      options = "";
+    }
+
+    final String[] names = attributeType.getNames();
+    final String[] keys = new String[names.length + 2];
+    keys[0] = toLowerCase(attrName);
+    keys[1] = toLowerCase(attributeType.getOID() + options);
+    for (int i=0; i < names.length; i++)
+    {
+      keys[i+2] = toLowerCase(names[i]) + options;
+    }
+
+    return keys;
+  }
+
+
+
+  /**
+   * Retrieves the filter from which this compiled filter was created.
+   *
+   * @return  The filter from which this compiled filter was created.
+   */
+  public Filter getFilter()
+  {
+    return filter;
+  }
+
+
+
+  /**
+   * Retrieves the schema that was used to compile this filter.
+   *
+   * @return  The schema that was used to compile this filter, or {@code null}
+   *          if no schema was used.
+   */
+  public Schema getSchema()
+  {
+    return schema;
+  }
+
+
+
+  /**
+   * Retrieves the attribute type definition for the attribute targeted by this
+   * filter, if applicable.
+   *
+   * @return  The attribute type definition for the attribute targeted by this
+   *          filter, or {@code null} if this filter does not target a specific
+   *          attribute or if the attribute type is not defined in the schema.
+   */
+  public AttributeTypeDefinition getAttributeType()
+  {
+    return attributeType;
+  }
+
+
+
+  /**
+   * Retrieves the matching rule that will be used to evaluate this filter, if
+   * applicable.
+   *
+   * @return  The matching rule that will be used to evaluate this filter, or
+   *          {@code null} if this filter is not evaluated using a matching
+   *          rule.
+   */
+  public MatchingRule getMatchingRule()
+  {
+    return matchingRule;
+  }
+
+
+
+  /**
+   * Retrieves the keys for all of the attributes that may be examined when
+   * evaluating this filter against an entry.  Each key is the lowercase form of
+   * an attribute name, OID, or alternate name for the attribute type, along
+   * with any attribute options.  An entry that contains only those of its
+   * attributes whose lowercase names are in this set will yield the same
+   * result from the {@link #matchesEntry} method as the complete entry, which
+   * allows a filter to be evaluated without fully decoding an entry.
+   *
+   * @return  The keys for all of the attributes that may be examined when
+   *          evaluating this filter against an entry.
+   */
+  public Set<String> getTargetedAttributeKeys()
+  {
+    return targetedAttributeKeys;
+  }
+
+
+
+  /**
+   * Indicates whether this filter matches the provided entry.  This will yield
+   * the same result as the {@link Filter#matchesEntry(Entry,Schema)} method
+   * for the filter and schema used to create this compiled filter.
+   *
+   * @param  entry  The entry for which to make the determination.  It must not
+   *                be {@code null}.
+   *
+   * @return  {@code true} if this filter appears to match the provided entry,
+   *          or {@code false} if not.
+   *
+   * @throws  LDAPException  If a problem occurs while trying to make the
+   *                         determination.
+   */
+  public boolean matchesEntry(final Entry entry)
+         throws LDAPException
+  {
+    ensureNotNull(entry);
+
+    switch (filter.getFilterType())
+    {
+      case Filter.FILTER_TYPE_AND:
+        for (final CompiledFilter f : filterComps)
+        {
+          if (! f.matchesEntry(entry))
+          {
+            return false;
+          }
+        }
+        return true;
+
+      case Filter.FILTER_TYPE_OR:
+        for (final CompiledFilter f : filterComps)
+        {
+          if (f.matchesEntry(entry))
+          {
+            return true;
+          }
+        }
+        return false;
+
+      case Filter.FILTER_TYPE_NOT:
+        return (! notComp.matchesEntry(entry));
+
+      case Filter.FILTER_TYPE_EQUALITY:
+        Attribute a = getAttribute(entry);
+        if ((a == null) || (! a.hasValue()))
+        {
+          return false;
+        }
+        else if (assertionException != null)
+        {
+          throw assertionException;
+        }
+
+        // If the attribute has retained the normalized forms of its values for
+        // the same matching rule, then they can be compared directly.
+        final ASN1OctetString[] rawValues = a.getRawValues();
+        final ASN1OctetString[] normValues = a.getCachedNormalizedValues();
+        if ((normValues != null) && (a.getMatchingRule() == matchingRule))
+        {
+          for (int i=0; i < rawValues.length; i++)
+          {
+            if (normValues[i] == null)
+            {
+              if (matchingRule.valuesMatch(rawValues[i], assertionValue))
+              {
+                return true;
+              }
+            }
+            else if (normValues[i].equalsIgnoreType(assertionValue))
+            {
+              return true;
+            }
+          }
+          return false;
+        }
+
+        for (final ASN1OctetString v : rawValues)
+        {
+          if (matchingRule.valuesMatch(v, assertionValue))
+          {
+            return true;
+          }
+        }
+        return false;
+
+      case Filter.FILTER_TYPE_SUBSTRING:
+        a = getAttribute(entry);
+        if ((a == null) || (! a.hasValue()))
+        {
+          return false;
+        }
+        else if (assertionException != null)
+        {
+          throw assertionException;
+        }
+
+        for (final ASN1OctetString v : a.getRawValues())
+        {
+          if (matchingRule.matchesSubstring(v, subInitial, subAny, subFinal))
+          {
+            return true;
+          }
+        }
+        return false;
+
+      case Filter.FILTER_TYPE_GREATER_OR_EQUAL:
+        a = getAttribute(entry);
+        if ((a == null) || (! a.hasValue()))
+        {
+          return false;
+        }
+        else if (assertionException != null)
+        {
+          throw assertionException;
+        }
+
+        for (final ASN1OctetString v : a.getRawValues())
+        {
+          if (matchingRule.compareValues(v, assertionValue) >= 0)
+          {
+            return true;
+          }
+        }
+        return false;
+
+      case Filter.FILTER_TYPE_LESS_OR_EQUAL:
+        a = getAttribute(entry);
+        if ((a == null) || (! a.hasValue()))
+        {
+          return false;
+        }
+        else if (assertionException != null)
+        {
+          throw assertionException;
+        }
+
+        for (final ASN1OctetString v : a.getRawValues())
+        {
+          if (matchingRule.compareValues(v, assertionValue) <= 0)
+          {
+            return true;
+          }
+        }
+        return false;
+
+      case Filter.FILTER_TYPE_PRESENCE:
+        // Presence filters are evaluated using the entry's own schema, so the
+        // precomputed keys can only be used if it is the one used to compile
+        // this filter.
+        if (entry.getSchema() == schema)
+        {
+          for (final String key : attributeKeys)
+          {
+            if (entry.getAttributeForKey(key) != null)
+            {
+              return true;
+            }
+          }
+          return false;
+        }
+        else
+        {
+          return entry.hasAttribute(filter.getAttributeName());
+        }
+
+      case Filter.FILTER_TYPE_APPROXIMATE_MATCH:
+        throw new LDAPException(ResultCode.NOT_SUPPORTED,
+             ERR_FILTER_APPROXIMATE_MATCHING_NOT_SUPPORTED.get());
+
+      case Filter.FILTER_TYPE_EXTENSIBLE_MATCH:
+        throw new LDAPException(ResultCode.NOT_SUPPORTED,
+             ERR_FILTER_EXTENSIBLE_MATCHING_NOT_SUPPORTED.get());
+
+      default:
+        throw new LDAPException(ResultCode.PARAM_ERROR,
+                                ERR_FILTER_INVALID_TYPE.get());
+    }
+  }
+
+
+
+  /**
+   * Retrieves the attribute targeted by this filter from the provided entry.
+   *
+   * @param  entry  The entry from which to retrieve the attribute.
+   *
+   * @return  The targeted attribute, or {@code null} if the entry does not
+   *          include it.
+   */
+  private Attribute getAttribute(final Entry entry)
+  {
+    for (final String key : attributeKeys)
+    {
+      final Attribute a = entry.getAttributeForKey(key);
+      if (a != null)
+      {
+        return a;
+      }
+    }
+
+    return null;
+  }
+
+
+
+  /**
+   * Retrieves a string representation of this compiled filter.
+   *
+   * @return  A string representation of this compiled filter.
+   */
+  @Override()
+  public String toString()
+  {
+    return filter.toString();
+  }
+}
@@ -22,6 +22,8 @@ package com.unboundid.ldap.sdk;
 
 
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Comparator;
@@ -132,6 +134,17 @@ public final class DN
 
 
 
+  // The parent DN from which this DN was created, if any.  DNs created below
+  // a common parent share its RDN components, which allows the parent to be
+  // retrieved without creating a new DN and allows comparisons between such
+  // DNs to skip over the components they share.  It is not serialized, so a
+  // deserialized DN will create its parent from its RDN components when it is
+  // needed, just like a DN created from a string.
+  private final transient DN parentDN;
+
+  // The hash code for this DN, or zero if it has not yet been computed.
+  private transient int hashCode;
+
   // The set of RDN components that make up this DN.
   private final RDN[] rdns;
 
@@ -139,8 +152,9 @@ public final class DN
   // DN, if any.
   private final Schema schema;
 
-  // The string representation of this DN.
-  private final String dnString;
+  // The string representation of this DN.  It will be constructed on demand
+  // for a DN created below a parent DN.
+  private volatile String dnString;
 
   // The normalized string representation of this DN.
   private volatile String normalizedString;
@@ -156,6 +170,7 @@ public final class DN
   {
     ensureNotNull(rdns);
 
+    parentDN  = null;
     this.rdns = rdns;
     if (rdns.length == 0)
     {
@@ -197,6 +212,7 @@ public final class DN
   {
     ensureNotNull(rdns);
 
+    parentDN = null;
     if (rdns.isEmpty())
     {
       this.rdns        = NO_RDNS;
@@ -232,7 +248,11 @@ public final class DN
 
 
   /**
-   * Creates a new DN below the provided parent DN with the given RDN.
+   * Creates a new DN below the provided parent DN with the given RDN.  The new
+   * DN will share the RDN components of the parent DN and will retain a
+   * reference to it, so creating all of the DNs in a hierarchy from the DNs of
+   * their parents allows them to share the components they have in common,
+   * and makes comparing them and retrieving their parents less expensive.
    *
    * @param  rdn       The RDN for the new DN.  It must not be {@code null}.
    * @param  parentDN  The parent DN for the new DN to create.  It must not be
@@ -246,24 +266,25 @@ public final class DN
     rdns[0] = rdn;
     System.arraycopy(parentDN.rdns, 0, rdns, 1, parentDN.rdns.length);
 
-    Schema s = null;
-    final StringBuilder buffer = new StringBuilder();
-    for (final RDN r : rdns)
+    if (parentDN.rdns.length == 0)
     {
-      if (buffer.length() > 0)
-      {
-        buffer.append(',');
-      }
-      r.toString(buffer, false);
+      this.parentDN = null;
+    }
+    else
+    {
+      this.parentDN = parentDN;
+    }
 
-      if (s == null)
-      {
-        s = r.getSchema();
-      }
+    if (rdn.getSchema() == null)
+    {
+      schema = parentDN.schema;
+    }
+    else
+    {
+      schema = rdn.getSchema();
     }
 
-    dnString = buffer.toString();
-    schema   = s;
+    dnString = null;
   }
 
 
@@ -304,6 +325,7 @@ public final class DN
 
     this.dnString = dnString;
     this.schema   = schema;
+    parentDN      = null;
 
     final ArrayList<RDN> rdnList = new ArrayList<RDN>(5);
 
@@ -845,6 +867,24 @@ rdnLoop:
 
 
 
+  /**
+   * Writes this DN to the provided stream.  The string representation will be
+   * constructed first if necessary, so that the serialized form always
+   * includes it.
+   *
+   * @param  outputStream  The stream to which this DN should be written.
+   *
+   * @throws  IOException  If a problem occurs while writing this DN.
+   */
+  private void writeObject(final ObjectOutputStream outputStream)
+          throws IOException
+  {
+    toString();
+    outputStream.defaultWriteObject();
+  }
+
+
+
   /**
    * Retrieves the DN that is the parent for this DN.  Note that neither the
    * null DN nor DNs consisting of a single RDN component will be considered to
@@ -855,6 +895,11 @@ rdnLoop:
    */
   public DN getParent()
   {
+    if (parentDN != null)
+    {
+      return parentDN;
+    }
+
     switch (rdns.length)
     {
       case 0:
@@ -987,7 +1032,9 @@ rdnLoop:
 
     while (thisPos >= 0)
     {
-      if (! rdns[thisPos--].equals(dn.rdns[thatPos--]))
+      final RDN thisRDN = rdns[thisPos--];
+      final RDN thatRDN = dn.rdns[thatPos--];
+      if ((thisRDN != thatRDN) && (! thisRDN.equals(thatRDN)))
       {
         return false;
       }
@@ -1098,7 +1145,9 @@ rdnLoop:
 
     while (thatPos >= 0)
     {
-      if (! rdns[thisPos--].equals(dn.rdns[thatPos--]))
+      final RDN thisRDN = rdns[thisPos--];
+      final RDN thatRDN = dn.rdns[thatPos--];
+      if ((thisRDN != thatRDN) && (! thisRDN.equals(thatRDN)))
       {
         return false;
       }
@@ -1228,7 +1277,7 @@ rdnLoop:
 
       default:
         throw new LDAPException(ResultCode.PARAM_ERROR,
-             ERR_DN_MATCHES_UNSUPPORTED_SCOPE.get(dnString,
+             ERR_DN_MATCHES_UNSUPPORTED_SCOPE.get(toString(),
                   String.valueOf(scope)));
     }
   }
@@ -1237,13 +1286,34 @@ rdnLoop:
 
 
   /**
-   * Generates a hash code for this DN.
+   * Generates a hash code for this DN.  It is computed from the hash codes of
+   * the RDN components the first time it is needed, starting with the
+   * outermost component, so the hash code for a DN created below a parent DN
+   * only requires the hash codes of the parent DN and the new RDN.
    *
    * @return  The generated hash code for this DN.
    */
   @Override() public int hashCode()
   {
-    return toNormalizedString().hashCode();
+    int h = hashCode;
+    if (h == 0)
+    {
+      if (parentDN == null)
+      {
+        for (int i=rdns.length-1; i >= 0; i--)
+        {
+          h = (31 * h) + rdns[i].hashCode();
+        }
+      }
+      else
+      {
+        h = (31 * parentDN.hashCode()) + rdns[0].hashCode();
+      }
+
+      hashCode = h;
+    }
+
+    return h;
   }
 
 
@@ -1276,8 +1346,43 @@ rdnLoop:
       return false;
     }
 
+    // Compare the RDN components starting with the innermost one, since DNs
+    // that differ are most likely to differ there, and stop as soon as the
+    // remaining components are shared by both DNs.
     final DN dn = (DN) o;
-    return (toNormalizedString().equals(dn.toNormalizedString()));
+    if ((rdns.length != dn.rdns.length) || (hashCode() != dn.hashCode()))
+    {
+      return false;
+    }
+
+    DN suffix1 = this;
+    DN suffix2 = dn;
+    for (int i=0; i < rdns.length; i++)
+    {
+      if ((suffix1 != null) && (suffix1 == suffix2))
+      {
+        return true;
+      }
+
+      final RDN rdn1 = rdns[i];
+      final RDN rdn2 = dn.rdns[i];
+      if ((rdn1 != rdn2) && (! rdn1.equals(rdn2)))
+      {
+        return false;
+      }
+
+      if (suffix1 != null)
+      {
+        suffix1 = suffix1.parentDN;
+      }
+
+      if (suffix2 != null)
+      {
+        suffix2 = suffix2.parentDN;
+      }
+    }
+
+    return true;
   }
 
 
@@ -1336,7 +1441,16 @@ rdnLoop:
   @Override()
   public String toString()
   {
-    return dnString;
+    String s = dnString;
+    if (s == null)
+    {
+      final StringBuilder buffer = new StringBuilder();
+      toString(buffer, false);
+      s = buffer.toString();
+      dnString = s;
+    }
+
+    return s;
   }
 
 
@@ -1520,6 +1634,11 @@ rdnLoop:
   {
     ensureNotNull(dn1, dn2);
 
+    if (dn1 == dn2)
+    {
+      return 0;
+    }
+
     // We want the comparison to be in reverse order, so that DNs will be sorted
     // hierarchically.
     int pos1 = dn1.rdns.length - 1;
@@ -1547,10 +1666,17 @@ rdnLoop:
 
     while ((pos1 >= 0) && (pos2 >= 0))
     {
-      final int compValue = dn1.rdns[pos1].compareTo(dn2.rdns[pos2]);
-      if (compValue != 0)
+      // Components shared by both DNs (e.g., because they were created below
+      // the same parent DN) do not need to be compared.
+      final RDN rdn1 = dn1.rdns[pos1];
+      final RDN rdn2 = dn2.rdns[pos2];
+      if (rdn1 != rdn2)
       {
-        return compValue;
+        final int compValue = rdn1.compareTo(rdn2);
+        if (compValue != 0)
+        {
+          return compValue;
+        }
       }
 
       pos1--;
@@ -371,6 +371,39 @@ public class Entry
 
 
 
+  /**
+   * Creates a new entry with the same DN and schema as the provided entry but
+   * with the given set of attributes.  The provided map will be used directly
+   * rather than copied.
+   *
+   * @param  entry       The entry whose DN and schema should be used.
+   * @param  parsedDN    The parsed DN to use for this entry.  It must be equal
+   *                     to the DN of the provided entry.  It may be
+   *                     {@code null} if the parsed DN of the provided entry
+   *                     should be used.
+   * @param  attributes  The attributes for this entry, mapped from the
+   *                     lowercase representations of their names.
+   */
+  Entry(final Entry entry, final DN parsedDN,
+        final LinkedHashMap<String,Attribute> attributes)
+  {
+    dn     = entry.dn;
+    schema = entry.schema;
+
+    if (parsedDN == null)
+    {
+      this.parsedDN = entry.parsedDN;
+    }
+    else
+    {
+      this.parsedDN = parsedDN;
+    }
+
+    this.attributes = attributes;
+  }
+
+
+
   /**
    * Creates a new entry from the provided LDIF representation.
    *
@@ -857,6 +890,25 @@ public class Entry
 
 
 
+  /**
+   * Retrieves the attribute stored in this entry with the provided key, without
+   * any attempt to normalize the key or use the schema to identify alternate
+   * names for the attribute.
+   *
+   * @param  key  The key for the attribute to retrieve.  It must be the
+   *              all-lowercase name of the attribute, including any attribute
+   *              options.
+   *
+   * @return  The requested attribute from this entry, or {@code null} if there
+   *          is no attribute with the provided key.
+   */
+  final Attribute getAttributeForKey(final String key)
+  {
+    return attributes.get(key);
+  }
+
+
+
   /**
    * Retrieves the list of attributes with the given base name and all of the
    * specified options.
@@ -3151,6 +3151,10 @@ attrNameLoop:
    * appropriate matching rule for making the determinations, but some corner
    * cases may not be handled accurately.  Neither approximate matching nor
    * extensible matching are currently supported.
+   * <BR><BR>
+   * If the same filter is to be evaluated against a large number of entries,
+   * then it may be more efficient to use a {@link CompiledFilter} created from
+   * this filter and schema.
    *
    * @param  entry   The entry for which to make the determination.  It must not
    *                 be {@code null}.
@@ -22,10 +22,13 @@ package com.unboundid.ldap.sdk;
 
 
 
+import java.util.LinkedHashMap;
 import javax.net.ssl.SSLSocketFactory;
 
+import com.unboundid.asn1.ASN1OctetString;
 import com.unboundid.asn1.ASN1StreamReader;
 import com.unboundid.asn1.ASN1StreamReaderSequence;
+import com.unboundid.ldap.matchingrules.MatchingRule;
 import com.unboundid.ldap.protocol.LDAPMessage;
 import com.unboundid.ldap.sdk.extensions.CancelExtendedRequest;
 import com.unboundid.ldap.sdk.schema.Schema;
@@ -439,4 +442,56 @@ public final class InternalSDKHelper
   {
     return connection.getLastBindRequest();
   }
+
+
+
+  /**
+   * Creates a new LDAP attribute with the specified name and set of values,
+   * along with the normalized representations of those values.  The provided
+   * arrays will be used directly rather than copied.
+   *
+   * @param  name              The name for the attribute.
+   * @param  matchingRule      The matching rule for the attribute.
+   * @param  values            The set of values for the attribute.
+   * @param  normalizedValues  The normalized representations of the values,
+   *                           as would be returned by the
+   *                           {@link Attribute#getNormalizedValues()} method.
+   *                           Each of them must have been fully materialized.
+   *
+   * @return  The new attribute.
+   */
+  @InternalUseOnly()
+  public static Attribute createAttribute(final String name,
+                                          final MatchingRule matchingRule,
+                                          final ASN1OctetString[] values,
+                                          final ASN1OctetString[]
+                                               normalizedValues)
+  {
+    return new Attribute(name, matchingRule, values, normalizedValues);
+  }
+
+
+
+  /**
+   * Creates a new read-only entry with the same DN and schema as the provided
+   * entry but with the given set of attributes.  The provided map will be used
+   * directly rather than copied.
+   *
+   * @param  entry       The entry whose DN and schema should be used.
+   * @param  parsedDN    The parsed DN to use for the new entry.  It must be
+   *                     equal to the DN of the provided entry.  It may be
+   *                     {@code null} if the parsed DN of the provided entry
+   *                     should be used.
+   * @param  attributes  The attributes for the new entry, mapped from the
+   *                     lowercase representations of their names.
+   *
+   * @return  The new read-only entry.
+   */
+  @InternalUseOnly()
+  public static ReadOnlyEntry createReadOnlyEntry(final Entry entry,
+                     final DN parsedDN,
+                     final LinkedHashMap<String,Attribute> attributes)
+  {
+    return new ReadOnlyEntry(entry, parsedDN, attributes);
+  }
 }
@@ -23,6 +23,7 @@ package com.unboundid.ldap.sdk;
 
 
 import java.util.Collection;
+import java.util.LinkedHashMap;
 
 import com.unboundid.ldap.sdk.schema.Schema;
 import com.unboundid.ldif.LDIFException;
@@ -188,6 +189,27 @@ public class ReadOnlyEntry
 
 
 
+  /**
+   * Creates a new read-only entry with the same DN and schema as the provided
+   * entry but with the given set of attributes.  The provided map will be used
+   * directly rather than copied.
+   *
+   * @param  entry       The entry whose DN and schema should be used.
+   * @param  parsedDN    The parsed DN to use for this entry.  It must be equal
+   *                     to the DN of the provided entry.  It may be
+   *                     {@code null} if the parsed DN of the provided entry
+   *                     should be used.
+   * @param  attributes  The attributes for this entry, mapped from the
+   *                     lowercase representations of their names.
+   */
+  ReadOnlyEntry(final Entry entry, final DN parsedDN,
+                final LinkedHashMap<String,Attribute> attributes)
+  {
+    super(entry, parsedDN, attributes);
+  }
+
+
+
   /**
    * Creates a new read-only entry from the provided LDIF representation.
    *